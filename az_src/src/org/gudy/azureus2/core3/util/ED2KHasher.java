@@ -21,6 +21,7 @@
 
 package org.gudy.azureus2.core3.util;
 
+import java.nio.ByteBuffer;
 
 /**
  * @author parg
@@ -97,6 +98,59 @@ ED2KHasher
 		}
 	}
 	
+		/**
+		 * Same as update( byte[], int, int ) but consumes the buffer's remaining bytes
+		 * without copying them to the heap first (e.g. for mapped files)
+		 */
+	
+	public void
+	update(
+		ByteBuffer	buffer )
+	{
+		while( buffer.hasRemaining()){
+			
+			int	space 	= BLOCK_SIZE - current_bytes;
+			int	rem		= buffer.remaining();
+			
+			if ( rem <= space ){
+				
+				current_hasher.update( buffer );
+				
+				current_bytes += rem;
+				
+				break;
+				
+			}else{
+				
+				if ( block_hasher == null ){
+					
+					block_hasher = new MD4Hasher();
+				}
+				
+				if ( space == 0 ){
+			
+					block_hasher.update( current_hasher.getDigest());
+					
+					current_hasher = new MD4Hasher();
+					
+					current_bytes = 0;
+					
+				}else{
+					
+					int	limit = buffer.limit();
+					
+					buffer.limit( buffer.position() + space );
+					
+					current_hasher.update( buffer );
+					
+					buffer.limit( limit );
+					
+					current_bytes	+= space;
+				}
+			}
+		}
+	}
+	
 	public byte[]
 	getDigest()
 	{
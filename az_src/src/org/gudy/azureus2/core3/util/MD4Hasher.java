@@ -22,6 +22,7 @@
 
 package org.gudy.azureus2.core3.util;
 
+import java.nio.ByteBuffer;
 import java.security.*;
 
 
@@ -71,6 +72,13 @@ MD4Hasher
     	update( data, 0, data.length );
     }
     
+    public void
+    update(
+    	ByteBuffer	buffer )
+    {
+    	md4.update( buffer );
+    }
+    
     public byte[]
     getDigest()
     {
@@ -0,0 +1,35 @@
+package edu.washington.cs.oneswarm.bench.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.gudy.azureus2.core3.global.GlobalManagerStats;
+
+public class BenchUtils {
+
+    /**
+     * @return stats that ignore every update and report 0 for everything
+     */
+    public static GlobalManagerStats createNoopStats() {
+        return (GlobalManagerStats) Proxy.newProxyInstance(BenchUtils.class.getClassLoader(),
+                new Class<?>[] { GlobalManagerStats.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        Class<?> type = method.getReturnType();
+                        if (type == Boolean.TYPE) {
+                            return false;
+                        } else if (type == Integer.TYPE) {
+                            return 0;
+                        } else if (type == Long.TYPE) {
+                            return 0L;
+                        } else if (type == Float.TYPE) {
+                            return 0f;
+                        } else if (type == Double.TYPE) {
+                            return 0d;
+                        }
+                        return null;
+                    }
+                });
+    }
+}
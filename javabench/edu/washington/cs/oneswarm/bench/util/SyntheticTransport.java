@@ -0,0 +1,135 @@
+package edu.washington.cs.oneswarm.bench.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.aelitis.azureus.core.networkmanager.EventWaiter;
+import com.aelitis.azureus.core.networkmanager.Transport;
+import com.aelitis.azureus.core.networkmanager.TransportEndpoint;
+
+/**
+ * An in-memory transport. Writes are accepted in full and discarded, reads
+ * are served from a fixed byte stream until it is exhausted (see
+ * {@link #rewind()}).
+ */
+public class SyntheticTransport implements Transport {
+
+    private final byte[] stream;
+    private int readPosition = 0;
+    private long bytesWritten = 0;
+
+    public SyntheticTransport() {
+        this(new byte[0]);
+    }
+
+    public SyntheticTransport(byte[] stream) {
+        this.stream = stream;
+    }
+
+    public void rewind() {
+        readPosition = 0;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public long read(ByteBuffer[] buffers, int array_offset, int length) throws IOException {
+        long read = 0;
+        for (int i = array_offset; i < array_offset + length; i++) {
+            ByteBuffer b = buffers[i];
+            int toRead = Math.min(b.remaining(), stream.length - readPosition);
+            b.put(stream, readPosition, toRead);
+            readPosition += toRead;
+            read += toRead;
+        }
+        return read;
+    }
+
+    @Override
+    public long write(ByteBuffer[] buffers, int array_offset, int length) throws IOException {
+        long written = 0;
+        for (int i = array_offset; i < array_offset + length; i++) {
+            ByteBuffer b = buffers[i];
+            written += b.remaining();
+            b.position(b.limit());
+        }
+        bytesWritten += written;
+        return written;
+    }
+
+    @Override
+    public boolean isReadyForWrite(EventWaiter waiter) {
+        return true;
+    }
+
+    @Override
+    public boolean isReadyForRead(EventWaiter waiter) {
+        return readPosition < stream.length;
+    }
+
+    @Override
+    public boolean isTCP() {
+        return true;
+    }
+
+    @Override
+    public String getDescription() {
+        return "synthetic";
+    }
+
+    @Override
+    public int getMssSize() {
+        return 1460;
+    }
+
+    @Override
+    public void setAlreadyRead(ByteBuffer bytes_already_read) {
+    }
+
+    @Override
+    public TransportEndpoint getTransportEndpoint() {
+        return null;
+    }
+
+    @Override
+    public boolean isEncrypted() {
+        return false;
+    }
+
+    @Override
+    public String getEncryption() {
+        return "";
+    }
+
+    @Override
+    public void setReadyForRead() {
+    }
+
+    @Override
+    public void setTransportMode(int mode) {
+    }
+
+    @Override
+    public int getTransportMode() {
+        return TRANSPORT_MODE_NORMAL;
+    }
+
+    @Override
+    public void connectOutbound(ByteBuffer initial_data, ConnectListener listener,
+            boolean high_priority) {
+    }
+
+    @Override
+    public void connectedInbound() {
+    }
+
+    @Override
+    public void close(String reason) {
+    }
+
+    @Override
+    public void setTrace(boolean on) {
+    }
+}
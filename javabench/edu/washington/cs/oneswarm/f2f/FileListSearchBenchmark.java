@@ -0,0 +1,117 @@
+package edu.washington.cs.oneswarm.f2f;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.util.encoders.Base64;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Keyword searches against a synthetic file list, scanning the list versus
+ * going through the search index.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FileListSearchBenchmark {
+
+    private static final String[] WORDS = { "the", "beatles", "abbey", "road", "live", "concert",
+            "ubuntu", "desktop", "iso", "mp3", "flac", "holiday", "photos", "2010", "lecture",
+            "notes", "kernel", "source", "episode", "season", "album", "remaster", "trailer",
+            "documentary", "podcast", "paper", "slides", "thesis" };
+
+    @Param({ "1000", "10000" })
+    public int collections;
+
+    private final Random random = new Random(12345);
+    private List<FileCollection> fileList;
+    private FileListSearchIndex index;
+    private String[] queries;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        fileList = new ArrayList<FileCollection>();
+        for (int i = 0; i < collections; i++) {
+            byte[] id = new byte[20];
+            random.nextBytes(id);
+            fileList.add(createCollection(new String(Base64.encode(id))));
+        }
+        index = new FileListSearchIndex();
+        index.update(fileList);
+
+        queries = new String[64];
+        for (int i = 0; i < queries.length; i++) {
+            switch (i % 4) {
+            case 0:
+                queries[i] = randomWord();
+                break;
+            case 1:
+                queries[i] = randomWord() + " " + randomWord();
+                break;
+            case 2:
+                queries[i] = randomWord() + " -" + randomWord();
+                break;
+            default:
+                // nothing matches, the common case for forwarded searches
+                queries[i] = "xyzzy" + i;
+            }
+        }
+    }
+
+    @Benchmark
+    public int scan() {
+        return new FileList(fileList).searchMatches(nextQuery()).getElements().size();
+    }
+
+    @Benchmark
+    public int indexed() {
+        return index.searchMatches(nextQuery()).getElements().size();
+    }
+
+    private String nextQuery() {
+        return queries[next++ % queries.length];
+    }
+
+    private FileCollection createCollection(String id) {
+        List<FileListFile> files = new ArrayList<FileListFile>();
+        int numFiles = 1 + random.nextInt(10);
+        for (int j = 0; j < numFiles; j++) {
+            FileListFile f = new FileListFile(randomWords(1 + random.nextInt(4)) + "." + j,
+                    random.nextInt(100000));
+            byte[] sha1 = new byte[20];
+            random.nextBytes(sha1);
+            f.setSha1Hash(sha1);
+            byte[] ed2k = new byte[16];
+            random.nextBytes(ed2k);
+            f.setEd2kHash(ed2k);
+            files.add(f);
+        }
+        return new FileCollection(FileCollection.TYPE_BITTORRENT, id,
+                randomWords(1 + random.nextInt(4)), "", "", files, 0);
+    }
+
+    private String randomWords(int num) {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < num; i++) {
+            if (i > 0) {
+                b.append(' ');
+            }
+            b.append(randomWord());
+        }
+        return b.toString();
+    }
+
+    private String randomWord() {
+        return WORDS[random.nextInt(WORDS.length)];
+    }
+}
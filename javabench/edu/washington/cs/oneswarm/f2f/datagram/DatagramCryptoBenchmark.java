@@ -0,0 +1,62 @@
+package edu.washington.cs.oneswarm.f2f.datagram;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Encryption of full size datagrams, and encryption followed by decryption
+ * on the receiving side.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DatagramCryptoBenchmark {
+
+    private final byte[] encrypted = new byte[DatagramConnection.MAX_DATAGRAM_SIZE];
+    private final ByteBuffer decrypted = ByteBuffer.allocate(DatagramConnection.MAX_DATAGRAM_SIZE);
+    private ByteBuffer payload;
+
+    private DatagramEncrypter encrypter;
+    // the decrypter drops packets out of sequence, so it gets its own
+    // encrypter
+    private DatagramEncrypter pairedEncrypter;
+    private DatagramDecrypter decrypter;
+
+    @Setup
+    public void setup() throws Exception {
+        byte[] data = new byte[DatagramConnection.MAX_DATAGRAM_PAYLOAD_SIZE];
+        new Random(12345).nextBytes(data);
+        payload = ByteBuffer.wrap(data);
+
+        encrypter = new DatagramEncrypter();
+        pairedEncrypter = new DatagramEncrypter();
+        decrypter = new DatagramDecrypter(pairedEncrypter.getKey(), pairedEncrypter.getIv(),
+                pairedEncrypter.getHmac());
+    }
+
+    @Benchmark
+    public int encrypt() throws Exception {
+        payload.clear();
+        return encrypter.encrypt(payload, encrypted).length;
+    }
+
+    @Benchmark
+    public boolean encryptDecrypt() throws Exception {
+        payload.clear();
+        EncryptedPacket p = pairedEncrypter.encrypt(payload, encrypted);
+        decrypted.clear();
+        if (!decrypter.decrypt(encrypted, 0, p.length, decrypted)) {
+            throw new IllegalStateException("decrypt failed");
+        }
+        return true;
+    }
+}
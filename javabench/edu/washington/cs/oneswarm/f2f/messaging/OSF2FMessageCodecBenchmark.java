@@ -0,0 +1,131 @@
+package edu.washington.cs.oneswarm.f2f.messaging;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.gudy.azureus2.core3.util.DirectByteBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.aelitis.azureus.core.networkmanager.RawMessage;
+import com.aelitis.azureus.core.peermanager.messaging.Message;
+
+import edu.washington.cs.oneswarm.bench.util.SyntheticTransport;
+
+/**
+ * Encoding of channel data messages and decoding of a synthetic message
+ * stream (mostly channel data with some searches mixed in, roughly what a
+ * busy friend connection carries).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class OSF2FMessageCodecBenchmark {
+
+    private static final int STREAM_MESSAGES = 256;
+
+    private static boolean factoryInitialized = false;
+
+    @Param({ "1024", "16384" })
+    public int payloadSize;
+
+    /** Per-message reads or bulk reads, see OSF2FMessageDecoder */
+    @Param({ "false", "true" })
+    public boolean bulkDecode;
+
+    private ByteBuffer payload;
+    private OSF2FMessageEncoder encoder;
+    private SyntheticTransport stream;
+    private int streamLength;
+
+    static synchronized void initFactory() {
+        if (!factoryInitialized) {
+            OSF2FMessageFactory.init();
+            factoryInitialized = true;
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        initFactory();
+        Random random = new Random(12345);
+        byte[] data = new byte[payloadSize];
+        random.nextBytes(data);
+        payload = ByteBuffer.wrap(data);
+        encoder = new OSF2FMessageEncoder();
+
+        List<Message> messages = new ArrayList<Message>();
+        for (int i = 0; i < STREAM_MESSAGES; i++) {
+            if (i % 16 == 0) {
+                messages.add(new OSF2FHashSearch(OSF2FMessage.CURRENT_VERSION, random.nextInt(),
+                        random.nextLong()));
+            } else if (i % 16 == 1) {
+                messages.add(new OSF2FTextSearch(OSF2FMessage.CURRENT_VERSION,
+                        OSF2FMessage.FILE_LIST_TYPE_PARTIAL, random.nextInt(), "abbey road"));
+            } else {
+                messages.add(channelData(i));
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Message m : messages) {
+            RawMessage raw = OSF2FMessageFactory.createOSF2FRawMessage(m);
+            for (DirectByteBuffer b : raw.getRawData()) {
+                ByteBuffer bb = b.getBuffer(DirectByteBuffer.SS_MSG).duplicate();
+                byte[] bytes = new byte[bb.remaining()];
+                bb.get(bytes);
+                out.write(bytes);
+            }
+            raw.destroy();
+        }
+        byte[] bytes = out.toByteArray();
+        streamLength = bytes.length;
+        stream = new SyntheticTransport(bytes);
+    }
+
+    private OSF2FChannelDataMsg channelData(int channelId) {
+        return new OSF2FChannelDataMsg(OSF2FMessage.CURRENT_VERSION, channelId,
+                new DirectByteBuffer(payload.duplicate()));
+    }
+
+    @Benchmark
+    public int encodeChannelData() {
+        RawMessage[] raw = encoder.encodeMessage(channelData(1));
+        int len = 0;
+        for (DirectByteBuffer b : raw[0].getRawData()) {
+            len += b.remaining(DirectByteBuffer.SS_MSG);
+        }
+        raw[0].destroy();
+        return len;
+    }
+
+    /**
+     * Decodes the whole stream, one operation is STREAM_MESSAGES messages
+     */
+    @Benchmark
+    public int decodeStream() throws Exception {
+        OSF2FMessageDecoder decoder = new OSF2FMessageDecoder(bulkDecode);
+        stream.rewind();
+        int decoded = 0;
+        while (decoder.performStreamDecode(stream, streamLength) > 0) {
+            Message[] messages = decoder.removeDecodedMessages();
+            if (messages != null) {
+                for (Message m : messages) {
+                    decoded++;
+                    m.destroy();
+                }
+            }
+        }
+        decoder.destroy();
+        return decoded;
+    }
+}
@@ -0,0 +1,83 @@
+package edu.washington.cs.oneswarm.f2f.network;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.gudy.azureus2.core3.global.GlobalManagerStats;
+import org.gudy.azureus2.core3.util.DirectByteBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.aelitis.azureus.core.networkmanager.NetworkConnection;
+import com.aelitis.azureus.core.networkmanager.NetworkManager;
+import com.aelitis.azureus.core.networkmanager.impl.OutgoingMessageQueueImpl;
+import com.aelitis.azureus.core.networkmanager.impl.tcp.ProtocolEndpointTCP;
+
+import edu.washington.cs.oneswarm.bench.util.BenchUtils;
+import edu.washington.cs.oneswarm.bench.util.SyntheticTransport;
+import edu.washington.cs.oneswarm.f2f.Friend;
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FChannelDataMsg;
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FMessage;
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FMessageDecoder;
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FMessageEncoder;
+
+/**
+ * Queues channel messages on synthetic friend connections and pushes them
+ * through the queue manager to an in-memory transport. One operation is one
+ * message queued, scheduled and written.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FriendConnectionQueueBenchmark {
+
+    @Param({ "1", "8" })
+    public int friends;
+
+    @Param({ "1024" })
+    public int payloadSize;
+
+    private ByteBuffer payload;
+    private FriendConnection[] connections;
+    private NetworkConnection[] networkConnections;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        payload = ByteBuffer.allocate(payloadSize);
+        GlobalManagerStats stats = BenchUtils.createNoopStats();
+        QueueManager queueManager = new QueueManager();
+        connections = new FriendConnection[friends];
+        networkConnections = new NetworkConnection[friends];
+        for (int i = 0; i < friends; i++) {
+            ProtocolEndpointTCP endpoint = new ProtocolEndpointTCP(new InetSocketAddress(
+                    "127.0.0.1", 10000 + i));
+            NetworkConnection conn = NetworkManager.getSingleton().createConnection(
+                    endpoint.getConnectionEndpoint(), new OSF2FMessageEncoder(),
+                    new OSF2FMessageDecoder(), false, false, null);
+            ((OutgoingMessageQueueImpl) conn.getOutgoingMessageQueue())
+                    .setTransport(new SyntheticTransport());
+            networkConnections[i] = conn;
+            connections[i] = FriendConnection.createStubForTests(stats, queueManager, conn,
+                    new Friend("", "bench " + i, new byte[] { (byte) i }, false));
+        }
+    }
+
+    @Benchmark
+    public int queueAndSend() throws Exception {
+        int i = next++ % friends;
+        OSF2FChannelDataMsg msg = new OSF2FChannelDataMsg(OSF2FMessage.CURRENT_VERSION, i,
+                new DirectByteBuffer(payload.duplicate()));
+        // one in four is forwarded traffic, the rest our own transfers
+        connections[i].sendChannelMsg(msg, next % 4 != 0);
+        return networkConnections[i].getOutgoingMessageQueue().deliverToTransport(
+                Integer.MAX_VALUE, false);
+    }
+}
@@ -0,0 +1,86 @@
+package edu.washington.cs.oneswarm.f2f.network;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import edu.washington.cs.oneswarm.f2f.network.SearchManager.RotatingBloomFilter;
+
+/**
+ * Lookups in the recent search filter with all buckets populated, for both
+ * the single pass and the bucket by bucket lookup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RotatingBloomFilterBenchmark {
+
+    private static final int BUCKETS = 4;
+    private static final int ENTRIES_PER_BUCKET = 20000;
+    private static final int KEYS = 1024;
+
+    @Param({ "true", "false" })
+    public boolean singlePassLookup;
+
+    private RotatingBloomFilter filter;
+    private final int[] presentIds = new int[KEYS];
+    private final int[] presentValues = new int[KEYS];
+    private final int[] absentIds = new int[KEYS];
+    private final int[] absentValues = new int[KEYS];
+    private int next = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        Random random = new Random(12345);
+        filter = new RotatingBloomFilter(BUCKETS, BUCKETS);
+        filter.setSinglePassLookup(singlePassLookup);
+        for (int b = 0; b < BUCKETS; b++) {
+            for (int i = 0; i < ENTRIES_PER_BUCKET; i++) {
+                int id = random.nextInt();
+                int value = random.nextInt();
+                filter.insert(id, value);
+                // spread the remembered keys over all buckets
+                if (i < KEYS / BUCKETS) {
+                    int k = b * (KEYS / BUCKETS) + i;
+                    presentIds[k] = id;
+                    presentValues[k] = value;
+                }
+            }
+            if (b < BUCKETS - 1) {
+                do {
+                    Thread.sleep(2);
+                } while (!filter.rotateIfNeeded());
+            }
+        }
+        for (int i = 0; i < KEYS; i++) {
+            absentIds[i] = random.nextInt();
+            absentValues[i] = random.nextInt();
+        }
+    }
+
+    @Benchmark
+    public boolean containsHit() {
+        int i = next++ & (KEYS - 1);
+        return filter.contains(presentIds[i], presentValues[i]);
+    }
+
+    @Benchmark
+    public boolean containsMiss() {
+        int i = next++ & (KEYS - 1);
+        return filter.contains(absentIds[i], absentValues[i]);
+    }
+
+    @Benchmark
+    public void insert() {
+        int i = next++ & (KEYS - 1);
+        filter.insert(absentIds[i] + next, absentValues[i]);
+    }
+}
@@ -0,0 +1,53 @@
+package edu.washington.cs.oneswarm.f2f.servicesharing;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FMessage;
+
+/**
+ * Sends a window of messages through the multiplexer and acknowledges all of
+ * them with a single ack, one operation is one window.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MessageStreamMultiplexerBenchmark {
+
+    private static final int CHANNEL_ID = 1;
+
+    @Param({ "16", "64" })
+    public int window;
+
+    private MessageStreamMultiplexer mux;
+    private int[] acks;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        mux = new MessageStreamMultiplexer((short) 0);
+        acks = new int[window];
+    }
+
+    @Benchmark
+    public int sendAndAck() {
+        for (int i = 0; i < window; i++) {
+            SequenceNumber seq = mux.nextMsg();
+            seq.addChannel(CHANNEL_ID);
+            acks[i] = seq.getNum();
+        }
+        OSF2FServiceDataMsg ack = OSF2FServiceDataMsg.acknowledge(OSF2FMessage.CURRENT_VERSION,
+                CHANNEL_ID, 0, (short) 0, acks, false);
+        int acked = mux.onAck(ack);
+        ack.destroy();
+        return acked;
+    }
+}
@@ -0,0 +1,83 @@
+package edu.washington.cs.oneswarm.f2f.servicesharing;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.gudy.azureus2.core3.util.DirectByteBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.aelitis.azureus.core.networkmanager.RawMessage;
+
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FChannelDataMsg;
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FMessage;
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FMessageFactory;
+
+/**
+ * What OverlayForward does with a received service data message before it
+ * is queued to the next friend: either parse it into an OSF2FServiceDataMsg
+ * and update its window, or swap the window and channel id in the received
+ * buffer (see FriendConnection.OverlayForward.forwardInPlace()). Ops/s times
+ * payloadSize is the relayed bytes per CPU-second of that step.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ServiceDataRelayBenchmark {
+
+    @Param({ "1024", "16384" })
+    public int payloadSize;
+
+    @Param({ "false", "true" })
+    public boolean inPlace;
+
+    /** A service message as it arrives on the wire, channel id included */
+    private ByteBuffer wire;
+
+    @Setup
+    public void setup() throws Exception {
+        OSF2FMessageFactory.init();
+        byte[] data = new byte[payloadSize];
+        new Random(12345).nextBytes(data);
+        OSF2FServiceDataMsg msg = new OSF2FServiceDataMsg(OSF2FMessage.CURRENT_VERSION, 1,
+                1000, 5, (short) 0, new int[0], new DirectByteBuffer(ByteBuffer.wrap(data)));
+        wire = ByteBuffer.allocate(msg.getMessageSize());
+        for (DirectByteBuffer b : msg.getData()) {
+            wire.put(b.getBuffer(DirectByteBuffer.SS_MSG));
+        }
+        wire.flip();
+    }
+
+    @Benchmark
+    public int relay() throws Exception {
+        ByteBuffer received = wire.duplicate();
+        received.position(OSF2FChannelDataMsg.CHANNEL_ID_LEN);
+        OSF2FChannelDataMsg msg = new OSF2FChannelDataMsg(OSF2FMessage.CURRENT_VERSION, 1,
+                new DirectByteBuffer(received));
+
+        OSF2FChannelDataMsg out;
+        if (inPlace) {
+            OSF2FServiceDataMsg.exchangeWindow(msg, 1000);
+            msg.putChannelIdInPayload();
+            out = msg;
+        } else {
+            OSF2FServiceDataMsg service = OSF2FServiceDataMsg.fromChannelMessage(msg);
+            service.setWindow(1000);
+            out = service;
+        }
+        RawMessage raw = OSF2FMessageFactory.createOSF2FRawMessage(out);
+        int len = 0;
+        for (DirectByteBuffer b : raw.getRawData()) {
+            len += b.remaining(DirectByteBuffer.SS_MSG);
+        }
+        raw.destroy();
+        return len;
+    }
+}
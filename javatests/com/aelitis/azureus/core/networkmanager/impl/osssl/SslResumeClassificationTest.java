@@ -0,0 +1,235 @@
+package com.aelitis.azureus.core.networkmanager.impl.osssl;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLSession;
+
+import org.gudy.azureus2.core3.config.COConfigurationManager;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.aelitis.azureus.core.networkmanager.impl.osssl.OneSwarmSslTransportHelperFilterStream.SslHandShakeMatch;
+
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+
+/**
+ * Classifies the client hellos of friends resuming a session, with in memory
+ * handshakes between engines of the OneSwarm ssl context.
+ */
+public class SslResumeClassificationTest extends OneSwarmTestBase {
+
+    private static final String PEER = "0123456789abcdef";
+    private static final String REMOTE_ACCESS = "OSGWTUI.RemoteAccess";
+    /** record(5) + handshake header(4) + client_version(2) + random(32) */
+    private static final int SESSION_ID_OFFSET = 43;
+
+    private static int nextPort = 30000;
+
+    private final SSLContext context = OneSwarmSslKeyManager.getInstance().getSSLContext();
+    private final boolean remoteAccess = COConfigurationManager.getBooleanParameter(REMOTE_ACCESS);
+
+    @After
+    public void tearDown() {
+        COConfigurationManager.setParameter(REMOTE_ACCESS, remoteAccess);
+    }
+
+    @Test
+    public void testKnownSession() throws Exception {
+        COConfigurationManager.setParameter(REMOTE_ACCESS, false);
+        int port = nextPort++;
+        SSLSession first = handshake(client(port), server(SslHandShakeMatch.SSL_CLIENT_CERT));
+
+        byte[] hello = clientHello(client(port));
+        Assert.assertArrayEquals(first.getId(), getSessionId(hello));
+        Assert.assertEquals(SslHandShakeMatch.SSL_CLIENT_CERT,
+                OneSwarmSslTransportHelperFilterStream.isOneSwarmResumeClientHello(hello));
+        Assert.assertEquals(SslHandShakeMatch.SSL_CLIENT_CERT,
+                OneSwarmSslTransportHelperFilterStream.isSSLClientHello(hello));
+
+        SSLSession resumed = handshake(client(port), server(SslHandShakeMatch.SSL_CLIENT_CERT));
+        Assert.assertArrayEquals(first.getId(), resumed.getId());
+        Assert.assertEquals(1, resumed.getPeerCertificates().length);
+    }
+
+    @Test
+    public void testUnknownSessionFallsBackToFullHandshake() throws Exception {
+        int port = nextPort++;
+        SSLSession first = handshake(client(port), server(SslHandShakeMatch.SSL_CLIENT_CERT));
+        // restarted, or the session was evicted
+        context.getServerSessionContext().getSession(first.getId()).invalidate();
+
+        byte[] hello = clientHello(client(port));
+        Assert.assertArrayEquals(first.getId(), getSessionId(hello));
+        Assert.assertEquals(SslHandShakeMatch.SSL_OPTIONAL_CLIENT_CERT,
+                OneSwarmSslTransportHelperFilterStream.isOneSwarmResumeClientHello(hello));
+
+        // no browsers to expect, so it is a friend
+        COConfigurationManager.setParameter(REMOTE_ACCESS, false);
+        SslHandShakeMatch match = OneSwarmSslTransportHelperFilterStream.isSSLClientHello(hello);
+        Assert.assertEquals(SslHandShakeMatch.SSL_CLIENT_CERT, match);
+        SSLSession full = handshake(client(port), server(match));
+        Assert.assertFalse(Arrays.equals(first.getId(), full.getId()));
+        Assert.assertEquals(1, full.getPeerCertificates().length);
+
+        // a browser would resume the same way, the certificate tells them apart
+        context.getServerSessionContext().getSession(full.getId()).invalidate();
+        COConfigurationManager.setParameter(REMOTE_ACCESS, true);
+        match = OneSwarmSslTransportHelperFilterStream.isSSLClientHello(clientHello(client(port)));
+        Assert.assertEquals(SslHandShakeMatch.SSL_OPTIONAL_CLIENT_CERT, match);
+        SSLSession optional = handshake(client(port), server(match));
+        Assert.assertFalse(Arrays.equals(full.getId(), optional.getId()));
+        Assert.assertEquals(1, optional.getPeerCertificates().length);
+    }
+
+    @Test
+    public void testPartialHello() throws Exception {
+        COConfigurationManager.setParameter(REMOTE_ACCESS, false);
+        int port = nextPort++;
+        handshake(client(port), server(SslHandShakeMatch.SSL_CLIENT_CERT));
+        byte[] hello = clientHello(client(port));
+        Assert.assertEquals(32, getSessionId(hello).length);
+
+        // cut in the header, before the session id and inside it
+        for (int len : new int[] { 1, 5, 12, SESSION_ID_OFFSET, SESSION_ID_OFFSET + 1,
+                SESSION_ID_OFFSET + 17, SESSION_ID_OFFSET + 32 }) {
+            byte[] partial = Arrays.copyOf(hello, len);
+            Assert.assertEquals("length " + len, SslHandShakeMatch.NOT_ENOUGH_BYTES,
+                    OneSwarmSslTransportHelperFilterStream.isOneSwarmResumeClientHello(partial));
+            if (len > OneSwarmSslTransportHelperFilterStream.SSL_HEADER_MIN_LENGTH) {
+                Assert.assertEquals("length " + len, SslHandShakeMatch.NOT_ENOUGH_BYTES,
+                        OneSwarmSslTransportHelperFilterStream.isSSLClientHello(partial));
+            }
+        }
+        Assert.assertEquals(SslHandShakeMatch.SSL_CLIENT_CERT,
+                OneSwarmSslTransportHelperFilterStream.isSSLClientHello(Arrays.copyOf(hello,
+                        SESSION_ID_OFFSET + 33)));
+
+        // not a v3 client hello at all
+        byte[] other = hello.clone();
+        other[0] = 19;
+        Assert.assertEquals(SslHandShakeMatch.NO_SSL,
+                OneSwarmSslTransportHelperFilterStream.isOneSwarmResumeClientHello(other));
+        Assert.assertEquals(SslHandShakeMatch.NO_SSL,
+                OneSwarmSslTransportHelperFilterStream.isSSLClientHello(other));
+    }
+
+    @Test
+    public void testInvalidateClientSessions() throws Exception {
+        int port = nextPort++;
+        int otherPort = nextPort++;
+        handshake(client(port), server(SslHandShakeMatch.SSL_CLIENT_CERT));
+        SSLSession other = handshake(client(otherPort),
+                server(SslHandShakeMatch.SSL_CLIENT_CERT));
+
+        OneSwarmSslTransportHelperFilterStream.invalidateClientSessions(PEER, port);
+        // the next connection doesn't offer a session
+        byte[] hello = clientHello(client(port));
+        Assert.assertEquals(0, hello[SESSION_ID_OFFSET]);
+        Assert.assertEquals(SslHandShakeMatch.NO_SSL,
+                OneSwarmSslTransportHelperFilterStream.isOneSwarmResumeClientHello(hello));
+        Assert.assertArrayEquals(other.getId(), getSessionId(clientHello(client(otherPort))));
+    }
+
+    private SSLEngine client(int port) {
+        SSLEngine engine = context.createSSLEngine(PEER, port);
+        engine.setUseClientMode(true);
+        // TLS 1.3 resumes with tickets, the session id in its hello is random
+        engine.setEnabledProtocols(new String[] { "TLSv1.2" });
+        return engine;
+    }
+
+    /**
+     * @return a server engine set up like the one of an incoming connection
+     *         with the hello classified as <code>match</code>
+     */
+    private SSLEngine server(SslHandShakeMatch match) {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setNeedClientAuth(match == SslHandShakeMatch.SSL_CLIENT_CERT);
+        if (match == SslHandShakeMatch.SSL_OPTIONAL_CLIENT_CERT) {
+            engine.setWantClientAuth(true);
+        }
+        return engine;
+    }
+
+    private static byte[] clientHello(SSLEngine client) throws Exception {
+        client.beginHandshake();
+        ByteBuffer out = ByteBuffer.allocate(client.getSession().getPacketBufferSize());
+        client.wrap(ByteBuffer.allocate(0), out);
+        out.flip();
+        byte[] hello = new byte[out.remaining()];
+        out.get(hello);
+        return hello;
+    }
+
+    private static byte[] getSessionId(byte[] hello) {
+        int len = hello[SESSION_ID_OFFSET] & 0xff;
+        return Arrays.copyOfRange(hello, SESSION_ID_OFFSET + 1, SESSION_ID_OFFSET + 1 + len);
+    }
+
+    /**
+     * @return the session of the server side
+     */
+    private static SSLSession handshake(SSLEngine client, SSLEngine server) throws Exception {
+        int packetSize = Math.max(client.getSession().getPacketBufferSize(), server
+                .getSession().getPacketBufferSize());
+        int appSize = Math.max(client.getSession().getApplicationBufferSize(), server
+                .getSession().getApplicationBufferSize());
+        // room for a whole flight of records
+        ByteBuffer toServer = ByteBuffer.allocate(8 * packetSize);
+        ByteBuffer toClient = ByteBuffer.allocate(8 * packetSize);
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        ByteBuffer app = ByteBuffer.allocate(appSize);
+        client.beginHandshake();
+        server.beginHandshake();
+        for (int i = 0; i < 100; i++) {
+            if (isDone(client) && isDone(server)) {
+                return server.getSession();
+            }
+            step(client, empty, toServer, toClient, app);
+            step(server, empty, toClient, toServer, app);
+        }
+        throw new AssertionError("handshake didn't finish");
+    }
+
+    private static boolean isDone(SSLEngine engine) {
+        HandshakeStatus status = engine.getHandshakeStatus();
+        return status == HandshakeStatus.NOT_HANDSHAKING || status == HandshakeStatus.FINISHED;
+    }
+
+    private static void step(SSLEngine engine, ByteBuffer empty, ByteBuffer out, ByteBuffer in,
+            ByteBuffer app) throws Exception {
+        while (true) {
+            switch (engine.getHandshakeStatus()) {
+            case NEED_TASK:
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                break;
+            case NEED_WRAP:
+                engine.wrap(empty, out);
+                break;
+            case NEED_UNWRAP:
+                in.flip();
+                SSLEngineResult result = engine.unwrap(in, app);
+                in.compact();
+                app.clear();
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW
+                        || result.bytesConsumed() == 0
+                        && result.getHandshakeStatus() == HandshakeStatus.NEED_UNWRAP) {
+                    return;
+                }
+                break;
+            default:
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package edu.uw.cse.netlab.reputation.storage;
+
+import java.io.IOException;
+import java.security.KeyPairGenerator;
+import java.util.Date;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.uw.cse.netlab.reputation.LocalIdentity;
+import edu.uw.cse.netlab.utils.BloomFilter;
+import edu.uw.cse.netlab.utils.ByteManip;
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+
+/**
+ * Round trips receipts through {@link ReceiptCodec}, both in its own layout
+ * and as rows written Java-serialized before it existed.
+ */
+public class ReceiptCodecTest extends OneSwarmTestBase {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Receipt r = newReceipt(null);
+        byte[] encoded = ReceiptCodec.encode(r);
+        Assert.assertNotNull(r.getSignature());
+
+        Receipt decoded = ReceiptCodec.decode(encoded);
+        Assert.assertEquals(r, decoded);
+        Assert.assertArrayEquals(r.getSignature(), decoded.getSignature());
+        Assert.assertNull(decoded.getOnBehalfOf());
+        // decoded without verification, but the signature still checks out
+        decoded.verify_signature();
+
+        BloomFilter onBehalfOf = new BloomFilter(1024, 10);
+        onBehalfOf.insert(new byte[] { 1, 2, 3 });
+        r = newReceipt(onBehalfOf);
+        decoded = ReceiptCodec.decode(ReceiptCodec.encode(r));
+        Assert.assertEquals(r, decoded);
+        Assert.assertTrue(onBehalfOf.equals(decoded.getOnBehalfOf()));
+        assertCounters(r, ReceiptCodec.decode_counters(ReceiptCodec.encode(r)));
+    }
+
+    @Test
+    public void testLegacySerializedReceipt() throws Exception {
+        Receipt r = newReceipt(null);
+        byte[] legacy = ByteManip.objectToBytes(r);
+
+        Receipt decoded = ReceiptCodec.decode(legacy);
+        Assert.assertEquals(r, decoded);
+        Assert.assertEquals(r.get_sent_direct_diff(), decoded.get_sent_direct_diff());
+        assertCounters(r, ReceiptCodec.decode_counters(legacy));
+
+        // re-encoding moves it to the new layout
+        byte[] encoded = ReceiptCodec.encode(decoded);
+        Assert.assertFalse(encoded[0] == legacy[0] && encoded[1] == legacy[1]);
+        Assert.assertEquals(r, ReceiptCodec.decode(encoded));
+    }
+
+    @Test
+    public void testCorruptReceipts() throws Exception {
+        byte[] encoded = ReceiptCodec.encode(newReceipt(null));
+        byte[] truncated = new byte[encoded.length - 10];
+        System.arraycopy(encoded, 0, truncated, 0, truncated.length);
+        try {
+            ReceiptCodec.decode(truncated);
+            Assert.fail("decoded a truncated receipt");
+        } catch (IOException e) {
+        }
+        // the counters come first and are still there
+        assertCounters(ReceiptCodec.decode(encoded), ReceiptCodec.decode_counters(truncated));
+
+        try {
+            ReceiptCodec.decode_counters(new byte[] { 0, 0, 0, 0, 0, 0, 0, 0 });
+            Assert.fail("decoded an unknown encoding");
+        } catch (IOException e) {
+        }
+    }
+
+    private static void assertCounters(Receipt expected, Receipt counters) {
+        Assert.assertEquals(expected.get_sent_direct(), counters.get_sent_direct());
+        Assert.assertEquals(expected.get_received_direct(), counters.get_received_direct());
+        Assert.assertEquals(expected.get_peer_received_due_to_reco(),
+                counters.get_peer_received_due_to_reco());
+        Assert.assertEquals(expected.get_peer_sent_to_recos(), counters.get_peer_sent_to_recos());
+    }
+
+    /**
+     * @return a receipt signed by the local identity, filled in without going
+     *         through ReputationDAO
+     */
+    private static Receipt newReceipt(BloomFilter inOnBehalfOf) throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(512);
+
+        Receipt r = new Receipt();
+        r.mSigning = LocalIdentity.get().getKeys().getPublic();
+        r.mEncodingStateFor = gen.generateKeyPair().getPublic();
+        r.mOnBehalfOf = inOnBehalfOf;
+        r.sent_direct = 1L << 40;
+        r.received_direct = 12345;
+        r.peer_received_due_to_reco = 678;
+        r.peer_sent_to_recos = 9;
+        r.sent_direct_diff = -42;
+        r.timestamp = new Date(1234567890123L);
+        return r;
+    }
+}
@@ -0,0 +1,167 @@
+package edu.uw.cse.netlab.reputation.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+
+/**
+ * The write-behind transfer accounting of {@link ReputationDAO}: reads merge
+ * the state table with the pending counts, {@link ReputationDAO#flush()}
+ * moves the pending counts into the table, and a flush that fails keeps them.
+ * Runs against a Derby database in a temp directory, the state rows are read
+ * back over a second connection.
+ */
+public class ReputationDAOTest extends OneSwarmTestBase {
+
+    private static File derbyHome;
+    private static ReputationDAO dao;
+    private static Connection db;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        derbyHome = File.createTempFile("reputation", "");
+        derbyHome.delete();
+        derbyHome.mkdirs();
+        System.setProperty("derby.system.home", derbyHome.getPath());
+        dao = ReputationDAO.get();
+        db = DriverManager.getConnection("jdbc:derby:OneSwarm;databaseName=peers");
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws SQLException {
+        db.close();
+    }
+
+    @Test
+    public void testReadsMergePendingCounts() throws Exception {
+        long id = dao.get_internal_id(newKey());
+        dao.sent_direct(id, 100);
+        dao.others_recv_due_to_my_reco(id, 3);
+        dao.flush();
+        Assert.assertEquals(100, dbValue(id, PendingTransfers.SENT_DIRECT));
+
+        dao.sent_direct(id, 20);
+        dao.sent_direct(id, 5);
+        dao.received_direct(id, 7);
+        Assert.assertEquals(100, dbValue(id, PendingTransfers.SENT_DIRECT));
+        Assert.assertEquals(0, dbValue(id, PendingTransfers.RECEIVED_DIRECT));
+        Assert.assertEquals(125, dao.get_sent_direct(id));
+        Assert.assertEquals(7, dao.get_received_direct(id));
+        Assert.assertEquals(3, dao.get_others_recv_due_to_my_reco(id));
+        Assert.assertEquals(0, dao.get_local_sent_due_to_remote_reco(id));
+
+        // no state row
+        Assert.assertEquals(-1, dao.get_sent_direct(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testFlushEmptiesPendingCounts() throws Exception {
+        long id = dao.get_internal_id(newKey());
+        long other = dao.get_internal_id(newKey());
+        // cache the rows before they change
+        Assert.assertEquals(0, dao.get_local_recv_due_to_remote_reco(id));
+        Assert.assertEquals(0, dao.get_local_recv_due_to_remote_reco(other));
+
+        dao.local_recv_due_to_remote_reco(id, 40);
+        dao.local_sent_due_to_remote_reco(id, 2);
+        dao.local_recv_due_to_remote_reco(other, 9);
+        dao.flush();
+        Assert.assertEquals(40, dbValue(id, PendingTransfers.LOCAL_RECV_DUE_TO_REMOTE_RECO));
+        Assert.assertEquals(2, dbValue(id, PendingTransfers.LOCAL_SENT_DUE_TO_REMOTE_RECO));
+        Assert.assertEquals(9, dbValue(other, PendingTransfers.LOCAL_RECV_DUE_TO_REMOTE_RECO));
+        Assert.assertEquals(40, dao.get_local_recv_due_to_remote_reco(id));
+        Assert.assertEquals(9, dao.get_local_recv_due_to_remote_reco(other));
+
+        // nothing is left to write a second time
+        dao.flush();
+        Assert.assertEquals(40, dbValue(id, PendingTransfers.LOCAL_RECV_DUE_TO_REMOTE_RECO));
+        Assert.assertEquals(40, dao.get_local_recv_due_to_remote_reco(id));
+    }
+
+    @Test
+    public void testFailedFlushKeepsPendingCounts() throws Exception {
+        long id = dao.get_internal_id(newKey());
+        long other = dao.get_internal_id(newKey());
+        dao.others_sent_due_to_my_reco(id, 1);
+        dao.flush();
+
+        dao.others_recv_due_to_my_reco(id, 7);
+        dao.others_recv_due_to_my_reco(other, 9);
+        // overflows the column, the whole batch is rolled back
+        dao.others_sent_due_to_my_reco(id, Long.MAX_VALUE);
+        dao.flush();
+        Assert.assertEquals(1, dbValue(id, PendingTransfers.OTHERS_SENT_DUE_TO_MY_RECO));
+        Assert.assertEquals(0, dbValue(id, PendingTransfers.OTHERS_RECV_DUE_TO_MY_RECO));
+        Assert.assertEquals(0, dbValue(other, PendingTransfers.OTHERS_RECV_DUE_TO_MY_RECO));
+        Assert.assertEquals(7, dao.get_others_recv_due_to_my_reco(id));
+        Assert.assertEquals(9, dao.get_others_recv_due_to_my_reco(other));
+
+        // the next flush writes them
+        dao.others_sent_due_to_my_reco(id, -Long.MAX_VALUE);
+        dao.flush();
+        Assert.assertEquals(1, dbValue(id, PendingTransfers.OTHERS_SENT_DUE_TO_MY_RECO));
+        Assert.assertEquals(7, dbValue(id, PendingTransfers.OTHERS_RECV_DUE_TO_MY_RECO));
+        Assert.assertEquals(9, dbValue(other, PendingTransfers.OTHERS_RECV_DUE_TO_MY_RECO));
+        Assert.assertEquals(1, dao.get_others_sent_due_to_my_reco(id));
+        Assert.assertEquals(7, dao.get_others_recv_due_to_my_reco(id));
+    }
+
+    @Test
+    public void testPendingRestore() {
+        PendingTransfers pending = new PendingTransfers();
+        pending.add(1, PendingTransfers.SENT_DIRECT, 10);
+        pending.add(2, PendingTransfers.RECEIVED_DIRECT, 20);
+        Map<Long, long[]> drained = pending.drain();
+        Assert.assertEquals(2, drained.size());
+        Assert.assertEquals(0, pending.get(1, PendingTransfers.SENT_DIRECT));
+        Assert.assertTrue(pending.drain().isEmpty());
+
+        // counts added while the drained ones were being written are kept
+        pending.add(1, PendingTransfers.SENT_DIRECT, 5);
+        pending.restore(drained);
+        Assert.assertEquals(15, pending.get(1, PendingTransfers.SENT_DIRECT));
+        Assert.assertEquals(20, pending.get(2, PendingTransfers.RECEIVED_DIRECT));
+
+        Map<Long, long[]> empty = new HashMap<Long, long[]>();
+        pending.restore(empty);
+        Assert.assertEquals(2, pending.drain().size());
+    }
+
+    private static PublicKey newKey() throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(512);
+        return gen.generateKeyPair().getPublic();
+    }
+
+    private static long dbValue(long id, int field) throws IOException {
+        try {
+            PreparedStatement stmt = db.prepareStatement("SELECT "
+                    + PendingTransfers.FIELDS[field] + " FROM state WHERE remote_id = ?");
+            try {
+                stmt.setLong(1, id);
+                ResultSet rs = stmt.executeQuery();
+                Assert.assertTrue(rs.next());
+                return rs.getLong(1);
+            } finally {
+                stmt.close();
+            }
+        } catch (SQLException e) {
+            throw new IOException(e.toString());
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package edu.uw.cse.netlab.reputation.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+
+/**
+ * Checks the bounded {@link TopKScores.Heap} against sorting every entry.
+ */
+public class TopKScoresTest extends OneSwarmTestBase {
+
+    @Test
+    public void testHeapMatchesFullSort() {
+        Random random = new Random(1);
+        for (int round = 0; round < 200; round++) {
+            int n = random.nextInt(40);
+            // few distinct values so that scores and observations tie
+            List<double[]> entries = new ArrayList<double[]>();
+            for (int i = 0; i < n; i++) {
+                entries.add(new double[] { random.nextInt(1000) * 100 + i, random.nextInt(4),
+                        random.nextInt(3) });
+            }
+            for (int k : new int[] { 0, 1, 5, n, n + 7 }) {
+                assertTop(entries, k);
+            }
+        }
+    }
+
+    @Test
+    public void testAllTied() {
+        List<double[]> entries = new ArrayList<double[]>();
+        for (int i = 0; i < 10; i++) {
+            entries.add(new double[] { 9 - i, 1.0, 2.0 });
+        }
+        // equal score and observations, lower id first
+        long[] top = assertTop(entries, 4);
+        Assert.assertArrayEquals(new long[] { 0, 1, 2, 3 }, top);
+    }
+
+    /**
+     * @param entries id, score and observations
+     */
+    private static long[] assertTop(List<double[]> entries, int k) {
+        TopKScores.Heap heap = new TopKScores.Heap(k);
+        for (double[] e : entries) {
+            heap.offer((long) e[0], e[1], e[2]);
+        }
+        long[] top = heap.drain_descending();
+
+        List<double[]> sorted = new ArrayList<double[]>(entries);
+        Collections.sort(sorted, new Comparator<double[]>() {
+            @Override
+            public int compare(double[] a, double[] b) {
+                if (a[1] != b[1]) {
+                    return a[1] > b[1] ? -1 : 1;
+                }
+                if (a[2] != b[2]) {
+                    return a[2] > b[2] ? -1 : 1;
+                }
+                return Double.compare(a[0], b[0]);
+            }
+        });
+        int expected = Math.min(k, sorted.size());
+        Assert.assertEquals(expected, top.length);
+        for (int i = 0; i < expected; i++) {
+            Assert.assertEquals((long) sorted.get(i)[0], top[i]);
+        }
+        return top;
+    }
+}
@@ -0,0 +1,129 @@
+package edu.washington.cs.oneswarm.f2f;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import org.bouncycastle.util.encoders.Base64;
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+import edu.washington.cs.oneswarm.test.util.TestUtils;
+
+/**
+ * Verifies that applying encoded deltas to a decoded file list gives the same
+ * list as sending it in full.
+ */
+public class FileListDeltaTest extends OneSwarmTestBase {
+
+    private final Random random = new Random(12345);
+
+    @Test
+    public void testDeltasMatchFullList() throws Exception {
+        List<FileCollection> collections = createCollections(100);
+        FileList sent = new FileList(collections);
+        FileList received = FileListManager.decode_extended(FileListManager.encode_extended(sent,
+                true));
+        Assert.assertEquals(sent.getListId(), received.getListId());
+
+        for (int round = 0; round < 20; round++) {
+            List<FileCollection> next = new ArrayList<FileCollection>();
+            for (FileCollection c : collections) {
+                int r = random.nextInt(20);
+                if (r == 0) {
+                    continue;
+                } else if (r == 1) {
+                    next.add(createCollection(c.getUniqueID()));
+                } else {
+                    next.add(c);
+                }
+            }
+            next.addAll(createCollections(3));
+            collections = next;
+            FileList list = new FileList(collections);
+
+            FileListDelta delta = FileListDelta.diff(sent, list);
+            Assert.assertTrue(delta.cheaperThan(list));
+            FileListDelta.decode(delta.encode(round % 2 == 0)).applyTo(received);
+            sent = list;
+            assertSameList(FileListManager.decode_extended(FileListManager.encode_extended(list,
+                    false)), received);
+        }
+
+        Assert.assertTrue(FileListDelta.diff(sent, new FileList(new LinkedList<FileCollection>(
+                collections))).isEmpty());
+    }
+
+    @Test
+    public void testWrongBaseIsRejected() throws Exception {
+        FileList base = new FileList(createCollections(10));
+        FileList other = new FileList(createCollections(10));
+        List<FileCollection> next = new ArrayList<FileCollection>(base.getElements());
+        next.addAll(createCollections(1));
+        byte[] delta = FileListDelta.diff(base, new FileList(next)).encode(true);
+        Assert.assertTrue(FileListDelta.isDelta(delta));
+        Assert.assertFalse(FileListDelta.isDelta(FileListManager.encode_extended(base, true)));
+
+        int listId = other.getListId();
+        try {
+            FileListDelta.decode(delta).applyTo(other);
+            Assert.fail("delta applied to the wrong list");
+        } catch (java.io.IOException e) {
+            // expected
+        }
+        Assert.assertEquals(listId, other.getListId());
+        Assert.assertEquals(10, other.getElements().size());
+    }
+
+    private static void assertSameList(FileList expected, FileList actual) {
+        Assert.assertEquals(expected.getListId(), actual.getListId());
+        Assert.assertEquals(expected.getElements().size(), actual.getElements().size());
+        for (FileCollection e : expected.getElements()) {
+            FileCollection a = null;
+            for (FileCollection c : actual.getElements()) {
+                if (c.getUniqueID().equals(e.getUniqueID())) {
+                    a = c;
+                }
+            }
+            Assert.assertNotNull(a);
+            Assert.assertEquals(e.getName(), a.getName());
+            Assert.assertEquals(e.getDirectoryTags(), a.getDirectoryTags());
+            Assert.assertEquals(e.getFileNum(), a.getFileNum());
+        }
+    }
+
+    private List<FileCollection> createCollections(int num) {
+        List<FileCollection> collections = new ArrayList<FileCollection>();
+        for (int i = 0; i < num; i++) {
+            byte[] id = new byte[20];
+            random.nextBytes(id);
+            collections.add(createCollection(new String(Base64.encode(id))));
+        }
+        return collections;
+    }
+
+    private FileCollection createCollection(String id) {
+        List<FileListFile> files = new ArrayList<FileListFile>();
+        int numFiles = 1 + random.nextInt(5);
+        for (int j = 0; j < numFiles; j++) {
+            files.add(new FileListFile("file " + random.nextInt(1000) + "." + j,
+                    random.nextInt(100000)));
+        }
+        FileCollection c = new FileCollection(FileCollection.TYPE_BITTORRENT, id, "swarm "
+                + random.nextInt(1000), "", "", files, random.nextInt(1000));
+        List<List<String>> tags = new LinkedList<List<String>>();
+        if (random.nextBoolean()) {
+            tags.add(Arrays.asList("music", "tag" + random.nextInt(5)));
+        }
+        c.setDirectoryTags(tags);
+        return c;
+    }
+
+    /** Boilerplate code for running as executable. */
+    public static void main(String[] args) throws Exception {
+        TestUtils.swtCompatibleTestRunner(FileListDeltaTest.class);
+    }
+}
@@ -0,0 +1,153 @@
+package edu.washington.cs.oneswarm.f2f;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.bouncycastle.util.encoders.Base64;
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+import edu.washington.cs.oneswarm.test.util.TestUtils;
+
+/**
+ * Verifies that searching through the index returns the same results as
+ * scanning the file list.
+ */
+public class FileListSearchIndexTest extends OneSwarmTestBase {
+
+    private static final String[] WORDS = { "the", "beatles", "abbey", "road", "live", "concert",
+            "Ubuntu", "desktop", "iso", "mp3", "flac", "Holiday", "photos", "2010", "lecture",
+            "notes", "a", "ab" };
+
+    private final Random random = new Random(12345);
+
+    @Test
+    public void testMatchesFullScan() throws Exception {
+        List<FileCollection> collections = createCollections(200);
+        FileListSearchIndex index = new FileListSearchIndex();
+        index.update(collections);
+
+        List<String> queries = createQueries(collections);
+        for (String query : queries) {
+            assertSameResults(query, new FileList(collections).searchMatches(query),
+                    index.searchMatches(query));
+        }
+    }
+
+    @Test
+    public void testIncrementalUpdate() throws Exception {
+        List<FileCollection> collections = createCollections(200);
+        FileListSearchIndex index = new FileListSearchIndex();
+        index.update(collections);
+
+        for (int round = 0; round < 10; round++) {
+            // drop some, change some and add a few new ones
+            List<FileCollection> next = new ArrayList<FileCollection>();
+            for (FileCollection c : collections) {
+                int r = random.nextInt(10);
+                if (r == 0) {
+                    continue;
+                } else if (r == 1) {
+                    next.add(createCollection(c.getUniqueID()));
+                } else {
+                    next.add(c);
+                }
+            }
+            next.addAll(createCollections(20));
+            collections = next;
+            index.update(collections);
+            Assert.assertEquals(collections.size(), index.size());
+
+            for (String query : createQueries(collections)) {
+                assertSameResults(query, new FileList(collections).searchMatches(query),
+                        index.searchMatches(query));
+            }
+        }
+    }
+
+    private List<String> createQueries(List<FileCollection> collections) {
+        List<String> queries = new ArrayList<String>();
+        for (int i = 0; i < 200; i++) {
+            queries.add(randomWords(1 + random.nextInt(3)));
+        }
+        for (int i = 0; i < 20; i++) {
+            queries.add(randomWord() + " -" + randomWord());
+            queries.add("\"" + randomWord() + " " + randomWord() + "\"");
+            queries.add("xyzzy");
+        }
+        for (int i = 0; i < 10; i++) {
+            FileCollection c = collections.get(random.nextInt(collections.size()));
+            queries.add("id:" + c.getUniqueID());
+            queries.add(randomWord() + " id: " + c.getUniqueID());
+            FileListFile f = c.getChildren().get(0);
+            queries.add("sha1:" + new String(Base64.encode(f.getSha1Hash())));
+            queries.add("ed2k;" + new String(Base64.encode(f.getEd2kHash())));
+            queries.add("foo:bar");
+        }
+        return queries;
+    }
+
+    private static void assertSameResults(String query, FileList expected, FileList actual) {
+        List<FileCollection> e = expected.getElements();
+        List<FileCollection> a = actual.getElements();
+        Assert.assertEquals(query, e.size(), a.size());
+        for (int i = 0; i < e.size(); i++) {
+            Assert.assertEquals(query, e.get(i).getUniqueID(), a.get(i).getUniqueID());
+            Assert.assertEquals(query, e.get(i).getChildren(), a.get(i).getChildren());
+        }
+    }
+
+    private List<FileCollection> createCollections(int num) {
+        List<FileCollection> collections = new ArrayList<FileCollection>();
+        for (int i = 0; i < num; i++) {
+            byte[] id = new byte[20];
+            random.nextBytes(id);
+            collections.add(createCollection(new String(Base64.encode(id))));
+        }
+        return collections;
+    }
+
+    private FileCollection createCollection(String id) {
+        List<FileListFile> files = new ArrayList<FileListFile>();
+        int numFiles = 1 + random.nextInt(10);
+        for (int j = 0; j < numFiles; j++) {
+            FileListFile f = new FileListFile(randomWords(1 + random.nextInt(4)) + "." + j,
+                    random.nextInt(100000));
+            byte[] sha1 = new byte[20];
+            random.nextBytes(sha1);
+            f.setSha1Hash(sha1);
+            byte[] ed2k = new byte[16];
+            random.nextBytes(ed2k);
+            f.setEd2kHash(ed2k);
+            files.add(f);
+        }
+        FileCollection c = new FileCollection(FileCollection.TYPE_BITTORRENT, id,
+                randomWords(1 + random.nextInt(4)), "", "", files, 0);
+        if (random.nextBoolean()) {
+            c.setOptionalField(FileCollection.ONESWARM_ARTIST_ATTRIBUTE, randomWord());
+        }
+        return c;
+    }
+
+    private String randomWords(int num) {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < num; i++) {
+            if (i > 0) {
+                b.append(' ');
+            }
+            b.append(randomWord());
+        }
+        return b.toString();
+    }
+
+    private String randomWord() {
+        return WORDS[random.nextInt(WORDS.length)];
+    }
+
+    /** Boilerplate code for running as executable. */
+    public static void main(String[] args) throws Exception {
+        TestUtils.swtCompatibleTestRunner(FileListSearchIndexTest.class);
+    }
+}
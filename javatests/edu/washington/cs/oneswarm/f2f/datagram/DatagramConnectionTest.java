@@ -334,11 +334,11 @@ public class DatagramConnectionTest extends OneSwarmTestBase {
         // Make sure that all are sent together.
         skipOkPackets = false;
         int packets = MAX_DATAGRAM_PAYLOAD_SIZE / (OSF2FMessage.MESSAGE_HEADER_LEN) + 1 + 1;
-        synchronized (conn1.sendThread.messageQueue) {
-            for (int i = 0; i < packets; i++) {
-                conn1.sendMessage(new OSF2FDatagramOk(0));
-            }
+        // Queue without waking up the send thread until all are queued.
+        for (int i = 0; i < packets; i++) {
+            conn1.sendThread.queueMessage(new OSF2FDatagramOk(0), false);
         }
+        conn1.sendThread.notifyQueue();
         // Only one call to receive (both messages must be in one packet).
         manager2.receive();
 
@@ -0,0 +1,144 @@
+package edu.washington.cs.oneswarm.f2f.messaging;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.gudy.azureus2.core3.util.DirectByteBuffer;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.aelitis.azureus.core.networkmanager.RawMessage;
+import com.aelitis.azureus.core.peermanager.messaging.MessageException;
+import com.aelitis.azureus.core.peermanager.messaging.bittorrent.BTMessageFactory;
+
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+
+/**
+ * Sends {@link OSF2FHashSearchBatch}es through the message factory and checks
+ * the search ids of the hash searches in them.
+ */
+public class OSF2FHashSearchBatchTest extends OneSwarmTestBase {
+
+    private static final Random random = new Random(12345);
+
+    @BeforeClass
+    public static void setUpClass() {
+        BTMessageFactory.init();
+        OSF2FMessageFactory.init();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        for (int n : new int[] { 1, 2, 17, OSF2FHashSearchBatch.MAX_HASHES }) {
+            long[] hashes = new long[n];
+            for (int i = 0; i < n; i++) {
+                hashes[i] = random.nextLong();
+            }
+            OSF2FHashSearchBatch batch = new OSF2FHashSearchBatch(OSF2FMessage.CURRENT_VERSION,
+                    random.nextInt(), hashes);
+            byte[] payload = serialize(batch);
+            Assert.assertEquals(1 + batch.getMessageSize(), payload.length);
+
+            OSF2FHashSearchBatch decoded = (OSF2FHashSearchBatch) OSF2FMessageFactory
+                    .createOSF2FMessage(wrap(payload));
+            Assert.assertEquals(batch.getSearchID(), decoded.getSearchID());
+            Assert.assertArrayEquals(hashes, decoded.getInfohashhashes());
+            Assert.assertEquals(n, decoded.getNumSearches());
+            Assert.assertEquals(batch.getValueID(), decoded.getValueID());
+            Assert.assertEquals(batch.getDescription(), decoded.getDescription());
+            Assert.assertArrayEquals(payload, serialize(decoded));
+            batch.destroy();
+            decoded.destroy();
+        }
+    }
+
+    @Test
+    public void testMalformedPayloads() throws Exception {
+        OSF2FHashSearchBatch batch = new OSF2FHashSearchBatch(OSF2FMessage.CURRENT_VERSION, 1,
+                new long[] { 2, 3 });
+        byte[] payload = serialize(batch);
+        batch.destroy();
+
+        // no hashes, a partial hash, and one more than MAX_HASHES
+        byte[] tooMany = new byte[1 + 4 + 8 * (OSF2FHashSearchBatch.MAX_HASHES + 1)];
+        tooMany[0] = payload[0];
+        for (byte[] bad : new byte[][] { Arrays.copyOf(payload, 1 + 4),
+                Arrays.copyOf(payload, payload.length - 3), tooMany }) {
+            try {
+                OSF2FMessageFactory.createOSF2FMessage(wrap(bad));
+                Assert.fail("decoded " + bad.length + " bytes");
+            } catch (MessageException e) {
+            }
+        }
+    }
+
+    @Test
+    public void testSearchIDs() {
+        int batchID = random.nextInt();
+        long[] hashes = new long[OSF2FHashSearchBatch.MAX_HASHES];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = random.nextLong();
+        }
+        OSF2FHashSearchBatch batch = new OSF2FHashSearchBatch(OSF2FMessage.CURRENT_VERSION,
+                batchID, hashes);
+
+        List<OSF2FHashSearch> searches = batch.getSearches();
+        Assert.assertEquals(hashes.length, searches.size());
+        Set<Integer> ids = new HashSet<Integer>();
+        for (int i = 0; i < hashes.length; i++) {
+            OSF2FHashSearch search = searches.get(i);
+            Assert.assertEquals(hashes[i], search.getInfohashhash());
+            Assert.assertEquals(OSF2FHashSearchBatch.getSearchID(batchID, hashes[i]),
+                    search.getSearchID());
+            Assert.assertEquals(batch.getVersion(), search.getVersion());
+            ids.add(search.getSearchID());
+        }
+        // the hashes fold to different values, so every search has its own id
+        Assert.assertEquals(hashes.length, ids.size());
+
+        // a subset of the batch sent on keeps the ids
+        long[] subset = { hashes[5], hashes[3] };
+        List<OSF2FHashSearch> sub = new OSF2FHashSearchBatch(OSF2FMessage.CURRENT_VERSION,
+                batchID, subset).getSearches();
+        Assert.assertEquals(searches.get(5).getSearchID(), sub.get(0).getSearchID());
+        Assert.assertEquals(searches.get(3).getSearchID(), sub.get(1).getSearchID());
+
+        // the same hash in another batch is another search
+        Assert.assertTrue(OSF2FHashSearchBatch.getSearchID(batchID + 1, hashes[0]) != searches
+                .get(0).getSearchID());
+
+        // only the folded hash counts
+        Assert.assertEquals(batchID, OSF2FHashSearchBatch.getSearchID(batchID, 0));
+        long folded = 0x0000000100000001L;
+        Assert.assertEquals(batchID, OSF2FHashSearchBatch.getSearchID(batchID, folded));
+        Assert.assertEquals(OSF2FHashSearchBatch.getSearchID(batchID, 0x12345678L),
+                OSF2FHashSearchBatch.getSearchID(batchID, 0x1234567800000000L));
+    }
+
+    /**
+     * @return the message as it is on the wire, without the length prefix
+     */
+    private static byte[] serialize(OSF2FHashSearchBatch batch) throws Exception {
+        RawMessage raw = OSF2FMessageFactory.createOSF2FRawMessage(batch);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (DirectByteBuffer b : raw.getRawData()) {
+            ByteBuffer bb = b.getBuffer(DirectByteBuffer.SS_MSG).duplicate();
+            byte[] bytes = new byte[bb.remaining()];
+            bb.get(bytes);
+            out.write(bytes);
+        }
+        byte[] bytes = out.toByteArray();
+        Assert.assertEquals(bytes.length - 4, ByteBuffer.wrap(bytes).getInt());
+        return Arrays.copyOfRange(bytes, 4, bytes.length);
+    }
+
+    private static DirectByteBuffer wrap(byte[] payload) {
+        return new DirectByteBuffer(ByteBuffer.wrap(payload));
+    }
+}
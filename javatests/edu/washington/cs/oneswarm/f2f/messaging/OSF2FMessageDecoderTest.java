@@ -0,0 +1,267 @@
+package edu.washington.cs.oneswarm.f2f.messaging;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.gudy.azureus2.core3.util.DirectByteBuffer;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.aelitis.azureus.core.networkmanager.EventWaiter;
+import com.aelitis.azureus.core.networkmanager.RawMessage;
+import com.aelitis.azureus.core.networkmanager.Transport;
+import com.aelitis.azureus.core.networkmanager.TransportEndpoint;
+import com.aelitis.azureus.core.peermanager.messaging.Message;
+import com.aelitis.azureus.core.peermanager.messaging.bittorrent.BTMessageFactory;
+
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+
+/**
+ * Checks that bulk decoding gives the same messages and byte accounting as
+ * reading one length and one payload at a time, whatever the read sizes.
+ */
+public class OSF2FMessageDecoderTest extends OneSwarmTestBase {
+
+    private static final Random random = new Random(12345);
+
+    private static byte[] stream;
+    /** Offset at which each message in stream starts */
+    private static List<Integer> boundaries = new ArrayList<Integer>();
+    private static int dataBytes = 0;
+
+    @BeforeClass
+    public static void buildStream() throws Exception {
+        BTMessageFactory.init();
+        OSF2FMessageFactory.init();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < 200; i++) {
+            boundaries.add(out.size());
+            Message m;
+            switch (i % 7) {
+            case 0:
+                // keep-alive
+                out.write(new byte[4]);
+                continue;
+            case 1:
+                m = new OSF2FHashSearch(OSF2FMessage.CURRENT_VERSION, random.nextInt(),
+                        random.nextLong());
+                break;
+            case 2:
+                m = new OSF2FTextSearch(OSF2FMessage.CURRENT_VERSION,
+                        OSF2FMessage.FILE_LIST_TYPE_PARTIAL, random.nextInt(), "abbey road");
+                break;
+            case 3:
+                // bigger than a chunk
+                m = channelData(i, OSF2FMessageDecoder.CHUNK_SIZE + 1000);
+                break;
+            default:
+                m = channelData(i, 1 + random.nextInt(16 * 1024));
+            }
+            int start = out.size();
+            RawMessage raw = OSF2FMessageFactory.createOSF2FRawMessage(m);
+            for (DirectByteBuffer b : raw.getRawData()) {
+                ByteBuffer bb = b.getBuffer(DirectByteBuffer.SS_MSG).duplicate();
+                byte[] bytes = new byte[bb.remaining()];
+                bb.get(bytes);
+                out.write(bytes);
+            }
+            if (m.getType() == Message.TYPE_DATA_PAYLOAD) {
+                // the length prefix counts as protocol
+                dataBytes += out.size() - start - 4;
+            }
+            raw.destroy();
+        }
+        boundaries.add(out.size());
+        stream = out.toByteArray();
+    }
+
+    private static OSF2FChannelDataMsg channelData(int channelId, int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return new OSF2FChannelDataMsg(OSF2FMessage.CURRENT_VERSION, channelId,
+                new DirectByteBuffer(ByteBuffer.wrap(data)));
+    }
+
+    @Test
+    public void testBulkMatchesPerMessageReads() throws Exception {
+        List<String> expected = decodeAll(new OSF2FMessageDecoder(false), Integer.MAX_VALUE,
+                1024 * 1024);
+        Assert.assertEquals(200, expected.size());
+
+        int[] readSizes = { 1, 3, 7, 1460, 16 * 1024, Integer.MAX_VALUE };
+        int[] budgets = { 5, 1024, 64 * 1024, 1024 * 1024 };
+        for (int readSize : readSizes) {
+            for (int budget : budgets) {
+                if (readSize < 8 && budget > 1024) {
+                    continue;
+                }
+                Assert.assertEquals(readSize + "/" + budget, expected, decodeAll(
+                        new OSF2FMessageDecoder(true), readSize, budget));
+            }
+        }
+    }
+
+    @Test
+    public void testDestroyReturnsUndecodedBytes() throws Exception {
+        for (int cut : new int[] { 1, 2, boundaries.get(3) + 2, boundaries.get(3) + 10,
+                boundaries.get(4), boundaries.get(4) + 40000, stream.length / 2 }) {
+            OSF2FMessageDecoder decoder = new OSF2FMessageDecoder(true);
+            TestTransport transport = new TestTransport(Arrays.copyOf(stream, cut), 1000);
+            while (decoder.performStreamDecode(transport, 4096) > 0) {
+                destroy(decoder.removeDecodedMessages());
+            }
+            int start = 0;
+            for (int b : boundaries) {
+                if (b <= cut) {
+                    start = b;
+                }
+            }
+            ByteBuffer unused = decoder.destroy();
+            byte[] left = new byte[unused.remaining()];
+            unused.get(left);
+            Assert.assertArrayEquals("cut at " + cut, Arrays.copyOfRange(stream, start, cut), left);
+        }
+    }
+
+    private List<String> decodeAll(OSF2FMessageDecoder decoder, int readSize, int budget)
+            throws IOException {
+        TestTransport transport = new TestTransport(stream, readSize);
+        List<String> decoded = new ArrayList<String>();
+        int total = 0, data = 0;
+        while (transport.position < stream.length) {
+            int read = decoder.performStreamDecode(transport, budget);
+            Assert.assertTrue(read <= budget);
+            Assert.assertEquals(read, decoder.getProtocolBytesDecoded()
+                    + decoder.getDataBytesDecoded());
+            total += read;
+            data += decoder.getDataBytesDecoded();
+            Message[] messages = decoder.removeDecodedMessages();
+            if (messages != null) {
+                for (Message m : messages) {
+                    decoded.add(describe(m));
+                }
+                destroy(messages);
+            }
+        }
+        Assert.assertEquals(stream.length, total);
+        Assert.assertEquals(dataBytes, data);
+        Assert.assertEquals(0, decoder.destroy().remaining());
+        return decoded;
+    }
+
+    private static String describe(Message m) {
+        StringBuilder b = new StringBuilder(m.getID());
+        DirectByteBuffer[] data = m.getData();
+        if (data != null) {
+            for (DirectByteBuffer d : data) {
+                ByteBuffer bb = d.getBuffer(DirectByteBuffer.SS_MSG).duplicate();
+                b.append(':').append(bb.remaining()).append(':').append(bb.hashCode());
+            }
+        }
+        return b.toString();
+    }
+
+    private static void destroy(Message[] messages) {
+        if (messages != null) {
+            for (Message m : messages) {
+                m.destroy();
+            }
+        }
+    }
+
+    /**
+     * Serves a fixed stream, at most readSize bytes per read.
+     */
+    private static class TestTransport implements Transport {
+        private final byte[] bytes;
+        private final int readSize;
+        int position = 0;
+
+        TestTransport(byte[] bytes, int readSize) {
+            this.bytes = bytes;
+            this.readSize = readSize;
+        }
+
+        public long read(ByteBuffer[] buffers, int array_offset, int length) {
+            int allowed = readSize;
+            long read = 0;
+            for (int i = array_offset; i < array_offset + length; i++) {
+                ByteBuffer b = buffers[i];
+                int n = Math.min(Math.min(b.remaining(), bytes.length - position), allowed);
+                b.put(bytes, position, n);
+                position += n;
+                allowed -= n;
+                read += n;
+            }
+            return read;
+        }
+
+        public long write(ByteBuffer[] buffers, int array_offset, int length) {
+            return 0;
+        }
+
+        public boolean isReadyForWrite(EventWaiter waiter) {
+            return false;
+        }
+
+        public boolean isReadyForRead(EventWaiter waiter) {
+            return position < bytes.length;
+        }
+
+        public boolean isTCP() {
+            return true;
+        }
+
+        public String getDescription() {
+            return "test";
+        }
+
+        public int getMssSize() {
+            return 1460;
+        }
+
+        public void setAlreadyRead(ByteBuffer bytes_already_read) {
+        }
+
+        public TransportEndpoint getTransportEndpoint() {
+            return null;
+        }
+
+        public boolean isEncrypted() {
+            return false;
+        }
+
+        public String getEncryption() {
+            return "";
+        }
+
+        public void setReadyForRead() {
+        }
+
+        public void setTransportMode(int mode) {
+        }
+
+        public int getTransportMode() {
+            return TRANSPORT_MODE_NORMAL;
+        }
+
+        public void connectOutbound(ByteBuffer initial_data, ConnectListener listener,
+                boolean high_priority) {
+        }
+
+        public void connectedInbound() {
+        }
+
+        public void close(String reason) {
+        }
+
+        public void setTrace(boolean on) {
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package edu.washington.cs.oneswarm.f2f.metrics;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+
+public class MetricsRegistryTest extends OneSwarmTestBase {
+
+    @Test
+    public void testPrometheusText() {
+        MetricsRegistry registry = new MetricsRegistry();
+        Counter forward = registry.counter("test_packets_total", "Packets.", "class", "forward");
+        Counter control = registry.counter("test_packets_total", "Packets.", "class", "control");
+        forward.add(5);
+        control.inc();
+        Assert.assertSame(forward, registry.counter("test_packets_total", "Packets.", "class",
+                "forward"));
+        registry.register(new Gauge("test_queue_bytes", "Queued \"bytes\".") {
+            public double getValue() {
+                return 1.5;
+            }
+        });
+
+        String text = registry.toPrometheusText();
+        Assert.assertEquals("# HELP test_packets_total Packets.\n"
+                + "# TYPE test_packets_total counter\n"
+                + "test_packets_total{class=\"control\"} 1\n"
+                + "test_packets_total{class=\"forward\"} 5\n"
+                + "# HELP test_queue_bytes Queued \"bytes\".\n"
+                + "# TYPE test_queue_bytes gauge\n" + "test_queue_bytes 1.5\n", text);
+        Assert.assertEquals(5L, registry.getAttributes().get("test_packets_total_forward"));
+    }
+
+    @Test
+    public void testHistogram() {
+        MetricsRegistry registry = new MetricsRegistry();
+        Histogram h = registry.histogram("test_latency_ms", "Latency.");
+        Assert.assertEquals(0, Histogram.getBucket(0));
+        Assert.assertEquals(0, Histogram.getBucket(1));
+        Assert.assertEquals(1, Histogram.getBucket(2));
+        Assert.assertEquals(2, Histogram.getBucket(3));
+        Assert.assertEquals(2, Histogram.getBucket(4));
+        Assert.assertEquals(3, Histogram.getBucket(5));
+        Assert.assertEquals(63, Histogram.getBucket(Long.MAX_VALUE));
+
+        h.record(1);
+        h.record(3);
+        h.record(4);
+        h.record(100);
+        Assert.assertEquals(4, h.getCount());
+        Assert.assertEquals(108, h.getSum());
+        Assert.assertEquals(4, h.getPercentile(0.5));
+        Assert.assertEquals(128, h.getPercentile(0.99));
+
+        String text = registry.toPrometheusText();
+        Assert.assertTrue(text, text.contains("test_latency_ms_bucket{le=\"1\"} 1\n"));
+        Assert.assertTrue(text, text.contains("test_latency_ms_bucket{le=\"4\"} 3\n"));
+        Assert.assertTrue(text, text.contains("test_latency_ms_bucket{le=\"64\"} 3\n"));
+        Assert.assertTrue(text, text.contains("test_latency_ms_bucket{le=\"128\"} 4\n"));
+        Assert.assertTrue(text, text.contains("test_latency_ms_bucket{le=\"+Inf\"} 4\n"));
+        Assert.assertFalse(text, text.contains("le=\"256\""));
+        Assert.assertTrue(text, text.contains("test_latency_ms_sum 108\n"));
+        Assert.assertTrue(text, text.contains("test_latency_ms_count 4\n"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTypeMismatch() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("test_total", "Test.");
+        registry.histogram("test_total", "Test.");
+    }
+
+    @Test
+    public void testHttpExport() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("test_scrapes_total", "Scrapes.").inc();
+        MetricsExporter exporter = new MetricsExporter(registry);
+
+        ServerSocket free = new ServerSocket(0);
+        int port = free.getLocalPort();
+        free.close();
+        exporter.listen(port);
+        try {
+            Assert.assertEquals(port, exporter.getPort());
+            HttpURLConnection conn = (HttpURLConnection) new URL("http://127.0.0.1:" + port
+                    + "/metrics").openConnection();
+            Assert.assertEquals(200, conn.getResponseCode());
+            Assert.assertEquals(MetricsExporter.CONTENT_TYPE, conn.getContentType());
+            BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream(),
+                    "UTF-8"));
+            StringBuilder body = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null) {
+                body.append(line).append('\n');
+            }
+            in.close();
+            Assert.assertEquals(registry.toPrometheusText(), body.toString());
+
+            conn = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/other")
+                    .openConnection();
+            Assert.assertEquals(404, conn.getResponseCode());
+        } finally {
+            exporter.close();
+        }
+        Assert.assertEquals(-1, exporter.getPort());
+    }
+}
@@ -0,0 +1,89 @@
+package edu.washington.cs.oneswarm.f2f.multisource;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+
+public class LocalFileClonerTest extends OneSwarmTestBase {
+
+    private File dir;
+    private File source;
+    private byte[] content;
+
+    @Before
+    public void createSource() throws IOException {
+        dir = File.createTempFile("cloner", "");
+        dir.delete();
+        dir.mkdirs();
+        content = new byte[3 * 1024 * 1024 + 17];
+        new Random(1).nextBytes(content);
+        source = new File(dir, "source.bin");
+        write(source, content);
+    }
+
+    @After
+    public void deleteDir() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testCopyReplacesPartialFile() throws IOException {
+        File destination = new File(dir, "destination.bin");
+        write(destination, new byte[content.length]);
+
+        Assert.assertEquals(LocalFileCloner.CLONED_COPY, LocalFileCloner.cloneFile(source,
+                destination, false));
+        Assert.assertTrue(Arrays.equals(content, read(destination)));
+        Assert.assertEquals(2, dir.listFiles().length);
+
+        // a copy, not a link
+        write(source, new byte[1]);
+        Assert.assertTrue(Arrays.equals(content, read(destination)));
+    }
+
+    @Test
+    public void testLinkCreatesMissingDirectories() throws IOException {
+        File destination = new File(new File(dir, "sub"), "destination.bin");
+        int how = LocalFileCloner.cloneFile(source, destination, true);
+        Assert.assertTrue(how == LocalFileCloner.CLONED_LINK || how == LocalFileCloner.CLONED_COPY);
+        Assert.assertTrue(Arrays.equals(content, read(destination)));
+        destination.delete();
+        destination.getParentFile().delete();
+    }
+
+    @Test(expected = IOException.class)
+    public void testMissingSource() throws IOException {
+        LocalFileCloner.cloneFile(new File(dir, "missing"), new File(dir, "destination.bin"),
+                false);
+    }
+
+    private static void write(File f, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(data);
+        out.close();
+    }
+
+    private static byte[] read(File f) throws IOException {
+        byte[] data = new byte[(int) f.length()];
+        FileInputStream in = new FileInputStream(f);
+        int pos = 0;
+        while (pos < data.length) {
+            pos += in.read(data, pos, data.length - pos);
+        }
+        in.close();
+        return data;
+    }
+}
@@ -0,0 +1,137 @@
+package edu.washington.cs.oneswarm.f2f.network;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.washington.cs.oneswarm.f2f.network.QueueManager.QueueBuckets;
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+import edu.washington.cs.oneswarm.test.util.TestUtils;
+
+/**
+ * Simulates backlogged friend queues and compares the byte shares handed out
+ * by the deficit round robin scheduler with the old probabilistic policy.
+ */
+public class PacketSchedulerTest extends OneSwarmTestBase {
+
+    private static final int ROUNDS = 200000;
+
+    /*
+     * full size transport packets, mid size forwards and small searches
+     */
+    private static final int[] PACKET_SIZES = new int[QueueBuckets.values().length];
+    static {
+        PACKET_SIZES[QueueBuckets.TRANSPORT.ordinal()] = FriendConnectionQueue.MAX_FRIEND_QUEUE_LENGTH;
+        PACKET_SIZES[QueueBuckets.FORWARD.ordinal()] = 1024;
+        PACKET_SIZES[QueueBuckets.CONTROL.ordinal()] = 100;
+    }
+
+    private static class FakeSource implements PacketScheduler.Source {
+        final double weight;
+        boolean canSend = true;
+        final long[] sent = new long[QueueBuckets.values().length];
+
+        FakeSource(double weight) {
+            this.weight = weight;
+        }
+
+        public int getNextPacketBytes(QueueBuckets bucket) {
+            return PACKET_SIZES[bucket.ordinal()];
+        }
+
+        public boolean canSend() {
+            return canSend;
+        }
+
+        public double getSchedulingWeight() {
+            return weight;
+        }
+
+        long total() {
+            long t = 0;
+            for (long s : sent) {
+                t += s;
+            }
+            return t;
+        }
+    }
+
+    private static long[] run(PacketScheduler scheduler, FakeSource... sources) {
+        scheduler.setClassWeight(QueueBuckets.TRANSPORT, 7);
+        scheduler.setClassWeight(QueueBuckets.FORWARD, 2);
+        scheduler.setClassWeight(QueueBuckets.CONTROL, 1);
+        for (FakeSource s : sources) {
+            for (QueueBuckets b : QueueBuckets.values()) {
+                scheduler.activate(s, b);
+            }
+        }
+        long[] classBytes = new long[QueueBuckets.values().length];
+        for (int i = 0; i < ROUNDS; i++) {
+            PacketScheduler.Selection sel = scheduler.next();
+            Assert.assertNotNull(sel);
+            FakeSource s = (FakeSource) sel.source;
+            Assert.assertTrue(s.canSend);
+            int bytes = s.getNextPacketBytes(sel.bucket);
+            s.sent[sel.bucket.ordinal()] += bytes;
+            classBytes[sel.bucket.ordinal()] += bytes;
+            scheduler.sent(sel, bytes, true);
+        }
+        return classBytes;
+    }
+
+    private static double share(long[] bytes, QueueBuckets bucket) {
+        long total = 0;
+        for (long b : bytes) {
+            total += b;
+        }
+        return bytes[bucket.ordinal()] / (double) total;
+    }
+
+    private static double maxError(long[] bytes) {
+        double err = 0;
+        err = Math.max(err, Math.abs(share(bytes, QueueBuckets.TRANSPORT) - 0.7));
+        err = Math.max(err, Math.abs(share(bytes, QueueBuckets.FORWARD) - 0.2));
+        err = Math.max(err, Math.abs(share(bytes, QueueBuckets.CONTROL) - 0.1));
+        return err;
+    }
+
+    @Test
+    public void testClassSharesAreByteAccurate() throws Exception {
+        long[] drr = run(new DeficitRoundRobinScheduler(), new FakeSource(1), new FakeSource(1));
+        long[] prob = run(new ProbabilisticPacketScheduler(), new FakeSource(1),
+                new FakeSource(1));
+        Assert.assertTrue("drr error: " + maxError(drr), maxError(drr) < 0.01);
+        // the old policy counts packets, not bytes
+        Assert.assertTrue(maxError(prob) > maxError(drr));
+    }
+
+    @Test
+    public void testFriendWeights() throws Exception {
+        FakeSource heavy = new FakeSource(2);
+        FakeSource light = new FakeSource(1);
+        run(new DeficitRoundRobinScheduler(), heavy, light);
+        double ratio = heavy.total() / (double) light.total();
+        Assert.assertEquals(2.0, ratio, 0.05);
+    }
+
+    @Test
+    public void testBlockedFriendIsSkipped() throws Exception {
+        FakeSource blocked = new FakeSource(1);
+        blocked.canSend = false;
+        FakeSource open = new FakeSource(1);
+        run(new DeficitRoundRobinScheduler(), blocked, open);
+        Assert.assertEquals(0, blocked.total());
+        Assert.assertTrue(open.total() > 0);
+
+        PacketScheduler scheduler = new DeficitRoundRobinScheduler();
+        scheduler.activate(blocked, QueueBuckets.TRANSPORT);
+        Assert.assertNull(scheduler.next());
+        Assert.assertTrue(scheduler.isActive(blocked, QueueBuckets.TRANSPORT));
+        scheduler.remove(blocked);
+        Assert.assertEquals(0, scheduler.getActiveCount(QueueBuckets.TRANSPORT));
+    }
+
+    /** Boilerplate code for running as executable. */
+    public static void main(String[] args) throws Exception {
+        TestUtils.swtCompatibleTestRunner(PacketSchedulerTest.class);
+    }
+}
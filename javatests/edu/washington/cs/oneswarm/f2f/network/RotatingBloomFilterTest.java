@@ -0,0 +1,95 @@
+package edu.washington.cs.oneswarm.f2f.network;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.washington.cs.oneswarm.f2f.network.SearchManager.RotatingBloomFilter;
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+import edu.washington.cs.oneswarm.test.util.TestUtils;
+
+/**
+ * Rotation of the recent search buckets, and the single pass lookup across
+ * them compared to checking the buckets one after another.
+ */
+public class RotatingBloomFilterTest extends OneSwarmTestBase {
+
+    private static final int BUCKETS = 3;
+
+    @Test
+    public void testRotationOrder() throws Exception {
+        RotatingBloomFilter bf = new RotatingBloomFilter(60 * 1000, BUCKETS);
+        // bucket sizes tell the buckets apart
+        int[] sizes = { 100, 200, 300, 400 };
+        for (int b = 0; b < sizes.length; b++) {
+            if (b > 0) {
+                bf.rotate();
+            }
+            for (int v = 0; v < sizes[b]; v++) {
+                bf.insert(b, v);
+            }
+            if (b > 0) {
+                Assert.assertEquals(sizes[b - 1], bf.getPrevFilterNumElements());
+            } else {
+                Assert.assertEquals(sizes[0], bf.getPrevFilterNumElements());
+            }
+
+            // the newest BUCKETS batches are kept, the oldest bucket was reused
+            for (int singlePass = 0; singlePass < 2; singlePass++) {
+                bf.setSinglePassLookup(singlePass == 1);
+                for (int older = 0; older <= b; older++) {
+                    boolean kept = b - older < BUCKETS;
+                    for (int v = 0; v < sizes[older]; v++) {
+                        Assert.assertEquals("batch " + older + " after " + b + " rotations", kept,
+                                bf.contains(older, v));
+                    }
+                }
+            }
+        }
+
+        bf.rotate();
+        Assert.assertEquals(sizes[3], bf.getPrevFilterNumElements());
+        bf.rotate();
+        Assert.assertEquals(0, bf.getPrevFilterNumElements());
+    }
+
+    /**
+     * With the buckets full enough that most probe bits of a random pair are
+     * set in one bucket or another, the single pass lookup must still only
+     * match pairs that one bucket has all bits of, like the two pass lookup.
+     */
+    @Test
+    public void testSinglePassMatchesTwoPass() throws Exception {
+        RotatingBloomFilter bf = new RotatingBloomFilter(60 * 1000, BUCKETS);
+        Random random = new Random(12345);
+        for (int b = 0; b < BUCKETS; b++) {
+            if (b > 0) {
+                bf.rotate();
+            }
+            for (int i = 0; i < 2000000; i++) {
+                bf.insert(random.nextInt(), random.nextInt());
+            }
+        }
+
+        int matches = 0;
+        for (int i = 0; i < 200000; i++) {
+            int searchId = random.nextInt();
+            int value = random.nextInt();
+            bf.setSinglePassLookup(false);
+            boolean twoPass = bf.contains(searchId, value);
+            bf.setSinglePassLookup(true);
+            Assert.assertEquals(searchId + "/" + value, twoPass, bf.contains(searchId, value));
+            if (twoPass) {
+                matches++;
+            }
+        }
+        // false positives of overfull buckets, so both lookups had some to agree on
+        Assert.assertTrue("matches: " + matches, matches > 1000);
+    }
+
+    /** Boilerplate code for running as executable. */
+    public static void main(String[] args) throws Exception {
+        TestUtils.swtCompatibleTestRunner(RotatingBloomFilterTest.class);
+    }
+}
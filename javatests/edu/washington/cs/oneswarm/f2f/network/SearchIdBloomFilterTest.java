@@ -0,0 +1,92 @@
+package edu.washington.cs.oneswarm.f2f.network;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.uw.cse.netlab.utils.BloomFilter;
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+import edu.washington.cs.oneswarm.test.util.TestUtils;
+
+public class SearchIdBloomFilterTest extends OneSwarmTestBase {
+
+    private static final int SIZE = 512 * 1024;
+    private static final int TO_STORE = 20000;
+
+    @Test
+    public void testInsertedAreContained() throws Exception {
+        SearchIdBloomFilter bf = new SearchIdBloomFilter(SIZE, TO_STORE, 12345);
+        Random random = new Random(12345);
+        for (int i = 0; i < TO_STORE; i++) {
+            int searchId = random.nextInt();
+            int valueId = random.nextInt();
+            bf.insert(searchId, valueId);
+            Assert.assertTrue(bf.contains(searchId, valueId));
+        }
+        Assert.assertTrue(bf.getUniqueObjectsStored() <= TO_STORE);
+        Assert.assertTrue(bf.getUniqueObjectsStored() > TO_STORE * 0.99);
+    }
+
+    @Test
+    public void testFalsePositiveRate() throws Exception {
+        // 8 bits per entry, so the expected rate (about 2%) can be measured
+        // with a reasonable number of lookups
+        int numBits = 64 * 1024, toStore = 8 * 1024;
+        SearchIdBloomFilter bf = new SearchIdBloomFilter(numBits, toStore, 54321);
+        Random random = new Random(12345);
+        Set<Long> inserted = new HashSet<Long>();
+        for (int i = 0; i < toStore; i++) {
+            int searchId = random.nextInt();
+            int valueId = random.nextInt();
+            inserted.add(key(searchId, valueId));
+            bf.insert(searchId, valueId);
+        }
+
+        int fps = 0, toCheck = 100000;
+        for (int i = 0; i < toCheck; i++) {
+            int searchId;
+            int valueId;
+            do {
+                searchId = random.nextInt();
+                valueId = random.nextInt();
+            } while (inserted.contains(key(searchId, valueId)));
+            if (bf.contains(searchId, valueId)) {
+                fps++;
+            }
+        }
+        double measured = fps / (double) toCheck;
+        double predicted = BloomFilter.getPredictedFalsePositiveRate(numBits, toStore);
+        Assert.assertEquals("measured=" + measured, predicted, measured, predicted * 0.25);
+        Assert.assertEquals(predicted, bf.getPredictedFalsePositiveRate(), predicted * 0.05);
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        SearchIdBloomFilter bf = new SearchIdBloomFilter(SIZE, TO_STORE, 1);
+        bf.insert(1, 2);
+        Assert.assertTrue(bf.contains(1, 2));
+        bf.clear();
+        Assert.assertFalse(bf.contains(1, 2));
+        Assert.assertEquals(0, bf.getUniqueObjectsStored());
+    }
+
+    @Test
+    public void testSeedChangesProbes() throws Exception {
+        Assert.assertFalse(SearchIdBloomFilter.hash(1, 10, 20) == SearchIdBloomFilter.hash(2, 10,
+                20));
+        Assert.assertFalse(SearchIdBloomFilter.hash(1, 10, 20) == SearchIdBloomFilter.hash(1, 20,
+                10));
+    }
+
+    private static long key(int searchId, int valueId) {
+        return (((long) searchId) << 32) | (valueId & 0xffffffffL);
+    }
+
+    /** Boilerplate code for running as executable. */
+    public static void main(String[] args) throws Exception {
+        TestUtils.swtCompatibleTestRunner(SearchIdBloomFilterTest.class);
+    }
+}
@@ -0,0 +1,208 @@
+package edu.washington.cs.oneswarm.f2f.permissions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.washington.cs.oneswarm.f2f.permissions.PermissionsDAO.PermissionTable;
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+
+/**
+ * The permission table behind the lock free permission checks of
+ * {@link PermissionsDAO}.
+ */
+public class PermissionsDAOTest extends OneSwarmTestBase {
+
+    private static final GroupBean FRIEND = GroupBean.createGroup("friend",
+            Arrays.asList("key"), true, 3);
+
+    private volatile PermissionTable table;
+
+    @Test
+    public void testPutAndRemove() {
+        Random random = new Random(12345);
+        PermissionTable t = new PermissionTable(0);
+        Map<String, GroupBean[]> expected = new HashMap<String, GroupBean[]>();
+        List<byte[]> hashes = new ArrayList<byte[]>();
+        for (int i = 0; i < 20000; i++) {
+            byte[] hash;
+            if (hashes.isEmpty() || random.nextInt(3) == 0) {
+                hash = new byte[20];
+                random.nextBytes(hash);
+                // the table hashes the first bytes only, make some collide
+                if (random.nextBoolean()) {
+                    hash[0] = hash[1] = hash[2] = 0;
+                }
+                hashes.add(hash);
+            } else {
+                // equal, not the same array
+                hash = hashes.get(random.nextInt(hashes.size())).clone();
+            }
+            GroupBean[] groups = random.nextInt(4) == 0 ? null : groups(random.nextInt(4));
+            PermissionTable next = t.put(hash, groups);
+            Assert.assertTrue(next == t || groups != null);
+            t = next;
+            if (groups == null) {
+                expected.remove(Arrays.toString(hash));
+            } else {
+                expected.put(Arrays.toString(hash), groups);
+            }
+        }
+        Assert.assertEquals(expected.size(), t.size());
+        for (byte[] hash : hashes) {
+            GroupBean[] groups = expected.get(Arrays.toString(hash));
+            Assert.assertSame(groups, t.getGroups(hash));
+            Assert.assertEquals(groups == null ? 0 : flags(groups), t.getFlags(hash));
+        }
+        byte[] unknown = new byte[20];
+        Assert.assertNull(t.getGroups(unknown));
+        Assert.assertEquals(0, t.getFlags(unknown));
+    }
+
+    @Test
+    public void testWithoutGroups() {
+        PermissionTable t = new PermissionTable(0);
+        byte[] a = hash(1);
+        byte[] b = hash(2);
+        t = t.put(a, new GroupBean[] { GroupBean.ALL_FRIENDS, FRIEND });
+        t = t.put(b, new GroupBean[] { FRIEND });
+        t = t.put(hash(3), null);
+
+        Set<Long> removed = new HashSet<Long>();
+        removed.add(FRIEND.getGroupID());
+        PermissionTable without = t.withoutGroups(removed);
+        Assert.assertEquals(2, without.size());
+        Assert.assertArrayEquals(new GroupBean[] { GroupBean.ALL_FRIENDS }, without.getGroups(a));
+        Assert.assertEquals(PermissionTable.FLAG_ALL_FRIENDS, without.getFlags(a));
+        Assert.assertEquals(0, without.getGroups(b).length);
+        Assert.assertNull(without.getGroups(hash(3)));
+        // the old table is left alone
+        Assert.assertEquals(2, t.getGroups(a).length);
+    }
+
+    /**
+     * Readers racing a writer that flips swarms between public and friends
+     * only, removes and re-adds them and drops groups from all of them must
+     * always find the swarms they look for, with flags that match their
+     * groups.
+     */
+    @Test
+    public void testConsistentReads() throws Exception {
+        final int swarms = 2000;
+        final byte[][] hashes = new byte[swarms][];
+        PermissionTable t = new PermissionTable(0);
+        for (int i = 0; i < swarms; i++) {
+            hashes[i] = hash(i);
+            t = t.put(hashes[i], new GroupBean[] { GroupBean.PUBLIC });
+        }
+        table = t;
+
+        final long end = System.currentTimeMillis() + 1000;
+        final AtomicReference<String> error = new AtomicReference<String>();
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int r = 0; r < 4; r++) {
+            final int first = r;
+            Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    while (error.get() == null && System.currentTimeMillis() < end) {
+                        for (int i = first; i < swarms; i++) {
+                            PermissionTable current = table;
+                            GroupBean[] groups = current.getGroups(hashes[i]);
+                            int flags = current.getFlags(hashes[i]);
+                            // odd swarms are never removed
+                            if (groups == null && i % 2 == 1) {
+                                error.compareAndSet(null, "swarm " + i + " missing");
+                            }
+                            if (groups != null && groups.length != 1 && groups.length != 2) {
+                                error.compareAndSet(null, "swarm " + i + " has "
+                                        + groups.length + " groups");
+                            }
+                            // groups and flags of separate calls may be of separate updates,
+                            // but each swarm is always public or friends only
+                            if (flags != 0 && flags != PermissionTable.FLAG_PUBLIC
+                                    && flags != PermissionTable.FLAG_ALL_FRIENDS) {
+                                error.compareAndSet(null, "swarm " + i + " flags " + flags);
+                            }
+                        }
+                    }
+                }
+            };
+            reader.start();
+            readers.add(reader);
+        }
+
+        Set<Long> removed = new HashSet<Long>();
+        removed.add(FRIEND.getGroupID());
+        int round = 0;
+        while (System.currentTimeMillis() < end) {
+            for (int i = 0; i < swarms; i++) {
+                GroupBean[] groups;
+                if (i % 2 == 0 && (i + round) % 3 == 0) {
+                    groups = null;
+                } else if ((i + round) % 2 == 0) {
+                    groups = new GroupBean[] { GroupBean.PUBLIC };
+                } else {
+                    groups = new GroupBean[] { GroupBean.ALL_FRIENDS, FRIEND };
+                }
+                table = table.put(hashes[i], groups);
+            }
+            table = table.withoutGroups(removed);
+            round++;
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        Assert.assertNull(error.get(), error.get());
+
+        // every entry is consistent once the writer is done
+        for (int i = 0; i < swarms; i++) {
+            GroupBean[] groups = table.getGroups(hashes[i]);
+            if (groups != null) {
+                Assert.assertEquals(flags(groups), table.getFlags(hashes[i]));
+            }
+        }
+    }
+
+    private static byte[] hash(int i) {
+        byte[] hash = new byte[20];
+        hash[0] = (byte) (i >>> 8);
+        hash[1] = (byte) i;
+        hash[19] = 1;
+        return hash;
+    }
+
+    private static GroupBean[] groups(int which) {
+        switch (which) {
+        case 0:
+            return new GroupBean[0];
+        case 1:
+            return new GroupBean[] { GroupBean.PUBLIC };
+        case 2:
+            return new GroupBean[] { GroupBean.ALL_FRIENDS, FRIEND };
+        default:
+            return new GroupBean[] { GroupBean.PUBLIC, GroupBean.ALL_FRIENDS };
+        }
+    }
+
+    private static int flags(GroupBean[] groups) {
+        int flags = 0;
+        for (GroupBean g : groups) {
+            if (g.equals(GroupBean.PUBLIC)) {
+                flags |= PermissionTable.FLAG_PUBLIC;
+            } else if (g.equals(GroupBean.ALL_FRIENDS)) {
+                flags |= PermissionTable.FLAG_ALL_FRIENDS;
+            }
+        }
+        return flags;
+    }
+}
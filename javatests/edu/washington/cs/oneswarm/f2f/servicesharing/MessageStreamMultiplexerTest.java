@@ -0,0 +1,96 @@
+package edu.washington.cs.oneswarm.f2f.servicesharing;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FMessage;
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+import edu.washington.cs.oneswarm.test.util.TestUtils;
+
+/**
+ * Verifies that acknowledged messages stop being tracked, so a long lived flow
+ * doesn't accumulate state.
+ */
+public class MessageStreamMultiplexerTest extends OneSwarmTestBase {
+
+    @Test
+    public void testAckedMessagesAreReleased() throws Exception {
+        MessageStreamMultiplexer mux = new MessageStreamMultiplexer((short) 0);
+        for (int round = 0; round < 1000; round++) {
+            int[] acks = new int[8];
+            for (int i = 0; i < acks.length; i++) {
+                acks[i] = mux.nextMsg().getNum();
+            }
+            Assert.assertEquals(acks.length, mux.onAck(ack(acks)));
+            Assert.assertEquals(0, mux.getTrackedCount());
+        }
+    }
+
+    @Test
+    public void testOutOfOrderAndDuplicateAcks() throws Exception {
+        MessageStreamMultiplexer mux = new MessageStreamMultiplexer((short) 0);
+        SequenceNumber[] seqs = new SequenceNumber[300];
+        for (int i = 0; i < seqs.length; i++) {
+            seqs[i] = mux.nextMsg();
+        }
+        Assert.assertEquals(seqs.length, mux.getTrackedCount());
+
+        // Ack the odd ones, the window can't move past message 0 yet.
+        for (int i = 1; i < seqs.length; i += 2) {
+            Assert.assertEquals(1, mux.onAck(ack(seqs[i].getNum(), seqs[i].getNum())));
+            Assert.assertTrue(seqs[i].isAcked());
+        }
+        Assert.assertEquals(seqs.length / 2, mux.getTrackedCount());
+        Assert.assertEquals(0, mux.onAck(ack(seqs[1].getNum(), seqs[3].getNum())));
+
+        // New messages still work while the window has holes.
+        SequenceNumber extra = mux.nextMsg();
+        Assert.assertEquals(seqs.length, extra.getNum());
+
+        for (int i = 0; i < seqs.length; i += 2) {
+            Assert.assertEquals(1, mux.onAck(ack(seqs[i].getNum(), seqs[i].getNum())));
+        }
+        Assert.assertEquals(1, mux.getTrackedCount());
+        Assert.assertEquals(1, mux.onAck(ack(extra.getNum(), extra.getNum())));
+        Assert.assertEquals(0, mux.getTrackedCount());
+    }
+
+    @Test
+    public void testFullWindow() throws Exception {
+        MessageStreamMultiplexer mux = new MessageStreamMultiplexer((short) 0);
+        SequenceNumber first = null;
+        for (int i = 0; i < MessageStreamMultiplexer.MAX_WINDOW; i++) {
+            SequenceNumber seq = mux.nextMsg();
+            Assert.assertNotNull(seq);
+            if (first == null) {
+                first = seq;
+            }
+        }
+        Assert.assertTrue(mux.isFull());
+        // Nothing is dropped to make room.
+        Assert.assertNull(mux.nextMsg());
+        Assert.assertEquals(MessageStreamMultiplexer.MAX_WINDOW, mux.getTrackedCount());
+        Assert.assertFalse(first.isAcked());
+
+        Assert.assertEquals(1, mux.onAck(ack(first.getNum(), first.getNum())));
+        Assert.assertFalse(mux.isFull());
+        SequenceNumber seq = mux.nextMsg();
+        Assert.assertEquals(MessageStreamMultiplexer.MAX_WINDOW, seq.getNum());
+        Assert.assertTrue(mux.isFull());
+
+        Assert.assertEquals(MessageStreamMultiplexer.MAX_WINDOW, mux.dropAll());
+        Assert.assertEquals(0, mux.getTrackedCount());
+        Assert.assertFalse(mux.isFull());
+        Assert.assertEquals(MessageStreamMultiplexer.MAX_WINDOW + 1, mux.nextMsg().getNum());
+    }
+
+    private static OSF2FServiceDataMsg ack(int... acks) {
+        return OSF2FServiceDataMsg.acknowledge(OSF2FMessage.CURRENT_VERSION, 1, 0, (short) 0,
+                acks, false);
+    }
+
+    /** Boilerplate code for running as executable. */
+    public static void main(String[] args) throws Exception {
+        TestUtils.swtCompatibleTestRunner(MessageStreamMultiplexerTest.class);
+    }
+}
@@ -0,0 +1,300 @@
+package edu.washington.cs.oneswarm.f2f.servicesharing;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.gudy.azureus2.core3.global.GlobalManagerStats;
+import org.gudy.azureus2.core3.util.DirectByteBuffer;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.aelitis.azureus.core.networkmanager.NetworkConnection;
+import com.aelitis.azureus.core.networkmanager.NetworkManager;
+import com.aelitis.azureus.core.networkmanager.impl.tcp.ProtocolEndpointTCP;
+
+import edu.washington.cs.oneswarm.f2f.Friend;
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FChannelDataMsg;
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FChannelMsg;
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FHashSearch;
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FHashSearchResp;
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FMessage;
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FMessageDecoder;
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FMessageEncoder;
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FSearch;
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FSearchResp;
+import edu.washington.cs.oneswarm.f2f.metrics.Counter;
+import edu.washington.cs.oneswarm.f2f.metrics.MetricsRegistry;
+import edu.washington.cs.oneswarm.f2f.network.FriendConnection;
+import edu.washington.cs.oneswarm.f2f.network.PacketListener;
+import edu.washington.cs.oneswarm.f2f.network.QueueManager;
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+
+/**
+ * Checks that relaying a received service message in place puts the same
+ * bytes on the wire as parsing it and serializing it again, and which
+ * messages OverlayForward relays in place between two stub friend
+ * connections.
+ */
+public class ServiceDataRelayTest extends OneSwarmTestBase {
+
+    private static final int CHANNEL = 0x01020304;
+
+    private static final Counter relayedInPlace = relayCounter("in_place");
+    private static final Counter relayedRebuilt = relayCounter("rebuilt");
+
+    private static int nextPort = 20000;
+
+    private FriendConnection source;
+    private FriendConnection target;
+    private long[] protocolBytesReceived;
+    private long inPlaceBefore;
+    private long rebuiltBefore;
+
+    @Before
+    public void setUp() {
+        protocolBytesReceived = new long[1];
+        GlobalManagerStats stats = countingStats(protocolBytesReceived);
+        QueueManager queueManager = new QueueManager();
+        source = stubConnection(stats, queueManager, "source");
+        target = stubConnection(stats, queueManager, "target");
+        inPlaceBefore = relayedInPlace.get();
+        rebuiltBefore = relayedRebuilt.get();
+    }
+
+    @Test
+    public void testInPlaceMatchesRebuilt() throws Exception {
+        byte[] data = "some service payload".getBytes("UTF-8");
+
+        OSF2FChannelDataMsg msg = receive(serviceMessage(7, data));
+        Assert.assertEquals(7, OSF2FServiceDataMsg.exchangeWindow(msg, 99));
+        int size = msg.getMessageSize();
+        Assert.assertTrue(msg.putChannelIdInPayload());
+        DirectByteBuffer[] inPlace = msg.getData();
+        Assert.assertEquals(1, inPlace.length);
+        Assert.assertEquals(size, inPlace[0].remaining(DirectByteBuffer.SS_MSG));
+
+        OSF2FServiceDataMsg rebuilt = OSF2FServiceDataMsg
+                .fromChannelMessage(receive(serviceMessage(7, data)));
+        rebuilt.setWindow(99);
+        Assert.assertArrayEquals(toBytes(rebuilt.getData()), toBytes(inPlace));
+    }
+
+    @Test
+    public void testTransferPayloadDropsChannelId() throws Exception {
+        OSF2FChannelDataMsg msg = receive(serviceMessage(1, new byte[] { 1, 2, 3 }));
+        int payload = msg.getPayload().remaining(DirectByteBuffer.SS_MSG);
+        Assert.assertTrue(msg.putChannelIdInPayload());
+        OSF2FServiceDataMsg service = OSF2FServiceDataMsg.fromChannelMessage(msg);
+        Assert.assertEquals(1, service.getWindow());
+        Assert.assertEquals(payload - (OSF2FServiceDataMsg.BASE_LENGTH - 4), service
+                .getPayload().remaining(DirectByteBuffer.SS_MSG));
+    }
+
+    @Test
+    public void testFirstPacketTakesRegularPath() throws Exception {
+        byte[] data = "some service payload".getBytes("UTF-8");
+        FriendConnection.OverlayForward forward = newForward();
+
+        // parsed into a service message, which takes over the payload
+        OSF2FChannelDataMsg first = receive(serviceMessage(7, data));
+        int size = first.getMessageSize();
+        forward.forwardMessage(first, source);
+        Assert.assertNull(first.getPayload());
+        assertRelayed(0, size);
+        Assert.assertEquals(size, forward.getBytesForwarded());
+
+        // queued as received, with the window of the sender
+        OSF2FChannelDataMsg second = receive(serviceMessage(8, data));
+        forward.forwardMessage(second, source);
+        DirectByteBuffer[] wire = second.getData();
+        Assert.assertEquals(1, wire.length);
+        Assert.assertArrayEquals(serviceMessage(source.getSendQueueCurrentCapacity(CHANNEL,
+                true), data), toBytes(wire));
+        assertRelayed(size, size);
+        Assert.assertEquals(2 * size, forward.getBytesForwarded());
+        Assert.assertEquals(2 * size, protocolBytesReceived[0]);
+    }
+
+    @Test
+    public void testPacketListenerFallback() throws Exception {
+        byte[] data = "some service payload".getBytes("UTF-8");
+        RecordingPacketListener listener = new RecordingPacketListener();
+        FriendConnection.OverlayForward forward = newForward();
+
+        // the listener of the receiving connection sees parsed messages
+        source.setPacketListener(listener);
+        OSF2FChannelDataMsg first = receive(serviceMessage(7, data));
+        int size = first.getMessageSize();
+        forward.forwardMessage(first, source);
+        OSF2FChannelDataMsg second = receive(serviceMessage(7, data));
+        forward.forwardMessage(second, source);
+        Assert.assertNull(second.getPayload());
+        Assert.assertEquals(1, listener.forwarded.size());
+        Assert.assertTrue(listener.forwarded.get(0) instanceof OSF2FServiceDataMsg);
+        assertRelayed(0, 2 * size);
+
+        // and so does the one of the connection it is relayed to
+        source.setPacketListener(null);
+        target.setPacketListener(listener);
+        OSF2FChannelDataMsg third = receive(serviceMessage(7, data));
+        forward.forwardMessage(third, source);
+        Assert.assertNull(third.getPayload());
+        assertRelayed(0, 3 * size);
+
+        target.setPacketListener(null);
+        forward.forwardMessage(receive(serviceMessage(7, data)), source);
+        assertRelayed(size, 3 * size);
+        Assert.assertEquals(4 * size, forward.getBytesForwarded());
+        Assert.assertEquals(4 * size, protocolBytesReceived[0]);
+    }
+
+    @Test
+    public void testNonServiceData() throws Exception {
+        byte[] data = "some service payload".getBytes("UTF-8");
+        byte[] plain = new byte[] { 1, 2, 3 };
+
+        // on a service channel it is relayed as is
+        FriendConnection.OverlayForward forward = newForward();
+        OSF2FChannelDataMsg first = receive(serviceMessage(7, data));
+        int serviceSize = first.getMessageSize();
+        forward.forwardMessage(first, source);
+        OSF2FChannelDataMsg msg = receive(channelMessage(plain));
+        int plainSize = msg.getMessageSize();
+        forward.forwardMessage(msg, source);
+        Assert.assertArrayEquals(channelMessage(plain), toBytes(msg.getData()));
+        assertRelayed(plainSize, serviceSize);
+
+        // a channel that starts with it isn't a service channel
+        forward = newForward();
+        OSF2FChannelDataMsg firstPlain = receive(channelMessage(plain));
+        forward.forwardMessage(firstPlain, source);
+        Assert.assertNotNull(firstPlain.getPayload());
+        forward.forwardMessage(receive(serviceMessage(7, data)), source);
+        OSF2FChannelDataMsg service = receive(serviceMessage(7, data));
+        forward.forwardMessage(service, source);
+        // the window is left alone
+        Assert.assertArrayEquals(serviceMessage(7, data), toBytes(service.getData()));
+        assertRelayed(plainSize + 2 * serviceSize, serviceSize + plainSize);
+        Assert.assertEquals(plainSize + 2 * serviceSize, forward.getBytesForwarded());
+    }
+
+    private FriendConnection.OverlayForward newForward() {
+        OSF2FSearch search = new OSF2FHashSearch(OSF2FMessage.CURRENT_VERSION, 0, 0);
+        OSF2FSearchResp setup = new OSF2FHashSearchResp(OSF2FMessage.CURRENT_VERSION, 0,
+                CHANNEL, 0);
+        return source.new OverlayForward(CHANNEL, target, search, setup, false);
+    }
+
+    private void assertRelayed(long inPlace, long rebuilt) {
+        Assert.assertEquals(inPlace, relayedInPlace.get() - inPlaceBefore);
+        Assert.assertEquals(rebuilt, relayedRebuilt.get() - rebuiltBefore);
+    }
+
+    private static Counter relayCounter(String path) {
+        return MetricsRegistry.getInstance().counter("f2f_relay_bytes_total",
+                "Channel bytes relayed between friends.", "path", path);
+    }
+
+    private static FriendConnection stubConnection(GlobalManagerStats stats,
+            QueueManager queueManager, String nick) {
+        ProtocolEndpointTCP endpoint = new ProtocolEndpointTCP(new InetSocketAddress(
+                "127.0.0.1", nextPort++));
+        NetworkConnection conn = NetworkManager.getSingleton().createConnection(
+                endpoint.getConnectionEndpoint(), new OSF2FMessageEncoder(),
+                new OSF2FMessageDecoder(), false, false, null);
+        Friend friend = new Friend("", nick, new byte[] { (byte) nextPort }, false);
+        return FriendConnection.createStubForTests(stats, queueManager, conn, friend);
+    }
+
+    /**
+     * @return stats that only add up protocolBytesReceived() in
+     *         <code>received[0]</code>
+     */
+    private static GlobalManagerStats countingStats(final long[] received) {
+        return (GlobalManagerStats) Proxy.newProxyInstance(
+                ServiceDataRelayTest.class.getClassLoader(),
+                new Class<?>[] { GlobalManagerStats.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("protocolBytesReceived")) {
+                            received[0] += (Integer) args[0];
+                        }
+                        Class<?> type = method.getReturnType();
+                        if (type == Boolean.TYPE) {
+                            return false;
+                        } else if (type == Integer.TYPE) {
+                            return 0;
+                        } else if (type == Long.TYPE) {
+                            return 0L;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private static class RecordingPacketListener implements PacketListener {
+        final List<OSF2FChannelMsg> forwarded = new ArrayList<OSF2FChannelMsg>();
+
+        @Override
+        public boolean packetReadyForAzureusQueue(OSF2FChannelMsg message) {
+            return true;
+        }
+
+        @Override
+        public void packetAddedToForwardQueue(FriendConnection source,
+                FriendConnection destination, OSF2FSearch sourceMessage,
+                OSF2FSearchResp setupMessage, boolean searcherSide, OSF2FChannelMsg message) {
+            forwarded.add(message);
+        }
+
+        @Override
+        public void packetAddedToTransportQueue(FriendConnection destination,
+                OSF2FSearch sourceMessage, OSF2FSearchResp setupMessage, boolean searcherSide,
+                OSF2FChannelMsg message) {
+        }
+
+        @Override
+        public void packetArrivedAtFinalDestination(FriendConnection source,
+                OSF2FHashSearch search, OSF2FHashSearchResp response, OSF2FChannelDataMsg msg,
+                boolean searcherSide) {
+        }
+    }
+
+    private static byte[] serviceMessage(int window, byte[] data) {
+        DirectByteBuffer payload = new DirectByteBuffer(ByteBuffer.wrap(data.clone()));
+        OSF2FServiceDataMsg msg = new OSF2FServiceDataMsg(OSF2FMessage.CURRENT_VERSION, CHANNEL,
+                window, 5, (short) 0, new int[0], payload);
+        return toBytes(msg.getData());
+    }
+
+    private static byte[] channelMessage(byte[] data) {
+        DirectByteBuffer payload = new DirectByteBuffer(ByteBuffer.wrap(data.clone()));
+        return toBytes(new OSF2FChannelDataMsg(OSF2FMessage.CURRENT_VERSION, CHANNEL, payload)
+                .getData());
+    }
+
+    /** Same as what the decoder hands to the channel: the wire bytes, past the channel id */
+    private static OSF2FChannelDataMsg receive(byte[] wire) throws Exception {
+        return (OSF2FChannelDataMsg) new OSF2FChannelDataMsg(OSF2FMessage.CURRENT_VERSION, 0, null)
+                .deserialize(new DirectByteBuffer(ByteBuffer.wrap(wire.clone())),
+                        OSF2FMessage.CURRENT_VERSION);
+    }
+
+    private static byte[] toBytes(DirectByteBuffer[] buffers) {
+        int len = 0;
+        for (DirectByteBuffer b : buffers) {
+            len += b.remaining(DirectByteBuffer.SS_MSG);
+        }
+        ByteBuffer out = ByteBuffer.allocate(len);
+        for (DirectByteBuffer b : buffers) {
+            out.put(b.getBuffer(DirectByteBuffer.SS_MSG).duplicate());
+        }
+        return out.array();
+    }
+}
@@ -0,0 +1,126 @@
+package edu.washington.cs.oneswarm.test.util;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.handler.AbstractHandler;
+import org.mortbay.jetty.nio.SelectChannelConnector;
+
+import edu.washington.cs.oneswarm.community.CommunityConstants;
+
+/**
+ * A community server that serves a friend list set by the test, for tests
+ * that don't need a real one running at TestUtils.TEST_COMMUNITY_SERVER. No
+ * registration or challenge, but it honors If-None-Match so conditional
+ * refreshes can be checked.
+ */
+public class StubCommunityServer {
+    public static final String COMMUNITY_PATH = "community";
+
+    private final Server jettyServer = new Server();
+    private final SelectChannelConnector connector = new SelectChannelConnector();
+
+    private List<String[]> friends = new ArrayList<String[]>();
+    private int version = 0;
+    private final AtomicInteger fullResponses = new AtomicInteger();
+    private final AtomicInteger notModifiedResponses = new AtomicInteger();
+
+    public StubCommunityServer() {
+        connector.setHost("127.0.0.1");
+        connector.setPort(0);
+        jettyServer.addConnector(connector);
+        jettyServer.addHandler(new StubHandler());
+    }
+
+    public void start() throws Exception {
+        jettyServer.start();
+    }
+
+    public void stop() throws Exception {
+        jettyServer.stop();
+    }
+
+    /** The url to configure as the community server. */
+    public String getUrl() {
+        return "http://127.0.0.1:" + connector.getLocalPort() + "/" + COMMUNITY_PATH;
+    }
+
+    /** Replaces the {key, nick} pairs the server returns. */
+    public synchronized void setFriends(List<String[]> friends) {
+        this.friends = new ArrayList<String[]>(friends);
+        version++;
+    }
+
+    /** Number of responses that included the friend list. */
+    public int getFullResponses() {
+        return fullResponses.get();
+    }
+
+    /** Number of 304 responses. */
+    public int getNotModifiedResponses() {
+        return notModifiedResponses.get();
+    }
+
+    private class StubHandler extends AbstractHandler {
+        public void handle(String target, HttpServletRequest request,
+                HttpServletResponse response, int dispatch) throws IOException, ServletException {
+            ((Request) request).setHandled(true);
+            if (target.equals("/capabilities.xml")) {
+                response.setContentType("text/xml");
+                PrintWriter out = response.getWriter();
+                out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+                out.println("<" + CommunityConstants.CAPABILITIES_ROOT + ">");
+                out.println("<" + CommunityConstants.PEERS + " "
+                        + CommunityConstants.PATH_ATTRIB + "=\"" + COMMUNITY_PATH + "\"/>");
+                out.println("</" + CommunityConstants.CAPABILITIES_ROOT + ">");
+                out.flush();
+                return;
+            }
+            if (target.equals("/" + COMMUNITY_PATH) == false) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+
+            List<String[]> current;
+            String etag;
+            synchronized (StubCommunityServer.this) {
+                current = friends;
+                etag = "\"" + version + "\"";
+            }
+            if (etag.equals(request.getHeader("If-None-Match"))) {
+                notModifiedResponses.incrementAndGet();
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+
+            fullResponses.incrementAndGet();
+            response.setContentType("text/xml");
+            response.setHeader("ETag", etag);
+            // all on one line like the real server, KeyPublishOp reads the
+            // first line on its own
+            PrintWriter out = response.getWriter();
+            out.print("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+            out.print("<" + CommunityConstants.RESPONSE_ROOT + ">");
+            out.print("<" + CommunityConstants.REFRESH_INTERVAL + ">60</"
+                    + CommunityConstants.REFRESH_INTERVAL + ">");
+            out.print("<" + CommunityConstants.FRIEND_LIST + ">");
+            for (String[] pair : current) {
+                out.print("<" + CommunityConstants.FRIEND + " " + CommunityConstants.KEY_ATTRIB
+                        + "=\"" + pair[0] + "\" " + CommunityConstants.NICK_ATTRIB + "=\""
+                        + pair[1] + "\"/>");
+            }
+            out.print("</" + CommunityConstants.FRIEND_LIST + ">");
+            out.print("</" + CommunityConstants.RESPONSE_ROOT + ">");
+            out.flush();
+        }
+    }
+}
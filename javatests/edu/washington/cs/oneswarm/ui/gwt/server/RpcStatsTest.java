@@ -0,0 +1,134 @@
+package edu.washington.cs.oneswarm.ui.gwt.server;
+
+import java.io.StringWriter;
+import java.util.List;
+import java.util.Random;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+
+/**
+ * The bucket boundaries and percentiles of {@link RpcStats.Histogram} and the
+ * per method stats built from them.
+ */
+public class RpcStatsTest extends OneSwarmTestBase {
+
+    @Test
+    public void testBuckets() {
+        // values below 8 have a bucket each
+        for (int v = 0; v < 8; v++) {
+            Assert.assertEquals(v, RpcStats.Histogram.getBucket(v));
+            Assert.assertEquals(v, RpcStats.Histogram.getBucketStart(v));
+        }
+        // and so do the ones up to 16, above that they share them
+        Assert.assertEquals(8, RpcStats.Histogram.getBucket(8));
+        Assert.assertEquals(15, RpcStats.Histogram.getBucket(15));
+        Assert.assertEquals(16, RpcStats.Histogram.getBucket(16));
+        Assert.assertEquals(16, RpcStats.Histogram.getBucket(17));
+        Assert.assertEquals(17, RpcStats.Histogram.getBucket(18));
+
+        Random random = new Random(12345);
+        int last = -1;
+        for (int shift = 0; shift < 63; shift++) {
+            long pow = 1L << shift;
+            for (long v : new long[] { pow, pow + 1, pow + (pow >>> 1), 2 * pow - 1,
+                    pow + (random.nextLong() & (pow - 1)) }) {
+                assertInBucket(v);
+            }
+            // the buckets grow with the values
+            int bucket = RpcStats.Histogram.getBucket(pow);
+            Assert.assertTrue(bucket > last);
+            Assert.assertEquals(bucket, RpcStats.Histogram.getBucket(RpcStats.Histogram
+                    .getBucketStart(bucket)));
+            Assert.assertEquals(bucket - 1, RpcStats.Histogram.getBucket(pow - 1));
+            last = bucket;
+        }
+        assertInBucket(Long.MAX_VALUE);
+    }
+
+    @Test
+    public void testPercentiles() {
+        RpcStats.Histogram h = new RpcStats.Histogram();
+        Assert.assertEquals(0, h.getPercentile(0.5));
+        Assert.assertEquals(0, h.getMax());
+
+        for (int v = 1000; v >= 1; v--) {
+            h.record(v);
+        }
+        Assert.assertEquals(1000, h.getCount());
+        Assert.assertEquals(1000 * 1001 / 2, h.getSum());
+        Assert.assertEquals(1000, h.getMax());
+        for (double p : new double[] { 0.001, 0.1, 0.5, 0.9, 0.99, 0.999 }) {
+            long exact = (long) Math.ceil(p * 1000);
+            long percentile = h.getPercentile(p);
+            Assert.assertTrue(p + ": " + percentile, percentile >= exact);
+            Assert.assertTrue(p + ": " + percentile, percentile <= exact * 1.125);
+        }
+        // capped at the largest value
+        Assert.assertEquals(1000, h.getPercentile(1));
+        Assert.assertEquals(1, h.getPercentile(0));
+
+        // negative times count as 0
+        RpcStats.Histogram single = new RpcStats.Histogram();
+        single.record(-5);
+        Assert.assertEquals(0, single.getPercentile(0.5));
+        single.record(Long.MAX_VALUE);
+        Assert.assertEquals(Long.MAX_VALUE, single.getPercentile(0.999));
+        Assert.assertEquals(Long.MAX_VALUE, single.getMax());
+
+        RpcStats.Histogram same = new RpcStats.Histogram();
+        for (int i = 0; i < 100; i++) {
+            same.record(12345);
+        }
+        Assert.assertEquals(12345, same.getPercentile(0.01));
+        Assert.assertEquals(12345, same.getPercentile(0.99));
+    }
+
+    @Test
+    public void testMethodStats() throws Exception {
+        RpcStats stats = new RpcStats();
+        stats.record("cheap", 10, 5, 100, 20, false);
+        stats.record("expensive", 1000000, 100, 50, 4000, false);
+        stats.record("expensive", 3000000, 100, 50, 0, true);
+
+        List<RpcStats.MethodStats> methods = stats.getMethodStats();
+        Assert.assertEquals(2, methods.size());
+        RpcStats.MethodStats expensive = methods.get(0);
+        Assert.assertEquals("expensive", expensive.getMethod());
+        Assert.assertEquals(2, expensive.getMethodTime().getCount());
+        Assert.assertEquals(4000000, expensive.getMethodTime().getSum());
+        Assert.assertEquals(200, expensive.getSerializationTime().getSum());
+        Assert.assertEquals(4000, expensive.getResponseSize().getMax());
+        Assert.assertEquals(1, expensive.getFailures());
+        Assert.assertEquals("cheap", methods.get(1).getMethod());
+        Assert.assertEquals(0, methods.get(1).getFailures());
+
+        StringWriter out = new StringWriter();
+        stats.writeJson(out);
+        JSONArray json = new JSONObject(out.toString()).getJSONArray("methods");
+        Assert.assertEquals(2, json.length());
+        JSONObject first = json.getJSONObject(0);
+        Assert.assertEquals("expensive", first.getString("method"));
+        Assert.assertEquals(2, first.getLong("calls"));
+        Assert.assertEquals(1, first.getLong("failures"));
+        JSONObject methodTime = first.getJSONObject("method_time_ns");
+        Assert.assertEquals(3000000, methodTime.getLong("max"));
+        Assert.assertEquals(expensive.getMethodTime().getPercentile(0.5), methodTime
+                .getLong("p50"));
+    }
+
+    private static void assertInBucket(long v) {
+        int bucket = RpcStats.Histogram.getBucket(v);
+        long start = RpcStats.Histogram.getBucketStart(bucket);
+        // the start of the last bucket's successor wraps around
+        long end = RpcStats.Histogram.getBucketStart(bucket + 1) - 1;
+        Assert.assertTrue(v + " in bucket from " + start, start <= v);
+        Assert.assertTrue(v + " in bucket up to " + end, v <= end);
+        // at most 1/8 wide
+        Assert.assertTrue(v + ": " + start + "-" + end, end - start <= Math.max(0, start / 8));
+    }
+}
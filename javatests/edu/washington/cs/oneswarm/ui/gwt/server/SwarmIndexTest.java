@@ -0,0 +1,81 @@
+package edu.washington.cs.oneswarm.ui.gwt.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bouncycastle.util.encoders.Base64;
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.washington.cs.oneswarm.f2f.FileCollection;
+import edu.washington.cs.oneswarm.f2f.FileListFile;
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+import edu.washington.cs.oneswarm.ui.gwt.client.newui.FileTypeFilter;
+import edu.washington.cs.oneswarm.ui.gwt.server.StatelessSwarmFilter.SortMetric;
+
+/**
+ * Checks that the index version, which StatelessSwarmFilter's result cache
+ * is keyed on, changes exactly when something a query looks at changes.
+ */
+public class SwarmIndexTest extends OneSwarmTestBase {
+
+    @Test
+    public void testTagEditChangesVersion() throws Exception {
+        FileCollection collection = createCollection("song", "music/rock");
+        DownloadManagerAdapter dm = new DownloadManagerAdapter(collection, 0, "me");
+        SwarmIndex index = new SwarmIndex();
+
+        index.update(dm);
+        long version = index.getVersion();
+        Assert.assertEquals(Arrays.asList("music/rock"), tagsOf(index));
+
+        // nothing changed, cached results stay valid
+        index.update(dm);
+        Assert.assertEquals(version, index.getVersion());
+
+        collection.setDirectoryTags(parseTags("music/jazz"));
+        index.update(dm);
+        Assert.assertTrue("tag edit didn't invalidate results", index.getVersion() != version);
+        Assert.assertEquals(Arrays.asList("music/jazz"), tagsOf(index));
+
+        version = index.getVersion();
+        collection.setDirectoryTags(parseTags());
+        index.update(dm);
+        Assert.assertTrue("tag removal didn't invalidate results", index.getVersion() != version);
+        Assert.assertEquals(new ArrayList<String>(), tagsOf(index));
+    }
+
+    /** the tags the view's swarms report, the way the tag filter reads them */
+    private static List<String> tagsOf(SwarmIndex index) {
+        List<String> tags = new ArrayList<String>();
+        for (SwarmIndex.IndexedSwarm s : index.getView(SortMetric.Name, FileTypeFilter.All,
+                false)) {
+            String[] t = s.dm.getDownloadState().getListAttribute(
+                    FileCollection.ONESWARM_TAGS_ATTRIBUTE);
+            if (t != null) {
+                tags.addAll(Arrays.asList(t));
+            }
+        }
+        return tags;
+    }
+
+    private static FileCollection createCollection(String name, String... tags) {
+        byte[] id = new byte[20];
+        id[0] = 1;
+        List<FileListFile> files = new ArrayList<FileListFile>();
+        files.add(new FileListFile(name + ".mp3", 1024));
+        FileCollection c = new FileCollection(FileCollection.TYPE_BITTORRENT, new String(
+                Base64.encode(id)), name, "", "", files, 1000);
+        c.setDirectoryTags(parseTags(tags));
+        return c;
+    }
+
+    private static List<List<String>> parseTags(String... tags) {
+        List<List<String>> out = new ArrayList<List<String>>();
+        for (String tag : tags) {
+            out.add(Arrays.asList(tag.split("/")));
+        }
+        return out;
+    }
+}
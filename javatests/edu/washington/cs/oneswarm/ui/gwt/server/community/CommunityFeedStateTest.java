@@ -0,0 +1,188 @@
+package edu.washington.cs.oneswarm.ui.gwt.server.community;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.aelitis.azureus.ui.UIFunctionsManager;
+
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+import edu.washington.cs.oneswarm.test.util.StubCommunityServer;
+import edu.washington.cs.oneswarm.test.util.TestUtils;
+import edu.washington.cs.oneswarm.ui.gwt.rpc.CommunityRecord;
+import edu.washington.cs.oneswarm.ui.gwt.rpc.FriendInfoLite;
+
+/**
+ * Refreshes a stub community server with automatic KeyPublishOps and checks
+ * that unchanged friend lists aren't sent again and that only new entries are
+ * fed to the CommunityServerManager. The server is configured for manual
+ * confirmation, so the fed entries queue up for the user instead of being
+ * added as friends.
+ */
+public class CommunityFeedStateTest extends OneSwarmTestBase {
+
+    private static CommunityServerManager manager;
+
+    private StubCommunityServer server;
+    private CommunityRecord record;
+
+    @BeforeClass
+    public static void setupClass() {
+        if (!TestUtils.swtTestRunnerUsed()) {
+            new Thread("Off-main Oneswarm") {
+                @Override
+                public void run() {
+                    try {
+                        TestUtils.startOneSwarmForTest(true);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        System.exit(-1);
+                    }
+                }
+            }.start();
+        }
+        TestUtils.awaitJVMOneSwarmStart();
+        manager = CommunityServerManager.get();
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        // Quit OneSwarm
+        if (UIFunctionsManager.getUIFunctions() != null) {
+            UIFunctionsManager.getUIFunctions().requestShutdown();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubCommunityServer();
+        server.start();
+        record = new CommunityRecord();
+        record.setUrl(server.getUrl());
+        // known already, so the capabilities don't update the server settings
+        record.setCommunity_path(StubCommunityServer.COMMUNITY_PATH);
+        record.setConfirm_updates(true);
+        record.setSync_deletes(false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        takeFed();
+        manager.feedStates.remove(record.getUrl());
+        server.stop();
+    }
+
+    @Test
+    public void testUnchangedListIsNotSentAgain() throws Exception {
+        server.setFriends(Arrays.asList(new String[] { "unchanged1", "one" }, new String[] {
+                "unchanged2", "two" }));
+
+        Assert.assertEquals("60", refresh().getRefreshInterval());
+        assertFed("unchanged1", "unchanged2");
+        CommunityFeedState state = manager.getFeedState(record.getUrl());
+        Assert.assertEquals("60", state.getRefreshInterval());
+
+        // the last list is fed again, nothing in it is new
+        Assert.assertEquals("60", refresh().getRefreshInterval());
+        Assert.assertEquals("60", refresh().getRefreshInterval());
+        assertFed();
+        Assert.assertEquals(1, server.getFullResponses());
+        Assert.assertEquals(2, server.getNotModifiedResponses());
+        Assert.assertEquals(2, state.getEntries().size());
+    }
+
+    @Test
+    public void testOnlyNewEntriesAreFed() throws Exception {
+        server.setFriends(Arrays.asList(new String[] { "new1", "one" }, new String[] { "new2",
+                "two" }));
+        refresh();
+        assertFed("new1", "new2");
+
+        server.setFriends(Arrays.asList(new String[] { "new2", "two" }, new String[] { "new3",
+                "three" }));
+        refresh();
+        assertFed("new3");
+        Assert.assertEquals(2, server.getFullResponses());
+
+        refresh();
+        assertFed();
+        Assert.assertEquals(1, server.getNotModifiedResponses());
+    }
+
+    @Test
+    public void testClearFetchesEverything() throws Exception {
+        server.setFriends(Arrays.asList(new String[][] { { "clear1", "one" } }));
+        refresh();
+        assertFed("clear1");
+
+        CommunityFeedState state = manager.getFeedState(record.getUrl());
+        state.clear();
+        Assert.assertNull(state.getEntries());
+        Assert.assertTrue(state.getConditionalHeaders().isEmpty());
+        refresh();
+        assertFed("clear1");
+        Assert.assertEquals(2, server.getFullResponses());
+        Assert.assertEquals(0, server.getNotModifiedResponses());
+    }
+
+    @Test
+    public void testValidatorsNeedAResponse() throws Exception {
+        server.setFriends(Arrays.asList(new String[] { "fed1", "one" }, new String[] { "fed2",
+                "two" }));
+
+        // a list fed without a response mustn't make the next refresh
+        // conditional
+        manager.feed(Arrays.asList(new String[][] { { "fed1", "one" } }), record);
+        assertFed("fed1");
+        CommunityFeedState state = manager.getFeedState(record.getUrl());
+        Assert.assertTrue(state.getConditionalHeaders().isEmpty());
+
+        refresh();
+        assertFed("fed2");
+        Assert.assertFalse(state.getConditionalHeaders().isEmpty());
+        refresh();
+        Assert.assertEquals(1, server.getFullResponses());
+        Assert.assertEquals(1, server.getNotModifiedResponses());
+    }
+
+    /**
+     * Runs an automatic refresh of the stub server in this thread, without a
+     * backend task.
+     */
+    private KeyPublishOp refresh() {
+        KeyPublishOp op = new KeyPublishOp(record, false);
+        op.doOp();
+        return op;
+    }
+
+    private void assertFed(String... keys) {
+        Assert.assertEquals(new HashSet<String>(Arrays.asList(keys)), takeFed());
+    }
+
+    /**
+     * @return the keys fed from the stub server since the last call
+     */
+    private Set<String> takeFed() {
+        Set<String> out = new HashSet<String>();
+        synchronized (manager) {
+            Iterator<FriendInfoLite> itr = manager.unmunched.iterator();
+            while (itr.hasNext()) {
+                FriendInfoLite f = itr.next();
+                if (f.getSource().endsWith(record.getUrl())) {
+                    out.add(f.getPublicKey());
+                    itr.remove();
+                }
+            }
+        }
+        return out;
+    }
+}
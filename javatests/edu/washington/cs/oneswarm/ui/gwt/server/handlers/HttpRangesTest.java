@@ -0,0 +1,285 @@
+package edu.washington.cs.oneswarm.ui.gwt.server.handlers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+
+/**
+ * Range header parsing, If-Range validation and the responses
+ * {@link HttpRanges#send} builds from them, against fake servlet objects.
+ */
+public class HttpRangesTest extends OneSwarmTestBase {
+
+    private static final long LENGTH = 1000;
+    private static final String ETAG = "\"abc\"";
+    private static final long LAST_MODIFIED = 1300000000000L;
+
+    private File file;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws Exception {
+        data = new byte[(int) LENGTH];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        file = File.createTempFile("httpranges", ".bin");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testSuffixRanges() {
+        assertRanges("bytes=-100", "900-999");
+        // longer than the entity, the whole entity
+        assertRanges("bytes=-5000", "0-999");
+        // zero length suffix can't be satisfied
+        assertRanges("bytes=-0");
+    }
+
+    @Test
+    public void testOpenRanges() {
+        assertRanges("bytes=900-", "900-999");
+        assertRanges("bytes=0-", "0-999");
+        assertRanges("bytes=999-", "999-999");
+        assertRanges("bytes=1000-");
+    }
+
+    @Test
+    public void testLastBytePosPastEnd() {
+        assertRanges("bytes=500-5000", "500-999");
+        assertRanges("bytes=0-999", "0-999");
+        assertRanges("bytes=1000-2000");
+        // the satisfiable ones are kept
+        assertRanges("bytes=2000-3000,0-9", "0-9");
+    }
+
+    @Test
+    public void testMerge() {
+        // overlapping
+        assertRanges("bytes=0-99,50-150", "0-150");
+        // adjacent
+        assertRanges("bytes=0-99,100-199", "0-199");
+        // contained
+        assertRanges("bytes=0-500,100-200", "0-500");
+        // disjoint ranges stay in the order they were asked for
+        assertRanges("bytes=500-599,0-99", "500-599", "0-99");
+        // merged ranges are sorted
+        assertRanges("bytes=500-599,0-99,90-200", "0-200", "500-599");
+    }
+
+    @Test
+    public void testMaxRanges() {
+        StringBuilder tooMany = new StringBuilder("bytes=");
+        StringBuilder mergeable = new StringBuilder("bytes=");
+        for (int i = 0; i < 17; i++) {
+            tooMany.append(i > 0 ? "," : "").append(i * 10).append('-').append(i * 10 + 4);
+            mergeable.append(i > 0 ? "," : "").append(i * 10).append('-').append(i * 10 + 9);
+        }
+        Assert.assertNull(HttpRanges.parse(tooMany.toString(), LENGTH));
+        assertRanges(mergeable.toString(), "0-169");
+    }
+
+    @Test
+    public void testMalformed() {
+        Assert.assertNull(HttpRanges.parse(null, LENGTH));
+        Assert.assertNull(HttpRanges.parse("items=0-10", LENGTH));
+        Assert.assertNull(HttpRanges.parse("bytes=10", LENGTH));
+        Assert.assertNull(HttpRanges.parse("bytes=a-b", LENGTH));
+        Assert.assertNull(HttpRanges.parse("bytes=+1-2", LENGTH));
+        Assert.assertNull(HttpRanges.parse("bytes=-1-2", LENGTH));
+        Assert.assertNull(HttpRanges.parse("bytes=10-5", LENGTH));
+        Assert.assertNull(HttpRanges.parse("bytes=0-10,x", LENGTH));
+        // case and whitespace are tolerated
+        assertRanges(" BYTES= 0 - 9 ,", "0-9");
+    }
+
+    @Test
+    public void testUnsatisfiable() throws Exception {
+        FakeResponse response = send(headers("Range", "bytes=1000-"));
+        Assert.assertEquals(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE,
+                response.status);
+        Assert.assertEquals("bytes */1000", response.headers.get("Content-Range"));
+        Assert.assertEquals(0, response.body.size());
+    }
+
+    @Test
+    public void testSingleRange() throws Exception {
+        FakeResponse response = send(headers("Range", "bytes=-10"));
+        Assert.assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, response.status);
+        Assert.assertEquals("bytes 990-999/1000", response.headers.get("Content-Range"));
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, 990, 1000), response.body
+                .toByteArray());
+    }
+
+    @Test
+    public void testMultipleRanges() throws Exception {
+        FakeResponse response = send(headers("Range", "bytes=100-109,0-9"));
+        Assert.assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, response.status);
+        Assert.assertTrue(response.contentType.startsWith("multipart/byteranges; boundary="));
+        String body = new String(response.body.toByteArray(), "ISO-8859-1");
+        int first = body.indexOf("Content-Range: bytes 100-109/1000");
+        int second = body.indexOf("Content-Range: bytes 0-9/1000");
+        Assert.assertTrue(first >= 0 && second > first);
+        Assert.assertEquals(response.contentLength, response.body.size());
+    }
+
+    @Test
+    public void testStrongIfRange() throws Exception {
+        Assert.assertTrue(ifRange(headers()));
+        Assert.assertTrue(ifRange(headers("If-Range", ETAG)));
+        Assert.assertFalse(ifRange(headers("If-Range", "\"other\"")));
+
+        // a changed entity gets the whole entity instead of the range
+        FakeResponse response = send(headers("Range", "bytes=0-9", "If-Range", "\"other\""));
+        Assert.assertEquals(HttpServletResponse.SC_OK, response.status);
+        Assert.assertArrayEquals(data, response.body.toByteArray());
+    }
+
+    @Test
+    public void testWeakIfRange() throws Exception {
+        // weak validators never match, even if the opaque tag is the same
+        Assert.assertFalse(ifRange(headers("If-Range", "W/" + ETAG)));
+        Assert.assertFalse(HttpRanges.isIfRangeSatisfied(request(headers("If-Range", "W/"
+                + ETAG)), "W/" + ETAG, LAST_MODIFIED));
+    }
+
+    @Test
+    public void testDateIfRange() throws Exception {
+        Assert.assertTrue(ifRange(headers("If-Range", httpDate(LAST_MODIFIED))));
+        Assert.assertFalse(ifRange(headers("If-Range", httpDate(LAST_MODIFIED - 60000))));
+        // without a modification time a date can't be validated
+        Assert.assertFalse(HttpRanges.isIfRangeSatisfied(request(headers("If-Range",
+                httpDate(LAST_MODIFIED))), ETAG, 0));
+    }
+
+    private static void assertRanges(String header, String... expected) {
+        List<HttpRanges.Range> ranges = HttpRanges.parse(header, LENGTH);
+        Assert.assertNotNull(header, ranges);
+        Assert.assertEquals(header, Arrays.asList(expected).toString(), ranges.toString());
+    }
+
+    private static boolean ifRange(Map<String, String> headers) {
+        return HttpRanges.isIfRangeSatisfied(request(headers), ETAG, LAST_MODIFIED);
+    }
+
+    private FakeResponse send(Map<String, String> headers) throws IOException {
+        FakeResponse response = new FakeResponse();
+        HttpRanges.send(request(headers), response.proxy(), "application/octet-stream", LENGTH,
+                ETAG, LAST_MODIFIED, new HttpRanges.FileContent(file));
+        return response;
+    }
+
+    private static Map<String, String> headers(String... namesAndValues) {
+        Map<String, String> headers = new HashMap<String, String>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            headers.put(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return headers;
+    }
+
+    private static String httpDate(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'",
+                Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(time);
+    }
+
+    private static HttpServletRequest request(final Map<String, String> headers) {
+        return (HttpServletRequest) Proxy.newProxyInstance(HttpRangesTest.class
+                .getClassLoader(), new Class<?>[] { HttpServletRequest.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        String name = method.getName();
+                        if (name.equals("getHeader")) {
+                            return headers.get(args[0]);
+                        } else if (name.equals("getDateHeader")) {
+                            String value = headers.get(args[0]);
+                            if (value == null) {
+                                return -1L;
+                            }
+                            try {
+                                SimpleDateFormat format = new SimpleDateFormat(
+                                        "EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+                                format.setTimeZone(TimeZone.getTimeZone("GMT"));
+                                return format.parse(value).getTime();
+                            } catch (Exception e) {
+                                throw new IllegalArgumentException(value);
+                            }
+                        } else if (name.equals("getMethod")) {
+                            return "GET";
+                        } else if (name.equals("isSecure")) {
+                            return false;
+                        }
+                        throw new UnsupportedOperationException(name);
+                    }
+                });
+    }
+
+    private static class FakeResponse {
+        int status = -1;
+        String contentType;
+        long contentLength = -1;
+        final Map<String, String> headers = new HashMap<String, String>();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        HttpServletResponse proxy() {
+            final ServletOutputStream out = new ServletOutputStream() {
+                public void write(int b) {
+                    body.write(b);
+                }
+            };
+            return (HttpServletResponse) Proxy.newProxyInstance(HttpRangesTest.class
+                    .getClassLoader(), new Class<?>[] { HttpServletResponse.class },
+                    new InvocationHandler() {
+                        public Object invoke(Object proxy, Method method, Object[] args)
+                                throws Throwable {
+                            String name = method.getName();
+                            if (name.equals("setStatus")) {
+                                status = (Integer) args[0];
+                            } else if (name.equals("setContentType")) {
+                                contentType = (String) args[0];
+                            } else if (name.equals("setContentLength")) {
+                                contentLength = (Integer) args[0];
+                            } else if (name.equals("setHeader")) {
+                                headers.put((String) args[0], (String) args[1]);
+                            } else if (name.equals("getOutputStream")) {
+                                return out;
+                            } else {
+                                throw new UnsupportedOperationException(name);
+                            }
+                            return null;
+                        }
+                    });
+        }
+    }
+}
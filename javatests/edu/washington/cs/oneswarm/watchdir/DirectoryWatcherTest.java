@@ -0,0 +1,253 @@
+package edu.washington.cs.oneswarm.watchdir;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.washington.cs.oneswarm.test.util.ConditionWaiter;
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+import edu.washington.cs.oneswarm.ui.gwt.client.newui.settings.MagicPath;
+import edu.washington.cs.oneswarm.ui.gwt.client.newui.settings.MagicWatchType;
+
+/**
+ * Runs {@link DirectoryWatcher#scan()} over a temp directory, with OS change
+ * notifications where the runtime has them and with polling, and checks the
+ * changes it reports to its listeners. The snapshots go to a temp config
+ * directory.
+ */
+public class DirectoryWatcherTest extends OneSwarmTestBase {
+
+    private static final long EVENT_WAIT_MS = 10 * 1000;
+
+    private File config;
+    private String oldConfig;
+    private File root;
+    private final List<String> created = new ArrayList<String>();
+    private final List<String> deleted = new ArrayList<String>();
+
+    private final DirectoryWatcherListener recorder = new DirectoryWatcherListener() {
+        public void newFileObserved(DirectoryWatcher watcher, UpdatingFileTree inTree) {
+            synchronized (created) {
+                created.add(relative(inTree.getThisFile()));
+            }
+        }
+
+        public void deleteFileObserved(DirectoryWatcher watcher, UpdatingFileTree inTree) {
+            synchronized (deleted) {
+                deleted.add(relative(inTree.getThisFile()));
+            }
+        }
+    };
+
+    private final List<DirectoryWatcher> watchers = new ArrayList<DirectoryWatcher>();
+
+    @Before
+    public void setUp() throws IOException {
+        config = tempDir("watchconfig");
+        root = tempDir("watchdir");
+        oldConfig = System.getProperty("azureus.config.path");
+        System.setProperty("azureus.config.path", config.getPath());
+    }
+
+    @After
+    public void tearDown() {
+        for (DirectoryWatcher w : watchers) {
+            w.setDone();
+        }
+        if (oldConfig == null) {
+            System.clearProperty("azureus.config.path");
+        } else {
+            System.setProperty("azureus.config.path", oldConfig);
+        }
+        UpdatingFileTreeTest.delete(root);
+        UpdatingFileTreeTest.delete(config);
+    }
+
+    @Test
+    public void testPollingFallback() throws IOException {
+        DirectoryWatcher watcher = watcher(false);
+        settle(write("a.txt"));
+        watcher.scan();
+        Assert.assertFalse(watcher.hasNativeEvents());
+        Assert.assertTrue(created.isEmpty());
+
+        settle(write("b.txt"));
+        watcher.scan();
+        Assert.assertEquals(Arrays.asList("b.txt"), created);
+
+        created.clear();
+        Assert.assertTrue(new File(root, "a.txt").delete());
+        Assert.assertTrue(new File(root, "b.txt").renameTo(new File(root, "c.txt")));
+        watcher.scan();
+        Assert.assertEquals(Arrays.asList("c.txt"), created);
+        Assert.assertEquals(Arrays.asList("a.txt", "b.txt"), sorted(deleted));
+
+        created.clear();
+        deleted.clear();
+        settle(write("d/e/f.txt"));
+        settle(new File(root, "d/e"));
+        settle(new File(root, "d"));
+        watcher.scan();
+        Assert.assertEquals(Arrays.asList("d", "d/e", "d/e/f.txt"), created);
+
+        created.clear();
+        settle(write("d/e/g.txt"));
+        watcher.scan();
+        Assert.assertEquals(Arrays.asList("d/e/g.txt"), created);
+        Assert.assertTrue(deleted.isEmpty());
+    }
+
+    @Test
+    public void testNativeEvents() throws IOException {
+        settle(write("a.txt"));
+        settle(write("d/b.txt"));
+        settle(new File(root, "d"));
+        final DirectoryWatcher watcher = watcher(true);
+        watcher.scan();
+        Assume.assumeTrue(watcher.hasNativeEvents());
+        Assert.assertTrue(created.isEmpty());
+
+        // a new file in a directory we already watch
+        settle(write("d/c.txt"));
+        awaitChanges(watcher, Arrays.asList("d/c.txt"), new ArrayList<String>());
+
+        // a new directory, which has to be registered as well
+        settle(write("x/y/z.txt"));
+        settle(new File(root, "x/y"));
+        settle(new File(root, "x"));
+        awaitChanges(watcher, Arrays.asList("x", "x/y", "x/y/z.txt"), new ArrayList<String>());
+        settle(write("x/y/w.txt"));
+        awaitChanges(watcher, Arrays.asList("x/y/w.txt"), new ArrayList<String>());
+
+        Assert.assertTrue(new File(root, "d/b.txt").renameTo(new File(root, "d/e.txt")));
+        Assert.assertTrue(new File(root, "a.txt").delete());
+        awaitChanges(watcher, Arrays.asList("d/e.txt"), Arrays.asList("a.txt", "d/b.txt"));
+
+        UpdatingFileTreeTest.delete(new File(root, "x"));
+        awaitChanges(watcher, new ArrayList<String>(), Arrays.asList("x"));
+        Assert.assertTrue(watcher.hasNativeEvents());
+    }
+
+    @Test
+    public void testSnapshotDiffingWhilePolling() throws IOException {
+        checkSnapshotDiffing(false);
+    }
+
+    @Test
+    public void testSnapshotDiffingWithEvents() throws IOException {
+        checkSnapshotDiffing(true);
+    }
+
+    /**
+     * Scans, changes the directory while nothing is watching it, then checks
+     * that a new watcher (as after a restart) reports just the changes
+     * between the saved snapshot and the disk.
+     */
+    private void checkSnapshotDiffing(boolean events) throws IOException {
+        settle(write("a.txt"));
+        settle(write("b.txt"));
+        settle(write("d/c.txt"));
+        settle(new File(root, "d"));
+        DirectoryWatcher first = watcher(events);
+        first.scan();
+        first.setDone();
+        File index = DirectorySnapshot.getIndexFile(root.getPath());
+        Assert.assertTrue(index.isFile());
+
+        Assert.assertTrue(new File(root, "a.txt").delete());
+        Assert.assertTrue(new File(root, "b.txt").renameTo(new File(root, "d/b.txt")));
+        settle(write("d/e.txt"));
+        settle(write("f/g.txt"));
+        settle(new File(root, "f"));
+
+        DirectoryWatcher second = watcher(events);
+        UpdatingFileTree tree = second.scan();
+        Assert.assertEquals(Arrays.asList("d/b.txt", "d/e.txt", "f", "f/g.txt"), sorted(created));
+        Assert.assertEquals(Arrays.asList("a.txt", "b.txt"), sorted(deleted));
+        Assert.assertNotNull(tree.find(new File(root, "d/c.txt")));
+        Assert.assertNotNull(tree.find(new File(root, "f/g.txt")));
+        Assert.assertNull(tree.find(new File(root, "a.txt")));
+
+        // the diff is saved, so the next scan has nothing to report
+        created.clear();
+        deleted.clear();
+        second.setDone();
+        watcher(events).scan();
+        Assert.assertTrue(created.isEmpty());
+        Assert.assertTrue(deleted.isEmpty());
+
+        second.deleteIndex();
+        Assert.assertFalse(index.exists());
+    }
+
+    private DirectoryWatcher watcher(boolean events) throws IOException {
+        DirectoryWatcher w = new DirectoryWatcher(new MagicPath(root.getPath(),
+                MagicWatchType.Everything), 1);
+        if (!events) {
+            w.disableNativeEvents();
+        }
+        w.addListener(recorder);
+        watchers.add(w);
+        return w;
+    }
+
+    /**
+     * Scans until the expected changes are reported, events may take a
+     * moment to arrive.
+     */
+    private void awaitChanges(final DirectoryWatcher watcher, final List<String> expectCreated,
+            final List<String> expectDeleted) {
+        boolean done = new ConditionWaiter(new ConditionWaiter.Predicate() {
+            public boolean satisfied() {
+                watcher.scan();
+                return sorted(created).equals(expectCreated)
+                        && sorted(deleted).equals(expectDeleted);
+            }
+        }, EVENT_WAIT_MS).awaitWarn();
+        Assert.assertTrue("created " + created + ", deleted " + deleted, done);
+        created.clear();
+        deleted.clear();
+    }
+
+    private String relative(File f) {
+        return f.getPath().substring(root.getPath().length() + 1).replace(File.separatorChar, '/');
+    }
+
+    private static List<String> sorted(List<String> list) {
+        synchronized (list) {
+            List<String> out = new ArrayList<String>(list);
+            Collections.sort(out);
+            return out;
+        }
+    }
+
+    private File write(String path) throws IOException {
+        File f = new File(root, path);
+        f.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(path.getBytes("UTF-8"));
+        out.close();
+        return f;
+    }
+
+    private static void settle(File f) {
+        UpdatingFileTreeTest.settle(f);
+    }
+
+    private static File tempDir(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        dir.delete();
+        Assert.assertTrue(dir.mkdir());
+        return dir;
+    }
+}
@@ -0,0 +1,193 @@
+package edu.washington.cs.oneswarm.watchdir;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+
+/**
+ * Builds trees over a temp directory and checks what {@link UpdatingFileTree#update()}
+ * broadcasts as the directory changes underneath.
+ */
+public class UpdatingFileTreeTest extends OneSwarmTestBase {
+
+    private File root;
+    private final List<String> created = new ArrayList<String>();
+    private final List<String> deleted = new ArrayList<String>();
+
+    private final UpdatingFileTreeListener recorder = new UpdatingFileTreeListener() {
+        public void broadcastChange(UpdatingFileTree path, boolean isDelete) {
+            (isDelete ? deleted : created).add(relative(path.getThisFile()));
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        root = File.createTempFile("updatingfiletree", "");
+        root.delete();
+        Assert.assertTrue(root.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        delete(root);
+    }
+
+    @Test
+    public void testFreshFilesAreSkippedUntilIdle() throws IOException {
+        settle(write("old.txt"));
+        write("fresh.txt");
+
+        UpdatingFileTree tree = new UpdatingFileTree(root, recorder);
+        Assert.assertEquals(Arrays.asList("old.txt"), names(tree.getFileChildren()));
+
+        tree.update();
+        Assert.assertTrue(created.isEmpty());
+
+        settle(new File(root, "fresh.txt"));
+        tree.update();
+        Assert.assertEquals(Arrays.asList("fresh.txt"), created);
+        Assert.assertEquals(Arrays.asList("fresh.txt", "old.txt"), names(tree.getFileChildren()));
+    }
+
+    @Test
+    public void testCreateDeleteRename() throws IOException {
+        settle(write("a.txt"));
+        UpdatingFileTree tree = new UpdatingFileTree(root, recorder);
+
+        settle(write("b.txt"));
+        tree.update();
+        Assert.assertEquals(Arrays.asList("b.txt"), created);
+        Assert.assertTrue(deleted.isEmpty());
+
+        created.clear();
+        Assert.assertTrue(new File(root, "a.txt").delete());
+        tree.update();
+        Assert.assertTrue(created.isEmpty());
+        Assert.assertEquals(Arrays.asList("a.txt"), deleted);
+
+        deleted.clear();
+        Assert.assertTrue(new File(root, "b.txt").renameTo(new File(root, "c.txt")));
+        tree.update();
+        Assert.assertEquals(Arrays.asList("c.txt"), created);
+        Assert.assertEquals(Arrays.asList("b.txt"), deleted);
+        Assert.assertEquals(Arrays.asList("c.txt"), names(tree.getFileChildren()));
+
+        // nothing changed, nothing to report
+        created.clear();
+        deleted.clear();
+        tree.update();
+        Assert.assertTrue(created.isEmpty());
+        Assert.assertTrue(deleted.isEmpty());
+    }
+
+    @Test
+    public void testNestedDirectories() throws IOException {
+        settle(write("a/b/c.txt"));
+        settle(new File(root, "a/b"));
+        settle(new File(root, "a"));
+        UpdatingFileTree tree = new UpdatingFileTree(root, recorder);
+        Assert.assertEquals(Arrays.asList("a"), names(tree.getDirectoryChildren()));
+        Assert.assertNotNull(tree.find(new File(root, "a/b/c.txt")));
+
+        // a change deep down is found even though the top level didn't change
+        settle(write("a/b/d.txt"));
+        tree.update();
+        Assert.assertEquals(Arrays.asList("a/b/d.txt"), created);
+
+        // new directories are reported before their content
+        created.clear();
+        settle(write("x/y/z.txt"));
+        settle(new File(root, "x/y"));
+        settle(new File(root, "x"));
+        tree.update();
+        Assert.assertEquals(Arrays.asList("x", "x/y", "x/y/z.txt"), created);
+        Assert.assertNotNull(tree.find(new File(root, "x/y/z.txt")));
+
+        // removing a directory reports just the directory
+        delete(new File(root, "a/b"));
+        tree.update();
+        Assert.assertEquals(Arrays.asList("a/b"), deleted);
+        Assert.assertNull(tree.find(new File(root, "a/b/c.txt")));
+        Assert.assertNotNull(tree.find(new File(root, "a")));
+    }
+
+    @Test
+    public void testRenamedDirectory() throws IOException {
+        settle(write("a/b.txt"));
+        settle(new File(root, "a"));
+        UpdatingFileTree tree = new UpdatingFileTree(root, recorder);
+
+        Assert.assertTrue(new File(root, "a").renameTo(new File(root, "c")));
+        tree.update();
+        Assert.assertEquals(Arrays.asList("a"), deleted);
+        Assert.assertEquals(Arrays.asList("c", "c/b.txt"), created);
+        Assert.assertNull(tree.find(new File(root, "a")));
+        Assert.assertNotNull(tree.find(new File(root, "c/b.txt")));
+    }
+
+    @Test
+    public void testFind() throws IOException {
+        settle(write("a/b.txt"));
+        settle(new File(root, "a"));
+        UpdatingFileTree tree = new UpdatingFileTree(root, recorder);
+
+        Assert.assertSame(tree, tree.find(root));
+        Assert.assertEquals(new File(root, "a/b.txt"), tree.find(new File(root, "a/b.txt"))
+                .getThisFile());
+        Assert.assertNull(tree.find(new File(root, "a/missing.txt")));
+        Assert.assertNull(tree.find(root.getParentFile()));
+        Assert.assertNull(tree.find(new File(root.getPath() + "x")));
+    }
+
+    private String relative(File f) {
+        return f.getPath().substring(root.getPath().length() + 1).replace(File.separatorChar, '/');
+    }
+
+    private static List<String> names(List<UpdatingFileTree> nodes) {
+        List<String> out = new ArrayList<String>();
+        for (UpdatingFileTree n : nodes) {
+            out.add(n.getThisFile().getName());
+        }
+        Collections.sort(out);
+        return out;
+    }
+
+    private File write(String path) throws IOException {
+        File f = new File(root, path);
+        f.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(path.getBytes("UTF-8"));
+        out.close();
+        return f;
+    }
+
+    /**
+     * Makes <code>f</code> look like it hasn't been touched for a while, so
+     * the tree doesn't skip it as too fresh.
+     */
+    static void settle(File f) {
+        Assert.assertTrue(f.setLastModified(System.currentTimeMillis() - 2
+                * UpdatingFileTree.IDLE_THRESHOLD));
+    }
+
+    static void delete(File f) {
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (File c : files) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+}
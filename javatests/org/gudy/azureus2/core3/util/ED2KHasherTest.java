@@ -0,0 +1,129 @@
+package org.gudy.azureus2.core3.util;
+
+import java.nio.ByteBuffer;
+import java.security.Security;
+import java.util.Random;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+
+/**
+ * {@link ED2KHasher#update(ByteBuffer)} against the byte array updates, with
+ * the input split into chunks that cross the ed2k block boundaries.
+ */
+public class ED2KHasherTest extends OneSwarmTestBase {
+
+    private static final int BLOCK = ED2KHasher.BLOCK_SIZE;
+
+    private final Random random = new Random(12345);
+
+    @BeforeClass
+    public static void setUpClass() {
+        // MD4Hasher uses the bouncy castle provider
+        if (Security.getProvider("BC") == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+    }
+
+    @Test
+    public void testBlockSize() {
+        Assert.assertEquals(9728000, BLOCK);
+    }
+
+    @Test
+    public void testChunksAcrossBlocks() {
+        byte[] data = new byte[2 * BLOCK + 12345];
+        random.nextBytes(data);
+        byte[] expected = ed2k(data);
+
+        ED2KHasher whole = new ED2KHasher();
+        whole.update(data);
+        Assert.assertArrayEquals(expected, whole.getDigest());
+
+        // the read window of Sha1Calculator, a prime, and chunks ending on and
+        // just around the block boundaries
+        for (int chunk : new int[] { 4 * 1024 * 1024, 1000003, BLOCK, BLOCK - 1, BLOCK + 1,
+                BLOCK / 2 }) {
+            assertChunked(data, expected, new int[] { chunk });
+        }
+        int[] sizes = new int[50];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = 1 + random.nextInt(BLOCK / 3);
+        }
+        assertChunked(data, expected, sizes);
+    }
+
+    @Test
+    public void testWholeBlocks() {
+        // a multiple of the block size ends with the hash of an empty block
+        for (int length : new int[] { BLOCK - 1, BLOCK, BLOCK + 1, 2 * BLOCK }) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            byte[] expected = ed2k(data);
+            for (int chunk : new int[] { 4 * 1024 * 1024, BLOCK, length }) {
+                assertChunked(data, expected, new int[] { chunk });
+            }
+        }
+    }
+
+    /**
+     * Feeds <code>data</code> in chunks of the given sizes (repeated as
+     * needed) as byte array ranges, heap buffers and direct buffers.
+     */
+    private static void assertChunked(byte[] data, byte[] expected, int[] sizes) {
+        ED2KHasher array = new ED2KHasher();
+        ED2KHasher heap = new ED2KHasher();
+        ED2KHasher direct = new ED2KHasher();
+        ByteBuffer directBuffer = ByteBuffer.allocateDirect(data.length);
+        directBuffer.put(data);
+
+        int pos = 0;
+        for (int i = 0; pos < data.length; i++) {
+            int len = Math.min(sizes[i % sizes.length], data.length - pos);
+            array.update(data, pos, len);
+
+            // a view that doesn't start at 0, so positions are relative
+            ByteBuffer heapChunk = ByteBuffer.wrap(data, pos, len);
+            heap.update(heapChunk);
+            Assert.assertEquals(0, heapChunk.remaining());
+            Assert.assertEquals(pos + len, heapChunk.limit());
+
+            directBuffer.limit(pos + len);
+            directBuffer.position(pos);
+            direct.update(directBuffer);
+            Assert.assertEquals(0, directBuffer.remaining());
+            Assert.assertEquals(pos + len, directBuffer.limit());
+            pos += len;
+        }
+        String chunks = "chunks of " + sizes[0] + (sizes.length > 1 ? "..." : "");
+        Assert.assertArrayEquals(chunks, expected, array.getDigest());
+        Assert.assertArrayEquals(chunks, expected, heap.getDigest());
+        Assert.assertArrayEquals(chunks, expected, direct.getDigest());
+    }
+
+    /**
+     * @return the ed2k hash of <code>data</code> computed from the md4 hashes
+     *         of its blocks
+     */
+    private static byte[] ed2k(byte[] data) {
+        if (data.length < BLOCK) {
+            return md4(data, 0, data.length);
+        }
+        MD4Hasher blocks = new MD4Hasher();
+        for (int pos = 0; pos <= data.length; pos += BLOCK) {
+            int len = Math.min(BLOCK, data.length - pos);
+            blocks.update(md4(data, pos, len));
+        }
+        return blocks.getDigest();
+    }
+
+    private static byte[] md4(byte[] data, int pos, int len) {
+        MD4Hasher md4 = new MD4Hasher();
+        md4.update(data, pos, len);
+        return md4.getDigest();
+    }
+}
@@ -148,8 +148,11 @@ public class ConfigurationDefaults {
         def.put("oneswarm.max.ui.tags", new Long(300));
         def.put("oneswarm.max.ui.search.results", new Long(500));
         def.put("oneswarm.max.sha1.hash.rate.kbps", new Long(10 * 1024));
+        def.put("oneswarm.sha1.hash.threads", new Long(2));
         // def.put("oneswarm.v06.firstrun", TRUE);
         def.put("oneswarm.multi.torrent.enabled", TRUE);
+        def.put("oneswarm.multi.torrent.local.clone", TRUE);
+        def.put("oneswarm.multi.torrent.local.clone.link", FALSE);
         def.put("oneswarm.max.multi.torrent.auto.disk.space", new Float(0.5f));
 
         def.put("oneswarm.watchdir.refresh.interval", new Long(0));
@@ -670,6 +673,22 @@ public class ConfigurationDefaults {
         // search forward delay
         def.put("f2f_search_forward_delay", new Long(150));
         def.put("f2f_search_max_paths", new Long(40));
+        // probe all recent search bloom filter buckets in one pass
+        def.put("f2f_search_bloom_single_pass", TRUE);
+
+        // friend queue scheduling: "drr" or "probabilistic", and the relative
+        // share of each traffic class
+        def.put("f2f_queue_scheduler", "drr");
+        def.put("f2f_queue_weight_transport", new Long(7));
+        def.put("f2f_queue_weight_forward", new Long(2));
+        def.put("f2f_queue_weight_control", new Long(1));
+
+        // port for the Prometheus metrics export on 127.0.0.1, 0 disables it
+        def.put("f2f_metrics_port", new Long(0));
+
+        // read friend connections in large chunks and decode every message
+        // they hold, rather than one read per length and per payload
+        def.put("f2f_bulk_message_decode", TRUE);
 
         // max/min search hops to emulate
         def.put("f2f_search_emulate_hops_min", new Long(1));
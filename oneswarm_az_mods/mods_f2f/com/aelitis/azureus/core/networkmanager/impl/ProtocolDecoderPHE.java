@@ -805,6 +805,7 @@ ProtocolDecoderPHE
 								// remote public key into the array so the auth manager can see what it is
 								sharedSecrets[1] = remoteKey;
 							} else if(!Arrays.equals(expectedPublicKey, remoteKey)){
+								sslFilter.invalidateSession();
 								throw new IOException("remote friend publickey error, expected to connect to \n'" 
 										+ new String(Base64.encode(expectedPublicKey)) + "' got\n'"
 										+ new String(Base64.encode(remoteKey)) + "'");
@@ -837,8 +838,13 @@ ProtocolDecoderPHE
 							.allocate(OneSwarmSslTransportHelperFilterStream.SSL_NET_BUFFER_SIZE);
 					write_buffer = ByteBuffer
 							.allocate(OneSwarmSslTransportHelperFilterStream.SSL_APP_BUFFER_SIZE);
+					// auth connections don't know the key, don't resume those
+					byte[] resumeKey = Arrays.equals(expectedPublicKey,
+							OneSwarmSslTransportHelperFilterStream.ANY_KEY_ACCEPTED_BYTES) ? null
+							: expectedPublicKey;
 					sslFilter = new OneSwarmSslTransportHelperFilterStream(transport,
-							outbound, OneSwarmSslTransportHelperFilterStream.SslHandShakeMatch.SSL_CLIENT_CERT);
+							outbound, OneSwarmSslTransportHelperFilterStream.SslHandShakeMatch.SSL_CLIENT_CERT,
+							resumeKey);
 					selected_protocol = CRYPTO_SSL;
 
 					sslFilter.doHandshake(read_buffer, write_buffer);
@@ -883,12 +889,14 @@ ProtocolDecoderPHE
 					if (read_buffer.position() > OneSwarmSslTransportHelperFilterStream.SSL_HEADER_MIN_LENGTH) {
 						byte[] data = new byte[read_buffer.position()];
 						System.arraycopy(read_buffer.array(), 0, data, 0, data.length);
-						if (sslMatch == null) {
+						// a hello that was cut off is checked again with more data
+						if (sslMatch == null || sslMatch == SslHandShakeMatch.NOT_ENOUGH_BYTES) {
 							sslMatch = OneSwarmSslTransportHelperFilterStream.isSSLClientHello(data);
 						}
 						//System.out.println("ssl match: " + isClientHello.name());
 						if (sslMatch.equals(SslHandShakeMatch.SSL_CLIENT_CERT)
-								|| sslMatch.equals(SslHandShakeMatch.SSL_NO_CLIENT_CERT)) {
+								|| sslMatch.equals(SslHandShakeMatch.SSL_NO_CLIENT_CERT)
+								|| sslMatch.equals(SslHandShakeMatch.SSL_OPTIONAL_CLIENT_CERT)) {
 							selected_protocol = CRYPTO_SSL;
 
 							if (write_buffer == null) {
@@ -2161,6 +2169,11 @@ ProtocolDecoderPHE
 	{
 		// System.out.println( (outbound?"out: ":"in :") + " failed, " + cause.getMessage());
 
+		if (outBoundSSL && sslFilter != null && !sslFilter.isHandshakeCompleted()) {
+			// don't offer the session again if resuming it is what failed
+			sslFilter.invalidateSession();
+		}
+
 		processing_complete	= true;
 		
 		transport.cancelReadSelects();
@@ -81,6 +81,14 @@ public class OneSwarmSslKeyManager
 
 	private static OneSwarmSslKeyManager instance;
 
+	/*
+	 * sessions are cached so friends reconnecting (for example after an ip
+	 * change) can skip the public key operations
+	 */
+	private static final int						 SESSION_CACHE_SIZE = 2048;
+
+	private static final int						 SESSION_TIMEOUT_SECONDS = 12 * 60 * 60;
+
 	static {
 		OSF2F_DIR = new File(SystemProperties.getUserPath() + File.separator
 				+ KEYS_DIR_NAME + File.separator);
@@ -148,6 +156,10 @@ public class OneSwarmSslKeyManager
 
 		SSLContext sslcontext = SSLContext.getInstance("SSL");
 		sslcontext.init(arkeymanager, osTrustManager, null);
+		sslcontext.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+		sslcontext.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+		sslcontext.getServerSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+		sslcontext.getServerSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
 
 		return sslcontext;
 	}
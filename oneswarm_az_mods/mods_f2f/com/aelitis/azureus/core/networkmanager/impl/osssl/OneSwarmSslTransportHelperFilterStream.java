@@ -5,9 +5,12 @@ import java.nio.ByteBuffer;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
+import java.security.MessageDigest;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -15,7 +18,9 @@ import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLEngineResult.HandshakeStatus;
 import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
 
 import org.bouncycastle.util.encoders.Base64;
 import org.bouncycastle.util.encoders.Hex;
@@ -31,7 +36,12 @@ public class OneSwarmSslTransportHelperFilterStream
 	extends TransportHelperFilterStream
 {
 	public enum SslHandShakeMatch {
-		NOT_ENOUGH_BYTES, NO_SSL, SSL_CLIENT_CERT, SSL_NO_CLIENT_CERT;
+		NOT_ENOUGH_BYTES, NO_SSL, SSL_CLIENT_CERT, SSL_NO_CLIENT_CERT,
+		/**
+		 * a resumed hello we don't have the session of, a friend if it sends a
+		 * certificate and a browser otherwise
+		 */
+		SSL_OPTIONAL_CLIENT_CERT;
 	};
 
 	private static Logger									 logger											 = Logger.getLogger(OneSwarmSslTransportHelperFilterStream.class.getName());
@@ -105,6 +115,12 @@ public class OneSwarmSslTransportHelperFilterStream
 
 	private long														totalDataRead								= 0;
 
+	private final long											handshakeStartTime;
+
+	private static final AtomicLong				 fullHandshakes							 = new AtomicLong();
+
+	private static final AtomicLong				 resumedHandshakes						= new AtomicLong();
+
 	// private final ByteBuffer tempDecryptBuffer;
 
 	public OneSwarmSslTransportHelperFilterStream(TransportHelper _transport,
@@ -112,15 +128,34 @@ public class OneSwarmSslTransportHelperFilterStream
 			throws KeyManagementException, NoSuchAlgorithmException,
 			KeyStoreException, CertificateException, UnrecoverableKeyException,
 			IOException, InterruptedException {
+		this(_transport, outbound, isClientHello, null);
+	}
+
+	/**
+	 * @param expectedRemoteKey
+	 *          for outgoing connections, the public key of the friend we are
+	 *          connecting to. If set, the ssl session is cached for that friend
+	 *          and endpoint and resumed on the next connection, the remote key
+	 *          still has to be checked by the caller.
+	 */
+	public OneSwarmSslTransportHelperFilterStream(TransportHelper _transport,
+			boolean outbound, SslHandShakeMatch isClientHello,
+			byte[] expectedRemoteKey) throws KeyManagementException,
+			NoSuchAlgorithmException, KeyStoreException, CertificateException,
+			UnrecoverableKeyException, IOException, InterruptedException {
 		super(_transport);
 		this.transport = _transport;
 		this.incomingHandshake = isClientHello;
 		this.remoteHost = _transport.getAddress().getAddress().getHostAddress();
 		this.remotePort = _transport.getAddress().getPort();
 
-		this.sslEngine = OneSwarmSslKeyManager.getInstance().getSSLContext().createSSLEngine();
-		//		this.sslEngine = OneSwarmSslKeyManager.getInstance().getSSLContext().createSSLEngine(
-		//				remoteHost, remotePort);
+		if (outbound && expectedRemoteKey != null) {
+			// the client session cache is keyed on the peer host and port
+			this.sslEngine = OneSwarmSslKeyManager.getInstance().getSSLContext().createSSLEngine(
+					getSessionKey(expectedRemoteKey, remoteHost), remotePort);
+		} else {
+			this.sslEngine = OneSwarmSslKeyManager.getInstance().getSSLContext().createSSLEngine();
+		}
 
 		if (outbound) {
 			sslEngine.setUseClientMode(true);
@@ -128,6 +163,9 @@ public class OneSwarmSslTransportHelperFilterStream
 
 			sslEngine.setUseClientMode(false);
 			sslEngine.setNeedClientAuth(isClientHello == SslHandShakeMatch.SSL_CLIENT_CERT);
+			if (isClientHello == SslHandShakeMatch.SSL_OPTIONAL_CLIENT_CERT) {
+				sslEngine.setWantClientAuth(true);
+			}
 		}
 
 		SSLSession sslSession = sslEngine.getSession();
@@ -145,6 +183,7 @@ public class OneSwarmSslTransportHelperFilterStream
 		encryptedDataForApp.clear();
 
 		logger.fine("Starting handshake");
+		handshakeStartTime = System.currentTimeMillis();
 		sslEngine.beginHandshake();
 		handshakeStatus = sslEngine.getHandshakeStatus();
 
@@ -646,9 +685,27 @@ public class OneSwarmSslTransportHelperFilterStream
 			}
 		}
 		handshakeCompleted = true;
-		logger.finer("handshake completed");
-		if (incomingHandshake == SslHandShakeMatch.SSL_CLIENT_CERT) {
-			Certificate[] remoteCerts = sslEngine.getSession().getPeerCertificates();
+		// a resumed session was created by an earlier handshake
+		if (sslEngine.getSession().getCreationTime() < handshakeStartTime) {
+			resumedHandshakes.incrementAndGet();
+			logger.finer("handshake completed, resumed session");
+		} else {
+			fullHandshakes.incrementAndGet();
+			logger.finer("handshake completed");
+		}
+		if (incomingHandshake == SslHandShakeMatch.SSL_CLIENT_CERT
+				|| incomingHandshake == SslHandShakeMatch.SSL_OPTIONAL_CLIENT_CERT) {
+			// resumed sessions keep the certificates of the first handshake
+			Certificate[] remoteCerts;
+			try {
+				remoteCerts = sslEngine.getSession().getPeerCertificates();
+			} catch (SSLPeerUnverifiedException e) {
+				if (incomingHandshake == SslHandShakeMatch.SSL_CLIENT_CERT) {
+					throw e;
+				}
+				// a browser, it didn't send a certificate
+				remoteCerts = new Certificate[0];
+			}
 			if (remoteCerts.length == 1) {
 				try {
 					logger.finer("remote public key="
@@ -707,6 +764,57 @@ public class OneSwarmSslTransportHelperFilterStream
 		return handshakeCompleted;
 	}
 
+	/**
+	 * Makes sure the session isn't resumed by later connections, for example
+	 * if the remote key turned out to be wrong or the handshake failed. The
+	 * session the client offered is still in the cache if the handshake
+	 * didn't complete, so that is removed as well.
+	 */
+	public void invalidateSession() {
+		sslEngine.getSession().invalidate();
+		if (sslEngine.getUseClientMode() && sslEngine.getPeerHost() != null) {
+			invalidateClientSessions(sslEngine.getPeerHost(), sslEngine.getPeerPort());
+		}
+	}
+
+	static void invalidateClientSessions(String peerHost, int peerPort) {
+		SSLSessionContext sessions = OneSwarmSslKeyManager.getInstance().getSSLContext().getClientSessionContext();
+		Enumeration<byte[]> ids = sessions.getIds();
+		while (ids.hasMoreElements()) {
+			SSLSession session = sessions.getSession(ids.nextElement());
+			if (session != null && peerHost.equals(session.getPeerHost())
+					&& session.getPeerPort() == peerPort) {
+				logger.finer("invalidating client session for " + peerHost + ":"
+						+ peerPort);
+				session.invalidate();
+			}
+		}
+	}
+
+	public static long getFullHandshakeCount() {
+		return fullHandshakes.get();
+	}
+
+	public static long getResumedHandshakeCount() {
+		return resumedHandshakes.get();
+	}
+
+	/**
+	 * The name the client session of a friend is cached under. Hex without
+	 * dots, so it is never sent as a server name.
+	 */
+	private static String getSessionKey(byte[] remoteKey, String host) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			md.update(remoteKey);
+			md.update(host.getBytes("UTF-8"));
+			return new String(Hex.encode(md.digest()));
+		} catch (Exception e) {
+			Debug.out("OSSSL THF: error creating session key", e);
+			return null;
+		}
+	}
+
 	public static SslHandShakeMatch isSSLClientHello(byte[] data) {
 		logger.finer("checking for ssl hello: '" + new String(Hex.encode(data))
 				+ "'");
@@ -716,6 +824,24 @@ public class OneSwarmSslTransportHelperFilterStream
 			return oneswarmMatch;
 		}
 
+		SslHandShakeMatch resumeMatch = isOneSwarmResumeClientHello(data);
+		logger.finer("OneSwarm resume match: " + resumeMatch.name());
+		if (resumeMatch == SslHandShakeMatch.SSL_CLIENT_CERT
+				|| resumeMatch == SslHandShakeMatch.NOT_ENOUGH_BYTES) {
+			return resumeMatch;
+		}
+		if (resumeMatch == SslHandShakeMatch.SSL_OPTIONAL_CLIENT_CERT) {
+			/*
+			 * we lost the session (restart or eviction), do a full handshake.
+			 * Browsers resume with the same kind of hello, so with remote
+			 * access on the certificate decides
+			 */
+			if (!COConfigurationManager.getBooleanParameter("OSGWTUI.RemoteAccess")) {
+				return SslHandShakeMatch.SSL_CLIENT_CERT;
+			}
+			return resumeMatch;
+		}
+
 		SslHandShakeMatch browserMatch = isBrowserSslClientHello(data);
 		logger.finer("browser match: " + browserMatch.name());
 		if (browserMatch == SslHandShakeMatch.SSL_NO_CLIENT_CERT) {
@@ -790,6 +916,48 @@ public class OneSwarmSslTransportHelperFilterStream
 		return SslHandShakeMatch.SSL_CLIENT_CERT;
 	}
 
+	/**
+	 * A friend resuming a session sends a v3 client hello, since the 32 byte
+	 * session id doesn't fit a v2 hello. It is a OneSwarm connection if the
+	 * session id is in our server session cache and the session has a client
+	 * certificate, and SSL_OPTIONAL_CLIENT_CERT if we don't have the session.
+	 */
+	static SslHandShakeMatch isOneSwarmResumeClientHello(byte[] data) {
+		// record: type(1) version(2) length(2), handshake: type(1) length(3)
+		// client_version(2) random(32) session_id_length(1) session_id
+		final int sessionIdOffset = 5 + 1 + 3 + 2 + 32;
+		if (data.length < 6) {
+			return SslHandShakeMatch.NOT_ENOUGH_BYTES;
+		}
+		// content type handshake, major version 3, client hello
+		if (data[0] != 22 || data[1] != 3 || data[5] != 1) {
+			return SslHandShakeMatch.NO_SSL;
+		}
+		if (data.length <= sessionIdOffset) {
+			return SslHandShakeMatch.NOT_ENOUGH_BYTES;
+		}
+		int sessionIdLength = OneSwarmSslTools.unsignedByteToShort(data[sessionIdOffset]);
+		if (sessionIdLength == 0) {
+			return SslHandShakeMatch.NO_SSL;
+		}
+		if (data.length < sessionIdOffset + 1 + sessionIdLength) {
+			return SslHandShakeMatch.NOT_ENOUGH_BYTES;
+		}
+		byte[] sessionId = new byte[sessionIdLength];
+		System.arraycopy(data, sessionIdOffset + 1, sessionId, 0, sessionIdLength);
+		SSLSession session = OneSwarmSslKeyManager.getInstance().getSSLContext().getServerSessionContext().getSession(
+				sessionId);
+		if (session == null) {
+			return SslHandShakeMatch.SSL_OPTIONAL_CLIENT_CERT;
+		}
+		try {
+			session.getPeerCertificates();
+			return SslHandShakeMatch.SSL_CLIENT_CERT;
+		} catch (SSLPeerUnverifiedException e) {
+			return SslHandShakeMatch.NO_SSL;
+		}
+	}
+
 	/*
 	 * no need to reallocate this stuff, we are throwing it away anyway
 	 */
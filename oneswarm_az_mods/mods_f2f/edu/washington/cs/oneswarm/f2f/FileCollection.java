@@ -168,6 +168,10 @@ public class FileCollection
 		optionalFields.put(key, value);
 	}
 
+	public Map<String, String> getOptionalFields() {
+		return optionalFields;
+	}
+
 	/**
 	 * Method for handling search, current policy
 	 * If the id:xxx keyword is specified the collection must have the specified IDm otherwise null is returned
@@ -30,7 +30,7 @@ public class FileList
 	}
 
 	private void calcListId() {
-
+		listId = -1;
 		for (FileCollection e : elements) {
 			listId = listId ^ e.hashCode();
 		}
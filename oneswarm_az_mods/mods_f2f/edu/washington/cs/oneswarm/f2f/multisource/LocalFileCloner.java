@@ -0,0 +1,136 @@
+package edu.washington.cs.oneswarm.f2f.multisource;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+import java.util.logging.Logger;
+
+/**
+ * Puts the content of a completed local file in place of another file with
+ * the same hash, without going through the disk manager piece by piece.
+ *
+ * If linking is allowed the destination becomes a hard link to the source,
+ * which needs java.nio.file (Java 7) and both files on the same volume.
+ * Otherwise, or if linking fails, the source is copied with
+ * FileChannel.transferTo() into a temp file next to the destination that is
+ * then renamed over it, so the destination never holds a partial copy.
+ */
+public class LocalFileCloner
+{
+	public static final int		 CLONED_LINK				 = 1;
+
+	public static final int		 CLONED_COPY				 = 2;
+
+	private final static Logger logger						= Logger.getLogger(LocalFileCloner.class.getName());
+
+	private static final String TEMP_SUFFIX				 = ".os_clone";
+
+	// transferTo() may stop short, don't ask for more than this at once
+	private static final long	 MAX_TRANSFER_BYTES	= 64 * 1024 * 1024;
+
+	private static Method			 createLink;
+
+	private static Method			 toPath;
+
+	static {
+		try {
+			Class<?> files = Class.forName("java.nio.file.Files");
+			Class<?> path = Class.forName("java.nio.file.Path");
+			createLink = files.getMethod("createLink", path, path);
+			toPath = File.class.getMethod("toPath");
+		} catch (Exception e) {
+			logger.fine("hard links not supported by this jvm");
+		}
+	}
+
+	/**
+	 * @return CLONED_LINK or CLONED_COPY, depending on how the destination
+	 *         was created
+	 */
+	public static int cloneFile(File source, File destination, boolean allowLink)
+			throws IOException {
+		if (!source.isFile()) {
+			throw new IOException("source is not a file: " + source);
+		}
+		File parent = destination.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("unable to create directory: " + parent);
+		}
+		File temp = new File(parent, destination.getName() + TEMP_SUFFIX);
+		temp.delete();
+		try {
+			int result;
+			if (allowLink && link(source, temp)) {
+				result = CLONED_LINK;
+			} else {
+				copy(source, temp);
+				result = CLONED_COPY;
+			}
+			if (temp.length() != source.length()) {
+				throw new IOException("clone of " + source + " is " + temp.length()
+						+ " bytes, expected " + source.length());
+			}
+			replace(temp, destination);
+			return result;
+		} finally {
+			temp.delete();
+		}
+	}
+
+	private static boolean link(File source, File link) {
+		if (createLink == null) {
+			return false;
+		}
+		try {
+			createLink.invoke(null, toPath.invoke(link), toPath.invoke(source));
+			return true;
+		} catch (Exception e) {
+			// most likely different volumes or a file system without links
+			logger.fine("unable to link " + link + " to " + source + ": " + e);
+			return false;
+		}
+	}
+
+	private static void copy(File source, File destination) throws IOException {
+		FileInputStream in = new FileInputStream(source);
+		try {
+			FileOutputStream out = new FileOutputStream(destination);
+			try {
+				FileChannel src = in.getChannel();
+				FileChannel dst = out.getChannel();
+				long size = src.size();
+				long pos = 0;
+				while (pos < size) {
+					long n = src.transferTo(pos, Math.min(size - pos, MAX_TRANSFER_BYTES),
+							dst);
+					if (n <= 0) {
+						throw new IOException("copy of " + source + " stalled at " + pos
+								+ "/" + size);
+					}
+					pos += n;
+				}
+				dst.force(true);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void replace(File temp, File destination) throws IOException {
+		if (temp.renameTo(destination)) {
+			return;
+		}
+		// windows won't rename over an existing file
+		if (destination.exists() && !destination.delete()) {
+			throw new IOException("unable to replace " + destination);
+		}
+		if (!temp.renameTo(destination)) {
+			throw new IOException("unable to rename " + temp + " to " + destination);
+		}
+	}
+}
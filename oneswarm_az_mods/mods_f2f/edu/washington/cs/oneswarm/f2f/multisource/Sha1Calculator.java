@@ -1,52 +1,113 @@
 package edu.washington.cs.oneswarm.f2f.multisource;
 
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import org.gudy.azureus2.core3.config.COConfigurationManager;
+import org.gudy.azureus2.core3.config.ParameterListener;
 import org.gudy.azureus2.core3.disk.DiskManagerFileInfo;
 import org.gudy.azureus2.core3.download.DownloadManager;
 import org.gudy.azureus2.core3.torrent.TOTorrentFile;
+import org.gudy.azureus2.core3.util.Average;
 import org.gudy.azureus2.core3.util.ED2KHasher;
 import org.gudy.azureus2.core3.util.SHA1Hasher;
 
 import edu.washington.cs.oneswarm.f2f.multisource.Sha1HashManager.Sha1CalcListener;
 import edu.washington.cs.oneswarm.f2f.multisource.Sha1HashManager.Sha1Result;
 
+/**
+ * Computes sha1 and ed2k hashes of completed downloads. Files (of the same or
+ * different downloads) are hashed in parallel by a pool of
+ * oneswarm.sha1.hash.threads workers. Each file is read one window at a
+ * time into a direct buffer that the worker reuses: a mapped window would
+ * stay mapped until it is collected, and Windows keeps the file locked while
+ * it is. The sha1 and ed2k digests of a window are computed concurrently. The
+ * total rate across all workers is limited to
+ * oneswarm.max.sha1.hash.rate.kbps.
+ */
 class Sha1Calculator
 {
 	private final static Logger	 logger = Logger.getLogger(Sha1Calculator.class.getName());
 
-	private final ExecutorService executors;
+	private final static int			READ_WINDOW_SIZE = 4 * 1024 * 1024;
+
+	private final static ThreadLocal<ByteBuffer> readBuffer = new ThreadLocal<ByteBuffer>() {
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(READ_WINDOW_SIZE);
+		}
+	};
+
+	/*
+	 * workers hash sha1 and hand the ed2k part of each window to
+	 * digestExecutor, so both pools are sized the same
+	 */
+	private final ThreadPoolExecutor	executors;
+
+	private final ThreadPoolExecutor	digestExecutor;
+
+	private final TokenBucket					rateLimiter = new TokenBucket();
+
+	private final Average						 hashRate = Average.getInstance(1000, 10);
 
 	private volatile boolean			quit	 = false;
 
 	public Sha1Calculator() {
-		executors = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+		executors = createPool("Sha1+ed2k calculator worker thread");
+		digestExecutor = createPool("ed2k digest worker thread");
+
+		COConfigurationManager.addAndFireParameterListener(
+				"oneswarm.sha1.hash.threads", new ParameterListener() {
+					public void parameterChanged(String name) {
+						int threads = Math.max(1, COConfigurationManager.getIntParameter(name));
+						logger.fine("hash worker threads: " + threads);
+						for (ThreadPoolExecutor pool : new ThreadPoolExecutor[] { executors,
+								digestExecutor }) {
+							if (threads > pool.getMaximumPoolSize()) {
+								pool.setMaximumPoolSize(threads);
+								pool.setCorePoolSize(threads);
+							} else {
+								pool.setCorePoolSize(threads);
+								pool.setMaximumPoolSize(threads);
+							}
+						}
+					}
+				});
+		COConfigurationManager.addAndFireParameterListener(
+				"oneswarm.max.sha1.hash.rate.kbps", new ParameterListener() {
+					public void parameterChanged(String name) {
+						rateLimiter.setRate(COConfigurationManager.getIntParameter(name) * 1024L);
+					}
+				});
+	}
+
+	private static ThreadPoolExecutor createPool(final String threadName) {
+		return new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
 				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
 					public Thread newThread(Runnable r) {
 						Thread t = new Thread(r);
-						t.setName("Sha1+ed2k calculator worker thread");
+						t.setName(threadName);
 						t.setDaemon(true);
 						return t;
 					}
 				});
-
 	}
 
 	public void getHashesFromDownload(DownloadManager dm,
 			List<Sha1CalcListener> listeners) {
-		logger.fine("job submitted: " + dm.getDisplayName() + " listeners="
-				+ listeners.size());
 		if (quit == true) {
 			Exception e = new Exception("calculator shut down");
 			for (Sha1CalcListener listener : listeners) {
@@ -61,47 +122,91 @@ class Sha1Calculator
 			}
 			return;
 		}
+		logger.fine("job submitted: " + dm.getDisplayName() + " listeners="
+				+ listeners.size());
 
-		executors.submit(new Sha1Ed2kWorkerWorker(dm, listeners));
+		final HashJob job = new HashJob(dm, listeners);
+		executors.submit(new Runnable() {
+			public void run() {
+				job.start();
+			}
+		});
+	}
+
+	/**
+	 * @return aggregate hash rate over all workers, in bytes/s
+	 */
+	public long getHashRate() {
+		return hashRate.getAverage();
 	}
 
 	public void stop() {
 		quit = true;
 	}
 
-	private class Sha1Ed2kWorkerWorker
-		implements Runnable
+	private class HashJob
 	{
 		final DownloadManager				dm;
 
 		final List<Sha1CalcListener> listeners;
 
-		private Sha1Ed2kWorkerWorker(DownloadManager dm,
-				List<Sha1CalcListener> listeners) {
+		private byte[][]							sha1Hashes;
+
+		private byte[][]							ed2kHashes;
+
+		private final AtomicInteger	 filesRemaining = new AtomicInteger();
+
+		private final AtomicLong			totalRead = new AtomicLong();
+
+		private double								totalToHash;
+
+		private long									started;
+
+		private boolean							 done = false;
+
+		private HashJob(DownloadManager dm, List<Sha1CalcListener> listeners) {
 			this.listeners = listeners;
 			this.dm = dm;
 		}
 
-		private void notifyListenersCompleted(Sha1Result result) {
+		private synchronized void notifyListenersCompleted(Sha1Result result) {
+			if (done) {
+				return;
+			}
+			done = true;
 			for (Sha1CalcListener listener : listeners) {
 				listener.completed(result);
 			}
 		}
 
-		private void notifyListenersErrorOccured(Exception e) {
+		private synchronized void notifyListenersErrorOccured(Exception e) {
+			if (done) {
+				return;
+			}
+			done = true;
 			for (Sha1CalcListener listener : listeners) {
 				listener.errorOccured(e);
 			}
 		}
 
-		private void notifyListenersProgress(double d) {
+		private synchronized void notifyListenersProgress(double d) {
+			if (done) {
+				return;
+			}
 			logger.finest("hash progress: " + d);
 			for (Sha1CalcListener listener : listeners) {
 				listener.progress(d);
 			}
 		}
 
-		public void run() {
+		private synchronized boolean isDone() {
+			return done;
+		}
+
+		/**
+		 * Checks that the download is complete and queues one task per file
+		 */
+		void start() {
 			try {
 				logger.fine("started: " + dm.getDisplayName());
 				if (!dm.isDownloadComplete(false)) {
@@ -115,26 +220,14 @@ class Sha1Calculator
 				}
 				TOTorrentFile[] tFiles = dm.getTorrent().getFiles();
 				DiskManagerFileInfo[] dFiles = dm.getDiskManagerFileInfo();
-				ArrayList<byte[]> ed2kHashes = new ArrayList<byte[]>(tFiles.length);
-				ArrayList<byte[]> sha1Hashes = new ArrayList<byte[]>(tFiles.length);
-
-				double totalToHash = 0;
-				for (DiskManagerFileInfo d : dFiles) {
-					if (!d.isSkipped()) {
-						totalToHash += d.getLength();
-						logger.finest("adding: " + d.getLength() + " ("
-								+ d.getTorrentFile().getRelativePath() + ")");
-					}
-				}
-				logger.finer("total to hash: " + totalToHash);
-				double totalRead = 0;
-				for (int i = 0; i < dFiles.length && !quit; i++) {
+				sha1Hashes = new byte[tFiles.length][];
+				ed2kHashes = new byte[tFiles.length][];
 
+				List<Integer> toHash = new ArrayList<Integer>();
+				for (int i = 0; i < dFiles.length; i++) {
 					DiskManagerFileInfo dFile = dFiles[i];
 					TOTorrentFile tFile = tFiles[i];
 					if (dFile.isSkipped()) {
-						ed2kHashes.add(null);
-						sha1Hashes.add(null);
 						continue;
 					}
 
@@ -151,54 +244,151 @@ class Sha1Calculator
 								+ tFile.getLength()));
 						return;
 					}
+					totalToHash += dFile.getLength();
+					logger.finest("adding: " + dFile.getLength() + " ("
+							+ tFile.getRelativePath() + ")");
+					toHash.add(i);
+				}
+				logger.finer("total to hash: " + totalToHash);
 
-					double rateLimitMBps = COConfigurationManager.getIntParameter("oneswarm.max.sha1.hash.rate.kbps") / 1024.0;
-
-					SHA1Hasher sha1_hash = new SHA1Hasher();
-					ED2KHasher ed2k_hash = new ED2KHasher();
-
-					byte[] buffer = new byte[1024 * 1024];
-					File f = dFile.getFile(true);
-					InputStream in = new FileInputStream(f);
-					logger.finer("hashing file: " + f.getCanonicalPath());
-					int len;
-					long lastRead = System.currentTimeMillis();
-					while ((len = in.read(buffer)) != -1 && !quit) {
-						totalRead += len;
-						sha1_hash.update(buffer, 0, len);
-						ed2k_hash.update(buffer, 0, len);
-
-						notifyListenersProgress(totalRead / totalToHash);
-
-						/*
-						 * limit hash rate to rateMBps
-						 */
-						long msTaken = System.currentTimeMillis() - lastRead;
-						double mbRead = len / 1024.0 / 1024.0;
-						logger.finest("read " + mbRead + " MB in " + msTaken + "ms");
-						if (rateLimitMBps > 0) {
-							long targetMs = Math.round(1000 * (mbRead / rateLimitMBps));
-							if (msTaken < targetMs) {
-								long s = targetMs - msTaken;
-								logger.finest("sleeping " + s + " ms to limit hash speed");
-								Thread.sleep(s);
-							}
+				started = System.currentTimeMillis();
+				if (toHash.size() == 0) {
+					completed();
+					return;
+				}
+				filesRemaining.set(toHash.size());
+				for (final int i : toHash) {
+					final File f = dFiles[i].getFile(true);
+					executors.submit(new Runnable() {
+						public void run() {
+							hashFile(i, f);
 						}
-						lastRead = System.currentTimeMillis();
-					}
-					sha1Hashes.add(sha1_hash.getDigest());
-					ed2kHashes.add(ed2k_hash.getDigest());
+					});
 				}
-				if (!quit) {
-					notifyListenersCompleted(new Sha1Result(sha1Hashes, ed2kHashes));
-				} else {
+			} catch (Exception e) {
+				notifyListenersErrorOccured(e);
+			}
+		}
+
+		private void hashFile(int index, File f) {
+			if (isDone()) {
+				return;
+			}
+			try {
+				if (quit == true) {
 					notifyListenersErrorOccured(new Exception("calc service stopped"));
 					return;
 				}
+				logger.finer("hashing file: " + f.getCanonicalPath());
+
+				SHA1Hasher sha1_hash = new SHA1Hasher();
+				final ED2KHasher ed2k_hash = new ED2KHasher();
+
+				RandomAccessFile raf = new RandomAccessFile(f, "r");
+				try {
+					FileChannel channel = raf.getChannel();
+					long length = channel.size();
+					long pos = 0;
+					while (pos < length) {
+						if (quit) {
+							notifyListenersErrorOccured(new Exception("calc service stopped"));
+							return;
+						}
+						if (isDone()) {
+							return;
+						}
+						int len = (int) Math.min(READ_WINDOW_SIZE, length - pos);
+						rateLimiter.acquire(len);
+
+						ByteBuffer window = readBuffer.get();
+						window.clear();
+						window.limit(len);
+						while (window.hasRemaining()) {
+							if (channel.read(window, pos + window.position()) < 0) {
+								throw new EOFException("file shrunk while hashing: " + f);
+							}
+						}
+						window.flip();
+						final ByteBuffer ed2kWindow = window.duplicate();
+						Future<?> ed2kDone = digestExecutor.submit(new Runnable() {
+							public void run() {
+								ed2k_hash.update(ed2kWindow);
+							}
+						});
+						sha1_hash.update(window);
+						ed2kDone.get();
+
+						pos += len;
+						synchronized (hashRate) {
+							hashRate.addValue(len);
+						}
+						notifyListenersProgress(totalRead.addAndGet(len) / totalToHash);
+					}
+				} finally {
+					raf.close();
+				}
+
+				sha1Hashes[index] = sha1_hash.getDigest();
+				ed2kHashes[index] = ed2k_hash.getDigest();
+				if (filesRemaining.decrementAndGet() == 0) {
+					completed();
+				}
 			} catch (Exception e) {
 				notifyListenersErrorOccured(e);
 			}
 		}
+
+		private void completed() {
+			long elapsed = Math.max(1, System.currentTimeMillis() - started);
+			logger.fine("hashed " + dm.getDisplayName() + ": "
+					+ (long) (totalToHash / 1024 / 1024) + " MB in " + elapsed + " ms, "
+					+ "aggregate hash rate: " + (getHashRate() / 1024) + " KB/s");
+			notifyListenersCompleted(new Sha1Result(
+					new ArrayList<byte[]>(Arrays.asList(sha1Hashes)),
+					new ArrayList<byte[]>(Arrays.asList(ed2kHashes))));
+		}
 	}
 
+	/**
+	 * Rate limit shared by all workers. Callers take tokens before hashing and
+	 * sleep off any debt, so the combined rate stays at the limit no matter how
+	 * many workers there are.
+	 */
+	private static class TokenBucket
+	{
+		private long	bytesPerSecond = 0;
+
+		private double tokens = 0;
+
+		private long	lastRefill = System.currentTimeMillis();
+
+		synchronized void setRate(long bytesPerSecond) {
+			logger.fine("hash rate limit: " + bytesPerSecond + " bytes/s");
+			this.bytesPerSecond = bytesPerSecond;
+			tokens = Math.min(tokens, bytesPerSecond);
+		}
+
+		void acquire(int bytes) throws InterruptedException {
+			long sleep;
+			synchronized (this) {
+				long now = System.currentTimeMillis();
+				if (bytesPerSecond <= 0) {
+					lastRefill = now;
+					tokens = 0;
+					return;
+				}
+				// allow at most 1s worth of burst
+				tokens = Math.min(bytesPerSecond, tokens + (now - lastRefill)
+						* bytesPerSecond / 1000.0);
+				lastRefill = now;
+				tokens -= bytes;
+				if (tokens >= 0) {
+					return;
+				}
+				sleep = (long) Math.ceil(-tokens * 1000 / bytesPerSecond);
+			}
+			logger.finest("sleeping " + sleep + " ms to limit hash speed");
+			Thread.sleep(sleep);
+		}
+	}
 }
@@ -33,6 +33,10 @@ public class Sha1DownloadManager
 
 	public static String				MULTI_TORRENT_SOURCE_DOWNLOAD_DIR = "oneswarm.multi.torrent.download.temp.dir";
 
+	public static final String	LOCAL_CLONE_ENABLED								= "oneswarm.multi.torrent.local.clone";
+
+	public static final String	LOCAL_CLONE_LINK									 = "oneswarm.multi.torrent.local.clone.link";
+
 	private final static Logger logger														= Logger.getLogger(Sha1DownloadManager.class.getName());
 
 	private final AzureusCore	 core;
@@ -41,6 +45,10 @@ public class Sha1DownloadManager
 
 	private Sha1HashManager		 sha1HashManager									 = Sha1HashManager.getInstance();
 
+	// destination files we already tried to clone, so a clone that doesn't
+	// pass the recheck falls back to the sha1 peer instead of being retried
+	private Set<String>				 cloneAttempted										= new HashSet<String>();
+
 	public Sha1DownloadManager() {
 		core = AzureusCoreImpl.getSingleton();
 		core.getGlobalManager().addListener(new GlobalManagerListener() {
@@ -48,6 +56,12 @@ public class Sha1DownloadManager
 			}
 
 			public void downloadManagerRemoved(DownloadManager dm) {
+				DiskManagerFileInfo[] files = dm.getDiskManagerFileInfo();
+				synchronized (cloneAttempted) {
+					for (int i = 0; i < files.length; i++) {
+						cloneAttempted.remove(files[i].getFile(true).getAbsolutePath());
+					}
+				}
 			}
 
 			public void downloadManagerAdded(DownloadManager dm) {
@@ -174,6 +188,14 @@ public class Sha1DownloadManager
 			}
 		}
 
+		/*
+		 * completed files can be cloned locally in one go, the download is
+		 * restarted once that is done and we end up back here for the rest
+		 */
+		if (cloneCompletedFiles(download, torrentSha1s, sha1Mappings)) {
+			return;
+		}
+
 		/*
 		 * last, we have a set of interesting dms,
 		 */
@@ -196,6 +218,147 @@ public class Sha1DownloadManager
 
 	}	
 
+	/**
+	 * Looks for files in the download that are complete in some other
+	 * download with the same sha1, and if there are any, stops the download,
+	 * clones the files with LocalFileCloner and flags the pieces of the cloned
+	 * files for a recheck. The recheck runs when the download starts again and
+	 * is the one verification pass over the cloned data, the pieces of the
+	 * other files keep their resume state and aren't read.
+	 * 
+	 * @return true if the download is being stopped for cloning
+	 */
+	private boolean cloneCompletedFiles(final DownloadManager download,
+			HashWrapper[] torrentSha1s,
+			HashMap<HashWrapper, List<DownloadManager>> sha1Mappings) {
+		if (!COConfigurationManager.getBooleanParameter(LOCAL_CLONE_ENABLED)) {
+			return false;
+		}
+		DiskManagerFileInfo[] files = download.getDiskManagerFileInfo();
+		final List<DiskManagerFileInfo> clones = new LinkedList<DiskManagerFileInfo>();
+		final List<File> sources = new LinkedList<File>();
+		for (int i = 0; i < torrentSha1s.length && i < files.length; i++) {
+			HashWrapper sha1 = torrentSha1s[i];
+			DiskManagerFileInfo file = files[i];
+			if (sha1 == null || !sha1Mappings.containsKey(sha1) || file.isSkipped()
+					|| file.getDownloaded() == file.getLength()) {
+				continue;
+			}
+			File source = getCompletedFile(sha1Mappings.get(sha1), sha1);
+			if (source == null) {
+				continue;
+			}
+			File destination = file.getFile(true);
+			synchronized (cloneAttempted) {
+				if (!cloneAttempted.add(destination.getAbsolutePath())) {
+					continue;
+				}
+			}
+			clones.add(file);
+			sources.add(source);
+		}
+		if (clones.size() == 0) {
+			return false;
+		}
+
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				cloneAndRecheck(download, clones, sources);
+			}
+		}, "Sha1LocalClone");
+		t.setDaemon(true);
+		t.start();
+		return true;
+	}
+
+	private static File getCompletedFile(List<DownloadManager> sources,
+			HashWrapper sha1) {
+		for (DownloadManager d : sources) {
+			HashWrapper[] hashes = getHashesFromDownload(d,
+					FileListFile.KEY_SHA1_HASH, false);
+			DiskManagerFileInfo[] files = d.getDiskManagerFileInfo();
+			for (int j = 0; j < hashes.length && j < files.length; j++) {
+				if (!sha1.equals(hashes[j])
+						|| files[j].getDownloaded() != files[j].getLength()) {
+					continue;
+				}
+				File f = files[j].getFile(true);
+				if (f.isFile() && f.length() == files[j].getLength()) {
+					return f;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Marks only the pieces of the cloned files for a recheck, via the resume
+	 * data, so restarting verifies them without the full read of a
+	 * forceRecheck(). A download that never got resume data is fully checked on
+	 * its first start anyway.
+	 * 
+	 * The download is put back the way it was: running downloads are restarted
+	 * with their force start flag, queued ones are queued again and stopped or
+	 * paused ones stay that way and recheck the pieces when they are resumed.
+	 */
+	private void cloneAndRecheck(final DownloadManager download,
+			List<DiskManagerFileInfo> clones, List<File> sources) {
+		logger.fine("cloning " + clones.size() + " local files into "
+				+ download.getDisplayName());
+		int state = download.getState();
+		boolean forceStart = download.isForceStart();
+		boolean stopped = state == DownloadManager.STATE_STOPPED
+				|| state == DownloadManager.STATE_ERROR;
+		if (!stopped) {
+			download.stopIt(DownloadManager.STATE_STOPPED, false, false);
+			if (download.getState() != DownloadManager.STATE_STOPPED) {
+				logger.warning("unable to stop " + download.getDisplayName()
+						+ " for cloning, state=" + download.getState());
+				restoreState(download, state, forceStart);
+				return;
+			}
+		}
+
+		boolean link = COConfigurationManager.getBooleanParameter(LOCAL_CLONE_LINK);
+		for (int i = 0; i < clones.size(); i++) {
+			DiskManagerFileInfo file = clones.get(i);
+			File source = sources.get(i);
+			File destination = file.getFile(true);
+			try {
+				int how = LocalFileCloner.cloneFile(source, destination, link);
+				logger.fine((how == LocalFileCloner.CLONED_LINK ? "linked " : "copied ")
+						+ source + " -> " + destination);
+				download.recheckFile(file);
+			} catch (IOException e) {
+				logger.warning("unable to clone " + source + " -> " + destination
+						+ ": " + e.getMessage());
+			}
+		}
+		restoreState(download, state, forceStart);
+	}
+
+	private static void restoreState(DownloadManager download, int state,
+			boolean forceStart) {
+		switch (state) {
+		case DownloadManager.STATE_STOPPED:
+		case DownloadManager.STATE_ERROR:
+			break;
+		case DownloadManager.STATE_QUEUED:
+			if (download.getState() == DownloadManager.STATE_STOPPED) {
+				download.setStateQueued();
+			}
+			download.setForceStart(forceStart);
+			break;
+		default:
+			// force starting a stopped download starts it
+			if (forceStart) {
+				download.setForceStart(true);
+			} else if (download.getState() == DownloadManager.STATE_STOPPED) {
+				download.setStateWaiting();
+			}
+		}
+	}
+
 	static HashWrapper[] getHashesFromDownload(DownloadManager d, String type,
 			boolean excludeSkipped) {
 		String hashesAdded = d.getDownloadState().getAttribute(
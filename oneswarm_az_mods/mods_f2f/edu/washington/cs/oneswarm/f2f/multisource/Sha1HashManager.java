@@ -175,6 +175,13 @@ public class Sha1HashManager
 		calc.stop();
 	}
 
+	/**
+	 * @return current sha1/ed2k hash rate over all hash jobs, in bytes/s
+	 */
+	public long getHashRate() {
+		return calc.getHashRate();
+	}
+
 	@SuppressWarnings("unchecked")
 	private static List<String> getHashesFromTorrent(TOTorrent torrent,
 			String type) throws TOTorrentException {
@@ -16,6 +16,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,6 +26,7 @@ import org.gudy.azureus2.core3.download.DownloadManager;
 import org.gudy.azureus2.core3.download.DownloadManagerInitialisationAdapter;
 import org.gudy.azureus2.core3.download.DownloadManagerListener;
 import org.gudy.azureus2.core3.download.DownloadManagerState;
+import org.gudy.azureus2.core3.global.GlobalManagerAdapter;
 import org.gudy.azureus2.core3.peer.PEPeerSource;
 import org.gudy.azureus2.core3.torrent.impl.TOTorrentImpl;
 import org.gudy.azureus2.core3.util.AENetworkClassifier;
@@ -70,6 +72,13 @@ public class PermissionsDAO {
 	 */
 	Map<String, ArrayList<GroupBean>> temporaryHash_to_groups = new HashMap<String, ArrayList<GroupBean>>();
 	
+	/**
+	 * Permissions of all swarms, kept up to date whenever groups or swarm
+	 * permissions change so the permission checks don't need the lock or the
+	 * download manager attributes.
+	 */
+	private volatile PermissionTable table = new PermissionTable(0);
+	
 	/**/
 
 	private IPCInterface f2fIpc = null;
@@ -101,6 +110,18 @@ public class PermissionsDAO {
 			
 			sanity_check_perms();
 			
+			// swarms that are added or removed change what we have permissions for
+			AzureusCoreImpl.getSingleton().getGlobalManager().addListener(new GlobalManagerAdapter() {
+				public void downloadManagerAdded(DownloadManager dm) {
+					updateTable(dm, false);
+				}
+
+				public void downloadManagerRemoved(DownloadManager dm) {
+					updateTable(dm, true);
+				}
+			}, false);
+			rebuildTable();
+			
 		} // f2fIpc != null
 	}
 	
@@ -146,10 +167,12 @@ public class PermissionsDAO {
 				try {
 					String hexHash = ByteFormatter.encodeString(manager.getTorrent().getHash());
 					ArrayList<GroupBean> groups = PermissionsDAO.this.getGroupsForHash(hexHash);
-					if( temporaryHash_to_groups.containsKey(hexHash) ) {
-						PermissionsDAO.this.setGroupsForHash(hexHash, groups, false, manager);
-						logger.finer("Removing from temporaryHash_to_groups, size: " + (temporaryHash_to_groups.size()-1));
-						temporaryHash_to_groups.remove(hexHash);
+					synchronized (PermissionsDAO.this) {
+						if( temporaryHash_to_groups.containsKey(hexHash) ) {
+							PermissionsDAO.this.setGroupsForHash(hexHash, groups, false, manager);
+							logger.finer("Removing from temporaryHash_to_groups, size: " + (temporaryHash_to_groups.size()-1));
+							temporaryHash_to_groups.remove(hexHash);
+						}
 					}
 					
 				} catch (Exception e) {
@@ -347,21 +370,23 @@ public class PermissionsDAO {
 		/**
 		 * Now, for any of the keys in our current list which are not in this set, remove. 
 		 */
-		boolean save = false;
+		Set<Long> removed = new HashSet<Long>();
 		for( String key : base64Key_to_groupid.keySet().toArray(new String[0]) ) { 
 			if( covered_keys.contains(key) == false ) {
 				logger.fine("Sync with friend list removes user group: " + key);
 				try {
-					removeGroupID(base64Key_to_groupid.get(key), true);
-					save = true;
+					Long id = base64Key_to_groupid.get(key);
+					removeGroupID(id, true);
+					removed.add(id);
 				} catch (IOException e) {
                     // e.printStackTrace();
 					logger.warning(e.toString());
 				}
 			}
 		}
-		if( save ) {
+		if( removed.size() > 0 ) {
 			save_groups();
+			table = table.withoutGroups(removed);
 		}
 	}
 
@@ -378,6 +403,8 @@ public class PermissionsDAO {
 		
 		g.setGroupName(neu);
 		save_groups();
+		// group equality is by name, so the public / all friends flags may change
+		table = table.copy();
 	}
 
 	public void refreshFileLists() {
@@ -436,6 +463,9 @@ public class PermissionsDAO {
 	
 	public synchronized void removeGroupID( Long inID ) throws IOException { 
 		removeGroupID(inID, false);
+		Set<Long> removed = new HashSet<Long>();
+		removed.add(inID);
+		table = table.withoutGroups(removed);
 	}
 	
 	private synchronized void removeGroupID( Long inID, boolean userRemoval ) throws IOException { 
@@ -459,43 +489,83 @@ public class PermissionsDAO {
 		groupid_to_group.remove(inID);
 	}
 
-	public synchronized boolean hasPublicPermission(byte[] infoHash) {
-		String inHexHash = ByteFormatter.encodeString(infoHash);
-		List<GroupBean> allowedGroups = getGroupsForHash(inHexHash);
-		if (allowedGroups == null) {
-			return false;
-		}
-		return allowedGroups.contains(GroupBean.PUBLIC);
+	public boolean hasPublicPermission(byte[] infoHash) {
+		return (table.getFlags(infoHash) & PermissionTable.FLAG_PUBLIC) != 0;
 	}
 
-	public synchronized boolean hasAllFriendsPermission(byte[] infoHash) {
-		String inHexHash = ByteFormatter.encodeString(infoHash);
-		List<GroupBean> allowedGroups = getGroupsForHash(inHexHash);
-		if (allowedGroups == null) {
-			return false;
-		}
-		return allowedGroups.contains(GroupBean.ALL_FRIENDS);
+	public boolean hasAllFriendsPermission(byte[] infoHash) {
+		return (table.getFlags(infoHash) & PermissionTable.FLAG_ALL_FRIENDS) != 0;
 	}
 	
-	public synchronized ArrayList<GroupBean> getGroupsForHash( String inHexHash ) {
-		
-		final DownloadManager dm = AzureusCoreImpl.getSingleton().getGlobalManager().getDownloadManager(new HashWrapper(ByteFormatter.decodeString(inHexHash)));
-		
-		if( dm == null ) {
-			
-			ArrayList<GroupBean> scratch = temporaryHash_to_groups.get(inHexHash);
-			if( scratch != null ) {
-				return scratch;
-			}
-			
+	public ArrayList<GroupBean> getGroupsForHash( String inHexHash ) {
+		GroupBean[] groups = table.getGroups(ByteFormatter.decodeString(inHexHash));
+		if( groups == null ) {
 			logger.warning("getGroupsForHash_v2 with null download manager! " + inHexHash);
 			return new ArrayList<GroupBean>();
 		}
-		
-		if( temporaryHash_to_groups.containsKey(inHexHash) ) {
-			logger.warning("DownloadManager is not null, but temporary hash still has entry for swarm: " + dm.getDisplayName());
+		// callers may modify the list
+		return new ArrayList<GroupBean>(Arrays.asList(groups));
+	}
+	
+	/**
+	 * Rebuilds the permission table from the download manager attributes
+	 * and the temporary permissions of swarms being added.
+	 */
+	private synchronized void rebuildTable() {
+		List<?> dms = AzureusCoreImpl.getSingleton().getGlobalManager().getDownloadManagers();
+		PermissionTable rebuilt = new PermissionTable(dms.size() + temporaryHash_to_groups.size());
+		Set<String> covered = new HashSet<String>();
+		for( Object o : dms ) {
+			DownloadManager dm = (DownloadManager)o;
+			try {
+				if( dm.getTorrent() == null ) {
+					continue;
+				}
+				byte[] hash = dm.getTorrent().getHash();
+				String hexHash = ByteFormatter.encodeString(hash);
+				if( temporaryHash_to_groups.containsKey(hexHash) ) {
+					logger.warning("DownloadManager is not null, but temporary hash still has entry for swarm: " + dm.getDisplayName());
+				}
+				rebuilt = rebuilt.put(hash, readGroupsForHash(dm, hexHash).toArray(new GroupBean[0]));
+				covered.add(hexHash);
+			} catch( Exception e ) {
+				logger.warning("Error reading permissions for: " + dm.getDisplayName() + " / " + e.toString());
+			}
 		}
-		
+		for( Map.Entry<String, ArrayList<GroupBean>> e : temporaryHash_to_groups.entrySet() ) {
+			if( !covered.contains(e.getKey()) ) {
+				rebuilt = rebuilt.put(ByteFormatter.decodeString(e.getKey()), e.getValue().toArray(new GroupBean[0]));
+			}
+		}
+		table = rebuilt;
+		logger.finer("rebuilt permissions table, swarms: " + rebuilt.size());
+	}
+	
+	/**
+	 * Updates the table entry of a single swarm that was added or removed.
+	 */
+	private synchronized void updateTable( DownloadManager dm, boolean removed ) {
+		try {
+			if( dm.getTorrent() == null ) {
+				return;
+			}
+			byte[] hash = dm.getTorrent().getHash();
+			String hexHash = ByteFormatter.encodeString(hash);
+			ArrayList<GroupBean> temporary = temporaryHash_to_groups.get(hexHash);
+			if( removed ) {
+				table = table.put(hash, temporary != null ? temporary.toArray(new GroupBean[0]) : null);
+			} else {
+				if( temporary != null ) {
+					logger.warning("DownloadManager is not null, but temporary hash still has entry for swarm: " + dm.getDisplayName());
+				}
+				table = table.put(hash, readGroupsForHash(dm, hexHash).toArray(new GroupBean[0]));
+			}
+		} catch( Exception e ) {
+			logger.warning("Error reading permissions for: " + dm.getDisplayName() + " / " + e.toString());
+		}
+	}
+	
+	private ArrayList<GroupBean> readGroupsForHash( DownloadManager dm, String inHexHash ) {
 		String[] groups = dm.getDownloadState().getListAttribute(TOTorrentImpl.OS_PERMISSIONS);
 		ArrayList<GroupBean> out = new ArrayList<GroupBean>();
 		try { 
@@ -556,6 +626,7 @@ public class PermissionsDAO {
 			}
 			
 			temporaryHash_to_groups.put(inHexHash, inGroups);
+			table = table.put(ByteFormatter.decodeString(inHexHash), inGroups.toArray(new GroupBean[0]));
 			logger.finest("setGroupsForHash -- used temporary storage while adding.");
 			return;
 		}
@@ -588,6 +659,7 @@ public class PermissionsDAO {
 		} else {
 			dm.setData(NO_PERMISSIONS_DATA, null);
 		}
+		table = table.put(ByteFormatter.decodeString(inHexHash), readGroupsForHash(dm, inHexHash).toArray(new GroupBean[0]));
 		
 		logger.finer("Set perms property, now checking start/stop and network enabling.");
 		
@@ -677,9 +749,11 @@ public class PermissionsDAO {
 		return Arrays.asList(groupid_to_group.values().toArray(new GroupBean[0]));
 	}
 
-	public synchronized boolean hasPermissions(String inBase64Key, byte[] inSwarmHash) {
-		String hashStr = ByteFormatter.encodeString(inSwarmHash);
-		List<GroupBean> groups = getGroupsForHash(hashStr);
+	public boolean hasPermissions(String inBase64Key, byte[] inSwarmHash) {
+		GroupBean[] groups = table.getGroups(inSwarmHash);
+		if( groups == null ) {
+			return false;
+		}
 		
 		for( GroupBean g : groups ) {
 			if( g.equals(GroupBean.ALL_FRIENDS) ) {
@@ -694,7 +768,7 @@ public class PermissionsDAO {
 		return false;
 	}
 
-	public synchronized boolean hasPermissions(byte[] inKey, byte[] inSwarmHash) {
+	public boolean hasPermissions(byte[] inKey, byte[] inSwarmHash) {
 		return hasPermissions(new String(Base64.encode(inKey)), inSwarmHash);
 	}
 	
@@ -808,4 +882,162 @@ public class PermissionsDAO {
 	public static final void main(String[] args) {
 
 	}
+
+	/**
+	 * Infohash -> permissions table. Lookups hash the infohash bytes directly
+	 * into an open addressing table, so they don't allocate. Each slot holds an
+	 * immutable entry, so readers always see the groups and flags of a swarm
+	 * from the same update. Writers must hold the PermissionsDAO lock; a
+	 * single swarm is updated in place, and only growing the table or
+	 * changing every swarm builds a new table, which is published at once.
+	 */
+	static final class PermissionTable {
+		static final int FLAG_PUBLIC = 1;
+		static final int FLAG_ALL_FRIENDS = 2;
+
+		private final AtomicReferenceArray<Entry> entries;
+		private final int mask;
+		/** swarms in the table, and slots ever used (removed swarms keep theirs) */
+		private int size;
+		private int used;
+
+		PermissionTable(int expected) {
+			int capacity = 16;
+			while( capacity < expected * 2 ) {
+				capacity <<= 1;
+			}
+			entries = new AtomicReferenceArray<Entry>(capacity);
+			mask = capacity - 1;
+		}
+
+		/**
+		 * @return the slot holding <code>hash</code>, or the empty slot where
+		 *         it would go.
+		 */
+		private int find(byte[] hash) {
+			int h = 0;
+			// infohashes are random, the first bytes are a good hash
+			for( int i=0; i<4 && i<hash.length; i++ ) {
+				h = (h << 8) | (hash[i] & 0xff);
+			}
+			int slot = h & mask;
+			Entry e;
+			while( (e = entries.get(slot)) != null && !Arrays.equals(e.hash, hash) ) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+
+		int getFlags(byte[] hash) {
+			Entry e = entries.get(find(hash));
+			return e != null ? e.flags : 0;
+		}
+
+		/**
+		 * @return the groups of the swarm, or null if the swarm is unknown.
+		 */
+		GroupBean[] getGroups(byte[] hash) {
+			Entry e = entries.get(find(hash));
+			return e != null ? e.groups : null;
+		}
+
+		int size() {
+			return size;
+		}
+
+		/**
+		 * Replaces the groups of <code>hash</code>, or removes them if
+		 * <code>inGroups</code> is null.
+		 * 
+		 * @return this table, or a larger copy holding the update if this one
+		 *         was full.
+		 */
+		PermissionTable put(byte[] hash, GroupBean[] inGroups) {
+			int slot = find(hash);
+			Entry old = entries.get(slot);
+			if( old == null ) {
+				if( inGroups == null ) {
+					return this;
+				}
+				if( (used + 1) * 2 > entries.length() ) {
+					// leave room for as many new swarms as there are now
+					PermissionTable grown = copy(2 * (size + 1), null);
+					return grown.put(hash, inGroups);
+				}
+				used++;
+			}
+			if( old != null && old.groups != null ) {
+				size--;
+			}
+			if( inGroups != null ) {
+				size++;
+			}
+			// removed swarms keep their slot so later slots stay reachable
+			entries.set(slot, new Entry(old != null ? old.hash : hash, inGroups));
+			return this;
+		}
+
+		/**
+		 * @return a copy of this table with the given group ids removed from
+		 *         every swarm.
+		 */
+		PermissionTable withoutGroups(Set<Long> groupIDs) {
+			return copy(size, groupIDs);
+		}
+
+		/**
+		 * @return a copy of this table with the flags recomputed from the
+		 *         current group names.
+		 */
+		PermissionTable copy() {
+			return copy(size, null);
+		}
+
+		private PermissionTable copy(int expected, Set<Long> removedGroups) {
+			PermissionTable out = new PermissionTable(expected);
+			for( int i=0; i<entries.length(); i++ ) {
+				Entry e = entries.get(i);
+				if( e == null || e.groups == null ) {
+					continue;
+				}
+				GroupBean[] groups = e.groups;
+				if( removedGroups != null ) {
+					List<GroupBean> kept = new ArrayList<GroupBean>(groups.length);
+					for( GroupBean b : groups ) {
+						if( !removedGroups.contains(b.getGroupID()) ) {
+							kept.add(b);
+						}
+					}
+					if( kept.size() != groups.length ) {
+						groups = kept.toArray(new GroupBean[0]);
+					}
+				}
+				out.put(e.hash, groups);
+			}
+			return out;
+		}
+
+		private static final class Entry {
+			final byte[] hash;
+			/** null once the swarm is removed */
+			final GroupBean[] groups;
+			final int flags;
+
+			Entry(byte[] hash, GroupBean[] groups) {
+				this.hash = hash;
+				this.groups = groups;
+				int f = 0;
+				if( groups != null ) {
+					for( GroupBean b : groups ) {
+						if( b.equals(GroupBean.PUBLIC) ) {
+							f |= FLAG_PUBLIC;
+						} else if( b.equals(GroupBean.ALL_FRIENDS) ) {
+							f |= FLAG_ALL_FRIENDS;
+						}
+					}
+				}
+				flags = f;
+			}
+		}
+	}
 }
@@ -64,6 +64,9 @@ public class SequentialDiskReaderImpl
 
 	private long											totalWritten						 = 0;
 
+	// offset of the first byte of the file in the torrent
+	private final long								fileStartInTorrent;
+
 	public SequentialDiskReaderImpl(DownloadManager dm,
 			DiskManagerFileInfo fileInfo, long streamByteRate) {
 		System.out.println("Creating Sequential Disk reader");
@@ -91,6 +94,7 @@ public class SequentialDiskReaderImpl
 		if (sumFileLen > 0) {
 			posInPiece = (int) (sumFileLen % dm.getTorrent().getPieceLength());
 		}
+		fileStartInTorrent = sumFileLen;
 		System.out.println("file starts at byte: " + sumFileLen
 				+ " in the torrent, and byte " + posInPiece + " in the piece");
 		currentByteInPiece = posInPiece;
@@ -393,9 +397,28 @@ public class SequentialDiskReaderImpl
 		return false;
 	}
 
+	/**
+	 * moves the read position forward without reading anything, so reading
+	 * can start in a piece that is not downloaded yet
+	 */
 	@Override
 	public long skip(long n) {
-		return 0;
+		if (n <= 0) {
+			return 0;
+		}
+		// all pieces but the last one of the torrent have the same length
+		long pieceLength = diskManager.getPieceLength();
+		long position = currentPiece * pieceLength + currentByteInPiece;
+		long end = fileStartInTorrent + fileInfo.getLength();
+		long skipped = Math.min(n, end - position);
+		if (skipped <= 0) {
+			return 0;
+		}
+		position += skipped;
+		currentPiece = (int) (position / pieceLength);
+		currentByteInPiece = (int) (position % pieceLength);
+		totalWritten += skipped;
+		return skipped;
 	}
 
 	public void reset() {
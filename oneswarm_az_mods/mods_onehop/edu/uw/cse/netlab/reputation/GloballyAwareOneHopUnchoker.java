@@ -6,8 +6,11 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -37,9 +40,16 @@ public class GloballyAwareOneHopUnchoker
 
 	private Map<HashWrapper, List<PEPeerTransportProtocol>> swarm_to_active				 = Collections.synchronizedMap(new HashMap<HashWrapper, List<PEPeerTransportProtocol>>());
 
-	private Map<HashWrapper, List<PEPeerTransportProtocol>> global_unchokes				 = Collections.synchronizedMap(new HashMap<HashWrapper, List<PEPeerTransportProtocol>>());
+	/**
+	 * The result of the last recompute, swarm -> unchoked / choked peers. A recompute builds new maps 
+	 * and swaps them in when it's done, so the per swarm unchokers keep being served the previous 
+	 * round's lists in the meantime. Neither the maps nor their lists are modified once published.
+	 */
+	private volatile Map<HashWrapper, ArrayList<PEPeerTransportProtocol>> global_unchokes	 = new HashMap<HashWrapper, ArrayList<PEPeerTransportProtocol>>();
 
-	private Map<HashWrapper, List<PEPeerTransportProtocol>> global_chokes					 = Collections.synchronizedMap(new HashMap<HashWrapper, List<PEPeerTransportProtocol>>());
+	private volatile Map<HashWrapper, ArrayList<PEPeerTransportProtocol>> global_chokes		 = new HashMap<HashWrapper, ArrayList<PEPeerTransportProtocol>>();
+
+	private boolean																				 recomputing						 = false;
 
 	public static volatile GloballyAwareOneHopUnchoker							 inst										= null;
 
@@ -140,22 +150,49 @@ public class GloballyAwareOneHopUnchoker
 		return AzureusCoreImpl.getSingleton().getGlobalManager().getStats().getDataAndProtocolSendRate() < 10 * 1024;
 	}
 
-	private long last_recompute;
+	private volatile long last_recompute;
+
+	/**
+	 * Runs in the thread of whichever swarm noticed the recompute was due. If another recompute is 
+	 * still running this returns immediately and the swarms keep using the current lists.
+	 */
+	public void full_unchoke_recompute() {
+		synchronized (this) {
+			if (recomputing) {
+				logger.finer("recompute already in progress, skipping");
+				return;
+			}
+			recomputing = true;
+			last_recompute = System.currentTimeMillis();
+		}
+		try {
+			recompute();
+		} finally {
+			synchronized (this) {
+				recomputing = false;
+			}
+		}
+	}
 
-	public synchronized void full_unchoke_recompute() {
+	private void recompute() {
 		long start = System.currentTimeMillis();
+
+		Map<HashWrapper, List<PEPeerTransportProtocol>> active;
+		synchronized (swarm_to_active) {
+			active = new HashMap<HashWrapper, List<PEPeerTransportProtocol>>(swarm_to_active);
+		}
+
 		logger.finer("=============== Globally aware full unchoke recompute... "
-				+ swarm_to_active.size() + " active peer lists =================");
+				+ active.size() + " active peer lists =================");
 
-		global_chokes.clear();
-		global_unchokes.clear();
+		Map<HashWrapper, ArrayList<PEPeerTransportProtocol>> unchokes = new HashMap<HashWrapper, ArrayList<PEPeerTransportProtocol>>();
+		Map<HashWrapper, ArrayList<PEPeerTransportProtocol>> chokes = new HashMap<HashWrapper, ArrayList<PEPeerTransportProtocol>>();
 
 		List<PEPeerTransportProtocol> all_peers = new ArrayList<PEPeerTransportProtocol>();
-		for (HashWrapper hw : swarm_to_active.keySet()) {
-			List<PEPeerTransportProtocol> peers = swarm_to_active.get(hw);
-			all_peers.addAll(peers);
-			global_chokes.put(hw, new ArrayList<PEPeerTransportProtocol>());
-			global_unchokes.put(hw, new ArrayList<PEPeerTransportProtocol>());
+		for (Map.Entry<HashWrapper, List<PEPeerTransportProtocol>> e : active.entrySet()) {
+			all_peers.addAll(e.getValue());
+			chokes.put(e.getKey(), new ArrayList<PEPeerTransportProtocol>());
+			unchokes.put(e.getKey(), new ArrayList<PEPeerTransportProtocol>());
 		}
 
 		int max_to_unchoke = COConfigurationManager.getIntParameter("Max.Peer.Connections.Total");
@@ -166,12 +203,29 @@ public class GloballyAwareOneHopUnchoker
 		logger.finer("max to unchoke: " + max_to_unchoke);
 
 		int total_unchokes = 0, total_lan_unchokes = 0;
+		Set<PEPeerTransportProtocol> unchoked = new HashSet<PEPeerTransportProtocol>();
+
+		/**
+		 * Only the unchokable peers with reputation > 1.0 are unchoked in order, and at most 
+		 * max_to_unchoke of them, so keep just the best max_to_unchoke in a min-heap rather than 
+		 * sorting everyone. 
+		 */
+		PriorityQueue<PEPeerTransportProtocol> best = new PriorityQueue<PEPeerTransportProtocol>(
+				Math.max(1, max_to_unchoke + 1), BY_REPUTATION);
+		List<PEPeerTransportProtocol> shoddy = new ArrayList<PEPeerTransportProtocol>();
 
 		for (PEPeerTransportProtocol p : all_peers) {
 			p.setReputation(computeReputation(p));
 
+			if( logger.isLoggable(Level.FINEST) ) {
+				logger.finest(p.getControl().getDisplayName() + " " + p + " reputation: "
+						+ p.getReputation() + " (is OneSwarm?: "
+						+ Boolean.toString(p.isOneSwarm()) + ")");
+			}
+
 			if (p.isLANLocal() && total_lan_unchokes < 5) { // magic #. keep a few LAN local peers always unchoked. these will be over quickly anyway
-				global_unchokes.get(new HashWrapper(p.getControl().getHash())).add(p);
+				unchokes.get(new HashWrapper(p.getControl().getHash())).add(p);
+				unchoked.add(p);
 				total_lan_unchokes++;
 				
 				if( logger.isLoggable(Level.FINER) ) {
@@ -179,27 +233,22 @@ public class GloballyAwareOneHopUnchoker
 							+ " is LAN local and will be unchoked, total lan unchokes: "
 							+ total_lan_unchokes);
 				}
+				continue;
 			}
-		}
 
-		final PEPeerTransportProtocol[] peers_by_reputation = all_peers.toArray(new PEPeerTransportProtocol[0]);
-		Arrays.sort(peers_by_reputation, new Comparator<PEPeerTransportProtocol>() {
-			public int compare(PEPeerTransportProtocol o1, PEPeerTransportProtocol o2) {
-				double v = o2.getReputation() - o2.getReputation();
-				if (Math.abs(v) < 1e-14)
-					return 0;
-				if (v > 0)
-					return -1;
-				return 1;
+			if (p.getReputation() >= 1.0 && UnchokerUtil.isUnchokable(p, false)) {
+				best.add(p);
+				if (best.size() > max_to_unchoke) {
+					shoddy.add(best.poll());
+				}
+			} else {
+				shoddy.add(p);
 			}
-		});
+		}
 
-		if( logger.isLoggable(Level.FINEST) ) {
-			for (PEPeerTransportProtocol p : peers_by_reputation) {
-				logger.finest(p.getControl().getDisplayName() + " " + p + " reputation: "
-						+ p.getReputation() + " (is OneSwarm?: "
-						+ Boolean.toString(p.isOneSwarm()) + ")");
-			}
+		PEPeerTransportProtocol[] positiveROI = new PEPeerTransportProtocol[best.size()];
+		for (int i = positiveROI.length - 1; i >= 0; i--) {
+			positiveROI[i] = best.poll();
 		}
 
 		/**
@@ -213,56 +262,46 @@ public class GloballyAwareOneHopUnchoker
 		// 1. Descending order peers with reputation > 1.0
 		int positiveROI_cutoff = 0;
 		for (positiveROI_cutoff = 0; total_unchokes < max_to_unchoke
-				&& positiveROI_cutoff < all_peers.size()
-				&& calc_budget() < nonlan_upload_budget; positiveROI_cutoff++) {
-			PEPeerTransportProtocol peer = peers_by_reputation[positiveROI_cutoff];
-
-			if (peer.getReputation() < 1.0)
-				break;
-
-			if (UnchokerUtil.isUnchokable(peer, false)) {
-				global_unchokes.get(new HashWrapper(peer.getControl().getHash())).add(
-						peer);
-				total_unchokes++;
-				peer.setOptimisticUnchoke(false);
-				
-				if( logger.isLoggable(Level.FINER) ) {
-					logger.finer("1) added reputation > 1.0, " + peer + " / total: "
-							+ total_unchokes + " rep: " + peer.getReputation());
-				}
-			} else {
-				if( logger.isLoggable(Level.FINEST) ) {
-					logger.finest("1) not unchokable: " + peer + " (rep: "
-							+ peer.getReputation());
-				}
+				&& positiveROI_cutoff < positiveROI.length
+				&& calc_budget(unchokes) < nonlan_upload_budget; positiveROI_cutoff++) {
+			PEPeerTransportProtocol peer = positiveROI[positiveROI_cutoff];
+
+			unchokes.get(new HashWrapper(peer.getControl().getHash())).add(peer);
+			unchoked.add(peer);
+			total_unchokes++;
+			peer.setOptimisticUnchoke(false);
+			
+			if( logger.isLoggable(Level.FINER) ) {
+				logger.finer("1) added reputation > 1.0, " + peer + " / total: "
+						+ total_unchokes + " rep: " + peer.getReputation());
 			}
 		}
+		for (int i = positiveROI_cutoff; i < positiveROI.length; i++) {
+			shoddy.add(positiveROI[i]);
+		}
 
 		if (COConfigurationManager.getBooleanParameter("oneswarm.disallow.ratio.less.than.one") == false) {
 			
 			if( logger.isLoggable(Level.FINER) ) {
 				logger.finer("allowing ratio < 1.0 peers, these include: "
-						+ (all_peers.size() - positiveROI_cutoff) + " candidates");
+						+ shoddy.size() + " candidates");
 			}
 
 			// Randomly permute peers < 1.0
-			PEPeerTransportProtocol[] shoddy_peers = new PEPeerTransportProtocol[peers_by_reputation.length
-					- positiveROI_cutoff];
-			System.arraycopy(peers_by_reputation, positiveROI_cutoff, shoddy_peers,
-					0, shoddy_peers.length);
+			PEPeerTransportProtocol[] shoddy_peers = shoddy.toArray(new PEPeerTransportProtocol[shoddy.size()]);
 			Collections.shuffle(Arrays.asList(shoddy_peers));
 			
 			if( logger.isLoggable(Level.FINER) ) {
 				logger.finer("before 2). shoddy_peer.length: " + shoddy_peers.length
 						+ " / positiveROI_cutoff: " + positiveROI_cutoff
 						+ " max_to_unchoke: " + max_to_unchoke + " unchokes_size: "
-						+ total_unchokes + " budget: " + calc_budget());
+						+ total_unchokes + " budget: " + calc_budget(unchokes));
 			}
 
 			// 2. Any OneSwarm peers (randomly)
 			for (int i = 0; i < shoddy_peers.length
 					&& total_unchokes < max_to_unchoke
-					&& calc_budget() < nonlan_upload_budget; i++) {
+					&& calc_budget(unchokes) < nonlan_upload_budget; i++) {
 				PEPeerTransportProtocol peer = shoddy_peers[i];
 
 				if( logger.isLoggable(Level.FINEST) ) {
@@ -270,8 +309,8 @@ public class GloballyAwareOneHopUnchoker
 				}
 
 				if (UnchokerUtil.isUnchokable(peer, false) && peer.isOneSwarm()) {
-					global_unchokes.get(new HashWrapper(peer.getControl().getHash())).add(
-							peer);
+					unchokes.get(new HashWrapper(peer.getControl().getHash())).add(peer);
+					unchoked.add(peer);
 					total_unchokes++;
 					peer.setOptimisticUnchoke(true);
 					if( logger.isLoggable(Level.FINER) ) {
@@ -289,23 +328,22 @@ public class GloballyAwareOneHopUnchoker
 				logger.finer("before 3). shoddy_peer.length: " + shoddy_peers.length
 						+ " / positiveROI_cutoff: " + positiveROI_cutoff
 						+ " max_to_unchoke: " + max_to_unchoke + " unchokes_size: "
-						+ total_unchokes + " budget: " + calc_budget());
+						+ total_unchokes + " budget: " + calc_budget(unchokes));
 			}
 
 			// 3. Any BitTorrent peers (randomly) if our ratio is < 1.0
 			for (int i = 0; i < shoddy_peers.length
 					&& total_unchokes < max_to_unchoke
-					&& calc_budget() < nonlan_upload_budget; i++) {
+					&& calc_budget(unchokes) < nonlan_upload_budget; i++) {
 				PEPeerTransportProtocol peer = shoddy_peers[i];
 				// Some of these will be OneSwarm peers that we added previously, skip these.
-				List<PEPeerTransportProtocol> unchoked_this_swarm = global_unchokes.get(new HashWrapper(
-						peer.getControl().getHash()));
-				if (unchoked_this_swarm.contains(peer)) {
+				if (unchoked.contains(peer)) {
 					continue;
 				}
 
 				if (UnchokerUtil.isUnchokable(peer, false)) {
-					unchoked_this_swarm.add(peer);
+					unchokes.get(new HashWrapper(peer.getControl().getHash())).add(peer);
+					unchoked.add(peer);
 					total_unchokes++;
 					peer.setOptimisticUnchoke(true);
 					if( logger.isLoggable(Level.FINER) ) {
@@ -323,22 +361,21 @@ public class GloballyAwareOneHopUnchoker
 				logger.finer("before 4). shoddy_peer.length: " + shoddy_peers.length
 						+ " / positiveROI_cutoff: " + positiveROI_cutoff
 						+ " max_to_unchoke: " + max_to_unchoke + " unchokes_size: "
-						+ total_unchokes + " budget: " + calc_budget());
+						+ total_unchokes + " budget: " + calc_budget(unchokes));
 			}
 
 			// 4. Any snubbed peers
 			for (int i = 0; total_unchokes < max_to_unchoke && i < all_peers.size()
-					&& calc_budget() < nonlan_upload_budget; i++) {
-				PEPeerTransportProtocol peer = peers_by_reputation[i];
+					&& calc_budget(unchokes) < nonlan_upload_budget; i++) {
+				PEPeerTransportProtocol peer = all_peers.get(i);
 
-				List<PEPeerTransportProtocol> unchoked_this_swarm = global_unchokes.get(new HashWrapper(
-						peer.getControl().getHash()));
-				if (unchoked_this_swarm.contains(peer)) {
+				if (unchoked.contains(peer)) {
 					continue;
 				}
 
 				if (UnchokerUtil.isUnchokable(peer, true)) {
-					unchoked_this_swarm.add(peer);
+					unchokes.get(new HashWrapper(peer.getControl().getHash())).add(peer);
+					unchoked.add(peer);
 					total_unchokes++;
 					peer.setOptimisticUnchoke(true);
 					
@@ -356,32 +393,42 @@ public class GloballyAwareOneHopUnchoker
 		else {
 			if( logger.isLoggable(Level.FINE) ) {
 				logger.fine("global unchoker not allowing ratio less than 1.0, thus skipping: "
-						+ (all_peers.size() - positiveROI_cutoff) + " candidates");
+						+ shoddy.size() + " candidates");
 			}
 		}
 
 		/**
 		 * If not unchoked, choke
 		 */
-		int chokes = 0;
-		for (int i = 0; i < all_peers.size(); i++) {
-			PEPeerTransportProtocol peer = peers_by_reputation[i];
-			HashWrapper this_hash = new HashWrapper(peer.getControl().getHash());
-			if (global_unchokes.get(this_hash).contains(peer) == false) {
-				global_chokes.get(this_hash).add(peer);
+		int total_chokes = 0;
+		for (PEPeerTransportProtocol peer : all_peers) {
+			if (unchoked.contains(peer) == false) {
+				chokes.get(new HashWrapper(peer.getControl().getHash())).add(peer);
 				peer.setWeight(1);
-				chokes++;
+				total_chokes++;
 			}
 		}
 
+		global_unchokes = unchokes;
+		global_chokes = chokes;
+
 		if( logger.isLoggable(Level.FINE) ) {
 			logger.fine("=========== ended in " + (System.currentTimeMillis() - start)
-					+ " ms, upload budget: " + calc_budget() + " with " + total_unchokes
-					+ " unchokes of " + all_peers.size() + " chokes: " + chokes
+					+ " ms, upload budget: " + calc_budget(unchokes) + " with " + total_unchokes
+					+ " unchokes of " + all_peers.size() + " chokes: " + total_chokes
 					+ " =================");
 		}
 	}
 
+	/**
+	 * Ascending, so the head of a PriorityQueue is the worst of the peers it holds
+	 */
+	private static final Comparator<PEPeerTransportProtocol> BY_REPUTATION = new Comparator<PEPeerTransportProtocol>() {
+		public int compare(PEPeerTransportProtocol o1, PEPeerTransportProtocol o2) {
+			return Double.compare(o1.getReputation(), o2.getReputation());
+		}
+	};
+
 	private double computeReputation(PEPeerTransportProtocol p) {
 		try {
 			// From the perspective of the one hop unchoker, these peers are useless
@@ -398,11 +445,11 @@ public class GloballyAwareOneHopUnchoker
 		}
 	}
 
-	private double calc_budget() {
+	private double calc_budget(Map<HashWrapper, ArrayList<PEPeerTransportProtocol>> unchokes) {
 		logger.finest("calc_budget");
 
 		double min_roi = Double.MAX_VALUE;
-		for (List<PEPeerTransportProtocol> list : global_unchokes.values()) {
+		for (List<PEPeerTransportProtocol> list : unchokes.values()) {
 			for (PEPeerTransportProtocol peer : list) {
 				if (peer.getReputation() < min_roi && peer.getReputation() != 0)
 					min_roi = peer.getReputation();
@@ -417,7 +464,7 @@ public class GloballyAwareOneHopUnchoker
 
 		double total = 0;
 
-		for (List<PEPeerTransportProtocol> list : global_unchokes.values()) {
+		for (List<PEPeerTransportProtocol> list : unchokes.values()) {
 			for (PEPeerTransportProtocol peer : list) {
 				if (peer.getWeight() > 0)
 					continue; // we've already set this one. 
@@ -459,7 +506,7 @@ public class GloballyAwareOneHopUnchoker
 		 * Normalize 
 		 */
 		int id = (int) (Math.random() * 100); // disambiguate log output
-		for (List<PEPeerTransportProtocol> list : global_unchokes.values()) {
+		for (List<PEPeerTransportProtocol> list : unchokes.values()) {
 			for (PEPeerTransportProtocol peer : list) {
 				peer.setWeight(peer.getWeight() / total);
 				
@@ -504,18 +551,18 @@ public class GloballyAwareOneHopUnchoker
 		 */
 		if (last_recompute + RECOMPUTE_INTERVAL_SECS * 1000 < System.currentTimeMillis()) {
 			full_unchoke_recompute();
-			last_recompute = System.currentTimeMillis();
 		}
 	}
 
-	public synchronized ArrayList unchokes_for_swarm(HashWrapper swarm) {
-		for (List<PEPeerTransportProtocol> l : global_unchokes.values()) {
+	public ArrayList unchokes_for_swarm(HashWrapper swarm) {
+		Map<HashWrapper, ArrayList<PEPeerTransportProtocol>> current = global_unchokes;
+		for (List<PEPeerTransportProtocol> l : current.values()) {
 			if (l.size() > 0) {
 				logger.finer("unchoke size: " + l.size() + " for "
 						+ ByteFormatter.encodeString(swarm.getBytes()));
 			}
 		}
-		ArrayList out = (ArrayList) global_unchokes.get(swarm);
+		ArrayList out = current.get(swarm);
 		if (out == null) {
 			
 			logger.warning("Null global_unchokes for swarm: "
@@ -526,14 +573,15 @@ public class GloballyAwareOneHopUnchoker
 		return out;
 	}
 
-	public synchronized ArrayList chokes_for_swarm(HashWrapper swarm) {
-		for (List<PEPeerTransportProtocol> l : global_chokes.values()) {
+	public ArrayList chokes_for_swarm(HashWrapper swarm) {
+		Map<HashWrapper, ArrayList<PEPeerTransportProtocol>> current = global_chokes;
+		for (List<PEPeerTransportProtocol> l : current.values()) {
 			if (l.size() > 0) {
 				logger.finer("choke size: " + l.size() + " for "
 						+ ByteFormatter.encodeString(swarm.getBytes()));
 			}
 		}
-		ArrayList out = (ArrayList) global_chokes.get(swarm);
+		ArrayList out = current.get(swarm);
 		if (out == null) {
 			//logger.warning("Null global_chokes for swarm: " + ByteFormatter.encodeString(swarm.getBytes()));
 			return new ArrayList();
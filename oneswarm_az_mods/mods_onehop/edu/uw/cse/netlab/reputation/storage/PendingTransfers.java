@@ -0,0 +1,104 @@
+package edu.uw.cse.netlab.reputation.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory byte counts for the transfer columns of the state table that
+ * have not yet been written to the DB. Counters are striped by internal id so
+ * that peer I/O threads only ever contend on a short, SQL-free lock.
+ */
+class PendingTransfers
+{
+	public static final int SENT_DIRECT = 0;
+	public static final int RECEIVED_DIRECT = 1;
+	public static final int LOCAL_SENT_DUE_TO_REMOTE_RECO = 2;
+	public static final int LOCAL_RECV_DUE_TO_REMOTE_RECO = 3;
+	public static final int OTHERS_SENT_DUE_TO_MY_RECO = 4;
+	public static final int OTHERS_RECV_DUE_TO_MY_RECO = 5;
+
+	/** Column names in the state table, indexed by the constants above */
+	public static final String [] FIELDS = {
+		"sent_direct",
+		"received_direct",
+		"local_sent_due_to_remote_reco",
+		"local_recv_due_to_remote_reco",
+		"others_sent_due_to_my_reco",
+		"others_recv_due_to_my_reco"
+	};
+
+	private static final int STRIPES = 16;
+
+	private final List<Map<Long, long[]>> mStripes = new ArrayList<Map<Long, long[]>>(STRIPES);
+
+	public PendingTransfers()
+	{
+		for( int i=0; i<STRIPES; i++ )
+			mStripes.add(new HashMap<Long, long[]>());
+	}
+
+	private Map<Long, long[]> stripe( long inID )
+	{
+		int h = (int)(inID ^ (inID >>> 32));
+		h ^= (h >>> 16);
+		return mStripes.get(h & (STRIPES-1));
+	}
+
+	public void add( long inID, int inField, long inBytes )
+	{
+		Map<Long, long[]> s = stripe(inID);
+		synchronized( s )
+		{
+			long [] counts = s.get(inID);
+			if( counts == null )
+			{
+				counts = new long[FIELDS.length];
+				s.put(inID, counts);
+			}
+			counts[inField] += inBytes;
+		}
+	}
+
+	public long get( long inID, int inField )
+	{
+		Map<Long, long[]> s = stripe(inID);
+		synchronized( s )
+		{
+			long [] counts = s.get(inID);
+			return counts == null ? 0 : counts[inField];
+		}
+	}
+
+	/**
+	 * Removes and returns everything pending. The caller is responsible for
+	 * writing it out (or handing it back with restore() on failure).
+	 */
+	public Map<Long, long[]> drain()
+	{
+		Map<Long, long[]> out = new HashMap<Long, long[]>();
+		for( Map<Long, long[]> s : mStripes )
+		{
+			synchronized( s )
+			{
+				out.putAll(s);
+				s.clear();
+			}
+		}
+		return out;
+	}
+
+	public void restore( Map<Long, long[]> inDrained )
+	{
+		for( Map.Entry<Long, long[]> e : inDrained.entrySet() )
+		{
+			long [] counts = e.getValue();
+			for( int f=0; f<counts.length; f++ )
+			{
+				if( counts[f] != 0 )
+					add(e.getKey(), f, counts[f]);
+			}
+		}
+	}
+}
@@ -251,6 +251,13 @@ public class Receipt implements Serializable
 		received_direct *= 100;
 	}
 
+	/**
+	 * For ReceiptCodec, which fills in the fields itself
+	 */
+	Receipt()
+	{
+	}
+
 	/**
 	 * Constructs a receipt from our perspective for inRemotePeer
 	 * 
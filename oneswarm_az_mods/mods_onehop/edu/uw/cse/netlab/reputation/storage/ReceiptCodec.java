@@ -0,0 +1,136 @@
+package edu.uw.cse.netlab.reputation.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Date;
+
+import edu.uw.cse.netlab.utils.BloomFilter;
+import edu.uw.cse.netlab.utils.ByteManip;
+import edu.uw.cse.netlab.utils.KeyManipulation;
+
+/**
+ * Storage format for the receipts in the attestations table.
+ *
+ * Receipts used to be stored Java-serialized, which made every read re-parse both keys and re-verify
+ * the RSA signature (Receipt.readObject). Receipts are verified when they arrive over the wire, so
+ * rows are now written in this fixed binary layout and decoded without verification. The counters
+ * come first so the top K computation can score a row without touching the rest.
+ *
+ * Rows written before this still start with the serialization magic and are decoded the old way.
+ */
+final class ReceiptCodec
+{
+	private static final int MAGIC = 0x52430001; // "RC", version 1
+	private static final int SERIALIZED_MAGIC = 0xACED;
+
+	private ReceiptCodec() {}
+
+	public static byte [] encode( Receipt inReceipt ) throws IOException
+	{
+		if( inReceipt.mSignature == null )
+			inReceipt.generate_signature();
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+		DataOutputStream dos = new DataOutputStream(bytes);
+		dos.writeInt(MAGIC);
+		dos.writeLong(inReceipt.sent_direct);
+		dos.writeLong(inReceipt.received_direct);
+		dos.writeLong(inReceipt.peer_received_due_to_reco);
+		dos.writeLong(inReceipt.peer_sent_to_recos);
+		dos.writeInt(inReceipt.sent_direct_diff);
+		dos.writeLong(inReceipt.timestamp.getTime());
+		write_bytes(dos, inReceipt.mSigning.getEncoded());
+		write_bytes(dos, inReceipt.mEncodingStateFor.getEncoded());
+		write_bytes(dos, inReceipt.mSignature);
+		write_bytes(dos, inReceipt.mOnBehalfOf == null ? null : ByteManip.objectToBytes(inReceipt.mOnBehalfOf));
+		dos.close();
+		return bytes.toByteArray();
+	}
+
+	public static Receipt decode( byte [] inBytes ) throws IOException
+	{
+		if( is_serialized(inBytes) )
+			return (Receipt)ByteManip.objectFromBytes(inBytes);
+
+		DataInputStream dis = open(inBytes);
+		Receipt r = new Receipt();
+		r.sent_direct = dis.readLong();
+		r.received_direct = dis.readLong();
+		r.peer_received_due_to_reco = dis.readLong();
+		r.peer_sent_to_recos = dis.readLong();
+		r.sent_direct_diff = dis.readInt();
+		r.timestamp = new Date(dis.readLong());
+		try
+		{
+			r.mSigning = KeyManipulation.keyForEncodedBytes(read_bytes(dis));
+			r.mEncodingStateFor = KeyManipulation.keyForEncodedBytes(read_bytes(dis));
+		}
+		catch( InvalidKeySpecException e )
+		{
+			throw new IOException(e.toString());
+		}
+		r.mSignature = read_bytes(dis);
+		byte [] on_behalf_of = read_bytes(dis);
+		if( on_behalf_of != null )
+			r.mOnBehalfOf = (BloomFilter)ByteManip.objectFromBytes(on_behalf_of);
+		return r;
+	}
+
+	/**
+	 * @return a receipt with only the counters that Computation.peer_value_at_intermediary() looks at
+	 * filled in, read without parsing the keys
+	 */
+	public static Receipt decode_counters( byte [] inBytes ) throws IOException
+	{
+		if( is_serialized(inBytes) )
+			return decode(inBytes);
+
+		DataInputStream dis = open(inBytes);
+		Receipt r = new Receipt();
+		r.sent_direct = dis.readLong();
+		r.received_direct = dis.readLong();
+		r.peer_received_due_to_reco = dis.readLong();
+		r.peer_sent_to_recos = dis.readLong();
+		return r;
+	}
+
+	private static boolean is_serialized( byte [] inBytes )
+	{
+		return inBytes.length >= 2 && ((inBytes[0] & 0xFF) << 8 | (inBytes[1] & 0xFF)) == SERIALIZED_MAGIC;
+	}
+
+	private static DataInputStream open( byte [] inBytes ) throws IOException
+	{
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(inBytes));
+		if( inBytes.length < 4 || dis.readInt() != MAGIC )
+			throw new IOException("unknown receipt encoding");
+		return dis;
+	}
+
+	private static void write_bytes( DataOutputStream dos, byte [] inBytes ) throws IOException
+	{
+		if( inBytes == null )
+		{
+			dos.writeInt(-1);
+			return;
+		}
+		dos.writeInt(inBytes.length);
+		dos.write(inBytes);
+	}
+
+	private static byte [] read_bytes( DataInputStream dis ) throws IOException
+	{
+		int len = dis.readInt();
+		if( len < 0 )
+			return null;
+		if( len > dis.available() )
+			throw new IOException("truncated receipt");
+		byte [] out = new byte[len];
+		dis.readFully(out);
+		return out;
+	}
+}
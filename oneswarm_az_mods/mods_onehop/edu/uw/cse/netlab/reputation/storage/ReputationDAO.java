@@ -10,7 +10,6 @@ import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
-import java.sql.Blob;
 import java.sql.Connection;
 import java.sql.Date;
 import java.sql.DriverManager;
@@ -21,9 +20,7 @@ import java.sql.SQLException;
 import java.sql.SQLWarning;
 import java.sql.Statement;
 import java.sql.Timestamp;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -31,6 +28,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 import org.gudy.azureus2.core3.config.COConfigurationManager;
@@ -38,7 +36,6 @@ import org.gudy.azureus2.core3.util.ByteFormatter;
 import org.gudy.azureus2.core3.util.SystemProperties;
 
 import sun.security.x509.CertAndKeyGen;
-import edu.uw.cse.netlab.reputation.Computation;
 import edu.uw.cse.netlab.reputation.LocalIdentity;
 import edu.uw.cse.netlab.reputation.messages.Attestation;
 import edu.uw.cse.netlab.utils.ByteManip;
@@ -135,7 +132,31 @@ public class ReputationDAO
 	private LocalTopK mTopKCache = null;
 	private long mLastTopKRefresh = 0;
 	
+	// TODO: (slightly less) magic constants
+	private static final int TOP_K_SIZE = 2000;
+	private static final double TOP_K_MIN_SCORE = 1.0;
+	
+	/** Loaded by the first get_topK_by_obs(), updated incrementally after that */
+	private TopKScores mTopKScores = null;
+	
 	private SoftStateSync mSoftStateSync = new SoftStateSync();
+	
+	/**
+	 * Transfer accounting is on the data path, so increments are accumulated here and 
+	 * written out in batches by the flush timer (and on shutdown). 
+	 */
+	private static final long PENDING_FLUSH_INTERVAL = 10*1000;
+	private final PendingTransfers mPending = new PendingTransfers();
+	
+	/**
+	 * remote_id -> the transfer columns of its state row as last read from or written to the DB, 
+	 * indexed like PendingTransfers.FIELDS. The unchoker reads these for every connected peer on 
+	 * every recompute; flush() is the only writer of these columns and keeps the cached rows current.
+	 */
+	private final Map<Long, long[]> mStateCache = new HashMap<Long, long[]>();
+	
+	/** public key -> db_id. Rows in keys are never deleted, so this never goes stale. */
+	private final Map<PublicKey, Long> mInternalIDCache = new ConcurrentHashMap<PublicKey, Long>();
 	public SoftStateSync getSoftStateSync() { return mSoftStateSync; }
 	
 	private ReputationDAO() 
@@ -174,6 +195,88 @@ public class ReputationDAO
 				logger.fine("prune tables, named!");
 				prune_tables();
 			}}, 60*1000, 60*60*1000 );
+		
+		(new Timer("reputation flush", true)).schedule(new TimerTask(){
+			public void run() {
+				flush();
+			}}, PENDING_FLUSH_INTERVAL, PENDING_FLUSH_INTERVAL );
+		
+		Runtime.getRuntime().addShutdownHook(new Thread("reputation flush on shutdown") {
+			public void run() {
+				flush();
+			}});
+	}
+	
+	/**
+	 * Writes all pending transfer counts to the state table in a single transaction. 
+	 * Holding the DAO lock while doing so means readers always see either the pre- or 
+	 * post-flush split between DB and pending counts, never a partial one.
+	 */
+	public synchronized void flush()
+	{
+		Map<Long, long[]> drained = mPending.drain();
+		if( drained.isEmpty() )
+			return;
+		
+		PreparedStatement stmt = null;
+		try
+		{
+			StringBuilder sql = new StringBuilder("UPDATE state SET ");
+			for( int f=0; f<PendingTransfers.FIELDS.length; f++ )
+			{
+				if( f > 0 )
+					sql.append(", ");
+				sql.append(PendingTransfers.FIELDS[f] + " = " + PendingTransfers.FIELDS[f] + " + ?");
+			}
+			sql.append(" WHERE remote_id = ?");
+			
+			mDB.setAutoCommit(false);
+			stmt = mDB.prepareStatement(sql.toString());
+			for( Map.Entry<Long, long[]> e : drained.entrySet() )
+			{
+				long [] counts = e.getValue();
+				for( int f=0; f<counts.length; f++ )
+					stmt.setLong(f+1, counts[f]);
+				stmt.setLong(counts.length+1, e.getKey());
+				stmt.addBatch();
+			}
+			stmt.executeBatch();
+			mDB.commit();
+			
+			for( Map.Entry<Long, long[]> e : drained.entrySet() )
+			{
+				long [] cached = mStateCache.get(e.getKey());
+				if( cached != null )
+				{
+					long [] counts = e.getValue();
+					for( int f=0; f<counts.length; f++ )
+						cached[f] += counts[f];
+				}
+			}
+			
+			if( mTopKScores != null )
+			{
+				for( Map.Entry<Long, long[]> e : drained.entrySet() )
+					mTopKScores.add_local_recv(e.getKey(), e.getValue()[PendingTransfers.LOCAL_RECV_DUE_TO_REMOTE_RECO]);
+			}
+			
+			logger.finest("flushed transfer counts for " + drained.size() + " peers");
+		}
+		catch( SQLException e )
+		{
+			logger.warning("couldn't flush transfer counts, will retry: " + e.toString());
+			try {
+				mDB.rollback();
+			} catch( SQLException e2 ) {}
+			mPending.restore(drained);
+		}
+		finally
+		{
+			try {
+				if( stmt != null ) stmt.close();
+				mDB.setAutoCommit(true);
+			} catch( Exception e ) {}
+		}
 	}
 	
 	private synchronized void prune_tables()
@@ -274,117 +377,123 @@ public class ReputationDAO
 		logger.fine("recomputing top K");
 		mLastTopKRefresh = System.currentTimeMillis();
 		
-		// TODO: keep per-execution change bits on these so we aren't constantly recomputing these during exec.
-		// could be a pain to do so when the set of peers gets towards 4k... (then again, most peers should have occs <=1, so maybe 
-		// we should just prune to that)
-		final Map<Long, Double> peer_to_score = new HashMap<Long, Double>();
+		if( mTopKScores == null )
+			mTopKScores = load_topK_scores();
+		
+		// The score of each candidate is their perception of our quality. We take the top 2000 
+		// ones as our top K set. 
+		// TODO: should we include scores < 1.0? risk is that they will be chosen over peers with which we have better standing, hurting our performance, 
+		// but finding ANY shared intermediary might be valuable in other cases. Check this later
+		long [] top_ids = mTopKScores.top(TOP_K_SIZE, TOP_K_MIN_SCORE, mPending);
+		PublicKey [] topK = new PublicKey[top_ids.length];
+		try
+		{
+			for( int i=0; i<top_ids.length; i++ )
+			{
+				topK[i] = mTopKScores.get_key(top_ids[i]);
+				if( topK[i] == null )
+					throw new IOException("Inconsistent DB: key not found given db id: " + top_ids[i]);
+			}
+		}
+		catch( InvalidKeySpecException e )
+		{
+			e.printStackTrace();
+			throw new IOException(e.toString());
+		}
+		logger.fine("top K has " + topK.length + " of " + mTopKScores.size() + " candidates");
+		
+		// Rebuilding the bloom filter isn't free, keep the old one if nothing changed
+		if( mTopKCache == null || Arrays.equals(mTopKCache.getKeys(), topK) == false )
+			mTopKCache = new LocalTopK(topK);
 		
-		String sql = "SELECT remote_id, my_observations + indirect_observations AS occs FROM state ORDER BY occs DESC";
+		return mTopKCache;
+	}
+	
+	/**
+	 * Reads the latest attestation about us from each signer, along with the state the top K 
+	 * computation needs, in one query. 
+	 */
+	private TopKScores load_topK_scores() throws IOException
+	{
+		long start = System.currentTimeMillis();
+		TopKScores scores = new TopKScores();
 		Statement stmt = null;
-		PreparedStatement key_lookup = null, attest_lookup = null;
-		List<PublicKey> topK = new ArrayList<PublicKey>();
-		try 
+		try
 		{
 			stmt = mDB.createStatement();
-			//stmt.setMaxRows(4000);
-			key_lookup = mDB.prepareStatement("SELECT public_key FROM keys WHERE db_id = ?");
-			attest_lookup = mDB.prepareStatement(
-					"SELECT bytes FROM attestations WHERE " +
-					"	encoding_for = 1 AND " +
-					"	signer = ? " +
-					"ORDER BY time DESC");
-			//attest_lookup.setMaxRows(1);
-			
-			ResultSet rs = stmt.executeQuery(sql);
-			
+			ResultSet rs = stmt.executeQuery(
+					"SELECT a.signer, a.time, a.bytes, s.local_recv_due_to_remote_reco, " +
+					"	s.my_observations, s.indirect_observations, k.public_key " +
+					"FROM attestations a, state s, keys k " +
+					"WHERE " +
+					"	a.encoding_for = 1 AND " +
+					"	s.remote_id = a.signer AND " +
+					"	k.db_id = a.signer AND " +
+					"	a.time = (SELECT MAX(latest.time) FROM attestations latest " +
+					"		WHERE latest.encoding_for = 1 AND latest.signer = a.signer)");
 			while( rs.next() )
 			{
-				long candidate_id = rs.getLong(1);
-				
-				logger.fine("topk considering candidate: " + candidate_id);
-				
-				// 1. do we have an attestation for this popular intermediary? 
-				attest_lookup.setLong(1, candidate_id);
-				ResultSet attest_rs = attest_lookup.executeQuery();
-				if( attest_rs.next() == false )
-				{
-					attest_rs.close();
-					logger.fine("no attest");
+				long signer = rs.getLong(1);
+				// indirect attestations have a row per intermediary, with the same receipt
+				if( scores.contains(signer) )
 					continue;
+				Receipt counters;
+				try
+				{
+					counters = ReceiptCodec.decode_counters(rs.getBytes(3));
 				}
-				
-				// 2. recover the receipt info from the attestation
-				Blob blob = attest_rs.getBlob("bytes");
-				Receipt latest_candidate_receipt = (Receipt) ByteManip.objectFromBytes(blob.getBytes(1, (int)blob.length()));
-				
-				// 3. Update the receipt with anything we've done to cash in on standing with this intermediary 
-				latest_candidate_receipt.peer_received_due_to_reco = get_local_recv_due_to_remote_reco(candidate_id);
-				
-				// 4. The score of this candidate is their perception of our quality, computed here
-				peer_to_score.put(candidate_id, Computation.peer_value_at_intermediary(latest_candidate_receipt));
-				
-				logger.fine("score: " + peer_to_score.get(candidate_id));
-			}
-			
-			// We sort the scores and take the top 2000 positive ones as our top K set 
-			Long [] scored_peers = peer_to_score.keySet().toArray(new Long[0]);
-			Arrays.sort(scored_peers, new Comparator<Long>(){
-				public int compare( Long o1, Long o2 ) {
-					double diff = peer_to_score.get(o1) - peer_to_score.get(o2);
-					if( diff > 0 )
-						return -1;
-					if( diff < 0 )
-						return 1;
-					return 0;
+				catch( IOException e )
+				{
+					logger.warning("skipping unreadable attestation from " + signer + ": " + e.toString());
+					continue;
 				}
-			});
-			logger.finest("sorted scored peers, first few...");
-			for( int i=0; i<Math.min(scored_peers.length, 3); i++ )
-				logger.finest(scored_peers[i] + " " + peer_to_score.get(scored_peers[i]));
-			
-			// TODO: (slightly less) magic constant
-			for( int i=0; i<Math.min(2000, scored_peers.length); i++ )
-			{
-				long candidate_id = scored_peers[i];
-				
-				// TODO: should we include these? risk is that they will be chosen over peers with which we have better standing, hurting our performance, 
-				// but finding ANY shared intermediary might be valuable in other cases. Check this later
-				if( peer_to_score.get(candidate_id) < 1.0 )
-					break;
-				
-				key_lookup.setLong(1, candidate_id);
-				ResultSet keyRS = key_lookup.executeQuery();
-				if( keyRS.next() == false )
-					throw new IOException("Inconsistent DB: key not found given db id: " + candidate_id);
-				PublicKey key = KeyManipulation.keyForEncodedBytes(ByteFormatter.decodeString(keyRS.getString(1)));
-				topK.add(key);
+				scores.put(signer, counters, rs.getTimestamp(2).getTime(), rs.getLong(4), rs.getInt(5), 
+						rs.getDouble(6), rs.getString(7), null);
 			}
-			
-			logger.fine("top K has " + topK.size());
+			rs.close();
 		}
 		catch( SQLException e )
 		{
 			e.printStackTrace();
 			throw new IOException(e.toString());
-		} 
-		catch( InvalidKeySpecException e )
-		{
-			System.err.println(e);
-			e.printStackTrace();
-			throw new IOException(e.toString());
 		}
 		finally
 		{
 			try {
 				if( stmt != null ) stmt.close();
-				if( key_lookup != null ) key_lookup.close();
-				if( attest_lookup != null ) attest_lookup.close();
 			} catch( Exception e ) {}
 		}
+		logger.fine("loaded " + scores.size() + " top K candidates in " + (System.currentTimeMillis() - start) + " ms");
+		return scores;
+	}
+	
+	/**
+	 * Keeps the top K candidates current after an attestation about us from inSignerID was stored. 
+	 */
+	private void topK_attestation_recorded( long inSignerID, Receipt inReceipt ) throws SQLException
+	{
+		if( mTopKScores == null )
+			return; // will be read by load_topK_scores()
 		
-		mTopKCache = new LocalTopK(topK.toArray(new PublicKey[0]));
+		long time = inReceipt.getTimestamp().getTime();
+		if( mTopKScores.update_receipt(inSignerID, inReceipt, time) )
+			return;
 		
-		return mTopKCache;
+		PreparedStatement stmt = mDB.prepareStatement(
+				"SELECT local_recv_due_to_remote_reco, my_observations, indirect_observations FROM state WHERE remote_id = ?");
+		try
+		{
+			stmt.setLong(1, inSignerID);
+			ResultSet rs = stmt.executeQuery();
+			if( rs.next() )
+				mTopKScores.put(inSignerID, inReceipt, time, rs.getLong(1), rs.getInt(2), rs.getDouble(3), 
+						null, inReceipt.getSigningKey());
+			rs.close();
+		}
+		finally
+		{
+			stmt.close();
+		}
 	}
 	
 	public synchronized PublicKey get_public_key( long inInternalID ) throws IOException 
@@ -415,7 +524,21 @@ public class ReputationDAO
 		return result;
 	}
 	
-	public synchronized long get_internal_id( PublicKey inPubKey ) throws IOException
+	/**
+	 * Only the first lookup for a key touches the DB, so this is safe to call from the data path. 
+	 */
+	public long get_internal_id( PublicKey inPubKey ) throws IOException
+	{
+		Long cached = mInternalIDCache.get(inPubKey);
+		if( cached != null )
+			return cached;
+		
+		long id = lookup_internal_id(inPubKey);
+		mInternalIDCache.put(inPubKey, id);
+		return id;
+	}
+	
+	private synchronized long lookup_internal_id( PublicKey inPubKey ) throws IOException
 	{
 		try 
 		{
@@ -467,20 +590,20 @@ public class ReputationDAO
 		}
 	}
 	
-	public void sent_direct( long inID, long bytes ) throws IOException { increment_field(inID, "sent_direct", bytes); }
-	public void received_direct( long inID, long bytes ) throws IOException { increment_field(inID, "received_direct", bytes); }
-	public long get_sent_direct( long inID ) throws IOException { return retrieve_long(inID, "sent_direct"); }
-	public long get_received_direct( long inID ) throws IOException { return retrieve_long(inID, "received_direct"); }
+	public void sent_direct( long inID, long bytes ) throws IOException { increment_field(inID, PendingTransfers.SENT_DIRECT, bytes); }
+	public void received_direct( long inID, long bytes ) throws IOException { increment_field(inID, PendingTransfers.RECEIVED_DIRECT, bytes); }
+	public long get_sent_direct( long inID ) throws IOException { return retrieve_long(inID, PendingTransfers.SENT_DIRECT); }
+	public long get_received_direct( long inID ) throws IOException { return retrieve_long(inID, PendingTransfers.RECEIVED_DIRECT); }
 	
-	public void local_sent_due_to_remote_reco( long inID, long bytes ) throws IOException { increment_field(inID, "local_sent_due_to_remote_reco", bytes); }
-	public void local_recv_due_to_remote_reco( long inID, long bytes ) throws IOException { increment_field(inID, "local_recv_due_to_remote_reco", bytes); }
-	public long get_local_sent_due_to_remote_reco( long inID ) throws IOException { return retrieve_long(inID, "local_sent_due_to_remote_reco"); }
-	public long get_local_recv_due_to_remote_reco( long inID ) throws IOException { return retrieve_long(inID, "local_recv_due_to_remote_reco"); }
+	public void local_sent_due_to_remote_reco( long inID, long bytes ) throws IOException { increment_field(inID, PendingTransfers.LOCAL_SENT_DUE_TO_REMOTE_RECO, bytes); }
+	public void local_recv_due_to_remote_reco( long inID, long bytes ) throws IOException { increment_field(inID, PendingTransfers.LOCAL_RECV_DUE_TO_REMOTE_RECO, bytes); }
+	public long get_local_sent_due_to_remote_reco( long inID ) throws IOException { return retrieve_long(inID, PendingTransfers.LOCAL_SENT_DUE_TO_REMOTE_RECO); }
+	public long get_local_recv_due_to_remote_reco( long inID ) throws IOException { return retrieve_long(inID, PendingTransfers.LOCAL_RECV_DUE_TO_REMOTE_RECO); }
 	
-	public void others_sent_due_to_my_reco( long inID, long bytes ) throws IOException { increment_field(inID, "others_sent_due_to_my_reco", bytes); }
-	public void others_recv_due_to_my_reco( long inID, long bytes ) throws IOException { increment_field(inID, "others_recv_due_to_my_reco", bytes); }
-	public long get_others_sent_due_to_my_reco( long inID ) throws IOException { return retrieve_long(inID, "others_sent_due_to_my_reco"); }
-	public long get_others_recv_due_to_my_reco( long inID ) throws IOException { return retrieve_long(inID, "others_recv_due_to_my_reco"); }
+	public void others_sent_due_to_my_reco( long inID, long bytes ) throws IOException { increment_field(inID, PendingTransfers.OTHERS_SENT_DUE_TO_MY_RECO, bytes); }
+	public void others_recv_due_to_my_reco( long inID, long bytes ) throws IOException { increment_field(inID, PendingTransfers.OTHERS_RECV_DUE_TO_MY_RECO, bytes); }
+	public long get_others_sent_due_to_my_reco( long inID ) throws IOException { return retrieve_long(inID, PendingTransfers.OTHERS_SENT_DUE_TO_MY_RECO); }
+	public long get_others_recv_due_to_my_reco( long inID ) throws IOException { return retrieve_long(inID, PendingTransfers.OTHERS_RECV_DUE_TO_MY_RECO); }
 	
 	
 	public synchronized String get_soft_state( PublicKey inKey ) throws IOException 
@@ -642,6 +765,9 @@ public class ReputationDAO
 			stmt.executeUpdate();
 			
 			mDB.commit();
+			
+			if( mTopKScores != null )
+				mTopKScores.add_observations(inID, 1, 0);
 		}
 		catch( SQLException e )
 		{
@@ -673,6 +799,9 @@ public class ReputationDAO
 			stmt.setLong(1, inID);
 			stmt.executeUpdate();
 			mDB.commit();
+			
+			if( mTopKScores != null )
+				mTopKScores.decrease_observations(inID, 0.95);
 		}
 		catch( SQLException e )
 		{
@@ -705,6 +834,9 @@ public class ReputationDAO
 			stmt.executeUpdate();
 			stmt.close();
 			mDB.commit();
+			
+			if( mTopKScores != null )
+				mTopKScores.add_observations(inID, 0, inFraction);
 		}
 		catch( SQLException e )
 		{
@@ -728,10 +860,13 @@ public class ReputationDAO
 			stmt.setLong(1, inUpdateReceipt.getSigningID());
 			stmt.setLong(2, inUpdateReceipt.getEncodingStateForID());
 			stmt.setTimestamp(3, new Timestamp(inUpdateReceipt.getTimestamp().getTime()));
-			stmt.setBytes(4, ByteManip.objectToBytes(inUpdateReceipt));
+			stmt.setBytes(4, ReceiptCodec.encode(inUpdateReceipt));
 			stmt.executeUpdate();
 			
 			mDB.commit();
+			
+			if( inUpdateReceipt.getEncodingStateForID() == 1 )
+				topK_attestation_recorded(inUpdateReceipt.getSigningID(), inUpdateReceipt);
 		}
 		catch( SQLException e )
 		{
@@ -775,7 +910,7 @@ public class ReputationDAO
 			// 3 is set per-intermediary below
 			mark_previous.setTimestamp(4, new Timestamp(recpt.getTimestamp().getTime()));
 			
-			stmt.setBytes(4, ByteManip.objectToBytes(recpt));
+			stmt.setBytes(4, ReceiptCodec.encode(recpt));
 			
 			// This isn't very efficient storage but makes the rest of the code and data storage (which is done on a per-int basis) much more
 			// comprehensible. 
@@ -809,6 +944,9 @@ public class ReputationDAO
 			}
 			mDB.commit();
 			logger.fine("recorded attestation: " + inAttestation);
+			
+			if( recpt.getEncodingStateForID() == 1 )
+				topK_attestation_recorded(recpt.getSigningID(), recpt);
 		}
 		catch( SQLException e )
 		{
@@ -849,42 +987,68 @@ public class ReputationDAO
 		
 	}
 	
-	private synchronized void increment_field( long inID, String inField, long inBytes ) throws IOException 
+	/**
+	 * Not synchronized on the DAO -- the count is picked up by the next flush().
+	 */
+	private void increment_field( long inID, int inField, long inBytes ) throws IOException 
 	{
-		try 
-		{
-			String sql = "UPDATE state SET " + inField + " = " + inField + " + ? WHERE remote_id = ?";
-			PreparedStatement stmt = mDB.prepareStatement(sql);
-			stmt.setLong(1, inBytes);
-			stmt.setLong(2, inID);
-			stmt.executeUpdate();
-			stmt.close();
-			mDB.commit();
-		}
-		catch( SQLException e )
+		mPending.add(inID, inField, inBytes);
+	}
+	
+	/**
+	 * @return the DB value plus anything not yet flushed, or -1 if there is no state for inID
+	 */
+	private synchronized long retrieve_long( long inID, int inField ) throws IOException 
+	{
+		long [] row = mStateCache.get(inID);
+		if( row == null )
 		{
-			e.printStackTrace();
-			throw new IOException(e.toString());
+			row = load_state_row(inID);
+			if( row == null )
+				return -1;
+			mStateCache.put(inID, row);
 		}
+		return row[inField] + mPending.get(inID, inField);
 	}
 	
-	
-	private synchronized long retrieve_long( long inID, String inField ) throws IOException 
+	/**
+	 * @return all the transfer columns for inID, or null if there is no state for inID
+	 */
+	private long [] load_state_row( long inID ) throws IOException
 	{
+		PreparedStatement stmt = null;
 		try
 		{
-			PreparedStatement stmt = mDB.prepareStatement("SELECT " + inField + " FROM state WHERE remote_id = ?");
+			StringBuilder sql = new StringBuilder("SELECT ");
+			for( int f=0; f<PendingTransfers.FIELDS.length; f++ )
+			{
+				if( f > 0 )
+					sql.append(", ");
+				sql.append(PendingTransfers.FIELDS[f]);
+			}
+			sql.append(" FROM state WHERE remote_id = ?");
+			
+			stmt = mDB.prepareStatement(sql.toString());
 			stmt.setLong(1, inID);
 			ResultSet rs = stmt.executeQuery();
 			if( rs.next() == false )
-				return -1;
-			return rs.getLong(1);
+				return null;
+			long [] row = new long[PendingTransfers.FIELDS.length];
+			for( int f=0; f<row.length; f++ )
+				row[f] = rs.getLong(f+1);
+			return row;
 		}
 		catch( SQLException e )
 		{
 			e.printStackTrace();
 			throw new IOException(e.toString());
 		}
+		finally
+		{
+			try {
+				if( stmt != null ) stmt.close();
+			} catch( Exception e ) {}
+		}
 	}
 	
 	public synchronized static ReputationDAO get() {
@@ -944,7 +1108,7 @@ public class ReputationDAO
 				{
 					ResultSet rs = s.executeQuery( "SELECT bytes FROM attestations WHERE attest_id = " + toks[1] );
 					if( rs.next() )
-						System.out.println( ByteManip.objectFromBytes(rs.getBytes(1)) );					
+						System.out.println( ReceiptCodec.decode(rs.getBytes(1)) );					
 				}
 				else if( line.startsWith("show") )
 				{
@@ -1093,7 +1257,7 @@ public class ReputationDAO
 					boolean perm_failure = verification_attempts > 10 ||
 											verification_attempts > 1 && original_receipt_time.before( new Date(System.currentTimeMillis() - (24*60*60*1000)) ); 
 					
-					attest = (Receipt)ByteManip.objectFromBytes(rs.getBytes(1));
+					attest = ReceiptCodec.decode(rs.getBytes(1));
 					
 					// Since we didn't serialize this...
 					attest.set_received_due_to_reco_offset(rs.getInt("received_due_to_reco_offset_with_int"));
@@ -1246,7 +1410,7 @@ public class ReputationDAO
 			ResultSet rs = attest_lookup.executeQuery();
 			if( rs.next() )
 			{
-				r = (Receipt)ByteManip.objectFromBytes(rs.getBytes("bytes"));
+				r = ReceiptCodec.decode(rs.getBytes("bytes"));
 			}
 		}
 		catch( Exception e )
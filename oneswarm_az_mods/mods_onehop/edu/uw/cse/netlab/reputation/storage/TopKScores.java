@@ -0,0 +1,254 @@
+package edu.uw.cse.netlab.reputation.storage;
+
+import java.io.IOException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.gudy.azureus2.core3.util.ByteFormatter;
+
+import edu.uw.cse.netlab.reputation.Computation;
+import edu.uw.cse.netlab.utils.KeyManipulation;
+
+/**
+ * What the top K computation needs to know about each peer that has given us an attestation: the
+ * counters of the latest one, our local_recv_due_to_remote_reco with them, and their observation
+ * counts. ReputationDAO loads this with a single query and then keeps it current as attestations,
+ * observations and transfer counts are recorded, so recomputing the top K set doesn't touch the DB.
+ *
+ * Not thread safe, ReputationDAO only uses it while holding its lock.
+ */
+class TopKScores
+{
+	private static class Candidate
+	{
+		long sent_direct, received_direct, peer_sent_to_recos;
+		/** when the receipt these counters came from was signed */
+		long time;
+		/** local_recv_due_to_remote_reco as of the last flush */
+		long local_recv;
+		int my_observations;
+		double indirect_observations;
+		String encoded_key;
+		PublicKey key;
+	}
+
+	private final Map<Long, Candidate> mCandidates = new HashMap<Long, Candidate>();
+
+	/** Scratch for Computation.peer_value_at_intermediary() */
+	private final Receipt mScratch = new Receipt();
+
+	public int size() { return mCandidates.size(); }
+
+	public boolean contains( long inID ) { return mCandidates.containsKey(inID); }
+
+	/**
+	 * Adds a peer, or replaces its receipt counters if inReceipt is at least as recent as the one we have.
+	 *
+	 * @param inEncodedKey the public_key column for inID, only used if inKey is null
+	 */
+	public void put( long inID, Receipt inReceipt, long inTime, long inLocalRecv, int inMyObservations,
+			double inIndirectObservations, String inEncodedKey, PublicKey inKey )
+	{
+		Candidate c = mCandidates.get(inID);
+		if( c == null )
+		{
+			c = new Candidate();
+			c.time = Long.MIN_VALUE;
+			c.local_recv = inLocalRecv;
+			c.my_observations = inMyObservations;
+			c.indirect_observations = inIndirectObservations;
+			c.encoded_key = inEncodedKey;
+			c.key = inKey;
+			mCandidates.put(inID, c);
+		}
+		update_receipt(c, inReceipt, inTime);
+	}
+
+	/**
+	 * @return false if inID isn't known yet, in which case the caller needs to put() it
+	 */
+	public boolean update_receipt( long inID, Receipt inReceipt, long inTime )
+	{
+		Candidate c = mCandidates.get(inID);
+		if( c == null )
+			return false;
+		update_receipt(c, inReceipt, inTime);
+		return true;
+	}
+
+	private void update_receipt( Candidate c, Receipt inReceipt, long inTime )
+	{
+		if( inTime < c.time )
+			return;
+		c.time = inTime;
+		c.sent_direct = inReceipt.sent_direct;
+		c.received_direct = inReceipt.received_direct;
+		c.peer_sent_to_recos = inReceipt.peer_sent_to_recos;
+	}
+
+	public void add_local_recv( long inID, long inBytes )
+	{
+		Candidate c = mCandidates.get(inID);
+		if( c != null )
+			c.local_recv += inBytes;
+	}
+
+	public void add_observations( long inID, int inMy, double inIndirect )
+	{
+		Candidate c = mCandidates.get(inID);
+		if( c != null )
+		{
+			c.my_observations += inMy;
+			c.indirect_observations += inIndirect;
+		}
+	}
+
+	/**
+	 * Same as the UPDATE in ReputationDAO.multiplicative_decrease_observations(), my_observations is an
+	 * INTEGER column.
+	 */
+	public void decrease_observations( long inID, double inFactor )
+	{
+		Candidate c = mCandidates.get(inID);
+		if( c != null )
+		{
+			c.my_observations = (int)(c.my_observations * inFactor);
+			c.indirect_observations *= inFactor;
+		}
+	}
+
+	public PublicKey get_key( long inID ) throws InvalidKeySpecException
+	{
+		Candidate c = mCandidates.get(inID);
+		if( c == null )
+			return null;
+		if( c.key == null )
+			c.key = KeyManipulation.keyForEncodedBytes(ByteFormatter.decodeString(c.encoded_key));
+		return c.key;
+	}
+
+	/**
+	 * Scores every peer as their perception of our quality (including transfer counts that haven't
+	 * been flushed yet) and keeps the best inK with a score of at least inMinScore in a bounded heap.
+	 * Ties are broken by observations.
+	 *
+	 * @return the ids of the selected peers, best first
+	 */
+	public long [] top( int inK, double inMinScore, PendingTransfers inPending ) throws IOException
+	{
+		Heap heap = new Heap(Math.min(inK, mCandidates.size()));
+		for( Map.Entry<Long, Candidate> e : mCandidates.entrySet() )
+		{
+			long id = e.getKey();
+			Candidate c = e.getValue();
+			mScratch.sent_direct = c.sent_direct;
+			mScratch.received_direct = c.received_direct;
+			mScratch.peer_sent_to_recos = c.peer_sent_to_recos;
+			mScratch.peer_received_due_to_reco = c.local_recv
+					+ inPending.get(id, PendingTransfers.LOCAL_RECV_DUE_TO_REMOTE_RECO);
+			double score = Computation.peer_value_at_intermediary(mScratch);
+			if( score >= inMinScore )
+				heap.offer(id, score, c.my_observations + c.indirect_observations);
+		}
+		return heap.drain_descending();
+	}
+
+	/**
+	 * Min-heap of at most capacity (id, score, observations) entries in parallel primitive arrays. Once
+	 * full, an offer only gets in by replacing the current minimum.
+	 */
+	static class Heap
+	{
+		private final long [] mIDs;
+		private final double [] mScores;
+		private final double [] mObservations;
+		private int mSize = 0;
+
+		Heap( int inCapacity )
+		{
+			mIDs = new long[inCapacity];
+			mScores = new double[inCapacity];
+			mObservations = new double[inCapacity];
+		}
+
+		private boolean less( double s1, double o1, long id1, int j )
+		{
+			if( s1 != mScores[j] )
+				return s1 < mScores[j];
+			if( o1 != mObservations[j] )
+				return o1 < mObservations[j];
+			return id1 > mIDs[j];
+		}
+
+		private boolean less( int i, int j )
+		{
+			return less(mScores[i], mObservations[i], mIDs[i], j);
+		}
+
+		private void swap( int i, int j )
+		{
+			long id = mIDs[i]; mIDs[i] = mIDs[j]; mIDs[j] = id;
+			double s = mScores[i]; mScores[i] = mScores[j]; mScores[j] = s;
+			double o = mObservations[i]; mObservations[i] = mObservations[j]; mObservations[j] = o;
+		}
+
+		void offer( long inID, double inScore, double inObservations )
+		{
+			if( mIDs.length == 0 )
+				return;
+			if( mSize < mIDs.length )
+			{
+				int i = mSize++;
+				mIDs[i] = inID;
+				mScores[i] = inScore;
+				mObservations[i] = inObservations;
+				while( i > 0 && less(i, (i-1)/2) )
+				{
+					swap(i, (i-1)/2);
+					i = (i-1)/2;
+				}
+				return;
+			}
+			if( less(inScore, inObservations, inID, 0) )
+				return;
+			mIDs[0] = inID;
+			mScores[0] = inScore;
+			mObservations[0] = inObservations;
+			sift_down(0);
+		}
+
+		private void sift_down( int i )
+		{
+			while( true )
+			{
+				int smallest = i, l = 2*i+1, r = l+1;
+				if( l < mSize && less(l, smallest) )
+					smallest = l;
+				if( r < mSize && less(r, smallest) )
+					smallest = r;
+				if( smallest == i )
+					return;
+				swap(i, smallest);
+				i = smallest;
+			}
+		}
+
+		long [] drain_descending()
+		{
+			long [] out = new long[mSize];
+			for( int i=out.length-1; i>=0; i-- )
+			{
+				out[i] = mIDs[0];
+				mSize--;
+				if( mSize > 0 )
+				{
+					swap(0, mSize);
+					sift_down(0);
+				}
+			}
+			return out;
+		}
+	}
+}
@@ -0,0 +1,244 @@
+package edu.washington.cs.oneswarm.f2f;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.bouncycastle.util.encoders.Base64;
+
+/**
+ * The changes between two versions of a file list: the ids of collections
+ * that were removed and the collections that were added or changed.
+ *
+ * A version of a file list is identified by its list id, which both sides
+ * compute from the collections. A delta names the list id it applies to and
+ * the list id of the result, so the receiver can tell whether it has the
+ * right list and whether applying it worked.
+ */
+public class FileListDelta {
+    private static Logger logger = Logger.getLogger(FileListDelta.class.getName());
+
+    private final int baseListId;
+    private final int listId;
+    private final List<byte[]> removed;
+    private final List<FileCollection> changed;
+
+    private FileListDelta(int baseListId, int listId, List<byte[]> removed,
+            List<FileCollection> changed) {
+        this.baseListId = baseListId;
+        this.listId = listId;
+        this.removed = removed;
+        this.changed = changed;
+    }
+
+    /**
+     * Computes the changes needed to turn <code>base</code> into
+     * <code>list</code>.
+     */
+    public static FileListDelta diff(FileList base, FileList list) {
+        HashMap<String, FileCollection> previous = new HashMap<String, FileCollection>();
+        for (FileCollection c : base.getElements()) {
+            previous.put(c.getUniqueID(), c);
+        }
+        List<FileCollection> changed = new ArrayList<FileCollection>();
+        for (FileCollection c : list.getElements()) {
+            FileCollection old = previous.remove(c.getUniqueID());
+            if (old == null || !sameContent(old, c)) {
+                changed.add(c);
+            }
+        }
+        List<byte[]> removed = new ArrayList<byte[]>(previous.size());
+        for (FileCollection c : previous.values()) {
+            removed.add(c.getUniqueIdBytes());
+        }
+        return new FileListDelta(base.getListId(), list.getListId(), removed, changed);
+    }
+
+    public int getBaseListId() {
+        return baseListId;
+    }
+
+    public int getListId() {
+        return listId;
+    }
+
+    public List<FileCollection> getChanged() {
+        return changed;
+    }
+
+    public boolean isEmpty() {
+        return removed.size() == 0 && changed.size() == 0;
+    }
+
+    /**
+     * @return true if sending this delta is cheaper than sending
+     *         <code>list</code> in full.
+     */
+    public boolean cheaperThan(FileList list) {
+        return removed.size() + changed.size() <= list.getElements().size() / 2;
+    }
+
+    /**
+     * Updates <code>list</code> to the version this delta leads to. Unchanged
+     * collections are kept, only the changed ones are replaced.
+     *
+     * @throws IOException
+     *             if the delta isn't against this version of the list.
+     */
+    public void applyTo(FileList list) throws IOException {
+        if (list.getListId() != baseListId) {
+            throw new IOException("file list delta is against list " + baseListId
+                    + ", have list " + list.getListId());
+        }
+        Set<String> replaced = new HashSet<String>();
+        for (byte[] id : removed) {
+            replaced.add(new String(Base64.encode(id)));
+        }
+        for (FileCollection c : changed) {
+            replaced.add(c.getUniqueID());
+        }
+        List<FileCollection> elements = new LinkedList<FileCollection>();
+        for (FileCollection c : list.getElements()) {
+            if (!replaced.contains(c.getUniqueID())) {
+                elements.add(c);
+            }
+        }
+        elements.addAll(changed);
+
+        // readers may be iterating over the old elements, swap in a new list
+        FileList updated = new FileList(elements);
+        if (updated.getListId() != listId) {
+            throw new IOException("file list delta produced list " + updated.getListId()
+                    + ", expected " + listId);
+        }
+        list.setElements(elements);
+    }
+
+    public static boolean isDelta(byte[] data) {
+        return data != null && data.length > 0 && (data[0] & FileListManager.FLAG_DELTA) != 0;
+    }
+
+    public byte[] encode(boolean gzip) {
+        // format:
+        // 1 byte flags, bit 0 set means gzipped, bit 1 set means delta
+        // 4 bytes (java int): list id the delta applies to
+        // 4 bytes (java int): list id after applying the delta
+        // 4 bytes (java int): number of removed collections
+        // 20 bytes (hash) per removed collection id
+        // 4 bytes (java int): number of added or changed collections
+        // collections[], extended format (see FileListManager.encode)
+        try {
+            long time = System.currentTimeMillis();
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            buf.write(FileListManager.FLAG_DELTA | (gzip ? FileListManager.FLAG_GZIP : 0));
+            DataOutputStream out;
+            if (gzip) {
+                out = new DataOutputStream(new GZIPOutputStream(buf));
+            } else {
+                out = new DataOutputStream(buf);
+            }
+            out.writeInt(baseListId);
+            out.writeInt(listId);
+            out.writeInt(removed.size());
+            for (byte[] id : removed) {
+                out.write(id);
+            }
+            out.writeInt(changed.size());
+            for (FileCollection c : changed) {
+                FileListManager.writeCollection(out, c, true);
+            }
+            out.close();
+            byte[] ret = buf.toByteArray();
+            logger.fine("encoded file list delta, gzip=" + gzip + " removed=" + removed.size()
+                    + " changed=" + changed.size() + " time="
+                    + (System.currentTimeMillis() - time));
+            return ret;
+        } catch (IOException e) {
+            // writing to memory, only fails on bad collections
+            logger.warning("error encoding file list delta: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public static FileListDelta decode(byte[] data) throws IOException {
+        if (!isDelta(data)) {
+            throw new IOException("not a file list delta");
+        }
+        boolean gzip = (data[0] & FileListManager.FLAG_GZIP) != 0;
+        try {
+            ByteArrayInputStream bin = new ByteArrayInputStream(data, 1, data.length - 1);
+            DataInputStream in;
+            if (gzip) {
+                in = new DataInputStream(new GZIPInputStream(bin));
+            } else {
+                in = new DataInputStream(bin);
+            }
+            int baseListId = in.readInt();
+            int listId = in.readInt();
+            int numRemoved = in.readInt();
+            if (numRemoved < 0) {
+                throw new IOException("Number of removed collections must be positive.");
+            }
+            List<byte[]> removed = new ArrayList<byte[]>();
+            for (int i = 0; i < numRemoved; i++) {
+                byte[] id = new byte[20];
+                in.readFully(id);
+                removed.add(id);
+            }
+            int numChanged = in.readInt();
+            if (numChanged < 0) {
+                throw new IOException("Number of changed collections must be positive.");
+            }
+            List<FileCollection> changed = new ArrayList<FileCollection>();
+            for (int i = 0; i < numChanged; i++) {
+                changed.add(FileListManager.readCollection(in, true));
+            }
+            in.close();
+            return new FileListDelta(baseListId, listId, removed, changed);
+        } catch (IOException e) {
+            throw new IOException("filelist delta decode error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Compares the parts of the collections that go into an extended file
+     * list.
+     */
+    private static boolean sameContent(FileCollection a, FileCollection b) {
+        if (a == b) {
+            return true;
+        }
+        if (a.getType() != b.getType() || a.getAddedTimeUTC() != b.getAddedTimeUTC()
+                || !a.getName().equals(b.getName())
+                || !a.getDescription().equals(b.getDescription())
+                || !a.getDirectoryTags().equals(b.getDirectoryTags())) {
+            return false;
+        }
+        List<FileListFile> af = a.getChildren();
+        List<FileListFile> bf = b.getChildren();
+        if (af.size() != bf.size()) {
+            return false;
+        }
+        // the children are usually linked lists
+        Iterator<FileListFile> bi = bf.iterator();
+        for (FileListFile x : af) {
+            FileListFile y = bi.next();
+            if (x.getLength() != y.getLength() || !x.getFileName().equals(y.getFileName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
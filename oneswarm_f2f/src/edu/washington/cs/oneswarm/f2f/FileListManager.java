@@ -38,9 +38,12 @@ import org.gudy.azureus2.core3.torrent.impl.TOTorrentImpl;
 import org.gudy.azureus2.core3.util.ByteFormatter;
 import org.gudy.azureus2.core3.util.Debug;
 import org.gudy.azureus2.core3.util.HashWrapper;
+import org.gudy.azureus2.core3.util.SHA1Hasher;
 
 import com.aelitis.azureus.core.impl.AzureusCoreImpl;
 
+import edu.washington.cs.oneswarm.f2f.metrics.Counter;
+import edu.washington.cs.oneswarm.f2f.metrics.MetricsRegistry;
 import edu.washington.cs.oneswarm.f2f.multisource.Sha1HashManager;
 import edu.washington.cs.oneswarm.f2f.multisource.Sha1SourceFinder;
 import edu.washington.cs.oneswarm.f2f.network.OverlayManager;
@@ -56,6 +59,10 @@ public class FileListManager {
     public static final int MAX_SEARCH_HITS = 30;
     private static final int MAX_SEND_FILE_LIST_RATE = 30 * 1000;
 
+    // first byte of an encoded file list
+    static final byte FLAG_GZIP = 1;
+    static final byte FLAG_DELTA = 2;
+
     private final ConcurrentHashMap<Long, byte[]> hashhashToInfoHashMapping = new ConcurrentHashMap<Long, byte[]>();
 
     private final ConcurrentHashMap<Long, String> hashhashToTorrentName = new ConcurrentHashMap<Long, String>();
@@ -73,7 +80,11 @@ public class FileListManager {
     private final FileListRefresher refreshRateLimiter = new FileListRefresher(
             "FileListManager refresh rate limiter");
 
-    private volatile FileList searchableFileList;
+    /**
+     * Index over the swarms friends can search, updated incrementally on every
+     * refresh
+     */
+    private final FileListSearchIndex searchIndex = new FileListSearchIndex();
     private volatile Timer updateRateLimiter = null;
     private long lastFileListRefreshMs = 0;
 
@@ -81,6 +92,11 @@ public class FileListManager {
 
     private NegativeHitCache negativeHitCache = new NegativeHitCache();
 
+    // friends that can see the same swarms get the same list, keep the
+    // encoded lists until the next refresh
+    private final EncodedFileListCache encodedFileLists = new EncodedFileListCache();
+    private int encodedFileListGeneration = 0;
+
     public FileListManager(PermissionsDAO permissionsManager) {
         this.permissionsManager = permissionsManager;
         this.metaInfoManager = new MetaInfoManager();
@@ -406,12 +422,16 @@ public class FileListManager {
                 + lastFileListRefreshMs);
 
         for (FileList friendsList : incomingFileLists.values()) {
-            addInfoHashHashes(friendsList);
+            addInfoHashHashes(friendsList.getElements());
         }
         logger.fine("added friends files to hashhash mapping, time="
                 + (System.currentTimeMillis() - generateComplete));
         ownF2FFileList = new FileList(allFiles);
-        searchableFileList = new FileList(searchableFiles);
+        synchronized (encodedFileLists) {
+            encodedFileLists.clear();
+            encodedFileListGeneration++;
+        }
+        searchIndex.update(searchableFiles);
         negativeHitCache = new NegativeHitCache();
     }
 
@@ -432,6 +452,54 @@ public class FileListManager {
         }
     }
 
+    /**
+     * Encodes a list returned by {@link #getFileListToSendToFriend(Friend)},
+     * gzipped. The encoding is shared by all friends that get the same list,
+     * which is identified by a digest of the ids of the collections in it.
+     */
+    public byte[] getEncodedFileList(FileList list, boolean include_extended_info) {
+        String key = getEncodedListKey(list) + ":" + include_extended_info;
+        int generation;
+        synchronized (encodedFileLists) {
+            byte[] encoded = encodedFileLists.get(key);
+            if (encoded != null) {
+                return encoded;
+            }
+            generation = encodedFileListGeneration;
+        }
+        byte[] encoded = encode(list, true, include_extended_info);
+        if (encoded != null) {
+            synchronized (encodedFileLists) {
+                // a list from before the last refresh may hold collections
+                // with the same ids but different content, don't cache it
+                if (generation == encodedFileListGeneration) {
+                    encodedFileLists.put(key, encoded);
+                }
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * Friend lists keep the order of our own list, so two friends get the
+     * same list exactly when they see the same collection ids in the same
+     * order.
+     */
+    static String getEncodedListKey(FileList list) {
+        SHA1Hasher hasher = new SHA1Hasher();
+        byte[] length = new byte[4];
+        for (FileCollection c : list.getElements()) {
+            byte[] id = c.getUniqueIdBytes();
+            length[0] = (byte) (id.length >>> 24);
+            length[1] = (byte) (id.length >>> 16);
+            length[2] = (byte) (id.length >>> 8);
+            length[3] = (byte) id.length;
+            hasher.update(length);
+            hasher.update(id);
+        }
+        return list.getElements().size() + ":" + ByteFormatter.encodeString(hasher.getDigest());
+    }
+
     public FileList getFriendsList(Friend f) {
         return incomingFileLists.get(f);
     }
@@ -458,29 +526,32 @@ public class FileListManager {
         return hashhashToTorrentName.get(infoHashHash);
     }
 
-    private long searchesTotal = 0;
+    private final Counter searchesTotal = MetricsRegistry.getInstance().counter(
+            "f2f_filelist_searches_total", "Text searches matched against our file list.");
 
     public long getSearchesTotal() {
-        return searchesTotal;
+        return searchesTotal.get();
     }
 
     public long getSearchCacheHits() {
-        return searchCacheHits;
+        return searchCacheHits.get();
     }
 
-    private long searchCacheHits = 0;
+    private final Counter searchCacheHits = MetricsRegistry.getInstance().counter(
+            "f2f_filelist_search_cache_hits_total",
+            "Text searches answered from the negative hit cache.");
 
     public List<FileCollection> handleSearch(Friend f, String searchString) {
-        searchesTotal++;
+        searchesTotal.inc();
         /*
          * start by checking the negative cache
          */
         if (negativeHitCache.get(searchString) != null) {
-            searchCacheHits++;
+            searchCacheHits.inc();
             return new LinkedList<FileCollection>();
         }
 
-        FileList matches = searchableFileList.searchMatches(searchString);
+        FileList matches = searchIndex.searchMatches(searchString);
 
         long matchingFiles = matches.getFileNum();
         if (matchingFiles == 0) {
@@ -606,6 +677,17 @@ public class FileListManager {
 
     public List<byte[]> receivedFriendFileList(Friend f, int type, byte[] data,
             boolean use_extended_filelists) throws IOException {
+        if (FileListDelta.isDelta(data)) {
+            FileListDelta delta = FileListDelta.decode(data);
+            FileList friendsList = incomingFileLists.get(f);
+            if (friendsList == null) {
+                throw new IOException("got file list delta but have no file list to apply it to");
+            }
+            delta.applyTo(friendsList);
+            logger.fine("applied file list delta from " + f.getNick() + ", changed="
+                    + delta.getChanged().size());
+            return addInfoHashHashes(delta.getChanged());
+        }
         FileList friendsList = null;
         if (data != null && data.length != 0) {
             if (use_extended_filelists == false) {
@@ -623,13 +705,13 @@ public class FileListManager {
 
     public List<byte[]> receivedFriendFileList(Friend f, int type, FileList friendsList) {
         incomingFileLists.put(f, friendsList);
-        return addInfoHashHashes(friendsList);
+        return addInfoHashHashes(friendsList.getElements());
     }
 
-    private List<byte[]> addInfoHashHashes(FileList friendsList) {
+    private List<byte[]> addInfoHashHashes(List<FileCollection> collections) {
         List<byte[]> newInfoHashes = new LinkedList<byte[]>();
         // check what's new here
-        for (FileCollection torrent : friendsList.getElements()) {
+        for (FileCollection torrent : collections) {
             byte[] infohash = Base64.decode(torrent.getUniqueID());
             long infoHashhash = getInfoHashhash(infohash);
             if (ownF2FFileList == null) {
@@ -757,7 +839,7 @@ public class FileListManager {
             return new FileList();
         }
         long time = System.currentTimeMillis();
-        boolean gzip = data[0] == 1;
+        boolean gzip = (data[0] & FLAG_GZIP) != 0;
         try {
             ByteArrayInputStream bin = new ByteArrayInputStream(data, 1, data.length - 1);
             DataInputStream in;
@@ -848,7 +930,7 @@ public class FileListManager {
             byte[] byteArray = buf.toByteArray();
             byte[] ret = new byte[byteArray.length + 1];
             if (gzip) {
-                ret[0] = (byte) 1;
+                ret[0] = FLAG_GZIP;
             } else {
                 ret[0] = (byte) 0;
             }
@@ -947,7 +1029,7 @@ public class FileListManager {
 
     }
 
-    private static FileCollection readCollection(DataInputStream in, boolean include_extended_info)
+    static FileCollection readCollection(DataInputStream in, boolean include_extended_info)
             throws IOException {
         byte type = in.readByte();
         byte[] uniqueId = new byte[20];
@@ -1000,7 +1082,7 @@ public class FileListManager {
         return str;
     }
 
-    private static void writeCollection(DataOutputStream out, FileCollection c,
+    static void writeCollection(DataOutputStream out, FileCollection c,
             boolean include_extended_info) throws IOException {
         if (c.getUniqueIdBytes().length != 20) {
             throw new IOException("File collections unique id must be 20 bytes");
@@ -1117,6 +1199,20 @@ public class FileListManager {
         return ownF2FFileList != null;
     }
 
+    private static class EncodedFileListCache extends LinkedHashMap<String, byte[]> {
+        public final static int MAX_SIZE = 16;
+        private static final long serialVersionUID = 1L;
+
+        public EncodedFileListCache() {
+            super(MAX_SIZE, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > MAX_SIZE;
+        }
+    }
+
     private class NegativeHitCache extends LinkedHashMap<String, Boolean> {
         public final static int MAX_SIZE = 500;
         private static final long serialVersionUID = 1L;
@@ -0,0 +1,426 @@
+package edu.washington.cs.oneswarm.f2f;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.bouncycastle.util.encoders.Base64;
+import org.gudy.azureus2.core3.util.HashWrapper;
+
+/**
+ * Inverted index over the searchable file list, used to answer friend text
+ * searches without walking every collection and file.
+ *
+ * Search terms are matched as substrings of the collection name, the optional
+ * fields (artist/album) and the file names, so the index maps character
+ * trigrams of the lower case text to the collections containing them. A
+ * collection can only match if it contains all trigrams of every positive
+ * search term. The remaining candidates are checked with
+ * {@link FileCollection#searchMatches(String)}, so the result is the same as
+ * {@link FileList#searchMatches(String)} (negated terms, quoted phrases and
+ * keywords included). id:, sha1: and ed2k: searches are answered from
+ * separate maps.
+ *
+ * The index is updated incrementally, collections that did not change since
+ * the previous update keep their postings.
+ */
+class FileListSearchIndex {
+    private static Logger logger = Logger.getLogger(FileListSearchIndex.class.getName());
+
+    private static final int GRAM_LENGTH = 3;
+
+    private final HashMap<String, PostingList> postings = new HashMap<String, PostingList>();
+    private final HashMap<HashWrapper, Set<Entry>> sha1Hashes = new HashMap<HashWrapper, Set<Entry>>();
+    private final HashMap<HashWrapper, Set<Entry>> ed2kHashes = new HashMap<HashWrapper, Set<Entry>>();
+
+    private HashMap<String, Entry> byId = new HashMap<String, Entry>();
+    private Entry[] slots = new Entry[1024];
+    private int nextSlot = 0;
+    private int deadSlots = 0;
+
+    /**
+     * Makes the index reflect the given collections, only collections that
+     * were added or changed since the last call are (re)indexed.
+     */
+    public synchronized void update(List<FileCollection> collections) {
+        long time = System.currentTimeMillis();
+        HashMap<String, Entry> previous = byId;
+        byId = new HashMap<String, Entry>();
+        int reindexed = 0;
+        int position = 0;
+        for (FileCollection c : collections) {
+            Entry e = previous.remove(c.getUniqueID());
+            if (e != null && sameSearchableContent(e.collection, c)) {
+                e.collection = c;
+            } else {
+                if (e != null) {
+                    remove(e);
+                }
+                e = add(c);
+                reindexed++;
+            }
+            e.position = position++;
+            byId.put(c.getUniqueID(), e);
+        }
+        for (Entry e : previous.values()) {
+            remove(e);
+        }
+
+        if (deadSlots > byId.size()) {
+            compact();
+        }
+        logger.fine("updated search index: collections=" + byId.size() + " reindexed="
+                + reindexed + " removed=" + previous.size() + " grams=" + postings.size()
+                + " time=" + (System.currentTimeMillis() - time));
+    }
+
+    /**
+     * Same semantics as {@link FileList#searchMatches(String)} on the indexed
+     * collections.
+     */
+    public synchronized FileList searchMatches(String searchString) {
+        List<FileCollection> searchMatches = new ArrayList<FileCollection>();
+        for (Entry e : getCandidates(searchString)) {
+            FileCollection collectionMatch = e.collection.searchMatches(searchString);
+            if (collectionMatch != null) {
+                searchMatches.add(collectionMatch);
+            }
+        }
+        return new FileList(searchMatches);
+    }
+
+    /**
+     * Returns the collections that possibly match the search, in file list
+     * order.
+     */
+    private List<Entry> getCandidates(String searchString) {
+        searchString = FileCollection.removeWhiteSpaceAfteKeyChars(searchString);
+
+        int[] candidates = null;
+        if (FileCollection.containsKeyword(searchString)) {
+            candidates = getKeywordCandidates(searchString);
+        }
+
+        List<PostingList> lists = new ArrayList<PostingList>();
+        String[] terms = FileCollection.quoteRespectingSplit(searchString.toLowerCase());
+        for (String term : terms) {
+            // negated terms and keywords only narrow the result
+            if (FileCollection.containsKeyword(term) || term.startsWith("-")
+                    || term.length() < GRAM_LENGTH) {
+                continue;
+            }
+            for (int i = 0; i + GRAM_LENGTH <= term.length(); i++) {
+                PostingList p = postings.get(term.substring(i, i + GRAM_LENGTH));
+                if (p == null) {
+                    return Collections.emptyList();
+                }
+                lists.add(p);
+            }
+        }
+
+        if (lists.size() > 0) {
+            Collections.sort(lists, new Comparator<PostingList>() {
+                @Override
+                public int compare(PostingList o1, PostingList o2) {
+                    return o1.size - o2.size;
+                }
+            });
+            for (PostingList p : lists) {
+                candidates = candidates == null ? p.toArray() : p.retain(candidates);
+                if (candidates.length == 0) {
+                    return Collections.emptyList();
+                }
+            }
+        }
+
+        List<Entry> entries = new ArrayList<Entry>();
+        if (candidates == null) {
+            // nothing to narrow the search with, check everything
+            entries.addAll(byId.values());
+        } else {
+            for (int slot : candidates) {
+                entries.add(slots[slot]);
+            }
+        }
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry o1, Entry o2) {
+                return o1.position - o2.position;
+            }
+        });
+        return entries;
+    }
+
+    /**
+     * Mirrors the keyword handling in FileCollection and FileListFile: the
+     * first id: term selects a collection, otherwise the first sha1: or ed2k:
+     * term selects the collections containing a file with that hash. Returns
+     * null if the keyword could not be resolved from the index.
+     */
+    private int[] getKeywordCandidates(String searchString) {
+        String[] termSplit = FileCollection.quoteRespectingSplit(searchString);
+        try {
+            for (String s : termSplit) {
+                for (String keyWordEnd : FileCollection.KEYWORDENDINGS) {
+                    if (s.contains("id" + keyWordEnd)) {
+                        String[] idSplit = s.split(keyWordEnd);
+                        Entry e = idSplit.length == 2 ? byId.get(idSplit[1]) : null;
+                        return e == null ? new int[0] : new int[] { e.slot };
+                    }
+                }
+            }
+            for (String s : termSplit) {
+                for (String keyWordEnd : FileCollection.KEYWORDENDINGS) {
+                    if (s.contains(FileListFile.KEY_SHA1_HASH + keyWordEnd)) {
+                        return getHashCandidates(sha1Hashes, s.split(keyWordEnd));
+                    }
+                    if (s.contains(FileListFile.KEY_ED2K_HASH + keyWordEnd)) {
+                        return getHashCandidates(ed2kHashes, s.split(keyWordEnd));
+                    }
+                }
+            }
+        } catch (Exception e) {
+            logger.finer("unable to resolve keyword search from index: " + e.getMessage());
+            return null;
+        }
+        return new int[0];
+    }
+
+    private static int[] getHashCandidates(Map<HashWrapper, Set<Entry>> hashes, String[] idSplit) {
+        if (idSplit.length != 2) {
+            return new int[0];
+        }
+        Set<Entry> entries = hashes.get(new HashWrapper(Base64.decode(idSplit[1])));
+        if (entries == null) {
+            return new int[0];
+        }
+        int[] candidates = new int[entries.size()];
+        int i = 0;
+        for (Entry e : entries) {
+            candidates[i++] = e.slot;
+        }
+        Arrays.sort(candidates);
+        return candidates;
+    }
+
+    private Entry add(FileCollection c) {
+        Entry e = new Entry(c);
+        if (nextSlot == slots.length) {
+            slots = Arrays.copyOf(slots, slots.length * 2);
+        }
+        e.slot = nextSlot++;
+        slots[e.slot] = e;
+        index(e);
+        return e;
+    }
+
+    private void index(Entry e) {
+        Set<String> grams = new HashSet<String>();
+        addGrams(grams, e.collection.getName());
+        for (String value : e.collection.getOptionalFields().values()) {
+            addGrams(grams, value);
+        }
+        List<HashWrapper> sha1 = new ArrayList<HashWrapper>();
+        List<HashWrapper> ed2k = new ArrayList<HashWrapper>();
+        for (FileListFile f : e.collection.getChildren()) {
+            addGrams(grams, f.getFileName());
+            if (f.getSha1Hash() != null) {
+                sha1.add(new HashWrapper(f.getSha1Hash()));
+            }
+            if (f.getEd2kHash() != null) {
+                ed2k.add(new HashWrapper(f.getEd2kHash()));
+            }
+        }
+
+        e.grams = grams.toArray(new String[grams.size()]);
+        for (String gram : e.grams) {
+            PostingList p = postings.get(gram);
+            if (p == null) {
+                p = new PostingList();
+                postings.put(gram, p);
+            }
+            p.add(e.slot);
+        }
+        e.sha1Hashes = sha1.toArray(new HashWrapper[sha1.size()]);
+        addHashes(sha1Hashes, e.sha1Hashes, e);
+        e.ed2kHashes = ed2k.toArray(new HashWrapper[ed2k.size()]);
+        addHashes(ed2kHashes, e.ed2kHashes, e);
+    }
+
+    private void remove(Entry e) {
+        unindex(e);
+        slots[e.slot] = null;
+        deadSlots++;
+    }
+
+    private void unindex(Entry e) {
+        for (String gram : e.grams) {
+            PostingList p = postings.get(gram);
+            p.remove(e.slot);
+            if (p.size == 0) {
+                postings.remove(gram);
+            }
+        }
+        removeHashes(sha1Hashes, e.sha1Hashes, e);
+        removeHashes(ed2kHashes, e.ed2kHashes, e);
+    }
+
+    /**
+     * Renumbers the live entries in file list order once enough collections
+     * have been removed.
+     */
+    private void compact() {
+        Entry[] live = byId.values().toArray(new Entry[byId.size()]);
+        Arrays.sort(live, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry o1, Entry o2) {
+                return o1.position - o2.position;
+            }
+        });
+        postings.clear();
+        sha1Hashes.clear();
+        ed2kHashes.clear();
+        slots = new Entry[Math.max(1024, live.length * 2)];
+        nextSlot = 0;
+        deadSlots = 0;
+        for (Entry e : live) {
+            e.slot = nextSlot++;
+            slots[e.slot] = e;
+            for (String gram : e.grams) {
+                PostingList p = postings.get(gram);
+                if (p == null) {
+                    p = new PostingList();
+                    postings.put(gram, p);
+                }
+                p.add(e.slot);
+            }
+            addHashes(sha1Hashes, e.sha1Hashes, e);
+            addHashes(ed2kHashes, e.ed2kHashes, e);
+        }
+    }
+
+    private static void addGrams(Set<String> grams, String text) {
+        if (text == null) {
+            return;
+        }
+        text = text.toLowerCase();
+        for (int i = 0; i + GRAM_LENGTH <= text.length(); i++) {
+            grams.add(text.substring(i, i + GRAM_LENGTH));
+        }
+    }
+
+    private static void addHashes(Map<HashWrapper, Set<Entry>> map, HashWrapper[] hashes, Entry e) {
+        for (HashWrapper h : hashes) {
+            Set<Entry> s = map.get(h);
+            if (s == null) {
+                s = new HashSet<Entry>();
+                map.put(h, s);
+            }
+            s.add(e);
+        }
+    }
+
+    private static void removeHashes(Map<HashWrapper, Set<Entry>> map, HashWrapper[] hashes,
+            Entry e) {
+        for (HashWrapper h : hashes) {
+            Set<Entry> s = map.get(h);
+            if (s != null) {
+                s.remove(e);
+                if (s.size() == 0) {
+                    map.remove(h);
+                }
+            }
+        }
+    }
+
+    /**
+     * true if the collections are indistinguishable as far as searching is
+     * concerned.
+     */
+    static boolean sameSearchableContent(FileCollection a, FileCollection b) {
+        if (!a.getName().equals(b.getName())
+                || !a.getOptionalFields().equals(b.getOptionalFields())) {
+            return false;
+        }
+        List<FileListFile> aFiles = a.getChildren();
+        List<FileListFile> bFiles = b.getChildren();
+        if (aFiles.size() != bFiles.size()) {
+            return false;
+        }
+        for (int i = 0; i < aFiles.size(); i++) {
+            FileListFile af = aFiles.get(i);
+            FileListFile bf = bFiles.get(i);
+            if (!af.equals(bf) || !Arrays.equals(af.getSha1Hash(), bf.getSha1Hash())
+                    || !Arrays.equals(af.getEd2kHash(), bf.getEd2kHash())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized int size() {
+        return byId.size();
+    }
+
+    private static class Entry {
+        FileCollection collection;
+        int slot;
+        int position;
+        String[] grams;
+        HashWrapper[] sha1Hashes;
+        HashWrapper[] ed2kHashes;
+
+        Entry(FileCollection collection) {
+            this.collection = collection;
+        }
+    }
+
+    /**
+     * Sorted list of slots, new slots are always larger than existing ones so
+     * adding is an append.
+     */
+    private static class PostingList {
+        int[] slots = new int[2];
+        int size = 0;
+
+        void add(int slot) {
+            if (size == slots.length) {
+                slots = Arrays.copyOf(slots, size * 2);
+            }
+            slots[size++] = slot;
+        }
+
+        void remove(int slot) {
+            int pos = Arrays.binarySearch(slots, 0, size, slot);
+            if (pos >= 0) {
+                System.arraycopy(slots, pos + 1, slots, pos, size - pos - 1);
+                size--;
+            }
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(slots, size);
+        }
+
+        /**
+         * Returns the sorted subset of candidates that are in this list.
+         */
+        int[] retain(int[] candidates) {
+            int[] out = new int[Math.min(candidates.length, size)];
+            int n = 0;
+            for (int c : candidates) {
+                if (Arrays.binarySearch(slots, 0, size, c) >= 0) {
+                    out[n++] = c;
+                }
+            }
+            return n == out.length ? out : Arrays.copyOf(out, n);
+        }
+    }
+}
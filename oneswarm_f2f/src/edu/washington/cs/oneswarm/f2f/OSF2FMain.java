@@ -42,6 +42,7 @@ import edu.washington.cs.oneswarm.f2f.messaging.OSF2FMessageEncoder;
 import edu.washington.cs.oneswarm.f2f.messaging.invitation.OSF2FAuthMessage;
 import edu.washington.cs.oneswarm.f2f.messaging.invitation.OSF2FAuthMessageDecoder;
 import edu.washington.cs.oneswarm.f2f.messaging.invitation.OSF2FAuthMessageEncoder;
+import edu.washington.cs.oneswarm.f2f.metrics.MetricsExporter;
 import edu.washington.cs.oneswarm.f2f.multisource.Sha1DownloadManager;
 import edu.washington.cs.oneswarm.f2f.multisource.Sha1HashManager.Sha1CalcListener;
 import edu.washington.cs.oneswarm.f2f.multisource.Sha1HashManager.Sha1HashJobListener;
@@ -291,6 +292,8 @@ public class OSF2FMain {
 
                 PermissionsDAO.get().f2fInitialized();
 
+                MetricsExporter.start();
+
                 logWithTime("f2f init done", Level.INFO);
             }
         }
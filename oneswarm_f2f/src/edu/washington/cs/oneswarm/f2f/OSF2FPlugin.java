@@ -27,6 +27,7 @@ import org.gudy.azureus2.plugins.download.Download;
 import org.gudy.azureus2.plugins.download.DownloadException;
 import org.gudy.azureus2.plugins.torrent.Torrent;
 
+import com.aelitis.azureus.core.networkmanager.impl.osssl.OneSwarmSslTransportHelperFilterStream;
 import com.aelitis.net.magneturi.MagnetURIHandler;
 import com.aelitis.net.magneturi.MagnetURIHandlerException;
 import com.aelitis.net.magneturi.MagnetURIHandlerListener;
@@ -631,7 +632,10 @@ public class OSF2FPlugin implements Plugin {
             totalTransports += f.getOverlayTransports().size();
         }
         b.append("Total forwards: " + totalForwards + "\n");
-        b.append("Total transports: " + totalTransports + "\n\n");
+        b.append("Total transports: " + totalTransports + "\n");
+        b.append("SSL handshakes: full="
+                + OneSwarmSslTransportHelperFilterStream.getFullHandshakeCount() + " resumed="
+                + OneSwarmSslTransportHelperFilterStream.getResumedHandshakeCount() + "\n\n");
         b.append("Friend Connections Summary:\n");
         for (FriendConnection f : friendConnections) {
 
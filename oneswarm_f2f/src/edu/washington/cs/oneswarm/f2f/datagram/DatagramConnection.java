@@ -11,8 +11,10 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -21,7 +23,6 @@ import javax.crypto.NoSuchPaddingException;
 import org.gudy.azureus2.core3.util.DirectByteBuffer;
 import org.gudy.azureus2.core3.util.DirectByteBufferPool;
 
-import com.aelitis.azureus.core.networkmanager.RawMessage;
 import com.aelitis.azureus.core.peermanager.messaging.Message;
 
 import edu.washington.cs.oneswarm.f2f.messaging.OSF2FChannelDataMsg;
@@ -470,7 +471,7 @@ public class DatagramConnection extends DatagramRateLimiter {
     }
 
     public int getQueueLength() {
-        return sendThread.queueLength;
+        return sendThread.getQueueLength();
     }
 
     public synchronized void clearExpiredChannels() {
@@ -498,29 +499,48 @@ public class DatagramConnection extends DatagramRateLimiter {
      * Sending encrypted udp packets is cpu intensive and potentially blocking.
      * Each connection is sending packets in its own thread.
      * 
+     * Messages are queued without locking. Once woken up the thread keeps
+     * sending datagrams until the queue is empty, packing as many messages as
+     * fit into each one. The message buffers are encrypted in place into the
+     * outgoing packet, without serializing them first.
+     * 
      * @author isdal
      * 
      */
     // Visible for testing.
     class DatagramSendThread implements Runnable {
-        private long lastPacketSent = System.currentTimeMillis();
+        // Every message takes at least a header on the wire.
+        private final static int MAX_MESSAGES_PER_DATAGRAM = 1 + MAX_DATAGRAM_PAYLOAD_SIZE
+                / OSF2FMessage.MESSAGE_HEADER_LEN;
+
+        private volatile long lastPacketSent = System.currentTimeMillis();
 
         private final ByteBuffer[] unencryptedPayload;
+        private final ByteBuffer[] headers;
+        private final DirectByteBuffer[][] messageData;
 
         // Visible for testing.
-        final List<OSF2FMessage> messageQueue;
+        final ConcurrentLinkedQueue<OSF2FMessage> messageQueue;
         private final Thread thread;
         private final byte[] outgoingPacketBuf = new byte[2048];
+        private final DatagramPacket packet = new DatagramPacket(outgoingPacketBuf,
+                outgoingPacketBuf.length);
         private volatile boolean quit = false;
+        private volatile boolean waiting = false;
 
-        private int queueLength = 0;
+        private final AtomicInteger queueLength = new AtomicInteger();
 
         public DatagramSendThread() {
-            messageQueue = java.util.Collections.synchronizedList(new LinkedList<OSF2FMessage>());
+            messageQueue = new ConcurrentLinkedQueue<OSF2FMessage>();
             thread = new Thread(this);
             thread.setName("DatagramSendThread-" + DatagramConnection.this.toString());
             thread.setDaemon(true);
             unencryptedPayload = new ByteBuffer[MAX_DATAGRAM_PAYLOAD_SIZE];
+            headers = new ByteBuffer[MAX_MESSAGES_PER_DATAGRAM];
+            for (int i = 0; i < headers.length; i++) {
+                headers[i] = ByteBuffer.allocate(OSF2FMessage.MESSAGE_HEADER_LEN);
+            }
+            messageData = new DirectByteBuffer[MAX_MESSAGES_PER_DATAGRAM][];
         }
 
         public void quit() {
@@ -545,132 +565,143 @@ public class DatagramConnection extends DatagramRateLimiter {
                 return;
             }
 
-            synchronized (messageQueue) {
-                queueLength += messageSize + OSF2FMessage.MESSAGE_HEADER_LEN;
-                if (logger.isLoggable(Level.FINEST)) {
-                    logger.finest("message queued, queue_length=" + queueLength);
-                }
-                messageQueue.add(message);
-                if (notify) {
-                    messageQueue.notify();
-                }
+            int length = queueLength.addAndGet(messageSize + OSF2FMessage.MESSAGE_HEADER_LEN);
+            if (logger.isLoggable(Level.FINEST)) {
+                logger.finest("message queued, queue_length=" + length);
+            }
+            messageQueue.add(message);
+            if (notify) {
+                notifyQueue();
             }
         }
-        
+
         public void notifyQueue() {
-            synchronized (messageQueue) {
-                messageQueue.notify();
+            if (waiting) {
+                LockSupport.unpark(thread);
             }
         }
 
+        int getQueueLength() {
+            return queueLength.get();
+        }
+
         @Override
         public void run() {
-            try {
-                // Create a vehicle for sending more than one message in the
-                // same datagram.
-                RawMessage[] messageBuffer = new RawMessage[1 + MAX_DATAGRAM_PAYLOAD_SIZE / 5];
-                while (!quit) {
-                    int datagramSize = 0;
-                    int packetNum = 0;
-                    while (true) {
-                        OSF2FMessage message;
-                        int messageSize;
-                        synchronized (messageQueue) {
-                            if (messageQueue.isEmpty()) {
-                                messageQueue.wait();
-                                if (messageQueue.isEmpty()) {
-                                    continue;
-                                }
-                            }
-                            message = messageQueue.remove(0);
-                            messageSize = message.getMessageSize();
-                            queueLength -= messageSize + OSF2FMessage.MESSAGE_HEADER_LEN;
-                        }
-                        datagramSize += messageSize + OSF2FMessage.MESSAGE_HEADER_LEN;
-                        messageBuffer[packetNum++] = OSF2FMessageFactory
-                                .createOSF2FRawMessage(message);
-                        if (logger.isLoggable(Level.FINEST)) {
-                            logger.finest(String.format(
-                                    "Adding message, packets=%d, size=%d message=%s", packetNum,
-                                    datagramSize, message.getDescription()));
-                        }
-                        if (queueLength < 0) {
-                            logger.warning("Datagram Queue underrun, accounting bug!");
-                        }
-                        synchronized (messageQueue) {
-                            if (messageQueue.isEmpty()
-                                    || messageQueue.get(0).getMessageSize() + datagramSize > MAX_DATAGRAM_PAYLOAD_SIZE) {
-                                break;
-                            }
-                        }
-                    }
-                    synchronized (encrypter) {
-                        sendMessage(messageBuffer, packetNum);
-
-                        // If we merged packets we can reuse the saved bytes.
-                        int headerBytesSaved = (packetNum - 1)
-                                * (DatagramEncrypter.SEQUENCE_NUMBER_BYTES + DatagramEncrypter.HMAC_SIZE);
-                        if (headerBytesSaved > 0) {
-                            DatagramConnection.this.refillBucket(headerBytesSaved);
-                        }
+            while (!quit) {
+                if (messageQueue.isEmpty()) {
+                    waiting = true;
+                    // Checked again after setting the flag so a message queued
+                    // in between isn't missed.
+                    if (messageQueue.isEmpty()) {
+                        LockSupport.park(this);
                     }
-
+                    waiting = false;
+                    continue;
                 }
-            } catch (InterruptedException e) {
-                logger.fine("Datagram send thread closed: " + DatagramConnection.this.toString());
-                synchronized (messageQueue) {
-                    while (!messageQueue.isEmpty()) {
-                        messageQueue.get(0).destroy();
-                    }
+                // Send until the queue is drained.
+                while (!quit && !messageQueue.isEmpty()) {
+                    sendDatagram();
                 }
             }
+            logger.fine("Datagram send thread closed: " + DatagramConnection.this.toString());
+            OSF2FMessage message;
+            while ((message = messageQueue.poll()) != null) {
+                message.destroy();
+            }
         }
 
         /**
-         * Send a message over this UDP connection.
-         * 
-         * @param message
+         * Pack as many queued messages as fit into one datagram and send it.
          */
-        private void sendMessage(RawMessage[] messages, int num) {
-            try {
-                lastPacketSent = System.currentTimeMillis();
-                int size = 0;
-                int buffers = 0;
-                for (int messageNum = 0; messageNum < num; messageNum++) {
-                    // Get the message data.
-                    DirectByteBuffer[] data = messages[messageNum].getRawData();
-
-                    for (int i = 0; i < data.length; i++) {
-                        ByteBuffer bb = data[i].getBuffer(SS);
-                        unencryptedPayload[buffers++] = bb;
-                        size += bb.remaining();
-                    }
+        private void sendDatagram() {
+            int datagramSize = 0;
+            int packetNum = 0;
+            int buffers = 0;
+            int size = 0;
+            OSF2FMessage message;
+            while (packetNum < MAX_MESSAGES_PER_DATAGRAM
+                    && (message = messageQueue.peek()) != null) {
+                int messageSize = message.getMessageSize();
+                if (packetNum > 0 && messageSize + datagramSize > MAX_DATAGRAM_PAYLOAD_SIZE) {
+                    break;
+                }
+                messageQueue.poll();
+                if (queueLength.addAndGet(-(messageSize + OSF2FMessage.MESSAGE_HEADER_LEN)) < 0) {
+                    logger.warning("Datagram Queue underrun, accounting bug!");
+                }
+
+                DirectByteBuffer[] data = message.getData();
+                ByteBuffer header = headers[packetNum];
+                header.clear();
+                if (!OSF2FMessageFactory.putOSF2FHeader(message, data, header)) {
+                    returnToPool(data);
+                    continue;
+                }
+                header.flip();
+                datagramSize += messageSize + OSF2FMessage.MESSAGE_HEADER_LEN;
+                messageData[packetNum++] = data;
+                unencryptedPayload[buffers++] = header;
+                size += header.remaining();
+                for (int i = 0; i < data.length; i++) {
+                    ByteBuffer bb = data[i].getBuffer(SS);
+                    unencryptedPayload[buffers++] = bb;
+                    size += bb.remaining();
                 }
                 if (logger.isLoggable(Level.FINEST)) {
-                    logger.finest("encrypting " + size + " bytes");
+                    logger.finest(String.format("Adding message, packets=%d, size=%d message=%s",
+                            packetNum, datagramSize, message.getDescription()));
                 }
-                if (size > outgoingPacketBuf.length) {
-                    logger.warning("Attempting to encrypt over-full packet of size " + size
-                            + " bytes.");
+            }
+            if (packetNum == 0) {
+                return;
+            }
+
+            synchronized (encrypter) {
+                try {
+                    lastPacketSent = System.currentTimeMillis();
+                    if (logger.isLoggable(Level.FINEST)) {
+                        logger.finest("encrypting " + size + " bytes");
+                    }
+                    if (size > outgoingPacketBuf.length) {
+                        logger.warning("Attempting to encrypt over-full packet of size " + size
+                                + " bytes.");
+                    }
+                    // Encrypt the message buffers straight into the packet.
+                    EncryptedPacket encrypted = encrypter.encrypt(unencryptedPayload, buffers,
+                            outgoingPacketBuf);
+
+                    packet.setData(outgoingPacketBuf, 0, encrypted.getLength());
+                    packet.setAddress(remoteIp);
+                    packet.setPort(remotePort);
+                    manager.send(packet, friendConnection.isLanLocal());
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    sendState = SendState.CLOSED;
+                } finally {
+                    // Return the message buffers to the pool.
+                    for (int i = 0; i < packetNum; i++) {
+                        returnToPool(messageData[i]);
+                        messageData[i] = null;
+                    }
+                    for (int i = 0; i < buffers; i++) {
+                        unencryptedPayload[i] = null;
+                    }
                 }
-                // Encrypt the serialized payload into the payload buffer.
-                EncryptedPacket encrypted = encrypter.encrypt(unencryptedPayload, buffers,
-                        outgoingPacketBuf);
-
-                // Create and send the packet.
-                DatagramPacket packet = new DatagramPacket(outgoingPacketBuf, 0,
-                        encrypted.getLength(), remoteIp, remotePort);
-                manager.send(packet, friendConnection.isLanLocal());
-            } catch (Exception e) {
-                e.printStackTrace();
-                sendState = SendState.CLOSED;
-            } finally {
-                // Return the incoming messages buffers to the pool.
-                for (int i = 0; i < num; i++) {
-                    messages[i].destroy();
+
+                // If we merged packets we can reuse the saved bytes.
+                int headerBytesSaved = (packetNum - 1)
+                        * (DatagramEncrypter.SEQUENCE_NUMBER_BYTES + DatagramEncrypter.HMAC_SIZE);
+                if (headerBytesSaved > 0) {
+                    DatagramConnection.this.refillBucket(headerBytesSaved);
                 }
             }
         }
+
+        private void returnToPool(DirectByteBuffer[] data) {
+            for (int i = 0; i < data.length; i++) {
+                data[i].returnToPool();
+            }
+        }
     }
 
     public int getRemotePort() {
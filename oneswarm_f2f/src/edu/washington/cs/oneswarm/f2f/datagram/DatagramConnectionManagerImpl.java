@@ -31,6 +31,9 @@ import com.aelitis.net.udp.uc.impl.ExternalUdpPacketHandler;
 import com.aelitis.net.udp.uc.impl.PRUDPPacketHandlerImpl;
 
 import edu.uw.cse.netlab.utils.CoreWaiter;
+import edu.washington.cs.oneswarm.f2f.metrics.Counter;
+import edu.washington.cs.oneswarm.f2f.metrics.Gauge;
+import edu.washington.cs.oneswarm.f2f.metrics.MetricsRegistry;
 import edu.washington.cs.oneswarm.f2f.network.FriendConnection;
 
 public class DatagramConnectionManagerImpl extends CoreWaiter implements DatagramConnectionManager,
@@ -61,6 +64,8 @@ public class DatagramConnectionManagerImpl extends CoreWaiter implements Datagra
 
     private DatagramRateLimiter uploadRateLimiter;
     private DatagramRateLimiter lanUploadRateLimiter;
+    private Counter uploadTokensAdded;
+    private Counter lanUploadTokensAdded;
 
     private DatagramSocket socket;
 
@@ -90,6 +95,8 @@ public class DatagramConnectionManagerImpl extends CoreWaiter implements Datagra
     private void initRateLimiting() {
         uploadRateLimiter = new DatagramRateLimiter();
         lanUploadRateLimiter = new DatagramRateLimiter();
+        uploadTokensAdded = registerMetrics(uploadRateLimiter, "wan");
+        lanUploadTokensAdded = registerMetrics(lanUploadRateLimiter, "lan");
 
         COConfigurationManager.addAndFireParameterListeners(new String[] { "LAN Speed Enabled",
                 "Max Upload Speed KBs", "Max LAN Upload Speed KBs" }, new ParameterListener() {
@@ -127,16 +134,18 @@ public class DatagramConnectionManagerImpl extends CoreWaiter implements Datagra
         NetworkManager.getSingleton().addWriteEventListener(new WriteEventListener() {
             @Override
             public void writeEvent() {
-                refill(uploadRateLimiter, uploadRateHandler, DATAGRAM_TRAFFIC_SHARE);
-                refill(lanUploadRateLimiter, lanUploadRateHandler, DATAGRAM_TRAFFIC_SHARE);
+                refill(uploadRateLimiter, uploadRateHandler, uploadTokensAdded,
+                        DATAGRAM_TRAFFIC_SHARE);
+                refill(lanUploadRateLimiter, lanUploadRateHandler, lanUploadTokensAdded,
+                        DATAGRAM_TRAFFIC_SHARE);
             }
         });
 
         TimerTask tokenRefillTask = new TimerTask() {
             @Override
             public void run() {
-                refill(uploadRateLimiter, uploadRateHandler, 1);
-                refill(lanUploadRateLimiter, lanUploadRateHandler, 1);
+                refill(uploadRateLimiter, uploadRateHandler, uploadTokensAdded, 1);
+                refill(lanUploadRateLimiter, lanUploadRateHandler, lanUploadTokensAdded, 1);
                 uploadRateLimiter.allocateTokens();
                 lanUploadRateLimiter.allocateTokens();
             }
@@ -146,13 +155,44 @@ public class DatagramConnectionManagerImpl extends CoreWaiter implements Datagra
     }
 
     private void refill(DatagramRateLimiter datagramRateLimiter, RateHandler handler,
-            double trafficShare) {
+            Counter tokensAdded, double trafficShare) {
         if (datagramRateLimiter.isFull()) {
             return;
         }
         int available = handler.getCurrentNumBytesAllowed();
         int added = datagramRateLimiter.refillBucket((int) (available * trafficShare));
         handler.bytesProcessed(added);
+        tokensAdded.add(added);
+    }
+
+    /**
+     * Exports the state of a top level rate limiter.
+     * 
+     * @return the counter of tokens taken from the upload rate handler
+     */
+    private static Counter registerMetrics(final DatagramRateLimiter limiter, String name) {
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        metrics.register(new Gauge("f2f_datagram_tokens_available",
+                "Tokens (bytes) in the datagram rate limiter bucket.", "limiter", name) {
+            public double getValue() {
+                return limiter.getAvailableTokens();
+            }
+        });
+        metrics.register(new Gauge("f2f_datagram_token_bucket_size",
+                "Size of the datagram rate limiter bucket in bytes.", "limiter", name) {
+            public double getValue() {
+                return limiter.getTokenBucketSize();
+            }
+        });
+        metrics.register(new Gauge("f2f_datagram_connection_queues",
+                "Datagram connections sharing the rate limiter.", "limiter", name) {
+            public double getValue() {
+                return limiter.getQueueCount();
+            }
+        });
+        return metrics.counter("f2f_datagram_tokens_added_total",
+                "Tokens (bytes) taken from the upload rate handler for datagrams.", "limiter",
+                name);
     }
 
     @Override
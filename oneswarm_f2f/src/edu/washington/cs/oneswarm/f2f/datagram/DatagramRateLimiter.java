@@ -80,6 +80,10 @@ public class DatagramRateLimiter {
         logger.fine(toString() + ": queue removed: " + queue.toString());
     }
 
+    public synchronized int getQueueCount() {
+        return queues.size();
+    }
+
     public int getAvailableTokens() {
         return availableTokens;
     }
@@ -50,6 +50,9 @@ import edu.washington.cs.oneswarm.f2f.OSF2FMain;
 import edu.washington.cs.oneswarm.f2f.friends.FriendManager;
 import edu.washington.cs.oneswarm.f2f.friends.LanFriendFinder;
 import edu.washington.cs.oneswarm.f2f.invitations.InvitationManager;
+import edu.washington.cs.oneswarm.f2f.metrics.Counter;
+import edu.washington.cs.oneswarm.f2f.metrics.Gauge;
+import edu.washington.cs.oneswarm.f2f.metrics.MetricsRegistry;
 import edu.washington.cs.oneswarm.f2f.network.OverlayManager;
 import edu.washington.cs.oneswarm.ui.gwt.server.community.CommunityServerManager;
 
@@ -98,19 +101,37 @@ public class DHTConnector {
 
     private final HashMap<HashWrapper, DistributedDatabaseKey> dhtKeyCache = new HashMap<HashWrapper, DistributedDatabaseKey>();
 
-    private long queuedDHTReadRequests = 0;
-    private long completedDHTReadRequests = 0;
-    private long timedoutDHTReadRequests = 0;
-    private long queuedDHTWriteRequests = 0;
-    private long completedDHTWriteRequests = 0;
-    private long timedoutDHTWriteRequests = 0;
+    private final Counter queuedDHTReadRequests = dhtCounter("queued", "read");
+    private final Counter completedDHTReadRequests = dhtCounter("completed", "read");
+    private final Counter timedoutDHTReadRequests = dhtCounter("timed_out", "read");
+    private final Counter queuedDHTWriteRequests = dhtCounter("queued", "write");
+    private final Counter completedDHTWriteRequests = dhtCounter("completed", "write");
+    private final Counter timedoutDHTWriteRequests = dhtCounter("timed_out", "write");
     private static final long DHT_TIMEOUT = 60 * 1000;
     private final static int MAX_DHT_READ_QUEUE_LENGTH = 200;
     private final static int MAX_DHT_WRITE_QUEUE_LENGTH = 200;
 
+    private static Counter dhtCounter(String state, String op) {
+        return MetricsRegistry.getInstance().counter("f2f_dht_requests_" + state + "_total",
+                "DHT requests " + state.replace('_', ' ') + ", by operation.", "op", op);
+    }
+
     public DHTConnector(FriendManager friendManager, InvitationManager invitationManager,
             OverlayManager _overlayManager) {
         logger.fine("cht enabled=" + isChtEnabled());
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        metrics.register(new Gauge("f2f_dht_requests_outstanding",
+                "DHT requests waiting for completion, by operation.", "op", "read") {
+            public double getValue() {
+                return getOutstandingDhtReadRequests();
+            }
+        });
+        metrics.register(new Gauge("f2f_dht_requests_outstanding",
+                "DHT requests waiting for completion, by operation.", "op", "write") {
+            public double getValue() {
+                return getOutstandingDhtWriteRequests();
+            }
+        });
         this.overlayManager = _overlayManager;
         this.invitationManager = invitationManager;
 
@@ -546,7 +567,7 @@ public class DHTConnector {
         friend.updateConnectionLog(true, "Looking up friend location in DHT(" + locSource + ")");
         try {
             final DistributedDatabaseKey dhtKey = createKey(key);
-            queuedDHTReadRequests++;
+            queuedDHTReadRequests.inc();
             getDht().read(new DistributedDatabaseListener() {
                 @Override
                 public void event(DistributedDatabaseEvent event) {
@@ -560,17 +581,19 @@ public class DHTConnector {
                             friend.updateConnectionLog(true, "dht value error: " + e.getMessage());
                         }
                     } else if (event.getType() == DistributedDatabaseEvent.ET_OPERATION_COMPLETE) {
-                        completedDHTReadRequests++;
-                        logger.fine("DHT read event completed, queued=" + queuedDHTReadRequests
-                                + " completed=" + completedDHTReadRequests + " outstanding="
+                        completedDHTReadRequests.inc();
+                        logger.fine("DHT read event completed, queued="
+                                + queuedDHTReadRequests.get() + " completed="
+                                + completedDHTReadRequests.get() + " outstanding="
                                 + getOutstandingDhtReadRequests() + " timeout="
-                                + timedoutDHTReadRequests);
+                                + timedoutDHTReadRequests.get());
                     } else if (event.getType() == DistributedDatabaseEvent.ET_OPERATION_TIMEOUT) {
-                        logger.fine("DHT read event timed out, queued=" + queuedDHTReadRequests
-                                + " completed=" + completedDHTReadRequests + " outstanding="
+                        logger.fine("DHT read event timed out, queued="
+                                + queuedDHTReadRequests.get() + " completed="
+                                + completedDHTReadRequests.get() + " outstanding="
                                 + getOutstandingDhtReadRequests() + " timeout="
-                                + timedoutDHTReadRequests);
-                        timedoutDHTReadRequests++;
+                                + timedoutDHTReadRequests.get());
+                        timedoutDHTReadRequests.inc();
                     }
                 }
             }, dhtKey, DHT_TIMEOUT);
@@ -581,11 +604,13 @@ public class DHTConnector {
     }
 
     public long getOutstandingDhtReadRequests() {
-        return queuedDHTReadRequests - completedDHTReadRequests - timedoutDHTReadRequests;
+        return queuedDHTReadRequests.get() - completedDHTReadRequests.get()
+                - timedoutDHTReadRequests.get();
     }
 
     public long getOutstandingDhtWriteRequests() {
-        return queuedDHTWriteRequests - completedDHTWriteRequests - timedoutDHTWriteRequests;
+        return queuedDHTWriteRequests.get() - completedDHTWriteRequests.get()
+                - timedoutDHTWriteRequests.get();
     }
 
     private void chtLookupAndConnect(final Friend friend,
@@ -753,7 +778,7 @@ public class DHTConnector {
         if (getDht().isAvailable()) {
             try {
                 DistributedDatabaseKey dhtKey = createKey(keyBase);
-                queuedDHTReadRequests++;
+                queuedDHTReadRequests.inc();
                 getDht().read(new DistributedDatabaseListener() {
                     @Override
                     public void event(DistributedDatabaseEvent event) {
@@ -767,17 +792,17 @@ public class DHTConnector {
                                 e.printStackTrace();
                             }
                         } else if (event.getType() == DistributedDatabaseEvent.ET_OPERATION_COMPLETE) {
-                            completedDHTReadRequests++;
+                            completedDHTReadRequests.inc();
                             logger.finest("DHT read event completed or timed out, queued="
-                                    + queuedDHTReadRequests + " completed="
-                                    + completedDHTReadRequests + " outstanding="
+                                    + queuedDHTReadRequests.get() + " completed="
+                                    + completedDHTReadRequests.get() + " outstanding="
                                     + getOutstandingDhtReadRequests());
                         } else if (event.getType() == DistributedDatabaseEvent.ET_OPERATION_TIMEOUT) {
                             logger.finer("DHT read event completed or timed out, queued="
-                                    + queuedDHTReadRequests + " completed="
-                                    + completedDHTReadRequests + " outstanding="
+                                    + queuedDHTReadRequests.get() + " completed="
+                                    + completedDHTReadRequests.get() + " outstanding="
                                     + getOutstandingDhtReadRequests());
-                            timedoutDHTReadRequests++;
+                            timedoutDHTReadRequests.inc();
                         }
                     }
                 }, dhtKey, DHT_TIMEOUT);
@@ -913,7 +938,7 @@ public class DHTConnector {
                 final DistributedDatabaseValue[] dhtValue = new DistributedDatabaseValue[] { getDht()
                         .createValue(value) };
                 published = true;
-                queuedDHTWriteRequests++;
+                queuedDHTWriteRequests.inc();
                 getDht().write(new DistributedDatabaseListener() {
                     @Override
                     public void event(DistributedDatabaseEvent event) {
@@ -924,19 +949,19 @@ public class DHTConnector {
                         // Log.log("dht publish succeded", logToStdOut);
                         // }
                         if (event.getType() == DistributedDatabaseEvent.ET_OPERATION_COMPLETE) {
-                            completedDHTWriteRequests++;
+                            completedDHTWriteRequests.inc();
                             logger.fine("DHT write event completed, queued="
-                                    + queuedDHTWriteRequests + " completed="
-                                    + completedDHTWriteRequests + " outstanding="
+                                    + queuedDHTWriteRequests.get() + " completed="
+                                    + completedDHTWriteRequests.get() + " outstanding="
                                     + getOutstandingDhtWriteRequests() + " timeout="
-                                    + timedoutDHTWriteRequests);
+                                    + timedoutDHTWriteRequests.get());
                         } else if (event.getType() == DistributedDatabaseEvent.ET_OPERATION_TIMEOUT) {
                             logger.fine("DHT write event timed out, queued="
-                                    + queuedDHTWriteRequests + " completed="
-                                    + completedDHTWriteRequests + " outstanding="
+                                    + queuedDHTWriteRequests.get() + " completed="
+                                    + completedDHTWriteRequests.get() + " outstanding="
                                     + getOutstandingDhtWriteRequests() + " timeout="
-                                    + timedoutDHTWriteRequests);
-                            timedoutDHTWriteRequests++;
+                                    + timedoutDHTWriteRequests.get());
+                            timedoutDHTWriteRequests.inc();
                         }
                     }
                 }, dhtKey, dhtValue);
@@ -1163,22 +1188,22 @@ public class DHTConnector {
                     final DistributedDatabaseKey dhtKey = createKey(key);
                     final DistributedDatabaseValue[] dhtValue = new DistributedDatabaseValue[] { getDht()
                             .createValue(value) };
-                    queuedDHTWriteRequests++;
+                    queuedDHTWriteRequests.inc();
                     getDht().write(new DistributedDatabaseListener() {
                         @Override
                         public void event(DistributedDatabaseEvent event) {
                             if (event.getType() == DistributedDatabaseEvent.ET_OPERATION_COMPLETE) {
-                                completedDHTWriteRequests++;
+                                completedDHTWriteRequests.inc();
                                 logger.finest("DHT write event completed, queued="
-                                        + queuedDHTWriteRequests + " completed="
-                                        + completedDHTWriteRequests + " outstanding="
+                                        + queuedDHTWriteRequests.get() + " completed="
+                                        + completedDHTWriteRequests.get() + " outstanding="
                                         + getOutstandingDhtWriteRequests());
                             } else if (event.getType() == DistributedDatabaseEvent.ET_OPERATION_TIMEOUT) {
                                 logger.finest("DHT write event timed out, queued="
-                                        + queuedDHTWriteRequests + " completed="
-                                        + completedDHTWriteRequests + " outstanding="
+                                        + queuedDHTWriteRequests.get() + " completed="
+                                        + completedDHTWriteRequests.get() + " outstanding="
                                         + getOutstandingDhtWriteRequests());
-                                timedoutDHTWriteRequests++;
+                                timedoutDHTWriteRequests.inc();
                             }
                         }
                     }, dhtKey, dhtValue);
@@ -1229,24 +1254,24 @@ public class DHTConnector {
                     final DistributedDatabaseKey dhtKey = createKey(key);
                     final DistributedDatabaseValue[] dhtValue = new DistributedDatabaseValue[] { getDht()
                             .createValue(value) };
-                    queuedDHTWriteRequests++;
+                    queuedDHTWriteRequests.inc();
                     getDht().write(new DistributedDatabaseListener() {
                         @Override
                         public void event(DistributedDatabaseEvent event) {
                             if (event.getType() == DistributedDatabaseEvent.ET_OPERATION_COMPLETE
                                     || event.getType() == DistributedDatabaseEvent.ET_OPERATION_COMPLETE) {
                                 if (event.getType() == DistributedDatabaseEvent.ET_OPERATION_COMPLETE) {
-                                    completedDHTWriteRequests++;
+                                    completedDHTWriteRequests.inc();
                                     logger.finest("DHT write event completed, queued="
-                                            + queuedDHTWriteRequests + " completed="
-                                            + completedDHTWriteRequests + " outstanding="
+                                            + queuedDHTWriteRequests.get() + " completed="
+                                            + completedDHTWriteRequests.get() + " outstanding="
                                             + getOutstandingDhtWriteRequests());
                                 } else if (event.getType() == DistributedDatabaseEvent.ET_OPERATION_TIMEOUT) {
                                     logger.finest("DHT write event timed out, queued="
-                                            + queuedDHTWriteRequests + " completed="
-                                            + completedDHTWriteRequests + " outstanding="
+                                            + queuedDHTWriteRequests.get() + " completed="
+                                            + completedDHTWriteRequests.get() + " outstanding="
                                             + getOutstandingDhtWriteRequests());
-                                    timedoutDHTWriteRequests++;
+                                    timedoutDHTWriteRequests.inc();
                                 }
                             }
                         }
@@ -22,6 +22,8 @@ public class OSF2FChannelDataMsg extends OSF2FChannelMsg {
     private final byte version;
     private final int channelID;
     private final DirectByteBuffer[] buffer = new DirectByteBuffer[2];
+    /** Set by putChannelIdInPayload(), the payload with the channel id in front of it */
+    private DirectByteBuffer[] inPlace = null;
     private int messageLength;
 
     public OSF2FChannelDataMsg(byte _version, int channelID, DirectByteBuffer data) {
@@ -41,6 +43,7 @@ public class OSF2FChannelDataMsg extends OSF2FChannelMsg {
     }
     
     public DirectByteBuffer getPayload() {
+        takeChannelIdOutOfPayload();
         return buffer[1];
     }
 
@@ -115,6 +118,9 @@ public class OSF2FChannelDataMsg extends OSF2FChannelMsg {
 
     @Override
     public DirectByteBuffer[] getData() {
+        if (inPlace != null) {
+            return inPlace;
+        }
         if (buffer[0] == null) {
             buffer[0] = DirectByteBufferPool.getBuffer(DirectByteBuffer.AL_MSG, BASE_LENGTH);
             buffer[0].putInt(DirectByteBuffer.SS_MSG, channelID);
@@ -151,13 +157,48 @@ public class OSF2FChannelDataMsg extends OSF2FChannelMsg {
         return messageLength;
     }
 
+    /**
+     * Used when relaying: writes the channel id into the 4 bytes in front of
+     * the payload, where the decoder left the channel id this message arrived
+     * with, so that getData() returns the received buffer as is rather than
+     * a freshly allocated header plus the payload. Looking at the payload
+     * again moves it back past the channel id.
+     * 
+     * @return false if there is no room in front of the payload
+     */
+    public boolean putChannelIdInPayload() {
+        DirectByteBuffer payload = buffer[1];
+        if (inPlace != null) {
+            return true;
+        }
+        if (buffer[0] != null || payload == null
+                || payload.position(DirectByteBuffer.SS_MSG) < CHANNEL_ID_LEN) {
+            return false;
+        }
+        int start = payload.position(DirectByteBuffer.SS_MSG) - CHANNEL_ID_LEN;
+        payload.getBuffer(DirectByteBuffer.SS_MSG).putInt(start, channelID);
+        payload.position(DirectByteBuffer.SS_MSG, start);
+        inPlace = new DirectByteBuffer[] { payload };
+        return true;
+    }
+
+    private void takeChannelIdOutOfPayload() {
+        if (inPlace != null) {
+            buffer[1].position(DirectByteBuffer.SS_MSG, buffer[1].position(DirectByteBuffer.SS_MSG)
+                    + CHANNEL_ID_LEN);
+            inPlace = null;
+        }
+    }
+
     public DirectByteBuffer transferPayload() {
+        takeChannelIdOutOfPayload();
         DirectByteBuffer payload = buffer[1];
         buffer[1] = null;
         return payload;
     }
 
     public void updatePayload(DirectByteBuffer newPayload) {
+        inPlace = null;
         if (buffer[1] != null) {
             buffer[1].returnToPool();
         }
@@ -24,6 +24,10 @@ public class OSF2FHandshake implements OSF2FMessage, RawMessage {
     public static final byte SUPPORTS_CHAT = 2;
     public static final byte SUPPORTS_DHT_LOCATION_HS = 4;
     public static final byte SUPPORTS_UDP = 8;
+    // file list updates can be sent as FileListDeltas
+    public static final byte SUPPORTS_FILE_LIST_DELTAS = 16;
+    // hash searches can be sent as OSF2FHashSearchBatch messages
+    public static final byte SUPPORTS_HASH_SEARCH_BATCH = 32;
     /**
      * Protocol extensions we support in the current version. This is a very
      * hacky way to do protocol versioning, but it's what we're using for now to
@@ -32,7 +36,8 @@ public class OSF2FHandshake implements OSF2FMessage, RawMessage {
      * handshake message
      */
     public final static byte[] OS_FLAGS = new byte[] {
-            SUPPORTS_EXTENDED_FILE_LISTS | SUPPORTS_CHAT | SUPPORTS_DHT_LOCATION_HS | SUPPORTS_UDP,
+            SUPPORTS_EXTENDED_FILE_LISTS | SUPPORTS_CHAT | SUPPORTS_DHT_LOCATION_HS | SUPPORTS_UDP
+                    | SUPPORTS_FILE_LIST_DELTAS | SUPPORTS_HASH_SEARCH_BATCH,
             0, 0, 0, 0, 0,
             0, 0 };
 
@@ -0,0 +1,146 @@
+package edu.washington.cs.oneswarm.f2f.messaging;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.gudy.azureus2.core3.util.DirectByteBuffer;
+import org.gudy.azureus2.core3.util.DirectByteBufferPool;
+
+import com.aelitis.azureus.core.peermanager.messaging.Message;
+import com.aelitis.azureus.core.peermanager.messaging.MessageException;
+
+/**
+ * Many hash searches in one message. Each infohashhash is still its own
+ * search: its search id is derived from the batch search id and the
+ * infohashhash (see {@link #getSearchID(int, long)}), so responses, cancels
+ * and forwarding work exactly as for a {@link OSF2FHashSearch}, and any
+ * subset of a batch can be sent on without changing the ids.
+ */
+public class OSF2FHashSearchBatch extends OSF2FSearch implements OSF2FMessage {
+
+    // keeps a full batch well below MAX_PAYLOAD_SIZE
+    public final static int MAX_HASHES = 256;
+
+    private final long[] infohashhashes;
+
+    private String description;
+    private DirectByteBuffer buffer;
+
+    public OSF2FHashSearchBatch(byte version, int searchID, long[] infohashhashes) {
+        super(version, searchID);
+        this.infohashhashes = infohashhashes;
+    }
+
+    /**
+     * @return the search id used for <code>infohashhash</code> in the batch
+     *         with search id <code>batchSearchID</code>.
+     */
+    public static int getSearchID(int batchSearchID, long infohashhash) {
+        // multiplying by an odd constant is a bijection, so hashes only share
+        // an id if their folded values are equal
+        int h = (int) (infohashhash ^ (infohashhash >>> 32));
+        return batchSearchID ^ (h * 0x9E3779B9);
+    }
+
+    public long[] getInfohashhashes() {
+        return infohashhashes;
+    }
+
+    public int getNumSearches() {
+        return infohashhashes.length;
+    }
+
+    /**
+     * @return the hash searches in this batch.
+     */
+    public List<OSF2FHashSearch> getSearches() {
+        List<OSF2FHashSearch> searches = new ArrayList<OSF2FHashSearch>(infohashhashes.length);
+        for (long infohashhash : infohashhashes) {
+            searches.add(new OSF2FHashSearch(getVersion(), getSearchID(getSearchID(),
+                    infohashhash), infohashhash));
+        }
+        return searches;
+    }
+
+    public OSF2FHashSearchBatch clone() {
+        return new OSF2FHashSearchBatch(this.getVersion(), this.getSearchID(),
+                this.infohashhashes.clone());
+    }
+
+    public String getID() {
+        return OSF2FMessage.ID_OS_HASH_SEARCH_BATCH;
+    }
+
+    public byte[] getIDBytes() {
+        return OSF2FMessage.ID_OS_HASH_SEARCH_BATCH_BYTES;
+    }
+
+    public String getFeatureID() {
+        return OSF2FMessage.OS_FEATURE_ID;
+    }
+
+    public int getFeatureSubID() {
+        return OSF2FMessage.SUBID_OS_HASH_SEARCH_BATCH;
+    }
+
+    public int getType() {
+        return Message.TYPE_PROTOCOL_PAYLOAD;
+    }
+
+    public String getDescription() {
+        if (description == null) {
+            description = OSF2FMessage.ID_OS_HASH_SEARCH_BATCH + "\tsearch="
+                    + Integer.toHexString(getSearchID()) + "\thashes=" + infohashhashes.length;
+        }
+
+        return description;
+    }
+
+    public DirectByteBuffer[] getData() {
+        if (buffer == null) {
+            buffer = DirectByteBufferPool.getBuffer(DirectByteBuffer.AL_MSG, getMessageSize());
+            buffer.putInt(DirectByteBuffer.SS_MSG, getSearchID());
+            for (long infohashhash : infohashhashes) {
+                buffer.getBuffer(DirectByteBuffer.SS_MSG).putLong(infohashhash);
+            }
+            buffer.flip(DirectByteBuffer.SS_MSG);
+        }
+        return new DirectByteBuffer[] { buffer };
+    }
+
+    public Message deserialize(DirectByteBuffer data, byte version) throws MessageException {
+        if (data == null) {
+            throw new MessageException("[" + getID() + "] decode error: data == null");
+        }
+
+        int remaining = data.remaining(DirectByteBuffer.SS_MSG);
+        if (remaining < 4 + 8 || (remaining - 4) % 8 != 0 || remaining > 4 + 8 * MAX_HASHES) {
+            throw new MessageException("[" + getID() + "] decode error: payload.remaining["
+                    + remaining + "] is not 4 + 8 * [1, " + MAX_HASHES + "]");
+        }
+        int search = data.getInt(DirectByteBuffer.SS_MSG);
+        long[] hashes = new long[(remaining - 4) / 8];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = data.getBuffer(DirectByteBuffer.SS_MSG).getLong();
+        }
+        data.returnToPool();
+        return new OSF2FHashSearchBatch(version, search, hashes);
+    }
+
+    public void destroy() {
+        if (buffer != null)
+            buffer.returnToPool();
+    }
+
+    public int getMessageSize() {
+        return 4 + 8 * infohashhashes.length;
+    }
+
+    public int getValueID() {
+        int value = 0;
+        for (long infohashhash : infohashhashes) {
+            value ^= (int) infohashhash;
+        }
+        return value;
+    }
+}
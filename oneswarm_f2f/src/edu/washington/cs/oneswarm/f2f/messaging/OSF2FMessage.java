@@ -68,7 +68,11 @@ public interface OSF2FMessage extends Message {
     public static final byte[] ID_OS_DATAGRAM_OK_BYTES = ID_OS_DATAGRAM_OK.getBytes();
     public static final byte SUBID_OS_DATAGRAM_OK = 13 + 64;
 
-    public static final byte LAST_ID = SUBID_OS_DATAGRAM_OK;
+    public static final String ID_OS_HASH_SEARCH_BATCH = "OS_HASH_SEARCH_BATCH";
+    public static final byte[] ID_OS_HASH_SEARCH_BATCH_BYTES = ID_OS_HASH_SEARCH_BATCH.getBytes();
+    public static final byte SUBID_OS_HASH_SEARCH_BATCH = 14 + 64;
+
+    public static final byte LAST_ID = SUBID_OS_HASH_SEARCH_BATCH;
 
     public final byte METAINFO_TYPE_BITTORRENT = 0;
     public final byte METAINFO_TYPE_THUMBNAIL = 1;
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
+import org.gudy.azureus2.core3.config.COConfigurationManager;
 import org.gudy.azureus2.core3.util.Debug;
 import org.gudy.azureus2.core3.util.DirectByteBuffer;
 import org.gudy.azureus2.core3.util.DirectByteBufferPool;
@@ -31,6 +32,12 @@ public class OSF2FMessageDecoder implements MessageStreamDecoder {
 
     private static final byte SS = DirectByteBuffer.SS_MSG;
 
+    /**
+     * Size of the bulk read buffer, enough for a channel data message with
+     * room to spare for the small messages that follow it
+     */
+    static final int CHUNK_SIZE = 32 * 1024;
+
     private DirectByteBuffer payload_buffer = null;
     private final DirectByteBuffer length_buffer = DirectByteBufferPool.getBuffer(
             DirectByteBuffer.AL_MSG, 4);
@@ -53,8 +60,23 @@ public class OSF2FMessageDecoder implements MessageStreamDecoder {
     private int data_bytes_last_read = 0;
     private int percent_complete = -1;
 
+    /**
+     * In bulk mode the decoder reads as much as max_bytes allows into
+     * chunk_buffer and decodes every message it holds, instead of doing one
+     * read for each length and one for each payload. Between calls the bytes
+     * that have been read but not decoded yet (only left over if decoding was
+     * paused) are between the chunk's position and limit.
+     */
+    private final boolean bulk;
+    private DirectByteBuffer chunk_buffer = null;
+    private final ByteBuffer[] bulk_array = new ByteBuffer[2];
+
     public OSF2FMessageDecoder() {
-        /* nothing */
+        this(COConfigurationManager.getBooleanParameter("f2f_bulk_message_decode"));
+    }
+
+    OSF2FMessageDecoder(boolean bulk) {
+        this.bulk = bulk;
     }
 
     public int performStreamDecode(Transport transport, int max_bytes) throws IOException {
@@ -62,6 +84,10 @@ public class OSF2FMessageDecoder implements MessageStreamDecoder {
         protocol_bytes_last_read = 0;
         data_bytes_last_read = 0;
 
+        if (bulk) {
+            return performBulkDecode(transport, max_bytes);
+        }
+
         int bytes_remaining = max_bytes;
 
         while (bytes_remaining > 0) {
@@ -117,6 +143,129 @@ public class OSF2FMessageDecoder implements MessageStreamDecoder {
         return max_bytes - bytes_remaining;
     }
 
+    private int performBulkDecode(Transport transport, int max_bytes) throws IOException {
+        if (chunk_buffer == null) {
+            chunk_buffer = DirectByteBufferPool.getBuffer(DirectByteBuffer.AL_MSG, CHUNK_SIZE);
+            chunk_buffer.limit(SS, 0);
+        }
+
+        int bytes_remaining = max_bytes;
+
+        while (bytes_remaining > 0 && !destroyed && !is_paused) {
+            ByteBuffer chunk = chunk_buffer.getBuffer(SS);
+            int decoded_before = protocol_bytes_last_read + data_bytes_last_read;
+            boolean drained = false;
+
+            if (!chunk.hasRemaining()) {
+                int bytes_possible;
+                long bytes_read;
+                chunk.clear();
+                if (reading_length_mode) {
+                    chunk.limit(Math.min(chunk.capacity(), bytes_remaining));
+                    bytes_possible = chunk.remaining();
+                    bulk_array[0] = chunk;
+                    bytes_read = transport.read(bulk_array, 0, 1);
+                } else {
+                    // the rest of a message that didn't fit in the last chunk
+                    // is read straight into its own buffer, whatever follows
+                    // it goes into the chunk
+                    ByteBuffer payload = payload_buffer.getBuffer(SS);
+                    int start = payload.position();
+                    payload.limit(Math.min(message_length, start + bytes_remaining));
+                    chunk.limit(Math.min(chunk.capacity(), bytes_remaining - payload.remaining()));
+                    bytes_possible = payload.remaining() + chunk.remaining();
+                    bulk_array[0] = payload;
+                    bulk_array[1] = chunk;
+                    bytes_read = transport.read(bulk_array, 0, 2);
+                    payload.limit(message_length);
+                    countPayloadBytes(payload.position() - start);
+                    if (!payload.hasRemaining()) {
+                        if (!is_paused) {
+                            finishMessage();
+                        }
+                    } else {
+                        percent_complete = (payload.position() * 100) / message_length;
+                    }
+                }
+                chunk.flip();
+
+                if (bytes_read < 1) {
+                    break;
+                }
+                drained = bytes_read < bytes_possible;
+            }
+
+            decodeChunk(chunk);
+
+            bytes_remaining -= protocol_bytes_last_read + data_bytes_last_read - decoded_before;
+
+            if (drained) {
+                break;
+            }
+        }
+
+        return max_bytes - bytes_remaining;
+    }
+
+    /**
+     * Decodes the messages in chunk. A message that is only partially in
+     * the chunk is copied into its own buffer and finished by the next read.
+     */
+    private void decodeChunk(ByteBuffer chunk) throws IOException {
+        while (chunk.hasRemaining() && !is_paused && !destroyed) {
+            if (reading_length_mode) {
+                ByteBuffer length = length_buffer.getBuffer(SS);
+                int raw_length;
+                if (length.position() == 0 && chunk.remaining() >= 4) {
+                    raw_length = chunk.getInt();
+                    protocol_bytes_last_read += 4;
+                } else {
+                    // length split across chunks
+                    int n = Math.min(length.remaining(), chunk.remaining());
+                    for (int i = 0; i < n; i++) {
+                        length.put(chunk.get());
+                    }
+                    protocol_bytes_last_read += n;
+                    if (length.hasRemaining()) {
+                        return;
+                    }
+                    length.position(0);
+                    raw_length = length.getInt();
+                }
+                // kept for destroy(), same as after a read into length_buffer
+                length.putInt(0, raw_length);
+                length.position(0);
+                startMessage(raw_length);
+                continue;
+            }
+
+            ByteBuffer payload = payload_buffer.getBuffer(SS);
+            int n = Math.min(payload.remaining(), chunk.remaining());
+            int chunk_limit = chunk.limit();
+            chunk.limit(chunk.position() + n);
+            payload.put(chunk);
+            chunk.limit(chunk_limit);
+            countPayloadBytes(n);
+
+            if (payload.hasRemaining()) {
+                percent_complete = (payload.position() * 100) / message_length;
+            } else if (!is_paused) {
+                finishMessage();
+            }
+        }
+    }
+
+    private void countPayloadBytes(int read) {
+        if (read < 1) {
+            return;
+        }
+        if (OSF2FMessageFactory.getMessageType(payload_buffer) == Message.TYPE_DATA_PAYLOAD) {
+            data_bytes_last_read += read;
+        } else {
+            protocol_bytes_last_read += read;
+        }
+    }
+
     public int getPercentDoneOfCurrentMessage() {
         return percent_complete;
     }
@@ -158,7 +307,9 @@ public class OSF2FMessageDecoder implements MessageStreamDecoder {
                 pbuff_read = payload_buffer == null ? 0 : payload_buffer.position(SS);
             }
 
-            ByteBuffer unused = ByteBuffer.allocate(lbuff_read + pbuff_read); // TODO
+            int cbuff_read = chunk_buffer == null ? 0 : chunk_buffer.remaining(SS);
+
+            ByteBuffer unused = ByteBuffer.allocate(lbuff_read + pbuff_read + cbuff_read); // TODO
             // convert
             // to
             // direct?
@@ -171,6 +322,10 @@ public class OSF2FMessageDecoder implements MessageStreamDecoder {
                 unused.put(payload_buffer.getBuffer(SS));
             }
 
+            if (chunk_buffer != null) {
+                unused.put(chunk_buffer.getBuffer(SS));
+            }
+
             unused.flip();
 
             length_buffer.returnToPool();
@@ -180,6 +335,11 @@ public class OSF2FMessageDecoder implements MessageStreamDecoder {
                 payload_buffer = null;
             }
 
+            if (chunk_buffer != null) {
+                chunk_buffer.returnToPool();
+                chunk_buffer = null;
+            }
+
             for (int i = 0; i < messages_last_read.size(); i++) {
                 Message msg = (Message) messages_last_read.get(i);
                 msg.destroy();
@@ -271,53 +431,7 @@ public class OSF2FMessageDecoder implements MessageStreamDecoder {
 
             if (!payload_buffer.hasRemaining(SS) && !is_paused) { // full
                 // message received!
-                payload_buffer.position(SS, 0);
-
-                DirectByteBuffer ref_buff = payload_buffer;
-                payload_buffer = null;
-
-                if (reading_handshake_message) { // decode handshake
-                    reading_handshake_message = false;
-
-                    DirectByteBuffer handshake_data = DirectByteBufferPool.getBuffer(
-                            DirectByteBuffer.AL_MSG, OSF2FHandshake.MESSAGE_LENGTH);
-                    handshake_data.putInt(SS, HANDSHAKE_FAKE_LENGTH);
-                    handshake_data.put(SS, ref_buff);
-                    handshake_data.flip(SS);
-
-                    ref_buff.returnToPool();
-
-                    try {
-                        Message handshake = MessageManager.getSingleton().createMessage(
-                                OSF2FMessage.ID_OS_HANDSHAKE_BYTES, handshake_data, (byte) 1);
-                        messages_last_read.add(handshake);
-                    } catch (MessageException me) {
-                        handshake_data.returnToPool();
-                        throw new IOException("OSF2F message decode failed: " + me.getMessage());
-                    }
-
-                } else { // decode normal message
-                    try {
-                        Message msg = OSF2FMessageFactory.createOSF2FMessage(ref_buff);
-                        messages_last_read.add(msg);
-                    } catch (Throwable e) {
-                        ref_buff.returnToPoolIfNotFree();
-
-                        // maintain unexpected erorrs as such so they get logged
-                        // later
-
-                        if (e instanceof RuntimeException) {
-
-                            throw ((RuntimeException) e);
-                        }
-
-                        throw new IOException("OSF2F message decode failed: " + e.getMessage());
-                    }
-                }
-
-                reading_length_mode = true; // see if we've already read the
-                // next message's length
-                percent_complete = -1; // reset receive percentage
+                finishMessage();
             } else { // only partial received so far
                 percent_complete = (payload_buffer.position(SS) * 100) / message_length; // compute
                                                                                          // receive
@@ -332,41 +446,12 @@ public class OSF2FMessageDecoder implements MessageStreamDecoder {
                     - pre_read_start_position : length_buffer.position(SS);
 
             if (!length_buffer.hasRemaining(SS)) { // done reading the length
-                reading_length_mode = false;
-
                 length_buffer.position(SS, 0);
-                message_length = length_buffer.getInt(SS);
+                int raw_length = length_buffer.getInt(SS);
 
                 length_buffer.position(SS, 0); // reset it for next length read
                 // System.out.println("decoded length: " + message_length);
-                if (message_length == HANDSHAKE_FAKE_LENGTH) { // handshake
-                    // message
-                    reading_handshake_message = true;
-                    message_length = OSF2FHandshake.MESSAGE_LENGTH - 4; // restore
-                    // 'real'
-                    // length
-                    payload_buffer = DirectByteBufferPool.getBuffer(DirectByteBuffer.AL_MSG,
-                            message_length);
-
-                } else if (message_length == 0) { // keep-alive message
-                    reading_length_mode = true;
-                    last_received_was_keepalive = true;
-
-                    try {
-                        Message keep_alive = MessageManager.getSingleton().createMessage(
-                                BTMessage.ID_BT_KEEP_ALIVE_BYTES, null, (byte) 1);
-                        messages_last_read.add(keep_alive);
-                    } catch (MessageException me) {
-                        throw new IOException("BT message decode failed: " + me.getMessage());
-                    }
-                } else if (message_length < MIN_MESSAGE_LENGTH
-                        || message_length > MAX_MESSAGE_LENGTH) {
-                    throw new IOException("Invalid message length given for OS message decode: "
-                            + message_length);
-                } else { // normal message
-                    payload_buffer = DirectByteBufferPool.getBuffer(
-                            DirectByteBuffer.AL_MSG_BT_PAYLOAD, message_length);
-                }
+                startMessage(raw_length);
             }
         }
 
@@ -376,6 +461,96 @@ public class OSF2FMessageDecoder implements MessageStreamDecoder {
         return prot_bytes_read + data_bytes_read;
     }
 
+    /**
+     * Sets up for reading the payload of a message with the given length
+     * prefix, or queues the keep-alive if it is one.
+     */
+    private void startMessage(int length) throws IOException {
+        reading_length_mode = false;
+        message_length = length;
+
+        if (message_length == HANDSHAKE_FAKE_LENGTH) { // handshake
+            // message
+            reading_handshake_message = true;
+            message_length = OSF2FHandshake.MESSAGE_LENGTH - 4; // restore
+            // 'real'
+            // length
+            payload_buffer = DirectByteBufferPool.getBuffer(DirectByteBuffer.AL_MSG,
+                    message_length);
+
+        } else if (message_length == 0) { // keep-alive message
+            reading_length_mode = true;
+            last_received_was_keepalive = true;
+
+            try {
+                Message keep_alive = MessageManager.getSingleton().createMessage(
+                        BTMessage.ID_BT_KEEP_ALIVE_BYTES, null, (byte) 1);
+                messages_last_read.add(keep_alive);
+            } catch (MessageException me) {
+                throw new IOException("BT message decode failed: " + me.getMessage());
+            }
+        } else if (message_length < MIN_MESSAGE_LENGTH || message_length > MAX_MESSAGE_LENGTH) {
+            throw new IOException("Invalid message length given for OS message decode: "
+                    + message_length);
+        } else { // normal message
+            payload_buffer = DirectByteBufferPool.getBuffer(DirectByteBuffer.AL_MSG_BT_PAYLOAD,
+                    message_length);
+        }
+    }
+
+    /**
+     * Decodes the (full) payload_buffer and goes back to reading lengths.
+     */
+    private void finishMessage() throws IOException {
+        payload_buffer.position(SS, 0);
+
+        DirectByteBuffer ref_buff = payload_buffer;
+        payload_buffer = null;
+
+        if (reading_handshake_message) { // decode handshake
+            reading_handshake_message = false;
+
+            DirectByteBuffer handshake_data = DirectByteBufferPool.getBuffer(
+                    DirectByteBuffer.AL_MSG, OSF2FHandshake.MESSAGE_LENGTH);
+            handshake_data.putInt(SS, HANDSHAKE_FAKE_LENGTH);
+            handshake_data.put(SS, ref_buff);
+            handshake_data.flip(SS);
+
+            ref_buff.returnToPool();
+
+            try {
+                Message handshake = MessageManager.getSingleton().createMessage(
+                        OSF2FMessage.ID_OS_HANDSHAKE_BYTES, handshake_data, (byte) 1);
+                messages_last_read.add(handshake);
+            } catch (MessageException me) {
+                handshake_data.returnToPool();
+                throw new IOException("OSF2F message decode failed: " + me.getMessage());
+            }
+
+        } else { // decode normal message
+            try {
+                Message msg = OSF2FMessageFactory.createOSF2FMessage(ref_buff);
+                messages_last_read.add(msg);
+            } catch (Throwable e) {
+                ref_buff.returnToPoolIfNotFree();
+
+                // maintain unexpected erorrs as such so they get logged
+                // later
+
+                if (e instanceof RuntimeException) {
+
+                    throw ((RuntimeException) e);
+                }
+
+                throw new IOException("OSF2F message decode failed: " + e.getMessage());
+            }
+        }
+
+        reading_length_mode = true; // see if we've already read the
+        // next message's length
+        percent_complete = -1; // reset receive percentage
+    }
+
     public void pauseDecoding() {
         is_paused = true;
     }
@@ -1,5 +1,6 @@
 package edu.washington.cs.oneswarm.f2f.messaging;
 
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 
 import org.gudy.azureus2.core3.util.Debug;
@@ -52,6 +53,10 @@ public class OSF2FMessageFactory {
                 NO_DELAY, null, OSF2FMessage.SUBID_OS_HASH_SEARCH));
         id_to_name[OSF2FMessage.SUBID_OS_HASH_SEARCH] = OSF2FMessage.ID_OS_HASH_SEARCH;
 
+        legacy_data.put(OSF2FMessage.ID_OS_HASH_SEARCH_BATCH, new LegacyData(
+                RawMessage.PRIORITY_NORMAL, NO_DELAY, null, OSF2FMessage.SUBID_OS_HASH_SEARCH_BATCH));
+        id_to_name[OSF2FMessage.SUBID_OS_HASH_SEARCH_BATCH] = OSF2FMessage.ID_OS_HASH_SEARCH_BATCH;
+
         legacy_data.put(OSF2FMessage.ID_OS_SEARCH_CANCEL, new LegacyData(
                 RawMessage.PRIORITY_NORMAL, NO_DELAY, null, OSF2FMessage.SUBID_OS_SEARCH_CANCEL));
         id_to_name[OSF2FMessage.SUBID_OS_SEARCH_CANCEL] = OSF2FMessage.ID_OS_SEARCH_CANCEL;
@@ -83,6 +88,8 @@ public class OSF2FMessageFactory {
                     new OSF2FHandshake(OSF2FMessage.CURRENT_VERSION, new byte[0]));
             MessageManager.getSingleton().registerMessageType(
                     new OSF2FHashSearch(OSF2FMessage.CURRENT_VERSION, 0, 0));
+            MessageManager.getSingleton().registerMessageType(
+                    new OSF2FHashSearchBatch(OSF2FMessage.CURRENT_VERSION, 0, new long[0]));
 
             MessageManager.getSingleton().registerMessageType(
                     new OSF2FHashSearchResp(OSF2FMessage.CURRENT_VERSION, 0, 0, 0));
@@ -161,6 +168,10 @@ public class OSF2FMessageFactory {
             return MessageManager.getSingleton().createMessage(
                     OSF2FMessage.ID_OS_HASH_SEARCH_BYTES, stream_payload,
                     OSF2FMessage.CURRENT_VERSION);
+        case OSF2FMessage.SUBID_OS_HASH_SEARCH_BATCH:
+            return MessageManager.getSingleton().createMessage(
+                    OSF2FMessage.ID_OS_HASH_SEARCH_BATCH_BYTES, stream_payload,
+                    OSF2FMessage.CURRENT_VERSION);
         case OSF2FMessage.SUBID_OS_CHANNEL_DATA_MSG:
             return MessageManager.getSingleton().createMessage(
                     OSF2FMessage.ID_OS_CHANNEL_DATA_MSG_BYTES, stream_payload,
@@ -254,6 +265,36 @@ public class OSF2FMessageFactory {
                 ld.to_remove);
     }
 
+    /**
+     * Write the wire header (length and type) of a message into the given
+     * buffer. Used when the message buffers are written out directly instead
+     * of through a RawMessage.
+     *
+     * @param base_message
+     *            the message
+     * @param payload
+     *            the data of the message, as returned by getData()
+     * @param header
+     *            buffer with room for OSF2FMessage.MESSAGE_HEADER_LEN bytes
+     * @return false if the message type is unknown
+     */
+    public static boolean putOSF2FHeader(Message base_message, DirectByteBuffer[] payload,
+            ByteBuffer header) {
+        LegacyData ld = legacy_data.get(base_message.getID());
+        if (ld == null) {
+            Debug.out("legacy message type id not found for [" + base_message.getID() + "]");
+            return false;
+        }
+
+        int payload_size = 0;
+        for (int i = 0; i < payload.length; i++) {
+            payload_size += payload[i].remaining(DirectByteBuffer.SS_MSG);
+        }
+        header.putInt(1 + payload_size);
+        header.put(ld.bt_id);
+        return true;
+    }
+
     protected static class LegacyData {
         protected final int priority;
         protected final boolean is_no_delay;
@@ -0,0 +1,42 @@
+package edu.washington.cs.oneswarm.f2f.metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A value that only goes up. Get one from MetricsRegistry.counter().
+ */
+public class Counter extends Metric {
+    private final AtomicLong value = new AtomicLong();
+
+    Counter(String name, String help, String[] labels) {
+        super(name, help, labels);
+    }
+
+    public void inc() {
+        value.incrementAndGet();
+    }
+
+    public void add(long delta) {
+        value.addAndGet(delta);
+    }
+
+    public long get() {
+        return value.get();
+    }
+
+    @Override
+    public String getType() {
+        return "counter";
+    }
+
+    @Override
+    void writePrometheus(StringBuilder out) {
+        out.append(getId()).append(' ').append(get()).append('\n');
+    }
+
+    @Override
+    void getAttributes(Map<String, Object> out) {
+        out.put(getAttributeName(), get());
+    }
+}
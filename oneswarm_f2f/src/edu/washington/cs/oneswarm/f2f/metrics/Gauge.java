@@ -0,0 +1,40 @@
+package edu.washington.cs.oneswarm.f2f.metrics;
+
+import java.util.Map;
+
+/**
+ * A value that is read from its owner when the metrics are exported, so
+ * subsystems that already keep the number around don't have to push it.
+ * Register an instance with MetricsRegistry.register().
+ */
+public abstract class Gauge extends Metric {
+
+    /**
+     * @param labels
+     *            label name, value pairs
+     */
+    public Gauge(String name, String help, String... labels) {
+        super(name, help, labels);
+    }
+
+    /**
+     * Called on the exporting thread, so it must not block on locks that are
+     * held for long.
+     */
+    public abstract double getValue();
+
+    @Override
+    public String getType() {
+        return "gauge";
+    }
+
+    @Override
+    void writePrometheus(StringBuilder out) {
+        out.append(getId()).append(' ').append(formatValue(getValue())).append('\n');
+    }
+
+    @Override
+    void getAttributes(Map<String, Object> out) {
+        out.put(getAttributeName(), getValue());
+    }
+}
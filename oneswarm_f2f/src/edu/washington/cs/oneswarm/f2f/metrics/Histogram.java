@@ -0,0 +1,160 @@
+package edu.washington.cs.oneswarm.f2f.metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of non-negative long values in power of two buckets: bucket i
+ * counts the values v with 2^(i-1) < v <= 2^i, bucket 0 the values <= 1.
+ *
+ * Recording is meant for hot paths like the packet queues, so the counts are
+ * striped by thread: each thread increments the counters of its own stripe
+ * and the stripes are only summed when the histogram is read.
+ */
+public class Histogram extends Metric {
+    private static final int BUCKETS = 64;
+    private static final int STRIPES = getStripeCount();
+
+    private static class Stripe {
+        final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        final AtomicLong sum = new AtomicLong();
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    Histogram(String name, String help, String[] labels) {
+        super(name, help, labels);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    private static int getStripeCount() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        int stripes = 1;
+        while (stripes < 2 * cpus && stripes < 64) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+    static int getBucket(long value) {
+        if (value <= 1) {
+            return 0;
+        }
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value - 1));
+    }
+
+    /**
+     * @return the largest value counted in the bucket, Long.MAX_VALUE for the
+     *         last one.
+     */
+    static long getBucketLimit(int bucket) {
+        if (bucket >= BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        return 1L << bucket;
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        Stripe s = stripes[(int) Thread.currentThread().getId() & (STRIPES - 1)];
+        s.counts.incrementAndGet(getBucket(value));
+        s.sum.addAndGet(value);
+    }
+
+    private long[] getCounts() {
+        long[] counts = new long[BUCKETS];
+        for (Stripe s : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += s.counts.get(i);
+            }
+        }
+        return counts;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (long c : getCounts()) {
+            count += c;
+        }
+        return count;
+    }
+
+    public long getSum() {
+        long sum = 0;
+        for (Stripe s : stripes) {
+            sum += s.sum.get();
+        }
+        return sum;
+    }
+
+    /**
+     * @return the upper limit of the bucket that holds the fraction
+     *         <code>p</code> of the recorded values, 0 if nothing was recorded.
+     */
+    public long getPercentile(double p) {
+        long[] counts = getCounts();
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(p * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return getBucketLimit(i);
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public String getType() {
+        return "histogram";
+    }
+
+    @Override
+    void writePrometheus(StringBuilder out) {
+        // the sum is read before the counts, it may lag a concurrent record()
+        // but never runs ahead of the count
+        long sum = getSum();
+        long[] counts = getCounts();
+        int last = BUCKETS - 2;
+        while (last > 0 && counts[last] == 0) {
+            last--;
+        }
+        long cumulative = 0;
+        for (int i = 0; i <= last; i++) {
+            cumulative += counts[i];
+            out.append(getName()).append("_bucket").append(
+                    getLabelString("le", Long.toString(getBucketLimit(i)))).append(' ').append(
+                    cumulative).append('\n');
+        }
+        for (int i = last + 1; i < BUCKETS; i++) {
+            cumulative += counts[i];
+        }
+        String labels = getLabelString(null, null);
+        out.append(getName()).append("_bucket").append(getLabelString("le", "+Inf")).append(' ')
+                .append(cumulative).append('\n');
+        out.append(getName()).append("_sum").append(labels).append(' ').append(sum).append('\n');
+        out.append(getName()).append("_count").append(labels).append(' ').append(cumulative)
+                .append('\n');
+    }
+
+    @Override
+    void getAttributes(Map<String, Object> out) {
+        String name = getAttributeName();
+        out.put(name + "_count", getCount());
+        out.put(name + "_sum", getSum());
+        out.put(name + "_p50", getPercentile(0.5));
+        out.put(name + "_p99", getPercentile(0.99));
+    }
+}
@@ -0,0 +1,134 @@
+package edu.washington.cs.oneswarm.f2f.metrics;
+
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * A named value in the MetricsRegistry. Metrics with the same name but
+ * different labels form one family in the Prometheus output, e.g.
+ * f2f_queue_packets_total{class="forward"}.
+ */
+public abstract class Metric {
+    private static final Pattern NAME = Pattern.compile("[a-zA-Z_:][a-zA-Z0-9_:]*");
+    private static final Pattern LABEL_NAME = Pattern.compile("[a-zA-Z_][a-zA-Z0-9_]*");
+
+    private final String name;
+    private final String help;
+    private final String[] labels;
+    private final String id;
+
+    /**
+     * @param labels
+     *            label name, value pairs
+     */
+    Metric(String name, String help, String[] labels) {
+        if (!NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("invalid metric name: " + name);
+        }
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("labels must be name, value pairs: " + name);
+        }
+        for (int i = 0; i < labels.length; i += 2) {
+            if (!LABEL_NAME.matcher(labels[i]).matches() || labels[i].startsWith("__")) {
+                throw new IllegalArgumentException("invalid label name: " + labels[i]);
+            }
+        }
+        this.name = name;
+        this.help = help;
+        this.labels = labels.clone();
+        this.id = name + getLabelString(null, null);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHelp() {
+        return help;
+    }
+
+    /**
+     * @return the name and labels in Prometheus notation, unique in a
+     *         registry.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the Prometheus type: counter, gauge or histogram.
+     */
+    public abstract String getType();
+
+    /**
+     * Appends the sample lines (no HELP or TYPE) in the Prometheus text format.
+     */
+    abstract void writePrometheus(StringBuilder out);
+
+    /**
+     * Adds the values exposed as JMX attributes.
+     */
+    abstract void getAttributes(Map<String, Object> out);
+
+    /**
+     * @return the name and label values joined by '_' and stripped to a
+     *         plain identifier, for use as a JMX attribute name.
+     */
+    String getAttributeName() {
+        StringBuilder b = new StringBuilder(name);
+        for (int i = 1; i < labels.length; i += 2) {
+            b.append('_').append(labels[i]);
+        }
+        return b.toString().replaceAll("[^a-zA-Z0-9_]", "_");
+    }
+
+    /**
+     * @return the labels in braces, with an extra label if
+     *         <code>extraName</code> isn't null, or "" if there are none.
+     */
+    String getLabelString(String extraName, String extraValue) {
+        if (labels.length == 0 && extraName == null) {
+            return "";
+        }
+        StringBuilder b = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                b.append(',');
+            }
+            appendLabel(b, labels[i], labels[i + 1]);
+        }
+        if (extraName != null) {
+            if (labels.length > 0) {
+                b.append(',');
+            }
+            appendLabel(b, extraName, extraValue);
+        }
+        return b.append('}').toString();
+    }
+
+    private static void appendLabel(StringBuilder b, String name, String value) {
+        b.append(name).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                b.append('\\').append(c);
+            } else if (c == '\n') {
+                b.append("\\n");
+            } else {
+                b.append(c);
+            }
+        }
+        b.append('"');
+    }
+
+    static String formatValue(double value) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        } else if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+}
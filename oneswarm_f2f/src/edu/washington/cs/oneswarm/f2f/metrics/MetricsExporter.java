@@ -0,0 +1,215 @@
+package edu.washington.cs.oneswarm.f2f.metrics;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.gudy.azureus2.core3.config.COConfigurationManager;
+import org.gudy.azureus2.core3.config.ParameterListener;
+
+/**
+ * Exports the MetricsRegistry as a JMX bean and, if f2f_metrics_port is set,
+ * in the Prometheus text format at http://127.0.0.1:port/metrics. The
+ * listener only binds to the loopback interface; scrapes are rare, so it
+ * serves them one at a time on a single thread.
+ */
+public class MetricsExporter {
+    private static Logger logger = Logger.getLogger(MetricsExporter.class.getName());
+
+    public static final String OBJECT_NAME = "edu.washington.cs.oneswarm:type=Metrics";
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final int MAX_REQUEST_HEADER_BYTES = 8 * 1024;
+    private static final int SOCKET_TIMEOUT = 5 * 1000;
+
+    private static boolean started = false;
+
+    private final MetricsRegistry registry;
+    private ServerSocket serverSocket;
+
+    MetricsExporter(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Registers the JMX bean and starts following f2f_metrics_port. Only the
+     * first call has an effect.
+     */
+    public static synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+
+        final MetricsExporter exporter = new MetricsExporter(MetricsRegistry.getInstance());
+        exporter.registerMBean();
+        COConfigurationManager.addAndFireParameterListener("f2f_metrics_port",
+                new ParameterListener() {
+                    public void parameterChanged(String name) {
+                        exporter.listen(COConfigurationManager.getIntParameter(name, 0));
+                    }
+                });
+    }
+
+    void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new MetricsMBean(registry), name);
+            }
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "unable to register metrics mbean", e);
+        }
+    }
+
+    /**
+     * Closes the current listener, if any, and starts serving on
+     * <code>port</code>. 0 disables the http export.
+     */
+    synchronized void listen(int port) {
+        if (serverSocket != null) {
+            if (serverSocket.getLocalPort() == port) {
+                return;
+            }
+            close();
+        }
+        if (port <= 0) {
+            return;
+        }
+        try {
+            final ServerSocket ss = new ServerSocket();
+            ss.setReuseAddress(true);
+            ss.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port));
+            serverSocket = ss;
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    serve(ss);
+                }
+            }, "MetricsExporter");
+            t.setDaemon(true);
+            t.start();
+            logger.info("exporting metrics at http://127.0.0.1:" + ss.getLocalPort()
+                    + "/metrics");
+        } catch (IOException e) {
+            logger.warning("unable to export metrics on port " + port + ": " + e.getMessage());
+        }
+    }
+
+    synchronized int getPort() {
+        return serverSocket != null ? serverSocket.getLocalPort() : -1;
+    }
+
+    synchronized void close() {
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+            }
+            serverSocket = null;
+        }
+    }
+
+    private void serve(ServerSocket ss) {
+        while (!ss.isClosed()) {
+            Socket s;
+            try {
+                s = ss.accept();
+            } catch (SocketException e) {
+                // closed
+                return;
+            } catch (IOException e) {
+                logger.warning("metrics accept failed: " + e.getMessage());
+                continue;
+            }
+            try {
+                s.setSoTimeout(SOCKET_TIMEOUT);
+                handle(s);
+            } catch (IOException e) {
+                logger.fine("metrics request failed: " + e.getMessage());
+            } finally {
+                try {
+                    s.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private void handle(Socket s) throws IOException {
+        String requestLine = readRequestHeader(new BufferedInputStream(s.getInputStream()));
+        if (requestLine == null) {
+            return;
+        }
+        String[] toks = requestLine.split(" ");
+        String method = toks[0];
+        String path = toks.length > 1 ? toks[1] : "";
+        int q = path.indexOf('?');
+        if (q >= 0) {
+            path = path.substring(0, q);
+        }
+
+        String status;
+        byte[] body;
+        if (!method.equals("GET") && !method.equals("HEAD")) {
+            status = "405 Method Not Allowed";
+            body = new byte[0];
+        } else if (!path.equals("/metrics") && !path.equals("/")) {
+            status = "404 Not Found";
+            body = new byte[0];
+        } else {
+            status = "200 OK";
+            body = registry.toPrometheusText().getBytes("UTF-8");
+        }
+
+        OutputStream out = s.getOutputStream();
+        out.write(("HTTP/1.0 " + status + "\r\nContent-Type: " + CONTENT_TYPE
+                + "\r\nContent-Length: " + body.length + "\r\nConnection: close\r\n\r\n")
+                .getBytes("ISO-8859-1"));
+        if (!method.equals("HEAD")) {
+            out.write(body);
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads up to the empty line that ends the request header.
+     *
+     * @return the request line, null if the request was empty or too long
+     */
+    private static String readRequestHeader(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        String requestLine = null;
+        int total = 0;
+        int c;
+        while ((c = in.read()) != -1 && total++ < MAX_REQUEST_HEADER_BYTES) {
+            if (c == '\r') {
+                continue;
+            }
+            if (c != '\n') {
+                line.append((char) c);
+                continue;
+            }
+            if (line.length() == 0) {
+                return requestLine;
+            }
+            if (requestLine == null) {
+                requestLine = line.toString();
+            }
+            line.setLength(0);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,71 @@
+package edu.washington.cs.oneswarm.f2f.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Read-only view of a MetricsRegistry for jconsole and other JMX clients,
+ * one attribute per counter and gauge, and count/sum/p50/p99 attributes per
+ * histogram. The attribute list is rebuilt on every call since subsystems
+ * register their metrics lazily.
+ */
+class MetricsMBean implements DynamicMBean {
+    private final MetricsRegistry registry;
+
+    MetricsMBean(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Map<String, Object> attributes = registry.getAttributes();
+        if (!attributes.containsKey(attribute)) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return attributes.get(attribute);
+    }
+
+    public AttributeList getAttributes(String[] names) {
+        Map<String, Object> attributes = registry.getAttributes();
+        AttributeList out = new AttributeList();
+        for (String name : names) {
+            if (attributes.containsKey(name)) {
+                out.add(new Attribute(name, attributes.get(name)));
+            }
+        }
+        return out;
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> infos = new ArrayList<MBeanAttributeInfo>();
+        for (Map.Entry<String, Object> e : registry.getAttributes().entrySet()) {
+            infos.add(new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(),
+                    e.getKey(), true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "OneSwarm f2f metrics", infos
+                .toArray(new MBeanAttributeInfo[infos.size()]), null,
+                new MBeanOperationInfo[0], null);
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature)
+            throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+}
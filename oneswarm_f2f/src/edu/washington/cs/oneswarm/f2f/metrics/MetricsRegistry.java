@@ -0,0 +1,134 @@
+package edu.washington.cs.oneswarm.f2f.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Counters, gauges and histograms of the f2f subsystems, exported in the
+ * Prometheus text format and over JMX by MetricsExporter.
+ */
+public class MetricsRegistry {
+    private static Logger logger = Logger.getLogger(MetricsRegistry.class.getName());
+
+    // Singleton.
+    private static final MetricsRegistry instance = new MetricsRegistry();
+
+    public static MetricsRegistry getInstance() {
+        return instance;
+    }
+
+    private final ConcurrentHashMap<String, Metric> metrics = new ConcurrentHashMap<String, Metric>();
+
+    MetricsRegistry() {
+    }
+
+    /**
+     * @param labels
+     *            label name, value pairs
+     * @return the counter with this name and labels, created if needed
+     */
+    public Counter counter(String name, String help, String... labels) {
+        Metric m = getOrAdd(new Counter(name, help, labels));
+        if (!(m instanceof Counter)) {
+            throw new IllegalArgumentException(name + " is already registered as a "
+                    + m.getType());
+        }
+        return (Counter) m;
+    }
+
+    /**
+     * @param labels
+     *            label name, value pairs
+     * @return the histogram with this name and labels, created if needed
+     */
+    public Histogram histogram(String name, String help, String... labels) {
+        Metric m = getOrAdd(new Histogram(name, help, labels));
+        if (!(m instanceof Histogram)) {
+            throw new IllegalArgumentException(name + " is already registered as a "
+                    + m.getType());
+        }
+        return (Histogram) m;
+    }
+
+    /**
+     * Registers a gauge, replacing the one with the same name and labels, if
+     * any. Objects that are created again (e.g. after a restart of the
+     * subsystem) re-register their gauges so the old instance is released.
+     */
+    public void register(Gauge gauge) {
+        Metric old = metrics.put(gauge.getId(), gauge);
+        if (old != null && !(old instanceof Gauge)) {
+            metrics.put(old.getId(), old);
+            throw new IllegalArgumentException(gauge.getName() + " is already registered as a "
+                    + old.getType());
+        }
+    }
+
+    public void unregister(Metric metric) {
+        metrics.remove(metric.getId(), metric);
+    }
+
+    private Metric getOrAdd(Metric metric) {
+        Metric existing = metrics.putIfAbsent(metric.getId(), metric);
+        return existing != null ? existing : metric;
+    }
+
+    /**
+     * @return all metrics sorted by id, so families are contiguous.
+     */
+    public List<Metric> getMetrics() {
+        List<Metric> out = new ArrayList<Metric>(metrics.values());
+        Collections.sort(out, new Comparator<Metric>() {
+            public int compare(Metric o1, Metric o2) {
+                int c = o1.getName().compareTo(o2.getName());
+                return c != 0 ? c : o1.getId().compareTo(o2.getId());
+            }
+        });
+        return out;
+    }
+
+    /**
+     * @return all metrics in the Prometheus text exposition format (0.0.4).
+     */
+    public String toPrometheusText() {
+        StringBuilder b = new StringBuilder();
+        String family = null;
+        for (Metric m : getMetrics()) {
+            if (!m.getName().equals(family)) {
+                family = m.getName();
+                b.append("# HELP ").append(family).append(' ').append(
+                        m.getHelp().replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+                b.append("# TYPE ").append(family).append(' ').append(m.getType()).append('\n');
+            }
+            try {
+                m.writePrometheus(b);
+            } catch (RuntimeException e) {
+                // a broken gauge shouldn't fail the whole scrape
+                logger.log(Level.WARNING, "unable to read metric " + m.getId(), e);
+            }
+        }
+        return b.toString();
+    }
+
+    /**
+     * @return the values exposed as JMX attributes, by attribute name.
+     */
+    public Map<String, Object> getAttributes() {
+        Map<String, Object> out = new LinkedHashMap<String, Object>();
+        for (Metric m : getMetrics()) {
+            try {
+                m.getAttributes(out);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "unable to read metric " + m.getId(), e);
+            }
+        }
+        return out;
+    }
+}
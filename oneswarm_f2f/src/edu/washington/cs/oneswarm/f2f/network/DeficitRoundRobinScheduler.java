@@ -0,0 +1,224 @@
+package edu.washington.cs.oneswarm.f2f.network;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import edu.washington.cs.oneswarm.f2f.network.QueueManager.QueueBuckets;
+
+/**
+ * Two level deficit round robin. Traffic classes take turns, each turn a
+ * class may send up to weight * QUANTUM bytes. Within a class the friend
+ * queues take turns the same way, weighted by their scheduling weight. Unlike
+ * the probabilistic scheduler the shares are exact in bytes, independent of
+ * packet sizes.
+ */
+class DeficitRoundRobinScheduler implements PacketScheduler {
+
+    /*
+     * one full size packet per unit of weight
+     */
+    static final int QUANTUM = FriendConnectionQueue.MAX_FRIEND_QUEUE_LENGTH;
+
+    private static final QueueBuckets[] BUCKETS = QueueBuckets.values();
+
+    private final ClassQueue[] classes = new ClassQueue[BUCKETS.length];
+
+    private final HashMap<Source, Flow[]> flows = new HashMap<Source, Flow[]>();
+
+    private int cursor = 0;
+
+    DeficitRoundRobinScheduler() {
+        for (QueueBuckets b : BUCKETS) {
+            classes[b.ordinal()] = new ClassQueue(b);
+        }
+    }
+
+    public void activate(Source source, QueueBuckets bucket) {
+        Flow[] f = flows.get(source);
+        if (f == null) {
+            f = new Flow[BUCKETS.length];
+            for (QueueBuckets b : BUCKETS) {
+                f[b.ordinal()] = new Flow(source);
+            }
+            flows.put(source, f);
+        }
+        Flow flow = f[bucket.ordinal()];
+        if (!flow.active) {
+            flow.active = true;
+            flow.deficit = 0;
+            flow.turnStarted = false;
+            classes[bucket.ordinal()].active.addLast(flow);
+        }
+    }
+
+    public void remove(Source source) {
+        Flow[] f = flows.remove(source);
+        if (f == null) {
+            return;
+        }
+        for (QueueBuckets b : BUCKETS) {
+            if (f[b.ordinal()].active) {
+                classes[b.ordinal()].deactivate(f[b.ordinal()]);
+            }
+        }
+    }
+
+    public boolean isActive(Source source, QueueBuckets bucket) {
+        Flow[] f = flows.get(source);
+        return f != null && f[bucket.ordinal()].active;
+    }
+
+    public int getActiveCount(QueueBuckets bucket) {
+        return classes[bucket.ordinal()].active.size();
+    }
+
+    public Selection next() {
+        int classesIdle = 0;
+        while (classesIdle < classes.length) {
+            ClassQueue c = classes[cursor];
+            if (!c.turnStarted) {
+                c.deficit += c.weight * QUANTUM;
+                c.turnStarted = true;
+            }
+            Flow f = c.pickFlow();
+            if (f == null) {
+                // nothing this class can send, don't let it bank credit
+                c.deficit = 0;
+                endTurn(c);
+                classesIdle++;
+                continue;
+            }
+            if (c.deficit < f.headBytes) {
+                // the class gets more credit next turn, so it isn't idle
+                endTurn(c);
+                classesIdle = 0;
+                continue;
+            }
+            return f.selection(c.bucket);
+        }
+        return null;
+    }
+
+    private void endTurn(ClassQueue c) {
+        c.turnStarted = false;
+        cursor = (cursor + 1) % classes.length;
+    }
+
+    public void sent(Selection selection, int bytes, boolean stillActive) {
+        Flow[] f = flows.get(selection.source);
+        if (f == null) {
+            return;
+        }
+        ClassQueue c = classes[selection.bucket.ordinal()];
+        Flow flow = f[selection.bucket.ordinal()];
+        c.deficit -= bytes;
+        flow.deficit -= bytes;
+        if (!stillActive) {
+            c.deactivate(flow);
+        } else if (bytes == 0 && flow.active) {
+            // couldn't send, give the others a go
+            c.rotate(flow);
+        }
+    }
+
+    public void setClassWeight(QueueBuckets bucket, int weight) {
+        classes[bucket.ordinal()].weight = Math.max(1, weight);
+    }
+
+    public String getDescription() {
+        StringBuilder b = new StringBuilder("drr:");
+        for (ClassQueue c : classes) {
+            b.append(" " + c.bucket + "(w=" + c.weight + " active=" + c.active.size()
+                    + " deficit=" + c.deficit + ")");
+        }
+        return b.toString();
+    }
+
+    private static class ClassQueue {
+        final QueueBuckets bucket;
+        final LinkedList<Flow> active = new LinkedList<Flow>();
+        int weight = 1;
+        long deficit = 0;
+        boolean turnStarted = false;
+
+        ClassQueue(QueueBuckets bucket) {
+            this.bucket = bucket;
+        }
+
+        /**
+         * Round robin over the friend queues of this class, returns the first
+         * one that can send and has enough deficit for its next packet
+         */
+        Flow pickFlow() {
+            int skipped = 0;
+            while (active.size() > skipped) {
+                Flow f = active.getFirst();
+                int head = f.source.getNextPacketBytes(bucket);
+                if (head <= 0) {
+                    deactivate(f);
+                    continue;
+                }
+                if (!f.source.canSend()) {
+                    f.turnStarted = false;
+                    f.deficit = Math.min(f.deficit, f.quantum());
+                    rotate(f);
+                    skipped++;
+                    continue;
+                }
+                if (!f.turnStarted) {
+                    f.deficit += f.quantum();
+                    f.turnStarted = true;
+                }
+                if (f.deficit < head) {
+                    f.turnStarted = false;
+                    rotate(f);
+                    skipped = 0;
+                    continue;
+                }
+                f.headBytes = head;
+                return f;
+            }
+            return null;
+        }
+
+        void rotate(Flow f) {
+            if (active.getFirst() == f) {
+                active.removeFirst();
+            } else {
+                active.remove(f);
+            }
+            active.addLast(f);
+        }
+
+        void deactivate(Flow f) {
+            if (!active.isEmpty() && active.getFirst() == f) {
+                active.removeFirst();
+            } else {
+                active.remove(f);
+            }
+            f.active = false;
+            f.deficit = 0;
+            f.turnStarted = false;
+        }
+    }
+
+    private static class Flow {
+        final Source source;
+        boolean active = false;
+        long deficit = 0;
+        boolean turnStarted = false;
+        int headBytes;
+
+        Flow(Source source) {
+            this.source = source;
+        }
+
+        long quantum() {
+            return Math.max(1, Math.round(QUANTUM * source.getSchedulingWeight()));
+        }
+
+        Selection selection(QueueBuckets bucket) {
+            return new Selection(source, bucket);
+        }
+    }
+}
@@ -1,21 +1,36 @@
 /**
- * 
+ *
  */
 package edu.washington.cs.oneswarm.f2f.network;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Queue;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Runs delayed tasks for the overlay. All delays are tracked by a single
+ * hierarchical timing wheel thread, expired tasks are handed to a small
+ * dispatch pool. Each DelayedExecutor runs its tasks one at a time and in
+ * order, fixed delay executors in the order they were queued and the variable
+ * delay executor in order of execution time.
+ */
 public class DelayedExecutorService {
     /*
      * the time accuracy isn't that great anyway and we use slack that makes it
@@ -23,6 +38,13 @@ public class DelayedExecutorService {
      */
     private static final int BUCKET_SIZE = 10;
     private static final int CHECK_PERIOD = 60 * 1000;
+    private static final int TICK_MS = 5;
+    private static final int DISPATCH_THREADS = 2;
+    /*
+     * max number of tasks an executor runs before giving its dispatch thread
+     * to the next executor
+     */
+    private static final int DISPATCH_BATCH = 64;
     protected final static Logger logger;
     private final static DelayedExecutorService instance;
     static {
@@ -33,39 +55,37 @@ public class DelayedExecutorService {
 
     private final VariableDelayExecutor variableDelayExecutor = new VariableDelayExecutor();
 
+    private final TimingWheel wheel = new TimingWheel();
+
+    private final ThreadPoolExecutor dispatchPool;
+
+    /** tasks queued but not yet executed, over all executors */
+    private final AtomicInteger queueDepth = new AtomicInteger();
+
+    private final AtomicLong sequence = new AtomicLong();
+
     private DelayedExecutorService() {
-        Timer executorStopTimer = new Timer("DelayedExecutorCheckTimer", true);
-        executorStopTimer.schedule(new TimerTask() {
+        dispatchPool = new ThreadPoolExecutor(DISPATCH_THREADS, DISPATCH_THREADS, 60,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "DelayedExecutor dispatch");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
 
+        Thread wheelThread = new Thread(wheel, "DelayedExecutor timing wheel");
+        wheelThread.setDaemon(true);
+        wheelThread.start();
+
+        Timer statsTimer = new Timer("DelayedExecutorCheckTimer", true);
+        statsTimer.schedule(new TimerTask() {
             @Override
             public void run() {
-                if (variableDelayExecutor.running && variableDelayExecutor.isIdle()) {
-                    variableDelayExecutor.stop();
-                }
-
-                synchronized (fixedDelayExecutors) {
-                    int running = 0;
-                    for (Iterator<DelayedExecutor> iterator = fixedDelayExecutors.values()
-                            .iterator(); iterator.hasNext();) {
-                        DelayedExecutor e = iterator.next();
-                        if (e.running) {
-                            if (e.isIdle()) {
-                                e.stop();
-                                /*
-                                 * don't remove it, killing the thread is enough
-                                 * for now, we could potentially remove it from
-                                 * the list when we are sure that no overlay
-                                 * transports will use it anymore
-                                 */
-                                // iterator.remove();
-                            } else {
-                                running++;
-                            }
-                        }
-                    }
-                    logger.finer("cleaning up threads, running=" + running + " total="
-                            + fixedDelayExecutors.size());
-                }
+                logger.finer("delayed executor stats: queue_depth=" + getQueueDepth()
+                        + " tick_lag=" + getTickLag() + "ms max_tick_lag="
+                        + wheel.maxLagTicks.getAndSet(0) * TICK_MS + "ms fixed_executors="
+                        + fixedDelayExecutors.size());
             }
         }, CHECK_PERIOD, CHECK_PERIOD);
     }
@@ -88,6 +108,21 @@ public class DelayedExecutorService {
         return variableDelayExecutor;
     }
 
+    /**
+     * @return the number of tasks waiting to be executed by any executor
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * @return how far behind the wall clock (in ms) the timing wheel was the
+     *         last time it woke up
+     */
+    public long getTickLag() {
+        return wheel.lastLagTicks * TICK_MS;
+    }
+
     public static DelayedExecutorService getInstance() {
         return instance;
     }
@@ -99,6 +134,10 @@ public class DelayedExecutorService {
 
         final TimerTask task;
 
+        long sequence;
+        long tick;
+        DelayedExecutor owner;
+
         public DelayedExecutionEntry(long executeAt, long slack, TimerTask task) {
             this.task = task;
             this.executeAt = executeAt;
@@ -108,24 +147,37 @@ public class DelayedExecutorService {
     }
 
     public abstract static class DelayedExecutor {
-        protected Thread executorThread;
-
         protected volatile long lastExecutionTime = 0;
-        protected final BlockingQueue<DelayedExecutionEntry> queue = createQueue();
-        protected volatile boolean running = false;
 
-        protected volatile long sleepingUntil = 0;
+        private final AtomicInteger pending = new AtomicInteger();
+
+        /** entries that are due, in execution order */
+        private final Queue<DelayedExecutionEntry> ready = new ConcurrentLinkedQueue<DelayedExecutionEntry>();
 
-        protected abstract BlockingQueue<DelayedExecutionEntry> createQueue();
+        private final AtomicBoolean dispatching = new AtomicBoolean(false);
+
+        /** execution time and tick of the entry added last, guarded by this */
+        long lastExecuteAt = Long.MIN_VALUE;
+        long lastTick = Long.MIN_VALUE;
+
+        private final Runnable dispatcher = new Runnable() {
+            public void run() {
+                runReady();
+            }
+        };
 
         public abstract String getDescription();
 
         public boolean isEmpty() {
-            return queue.isEmpty();
+            return pending.get() == 0;
+        }
+
+        public int getQueueDepth() {
+            return pending.get();
         }
 
         public boolean isIdle() {
-            return System.currentTimeMillis() > lastExecutionTime + CHECK_PERIOD && queue.isEmpty();
+            return System.currentTimeMillis() > lastExecutionTime + CHECK_PERIOD && isEmpty();
         }
 
         public abstract void queue(List<DelayedExecutionEntry> batch);
@@ -133,12 +185,12 @@ public class DelayedExecutorService {
         /**
          * Queue a task for later execution, if the delay is 0 it will run it
          * instantly in the urrent thread
-         * 
+         *
          * @param delay
          * @param slack
          *            Allow task to be executed up to slack ms earlier than the
-         *            deadline if that avoids a call to Thread.sleep
-         * 
+         *            deadline if that lets it run on an earlier tick
+         *
          * @param task
          */
         public void queue(long delay, long slack, TimerTask task) {
@@ -157,98 +209,60 @@ public class DelayedExecutorService {
             queue(delay, 0, task);
         }
 
-        void start() {
+        protected void schedule(DelayedExecutionEntry entry) {
+            entry.owner = this;
+            entry.sequence = instance.sequence.incrementAndGet();
+            pending.incrementAndGet();
+            instance.queueDepth.incrementAndGet();
             synchronized (this) {
-                if (!running) {
-                    logger.fine("starting thread: " + getDescription());
-                    running = true;
-                    lastExecutionTime = System.currentTimeMillis();
-                    DelayedExecutionRunner r = new DelayedExecutionRunner();
-                    executorThread = new Thread(r);
-                    executorThread.setDaemon(true);
-                    executorThread.setName(getDescription());
-                    executorThread.start();
-                } else {
-                    logger.warning("start called but thread already running: " + getDescription());
-                }
+                instance.wheel.add(entry);
             }
         }
 
-        void stop() {
-            synchronized (this) {
-                if (running && queue.peek() == null) {
-                    logger.fine("stopping delay executor thread: " + getDescription());
-                    running = false;
-                    if (executorThread != null) {
-                        executorThread.interrupt();
-                    }
-                } else {
-                    logger.warning("stop called but thread is either no running or non-empty: "
-                            + getDescription());
-                }
+        /**
+         * Called by the wheel thread, in execution order
+         */
+        void expired(DelayedExecutionEntry entry) {
+            ready.add(entry);
+            if (dispatching.compareAndSet(false, true)) {
+                instance.dispatchPool.execute(dispatcher);
             }
         }
 
-        private class DelayedExecutionRunner implements Runnable {
-
-            public void run() {
-                logger.fine("executor thread started");
-                while (running) {
-                    DelayedExecutionEntry entry = null;
-                    try {
-                        entry = queue.take();
-                        long currentTime = System.currentTimeMillis();
-
-                        long sleepMs = entry.executeAt - currentTime;
-                        /*
-                         * sleep at least "slack" ms, if we are to close to the
-                         * time run the task anyway even though it can be a bit
-                         * early
-                         */
-                        if (sleepMs > entry.slack) {
-                            if (logger.isLoggable(Level.FINEST)) {
-                                logger.finest(getDescription() + ": sleeping " + sleepMs + "ms");
-                            }
-                            sleepingUntil = entry.executeAt;
-                            Thread.sleep(sleepMs);
-                        } else {
-                            if (logger.isLoggable(Level.FINEST)) {
-                                logger.finest(getDescription()
-                                        + ": skipping sleep this time, sleepMs=" + sleepMs
-                                        + ", slack=" + entry.slack);
-                            }
-                        }
-                    } catch (InterruptedException e) {
-                        logger.finest(getDescription() + ": executor thread interupted");
-                        if (!running) {
-                            logger.finer(getDescription() + ": stopping executor thread");
-                            continue;
-                        }
-                        // this is expected if we add anything to the head of
-                        // the
-                        // queue
-                        if (entry != null) {
-                            logger.finer(getDescription()
-                                    + ": interrupted, returing current entry to queue");
-                            queue.add(entry);
-                        }
-                        continue;
+        private void runReady() {
+            for (int i = 0; i < DISPATCH_BATCH; i++) {
+                DelayedExecutionEntry entry = ready.poll();
+                if (entry == null) {
+                    dispatching.set(false);
+                    /*
+                     * the wheel might have added something after the poll but
+                     * before we cleared the flag
+                     */
+                    if (ready.isEmpty() || !dispatching.compareAndSet(false, true)) {
+                        return;
                     }
-                    long startTime = System.currentTimeMillis();
+                    continue;
+                }
+                long startTime = System.currentTimeMillis();
+                try {
                     entry.task.run();
-                    long elapsed = System.currentTimeMillis() - startTime;
-                    if (elapsed > 20) {
-                        logger.warning(getDescription() + ": took " + elapsed
-                                + "ms to run task! (parent=" + getDescription() + ")");
-                    }
-                    if (logger.isLoggable(Level.FINEST)) {
-                        logger.finest(getDescription() + ": executed task in: " + elapsed + " ms");
-                    }
-                    lastExecutionTime = System.currentTimeMillis();
-
+                } catch (Throwable t) {
+                    logger.log(Level.WARNING, getDescription() + ": task threw " + t, t);
+                }
+                long elapsed = System.currentTimeMillis() - startTime;
+                if (elapsed > 20) {
+                    logger.warning(getDescription() + ": took " + elapsed
+                            + "ms to run task! (parent=" + getDescription() + ")");
                 }
-                logger.fine(getDescription() + ":executor thread stopped");
+                if (logger.isLoggable(Level.FINEST)) {
+                    logger.finest(getDescription() + ": executed task in: " + elapsed + " ms");
+                }
+                lastExecutionTime = System.currentTimeMillis();
+                instance.queueDepth.decrementAndGet();
+                pending.decrementAndGet();
             }
+            // let other executors have a go, we are still marked as dispatching
+            instance.dispatchPool.execute(dispatcher);
         }
     }
 
@@ -261,11 +275,6 @@ public class DelayedExecutorService {
             this.desc = "FixedDelayExecutor:" + delay;
         }
 
-        @Override
-        protected BlockingQueue<DelayedExecutionEntry> createQueue() {
-            return new LinkedBlockingQueue<DelayedExecutionEntry>();
-        }
-
         @Override
         public String getDescription() {
             return desc;
@@ -287,47 +296,23 @@ public class DelayedExecutorService {
                 return;
             }
 
-            DelayedExecutionEntry entry = new DelayedExecutionEntry(System.currentTimeMillis()
-                    + delay, slack, task);
             if (logger.isLoggable(Level.FINEST)) {
                 logger.finest("queuing task: delay=" + delay + " slack=" + slack);
             }
-            queue.add(entry);
             synchronized (this) {
-                if (!running) {
-                    start();
-                }
+                /*
+                 * never schedule ahead of something queued earlier, even if the
+                 * clock goes backwards
+                 */
+                long executeAt = Math.max(System.currentTimeMillis() + delay, lastExecuteAt);
+                schedule(new DelayedExecutionEntry(executeAt, slack, task));
             }
         }
-
     }
 
     private static class VariableDelayExecutor extends DelayedExecutor {
         private VariableDelayExecutor() {
             logger.fine("DelayedExecutor created");
-
-        }
-
-        @Override
-        protected BlockingQueue<DelayedExecutionEntry> createQueue() {
-            return new PriorityBlockingQueue<DelayedExecutionEntry>(10000,
-                    new Comparator<DelayedExecutionEntry>() {
-                        public int compare(DelayedExecutionEntry o1, DelayedExecutionEntry o2) {
-                            if (o1.executeAt < o2.executeAt) {
-                                return -1;
-                            } else if (o1.executeAt == o2.executeAt) {
-                                if (o1.createdAt < o2.createdAt) {
-                                    return -1;
-                                } else if (o1.createdAt == o2.createdAt) {
-                                    return 0;
-                                } else {
-                                    return 1;
-                                }
-                            } else {
-                                return 1;
-                            }
-                        }
-                    });
         }
 
         @Override
@@ -335,43 +320,205 @@ public class DelayedExecutorService {
             return "VariableDelayExecutor";
         }
 
+        @Override
         public void queue(List<DelayedExecutionEntry> batch) {
-            List<DelayedExecutionEntry> clone = new LinkedList<DelayedExecutionEntry>(batch);
-            long earliestRun = Long.MAX_VALUE;
             long currentTime = System.currentTimeMillis();
 
             /*
              * first, check if any of these are expired already, in that case
              * run then straight up
              */
-            for (Iterator<DelayedExecutionEntry> iterator = clone.iterator(); iterator.hasNext();) {
+            for (Iterator<DelayedExecutionEntry> iterator = batch.iterator(); iterator.hasNext();) {
                 DelayedExecutionEntry e = iterator.next();
                 if (e.executeAt <= currentTime) {
                     e.task.run();
-                    iterator.remove();
                 } else {
-                    if (e.executeAt < earliestRun) {
-                        earliestRun = e.executeAt;
-                    }
+                    schedule(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Hierarchical timing wheel: 256 slots of one tick each, followed by
+     * levels of 64 slots that each cover a whole rotation of the level below.
+     * Entries further out are cascaded down a level every time the level below
+     * wraps around. Only the wheel thread touches the slots, other threads
+     * hand entries over through the inbox.
+     */
+    private static class TimingWheel implements Runnable {
+        private static final int ROOT_BITS = 8;
+        private static final int LEVEL_BITS = 6;
+        private static final int LEVELS = 4;
+        private static final long MAX_TICKS = 1L << (ROOT_BITS + (LEVELS - 1) * LEVEL_BITS);
+
+        private static final Comparator<DelayedExecutionEntry> EXECUTION_ORDER = new Comparator<DelayedExecutionEntry>() {
+            public int compare(DelayedExecutionEntry o1, DelayedExecutionEntry o2) {
+                if (o1.executeAt != o2.executeAt) {
+                    return o1.executeAt < o2.executeAt ? -1 : 1;
+                }
+                if (o1.sequence != o2.sequence) {
+                    return o1.sequence < o2.sequence ? -1 : 1;
+                }
+                return 0;
+            }
+        };
+
+        private final LinkedBlockingQueue<DelayedExecutionEntry> inbox = new LinkedBlockingQueue<DelayedExecutionEntry>();
+
+        private final List<List<List<DelayedExecutionEntry>>> slots;
+
+        private final long epoch = System.currentTimeMillis();
+
+        /** the next tick to expire */
+        private long currentTick;
+
+        /** entries in the slots */
+        private int scheduled = 0;
+
+        volatile long lastLagTicks = 0;
+        final AtomicLong maxLagTicks = new AtomicLong();
+
+        TimingWheel() {
+            slots = new ArrayList<List<List<DelayedExecutionEntry>>>(LEVELS);
+            for (int level = 0; level < LEVELS; level++) {
+                int size = 1 << (level == 0 ? ROOT_BITS : LEVEL_BITS);
+                List<List<DelayedExecutionEntry>> levelSlots = new ArrayList<List<DelayedExecutionEntry>>(
+                        size);
+                for (int i = 0; i < size; i++) {
+                    levelSlots.add(new ArrayList<DelayedExecutionEntry>());
                 }
+                slots.add(levelSlots);
+            }
+            currentTick = nowTick();
+        }
+
+        void add(DelayedExecutionEntry entry) {
+            /*
+             * use the first tick that is within the allowed slack, rounding
+             * up to the next tick otherwise
+             */
+            long ms = entry.executeAt - epoch;
+            long tick = ms / TICK_MS;
+            if (ms - tick * TICK_MS > entry.slack) {
+                tick++;
             }
             /*
-             * if we have anything left, add to queue
+             * with different slacks an entry could round down to a tick before
+             * the one of an entry due earlier, keep it behind that one (the
+             * caller holds the owner's lock)
              */
-            if (clone.size() > 0) {
-                synchronized (this) {
-                    if (!running) {
-                        start();
+            DelayedExecutor owner = entry.owner;
+            if (entry.executeAt >= owner.lastExecuteAt) {
+                tick = Math.max(tick, owner.lastTick);
+                owner.lastExecuteAt = entry.executeAt;
+                owner.lastTick = tick;
+            }
+            entry.tick = tick;
+            inbox.add(entry);
+        }
+
+        private long nowTick() {
+            return (System.currentTimeMillis() - epoch) / TICK_MS;
+        }
+
+        private static int shift(int level) {
+            return level == 0 ? 0 : ROOT_BITS + (level - 1) * LEVEL_BITS;
+        }
+
+        private void insert(DelayedExecutionEntry entry) {
+            long tick = Math.max(entry.tick, currentTick);
+            long ticksLeft = tick - currentTick;
+            if (ticksLeft >= MAX_TICKS) {
+                // parked in the last level, re-cascaded with its real tick
+                ticksLeft = MAX_TICKS - (1L << shift(LEVELS - 1));
+                tick = currentTick + ticksLeft;
+            }
+            int level = 0;
+            while (level < LEVELS - 1 && ticksLeft >= (1L << shift(level + 1))) {
+                level++;
+            }
+            int index = (int) ((tick >>> shift(level)) & (slots.get(level).size() - 1));
+            slots.get(level).get(index).add(entry);
+            scheduled++;
+        }
+
+        private void cascade(int level) {
+            int index = (int) ((currentTick >>> shift(level)) & (slots.get(level).size() - 1));
+            List<DelayedExecutionEntry> slot = slots.get(level).get(index);
+            if (slot.isEmpty()) {
+                return;
+            }
+            slots.get(level).set(index, new ArrayList<DelayedExecutionEntry>());
+            scheduled -= slot.size();
+            for (DelayedExecutionEntry entry : slot) {
+                insert(entry);
+            }
+        }
+
+        private void expireCurrentTick() {
+            int index = (int) (currentTick & (slots.get(0).size() - 1));
+            if (index == 0) {
+                for (int level = 1; level < LEVELS; level++) {
+                    cascade(level);
+                    if (((currentTick >>> shift(level)) & (slots.get(level).size() - 1)) != 0) {
+                        break;
                     }
                 }
-                queue.addAll(clone);
-
-                if (sleepingUntil > earliestRun) {
-                    logger.finer("interrupting queue executor thread");
-                    executorThread.interrupt();
+            }
+            List<DelayedExecutionEntry> slot = slots.get(0).get(index);
+            if (!slot.isEmpty()) {
+                slots.get(0).set(index, new ArrayList<DelayedExecutionEntry>());
+                scheduled -= slot.size();
+                if (slot.size() > 1) {
+                    Collections.sort(slot, EXECUTION_ORDER);
                 }
+                for (DelayedExecutionEntry entry : slot) {
+                    entry.owner.expired(entry);
+                }
+            }
+            currentTick++;
+        }
+
+        private void drainInbox() {
+            DelayedExecutionEntry entry;
+            while ((entry = inbox.poll()) != null) {
+                insert(entry);
             }
         }
 
+        public void run() {
+            logger.fine("timing wheel thread started");
+            while (true) {
+                try {
+                    if (scheduled == 0) {
+                        // nothing to do, no need to tick until something shows up
+                        DelayedExecutionEntry entry = inbox.take();
+                        currentTick = Math.max(currentTick, nowTick());
+                        insert(entry);
+                    }
+                    drainInbox();
+
+                    long now = nowTick();
+                    long lag = Math.max(0, now - currentTick);
+                    lastLagTicks = lag;
+                    if (lag > maxLagTicks.get()) {
+                        maxLagTicks.set(lag);
+                    }
+                    while (currentTick <= now) {
+                        expireCurrentTick();
+                    }
+
+                    long sleepMs = epoch + currentTick * TICK_MS - System.currentTimeMillis();
+                    if (sleepMs > 0) {
+                        Thread.sleep(sleepMs);
+                    }
+                } catch (InterruptedException e) {
+                    logger.finest("timing wheel thread interrupted");
+                } catch (Throwable t) {
+                    logger.log(Level.WARNING, "error in timing wheel thread: " + t, t);
+                }
+            }
+        }
     }
 }
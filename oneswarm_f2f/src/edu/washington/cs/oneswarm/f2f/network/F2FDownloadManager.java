@@ -503,8 +503,16 @@ public class F2FDownloadManager {
                     ArrayList<DownloadManager> toShuffle = new ArrayList<DownloadManager>(downloads);
                     Collections.shuffle(toShuffle);
                     logger.fine("running f2f source finder");
+                    List<byte[]> infohashes = new ArrayList<byte[]>();
                     for (DownloadManager d : toShuffle) {
-                        sendSearch(d, false);
+                        byte[] infohash = prepareSearch(d, false);
+                        if (infohash != null) {
+                            infohashes.add(infohash);
+                        }
+                    }
+                    // one batch instead of a message per download and friend
+                    if (infohashes.size() > 0) {
+                        overlayManager.getSearchManager().sendHashSearches(infohashes);
                     }
 
                 } finally {
@@ -514,23 +522,37 @@ public class F2FDownloadManager {
         }
 
         public void sendSearch(DownloadManager d, boolean forceSearch) {
+            byte[] infohash = prepareSearch(d, forceSearch);
+            if (infohash != null) {
+                overlayManager.getSearchManager().sendHashSearch(infohash);
+            }
+        }
+
+        /**
+         * Checks if a search should be sent for the download and if so marks
+         * it as searched.
+         *
+         * @return the infohash to search for, or null if no search should be
+         *         sent.
+         */
+        private byte[] prepareSearch(DownloadManager d, boolean forceSearch) {
             try {
 
                 if (d == null) {
                     logger.warning("Not sending search (d==null");
-                    return;
+                    return null;
                 }
                 // logger.fine("processing: " + d.getDisplayName());
 
                 if (d.getState() != DownloadManager.STATE_DOWNLOADING) {
                     // logger.fine("not sending search, state != Downloading",
                     // logToStdOut);
-                    return;
+                    return null;
                 }
 
                 if (overlayManager.getConnectCount() == 0) {
                     logger.fine("no friends connected, skipping f2f search");
-                    return;
+                    return null;
                 }
 
                 // check if we already sent a search to this destination
@@ -555,7 +577,7 @@ public class F2FDownloadManager {
                     logger.fine("not sending search, lastTime: "
                             + (System.currentTimeMillis() - lastSearch) + "<" + MAX_SEARCH_FREQ
                             + " force=" + forceSearch);
-                    return;
+                    return null;
                 }
                 byte[] infohash = d.getTorrent().getHash();
                 DownloadManagerState state = getState(infohash);
@@ -563,7 +585,6 @@ public class F2FDownloadManager {
                 // if the friend network is enabled, auto send
                 // searches
                 if (state.isNetworkEnabled(AENetworkClassifier.AT_OSF2F)) {
-                    overlayManager.getSearchManager().sendHashSearch(infohash);
                     d.setData(KEY_LAST_F2F_SEARCH, System.currentTimeMillis());
                     logger.fine("sending F2F search: " + d.getDisplayName());
 
@@ -573,13 +594,14 @@ public class F2FDownloadManager {
                         logger.fine("sending sha1 search: " + d.getDisplayName());
                         sha1SourceFinder.searchForAlternativeSources(d);
                     }
+                    return infohash;
                 }
 
             } catch (TOTorrentException e) {
                 // TODO Auto-generated catch block
                 e.printStackTrace();
             }
-
+            return null;
         }
     }
 }
@@ -26,7 +26,6 @@ import org.gudy.azureus2.core3.config.COConfigurationManager;
 import org.gudy.azureus2.core3.global.GlobalManagerStats;
 import org.gudy.azureus2.core3.util.Average;
 import org.gudy.azureus2.core3.util.Base32;
-import org.gudy.azureus2.core3.util.ByteFormatter;
 import org.gudy.azureus2.core3.util.Debug;
 
 import com.aelitis.azureus.core.networkmanager.ConnectionEndpoint;
@@ -45,6 +44,7 @@ import com.aelitis.azureus.core.peermanager.messaging.bittorrent.BTKeepAlive;
 
 import edu.washington.cs.oneswarm.f2f.BigFatLock;
 import edu.washington.cs.oneswarm.f2f.FileList;
+import edu.washington.cs.oneswarm.f2f.FileListDelta;
 import edu.washington.cs.oneswarm.f2f.FileListManager;
 import edu.washington.cs.oneswarm.f2f.Friend;
 import edu.washington.cs.oneswarm.f2f.OSF2FMain;
@@ -61,6 +61,7 @@ import edu.washington.cs.oneswarm.f2f.messaging.OSF2FDatagramOk;
 import edu.washington.cs.oneswarm.f2f.messaging.OSF2FDhtLocation;
 import edu.washington.cs.oneswarm.f2f.messaging.OSF2FHandshake;
 import edu.washington.cs.oneswarm.f2f.messaging.OSF2FHashSearch;
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FHashSearchBatch;
 import edu.washington.cs.oneswarm.f2f.messaging.OSF2FHashSearchResp;
 import edu.washington.cs.oneswarm.f2f.messaging.OSF2FMessage;
 import edu.washington.cs.oneswarm.f2f.messaging.OSF2FMessageDecoder;
@@ -72,6 +73,8 @@ import edu.washington.cs.oneswarm.f2f.messaging.OSF2FSearchCancel;
 import edu.washington.cs.oneswarm.f2f.messaging.OSF2FSearchResp;
 import edu.washington.cs.oneswarm.f2f.messaging.OSF2FTextSearch;
 import edu.washington.cs.oneswarm.f2f.messaging.OSF2FTextSearchResp;
+import edu.washington.cs.oneswarm.f2f.metrics.Counter;
+import edu.washington.cs.oneswarm.f2f.metrics.MetricsRegistry;
 import edu.washington.cs.oneswarm.f2f.network.DelayedExecutorService.DelayedExecutor;
 import edu.washington.cs.oneswarm.f2f.network.OverlayManager.FriendConnectionListener;
 import edu.washington.cs.oneswarm.f2f.network.OverlayTransport.WriteQueueWaiter;
@@ -138,7 +141,9 @@ public class FriendConnection implements DatagramListener {
     private boolean filelistReceived = false;
     private volatile boolean handShakeReceived = false;
 
-    private int lastFileListSentToFriend = Integer.MAX_VALUE;
+    // the list the friend has from us, deltas are computed against it
+    private FileList lastFileListSentToFriend = null;
+    private final Object fileListSendLock = new Object();
 
     private long lastByteRecvTime = System.currentTimeMillis();
     // private final Queue<WriteQueueWaiter> writeWaiters = new
@@ -325,17 +330,27 @@ public class FriendConnection implements DatagramListener {
      */
     public static FriendConnection createStubForTests(QueueManager _queueManager,
             NetworkConnection _conn, Friend _remoteFriend) {
-        return new FriendConnection(_queueManager, _conn, _remoteFriend);
+        return new FriendConnection(null, _queueManager, _conn, _remoteFriend);
     }
 
-    private FriendConnection(QueueManager _queueManager, NetworkConnection _conn,
-            Friend _remoteFriend) {
+    /**
+     * Same as above, but with stats so that messages can actually be
+     * delivered on the connection (used by the benchmarks)
+     */
+    public static FriendConnection createStubForTests(GlobalManagerStats stats,
+            QueueManager _queueManager, NetworkConnection _conn, Friend _remoteFriend) {
+        return new FriendConnection(stats, _queueManager, _conn, _remoteFriend);
+    }
+
+    private FriendConnection(GlobalManagerStats stats, QueueManager _queueManager,
+            NetworkConnection _conn, Friend _remoteFriend) {
         // Setting handShakeReceived = true tells AbstractServiceChannelEndpoint
         // that this connection has been started
         this.handShakeReceived = true;
         this.remoteFriend = _remoteFriend;
         this.queueManager = _queueManager;
         this.connection = _conn;
+        this.stats = stats;
         this.friendConnectionQueue = queueManager
                 .registerConnectionForQueueHandling(FriendConnection.this);
         this.outgoing = false;
@@ -344,7 +359,6 @@ public class FriendConnection implements DatagramListener {
         this.filelistManager = null;
         this.debugMessageLog = null;
         this.connectionTime = 0;
-        this.stats = null;
     }
 
     /**
@@ -900,6 +914,12 @@ public class FriendConnection implements DatagramListener {
             if (this.hasUdpSupport()) {
                 extras += "(udp)";
             }
+            if (this.hasFileListDeltaSupport()) {
+                extras += "(flist delta)";
+            }
+            if (this.hasHashSearchBatchSupport()) {
+                extras += "(search batch)";
+            }
 
             /*
              * check that we still are connected, if we are mark friends
@@ -1035,6 +1055,22 @@ public class FriendConnection implements DatagramListener {
         return (remoteFlags[0] & OSF2FHandshake.SUPPORTS_UDP) == OSF2FHandshake.SUPPORTS_UDP;
     }
 
+    public boolean hasFileListDeltaSupport() {
+        if (remoteFlags == null) {
+            return false;
+        }
+
+        return (remoteFlags[0] & OSF2FHandshake.SUPPORTS_FILE_LIST_DELTAS) == OSF2FHandshake.SUPPORTS_FILE_LIST_DELTAS;
+    }
+
+    public boolean hasHashSearchBatchSupport() {
+        if (remoteFlags == null) {
+            return false;
+        }
+
+        return (remoteFlags[0] & OSF2FHandshake.SUPPORTS_HASH_SEARCH_BATCH) == OSF2FHandshake.SUPPORTS_HASH_SEARCH_BATCH;
+    }
+
     public int getImageMetaInfoQueueSize() {
         return metaInfoRequestHandler.imageRequests.size();
     }
@@ -1130,6 +1166,10 @@ public class FriendConnection implements DatagramListener {
 
         } else if (message instanceof OSF2FHashSearch) {
             stats.hashSearchReceived();
+        } else if (message instanceof OSF2FHashSearchBatch) {
+            for (int i = 0; i < ((OSF2FHashSearchBatch) message).getNumSearches(); i++) {
+                stats.hashSearchReceived();
+            }
         }
 
         if (message instanceof OSF2FTextSearch) {
@@ -1168,7 +1208,12 @@ public class FriendConnection implements DatagramListener {
             }
         }
 
-        incomingSearchRate.addValue(1);
+        // a batch counts as the searches in it
+        if (message instanceof OSF2FHashSearchBatch) {
+            incomingSearchRate.addValue(((OSF2FHashSearchBatch) message).getNumSearches());
+        } else {
+            incomingSearchRate.addValue(1);
+        }
 
         long average = incomingSearchRate.getAverage();
 
@@ -1196,6 +1241,12 @@ public class FriendConnection implements DatagramListener {
                 }
             } else {
                 receivedSearches.put(msg.getSearchID(), System.currentTimeMillis());
+                if (msg instanceof OSF2FHashSearchBatch) {
+                    // the searches in it are forwarded one by one
+                    for (OSF2FHashSearch search : ((OSF2FHashSearchBatch) msg).getSearches()) {
+                        receivedSearches.put(search.getSearchID(), System.currentTimeMillis());
+                    }
+                }
                 listener.gotSearchMessage(this, msg);
             }
         } else {
@@ -1448,41 +1499,68 @@ public class FriendConnection implements DatagramListener {
         long t = System.currentTimeMillis();
         FileList fileListToSendToFriend = filelistManager.getFileListToSendToFriend(remoteFriend);
         byte[] bytesToSend;
-        if (lastFileListSentToFriend == fileListToSendToFriend.getListId()) {
-            // if there is no change in the file list, skip the response unless
-            // it is specifically asked for
-            logger.finer(getDescription() + "file list for " + this.getRemoteFriend().getNick()
-                    + " unchanged, skipping file list send");
-
-            if (!sendResponseOnNoChange) {
-                return;
+        // the delta and the list it is against must go out in order
+        synchronized (fileListSendLock) {
+            FileList previousList = lastFileListSentToFriend;
+            if (sendResponseOnNoChange && previousList != null
+                    && previousList.getListId() != lastId) {
+                // the friend asked with a list other than the one we sent
+                previousList = null;
+            }
+            FileListDelta delta = null;
+            if (previousList != null && this.hasFileListDeltaSupport()
+                    && this.hasExtendedFileListsSupport()) {
+                delta = FileListDelta.diff(previousList, fileListToSendToFriend);
+            }
+
+            boolean unchanged;
+            if (delta != null) {
+                unchanged = delta.isEmpty();
+            } else {
+                unchanged = previousList != null
+                        && previousList.getListId() == fileListToSendToFriend.getListId();
             }
-            bytesToSend = new byte[0];
-        } else {
-
-            logger.finer(getDescription() + "file list for " + this.getRemoteFriend().getNick()
-                    + " changed, sending new list");
+            if (unchanged) {
+                // if there is no change in the file list, skip the response
+                // unless it is specifically asked for
+                logger.finer(getDescription() + "file list for "
+                        + this.getRemoteFriend().getNick() + " unchanged, skipping file list send");
 
-            lastFileListSentToFriend = fileListToSendToFriend.getListId();
-            if (this.hasExtendedFileListsSupport() == false) {
-                logger.finer(getDescription() + "sending basic flist: "
-                        + this.getRemoteFriend().getNick());
-                bytesToSend = FileListManager.encode_basic(fileListToSendToFriend, true);
+                if (!sendResponseOnNoChange) {
+                    return;
+                }
+                bytesToSend = delta != null ? delta.encode(true) : null;
+                if (bytesToSend == null) {
+                    bytesToSend = new byte[0];
+                }
             } else {
-                logger.finer(getDescription() + "sending extended flist"
-                        + this.getRemoteFriend().getNick());
-                bytesToSend = FileListManager.encode_extended(fileListToSendToFriend, true);
-                logger.finest(getDescription() + " the bytes of extended: "
-                        + ByteFormatter.encodeString(bytesToSend));
+
+                logger.finer(getDescription() + "file list for "
+                        + this.getRemoteFriend().getNick() + " changed, sending new list");
+
+                lastFileListSentToFriend = fileListToSendToFriend;
+                bytesToSend = null;
+                if (delta != null && delta.cheaperThan(fileListToSendToFriend)) {
+                    logger.finer(getDescription() + "sending flist delta: "
+                            + this.getRemoteFriend().getNick());
+                    bytesToSend = delta.encode(true);
+                }
+                if (bytesToSend == null) {
+                    boolean extended = this.hasExtendedFileListsSupport();
+                    logger.finer(getDescription() + "sending " + (extended ? "extended" : "basic")
+                            + " flist: " + this.getRemoteFriend().getNick());
+                    bytesToSend = filelistManager.getEncodedFileList(fileListToSendToFriend,
+                            extended);
+                }
             }
+            logger.finer(getDescription() + "sending custom list to friend, bytes="
+                    + bytesToSend.length + " took " + (System.currentTimeMillis() - t)
+                    + "ms to generate");
+            int channelId = 0;
+            OSF2FTextSearchResp msg = new OSF2FTextSearchResp(OSF2FMessage.CURRENT_VERSION,
+                    OSF2FMessage.FILE_LIST_TYPE_COMPLETE, searchId, channelId, bytesToSend);
+            sendMessage(msg, QueueBuckets.CONTROL, true);
         }
-        logger.finer(getDescription() + "sending custom list to friend, bytes="
-                + bytesToSend.length + " took " + (System.currentTimeMillis() - t)
-                + "ms to generate");
-        int channelId = 0;
-        OSF2FTextSearchResp msg = new OSF2FTextSearchResp(OSF2FMessage.CURRENT_VERSION,
-                OSF2FMessage.FILE_LIST_TYPE_COMPLETE, searchId, channelId, bytesToSend);
-        sendMessage(msg, QueueBuckets.CONTROL, true);
     }
 
     public void sendChat(String plaintextMessage) {
@@ -1554,7 +1632,16 @@ public class FriendConnection implements DatagramListener {
             logger.warning(getDescription() + "Dropping search, sending too fast");
             return;
         }
-        outgoingSearchRate.addValue(1);
+
+        if (search instanceof OSF2FHashSearchBatch) {
+            int searches = ((OSF2FHashSearchBatch) search).getNumSearches();
+            outgoingSearchRate.addValue(searches);
+            for (int i = 0; i < searches; i++) {
+                stats.hashSearchSent();
+            }
+        } else {
+            outgoingSearchRate.addValue(1);
+        }
 
         if (search instanceof OSF2FTextSearch) {
             stats.textSearchSent();
@@ -1827,6 +1914,10 @@ public class FriendConnection implements DatagramListener {
             } catch (IOException e) {
                 logger.warning(getDescription() + ": got decode error when "
                         + "processing file list: " + this + ": " + e.getMessage());
+                if (FileListDelta.isDelta(fileList)) {
+                    // we don't have the list the delta is against, start over
+                    sendFileListRequest(null, true);
+                }
             }
         }
 
@@ -1868,9 +1959,18 @@ public class FriendConnection implements DatagramListener {
         }
 
         public void sendFileListRequest(PluginCallback<FileList> callback) {
+            sendFileListRequest(callback, false);
+        }
+
+        /**
+         * @param full
+         *            ask for the full list rather than the changes since the
+         *            list we have.
+         */
+        public void sendFileListRequest(PluginCallback<FileList> callback, boolean full) {
             int lastID = 0;
             FileList previousList = filelistManager.getFriendsList(remoteFriend);
-            if (previousList != null) {
+            if (previousList != null && !full) {
                 lastID = previousList.getListId();
             }
             OSF2FMessage msg = new OSF2FTextSearch(OSF2FMessage.CURRENT_VERSION,
@@ -1939,6 +2039,8 @@ public class FriendConnection implements DatagramListener {
 
             if (message.getID().equals(OSF2FMessage.ID_OS_HASH_SEARCH)) {
                 handleSearch(message);
+            } else if (message.getID().equals(OSF2FMessage.ID_OS_HASH_SEARCH_BATCH)) {
+                handleSearch(message);
             } else if (message.getID().equals(OSF2FMessage.ID_OS_TEXT_SEARCH)) {
                 handleSearch(message);
             } else if (message.getID().equals(OSF2FMessage.ID_OS_CHANNEL_DATA_MSG)) {
@@ -2278,6 +2380,11 @@ public class FriendConnection implements DatagramListener {
         }
     }
 
+    private static final Counter relayBytesInPlace = MetricsRegistry.getInstance().counter(
+            "f2f_relay_bytes_total", "Channel bytes relayed between friends.", "path", "in_place");
+    private static final Counter relayBytesRebuilt = MetricsRegistry.getInstance().counter(
+            "f2f_relay_bytes_total", "Channel bytes relayed between friends.", "path", "rebuilt");
+
     public class OverlayForward {
         private long bytesForwarded = 0;
         Average average = Average.getInstance(1000, 10);
@@ -2314,9 +2421,14 @@ public class FriendConnection implements DatagramListener {
         }
 
         public void forwardMessage(OSF2FChannelMsg message, FriendConnection sender) {
-            logger.finest("Packet to be forwarded: " + message.getDescription() + " forwarded="
-                    + bytesForwarded);
+            if (logger.isLoggable(Level.FINEST)) {
+                logger.finest("Packet to be forwarded: " + message.getDescription()
+                        + " forwarded=" + bytesForwarded);
+            }
             message.setByteInChannel(bytesForwarded);
+            if (bytesForwarded > 0 && forwardInPlace(message, sender)) {
+                return;
+            }
             if (message instanceof OSF2FChannelDataMsg) {
                 if (bytesForwarded == 0 || service) {
                     // Check if first packet, detect service or not.
@@ -2334,11 +2446,48 @@ public class FriendConnection implements DatagramListener {
                         sourceMessage, setupMessage, searcherSide, message);
             }
             // Flow control.
-            if (service && BACKPRESSURE) {
+            if (service && BACKPRESSURE && message instanceof OSF2FServiceDataMsg) {
                 int win = ((OSF2FServiceDataMsg)message).getWindow();
                 ((OSF2FServiceDataMsg)message).setWindow(sender.getSendQueueCurrentCapacity(channelId, true));
                 sender.updateBackpressure(win);
             }
+            send(message);
+            relayBytesRebuilt.add(message.getMessageSize());
+        }
+
+        /**
+         * Relays channel data without parsing and re-serializing it: the
+         * window of service messages is swapped in the received header and
+         * the channel id is written back in front of the payload, so the
+         * buffer the decoder filled is queued as is. The first packet of a
+         * channel still takes the regular path since it decides whether this
+         * is a service channel, and so does everything while packet listeners
+         * are set, as they only get to see parsed service messages.
+         * 
+         * @return false if the message has to take the regular path
+         */
+        private boolean forwardInPlace(OSF2FChannelMsg message, FriendConnection sender) {
+            if (message.getClass() != OSF2FChannelDataMsg.class || setupPacketListener != null
+                    || conn.getSetupPacketListener() != null) {
+                return false;
+            }
+            OSF2FChannelDataMsg msg = (OSF2FChannelDataMsg) message;
+            if (service && BACKPRESSURE) {
+                try {
+                    int win = OSF2FServiceDataMsg.exchangeWindow(msg,
+                            sender.getSendQueueCurrentCapacity(channelId, true));
+                    sender.updateBackpressure(win);
+                } catch (MessageException e) {
+                    // not service message
+                }
+            }
+            msg.putChannelIdInPayload();
+            send(msg);
+            relayBytesInPlace.add(msg.getMessageSize());
+            return true;
+        }
+
+        private void send(OSF2FChannelMsg message) {
             lastMsgTime = System.currentTimeMillis();
             int numBytes = message.getMessageSize();
             bytesForwarded += numBytes;
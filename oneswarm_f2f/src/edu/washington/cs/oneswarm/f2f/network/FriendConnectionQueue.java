@@ -9,9 +9,12 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.bouncycastle.util.encoders.Base64;
+import org.gudy.azureus2.core3.config.COConfigurationManager;
 import org.gudy.azureus2.core3.global.GlobalManagerStats;
 import org.gudy.azureus2.core3.util.Average;
 import org.gudy.azureus2.core3.util.Debug;
@@ -20,12 +23,12 @@ import com.aelitis.azureus.core.networkmanager.NetworkConnection;
 import com.aelitis.azureus.core.networkmanager.OutgoingMessageQueue;
 import com.aelitis.azureus.core.peermanager.messaging.Message;
 
-import edu.washington.cs.oneswarm.f2f.BigFatLock;
 import edu.washington.cs.oneswarm.f2f.Friend;
 import edu.washington.cs.oneswarm.f2f.messaging.OSF2FChannelDataMsg;
 import edu.washington.cs.oneswarm.f2f.messaging.OSF2FChannelMsg;
 import edu.washington.cs.oneswarm.f2f.messaging.OSF2FChannelReset;
 import edu.washington.cs.oneswarm.f2f.messaging.OSF2FHashSearch;
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FHashSearchBatch;
 import edu.washington.cs.oneswarm.f2f.messaging.OSF2FMessage;
 import edu.washington.cs.oneswarm.f2f.messaging.OSF2FSearch;
 import edu.washington.cs.oneswarm.f2f.messaging.OSF2FSearchResp;
@@ -34,9 +37,13 @@ import edu.washington.cs.oneswarm.f2f.network.OverlayTransport.WriteQueueWaiter;
 import edu.washington.cs.oneswarm.f2f.network.QueueManager.QueueBuckets;
 import edu.washington.cs.oneswarm.f2f.servicesharing.OSF2FServiceDataMsg;
 
-class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
+class FriendConnectionQueue implements Comparable<FriendConnectionQueue>, PacketScheduler.Source {
 
-    private static BigFatLock lock = OverlayManager.lock;
+    /*
+     * guards the queues of this friend only, the queue manager takes its
+     * scheduler lock first and then this lock, never the other way around
+     */
+    private final ReentrantLock lock = new ReentrantLock();
     private final static Logger logger = Logger.getLogger(FriendConnectionQueue.class.getName());
 
     public final static int MAX_FRIEND_QUEUE_LENGTH = (OSF2FMessage.MAX_MESSAGE_SIZE + 9);
@@ -55,19 +62,21 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
 
     private long dataBytesUploaded = 0;
 
-    private final LinkedList<OSF2FMessage> forwardQueue = new LinkedList<OSF2FMessage>();
+    private final LinkedList<QueuedMessage> forwardQueue = new LinkedList<QueuedMessage>();
     private int forwardQueueBytes = 0;
     private long forwardQueueDelay = 0;
 
-    /**
-     * This is synchronized by locking on the QueueManager
-     */
-    // private HashMap<Integer, Long> forwardQueueTimes = new HashMap<Integer,
-    // Long>();
     private final Friend friend;
 
     private double friendScore = 1;
 
+    private volatile double schedulingWeight = 1;
+
+    /*
+     * how long the last packet handed to the network waited in this queue
+     */
+    private long lastPacketQueuedMs = 0;
+
     private long lastMessageSentTime;
     private final NetworkConnection nc;
     private long protocolBytesUploaded = 0;
@@ -75,7 +84,7 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
     private final InternalQueueListener queueListener = new InternalQueueListener();
     private final QueueManager queueManager;
     private volatile boolean registeredForForwardSelects = false;
-    private boolean registeredForSearchSelects = false;
+    private volatile boolean registeredForSearchSelects = false;
 
     private volatile boolean registeredForTransportSelects = false;
 
@@ -83,12 +92,17 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
     // private final SpeedManager speedManager;
     private final GlobalManagerStats stats;
 
-    private final LinkedList<OSF2FMessage> transportQueue = new LinkedList<OSF2FMessage>();
+    private final LinkedList<QueuedMessage> transportQueue = new LinkedList<QueuedMessage>();
 
     private volatile int transportQueueBytes = 0;
     private long transportQueueDelay = 0;
 
     private final ConcurrentLinkedQueue<WriteQueueWaiter> transportWaiters = new ConcurrentLinkedQueue<WriteQueueWaiter>();
+    /*
+     * waiters taken off transportWaiters while sending, they are notified by
+     * doListenerNotifications() once the locks are released
+     */
+    private final ConcurrentLinkedQueue<WriteQueueWaiter> readyWaiters = new ConcurrentLinkedQueue<WriteQueueWaiter>();
     private final Average uploadAverage = Average.getInstance(1000, 10);
 
     private PacketListener packetListener;
@@ -104,6 +118,7 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
         // this.speedManager = new SpeedManager(queueManager, false);
         this.stats = fc.getStats();
         getFriendScore(true);
+        updateSchedulingWeight();
         nc.getOutgoingMessageQueue().registerQueueListener(queueListener);
         logger.fine(getDescription() + "connection queue created");
     }
@@ -121,14 +136,15 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
         try {
             List<OSF2FMessage> queuedMessages = new LinkedList<OSF2FMessage>();
 
-            OSF2FMessage m;
-            while ((m = transportQueue.poll()) != null) {
-                queuedMessages.add(m);
+            QueuedMessage qm;
+            while ((qm = transportQueue.poll()) != null) {
+                queuedMessages.add(qm.message);
             }
 
-            while ((m = forwardQueue.poll()) != null) {
-                queuedMessages.add(m);
+            while ((qm = forwardQueue.poll()) != null) {
+                queuedMessages.add(qm.message);
             }
+            OSF2FMessage m;
             QueuedSearch qs;
             while ((qs = searchQueue.poll()) != null) {
                 m = qs.getSearchMessage();
@@ -156,10 +172,23 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
     void doListenerNotifications() {
         if (QueueManager.QUEUE_LOCK_DEBUG) {
             if (lock.isHeldByCurrentThread()) {
-                Debug.out("holding queue manager lock!!!");
+                Debug.out("holding friend queue lock!!!");
             }
         }
         nc.getOutgoingMessageQueue().doListenerNotifications();
+
+        WriteQueueWaiter waiter;
+        while ((waiter = readyWaiters.poll()) != null) {
+            waiter.readyForWrite();
+        }
+    }
+
+    /**
+     * @return true if waiters were found ready for write while sending and
+     *         still need to be notified by {@link #doListenerNotifications()}
+     */
+    boolean hasReadyWaiters() {
+        return readyWaiters.peek() != null;
     }
 
     public int getCurrentUploadSpeedInBps() {
@@ -222,6 +251,32 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
         return friendScore;
     }
 
+    /**
+     * The share of this friend relative to other friends with traffic in the
+     * same class, set with f2f_queue_friend_weight.[base64 public key]
+     * (default 1)
+     */
+    public double getSchedulingWeight() {
+        return schedulingWeight;
+    }
+
+    void updateSchedulingWeight() {
+        if (friend.getPublicKey() == null) {
+            // test stubs
+            return;
+        }
+        String key = "f2f_queue_friend_weight." + new String(Base64.encode(friend.getPublicKey()));
+        schedulingWeight = Math.max(0.1, COConfigurationManager.getFloatParameter(key, 1.0f));
+    }
+
+    /**
+     * @return how long the packet last handed to the network by
+     *         {@link #sendQueuedPacket(QueueBuckets)} waited in this queue
+     */
+    long getLastPacketQueuedMs() {
+        return lastPacketQueuedMs;
+    }
+
     /**
      * Used for ClientServiceConnection and ServerServiceConnection unit tests
      * @return last message passed into queuePacketForceQueue
@@ -265,13 +320,86 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
         return registeredForTransportSelects;
     }
 
+    boolean isRegisteredForSelects(QueueBuckets bucket) {
+        switch (bucket) {
+        case TRANSPORT:
+            return registeredForTransportSelects;
+        case FORWARD:
+            return registeredForForwardSelects;
+        default:
+            return registeredForSearchSelects;
+        }
+    }
+
+    public boolean canSend() {
+        return queueManager.isFriendQueueAdmissible(this);
+    }
+
+    public int getNextPacketBytes(QueueBuckets bucket) {
+        lock.lock();
+        try {
+            switch (bucket) {
+            case TRANSPORT: {
+                QueuedMessage head = transportQueue.peek();
+                if (head == null) {
+                    registeredForTransportSelects = false;
+                    return 0;
+                }
+                return getMessageLen(head.message);
+            }
+            case FORWARD: {
+                QueuedMessage head = forwardQueue.peek();
+                if (head == null) {
+                    registeredForForwardSelects = false;
+                    return 0;
+                }
+                return getMessageLen(head.message);
+            }
+            default: {
+                pruneExpiredSearches();
+                QueuedSearch head = searchQueue.peek();
+                if (head == null) {
+                    registeredForSearchSelects = false;
+                    return 0;
+                }
+                return getMessageLen(head.getSearchMessage());
+            }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * this function should only be called from the queue manager (holding
+     * its scheduler lock), it hands the next packet of the given class to the
+     * network
+     * 
+     * @return the number of bytes sent, 0 if nothing was sent
+     */
+    int sendQueuedPacket(QueueBuckets bucket) {
+        lock.lock();
+        try {
+            switch (bucket) {
+            case TRANSPORT:
+                return sendQueuedTransportPacket();
+            case FORWARD:
+                return sendQueuedForwardPacket();
+            default:
+                return sendQueuedSearchPacket();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /*
      * this function must be called from a thread that has the lock
      */
     private int pruneExpiredSearches() {
         if (QueueManager.QUEUE_LOCK_DEBUG) {
             if (!lock.isHeldByCurrentThread()) {
-                Debug.out("not holding queue manager lock!!!");
+                Debug.out("not holding friend queue lock!!!");
             }
         }
         int removedNum = 0;
@@ -289,9 +417,10 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
 
     public void queuePacketForceQueue(QueueBuckets bucket, OSF2FMessage msg) {
         /*
-         * this code needs the queue manager lock
+         * the queue manager is told about new traffic after releasing the
+         * queue lock, it would otherwise be taken in the wrong order
          */
-        boolean triggerPacketSending = false;
+        boolean register = false;
         lock.lock();
         try {
             if (bucket == QueueBuckets.TRANSPORT) {
@@ -299,7 +428,7 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
                     logger.finest(getDescription() + "queueing transport: " + msg.getDescription());
                 }
                 lastMsgQueued = msg;
-                transportQueue.add(msg);
+                transportQueue.add(new QueuedMessage(msg));
                 transportQueueBytes += (msg).getMessageSize();
                 if (QueueManager.QUEUE_DEBUG_LOGGING) {
                     // the size operation is expensive, don't run unless
@@ -311,19 +440,18 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
                     }
                 }
                 if (!registeredForTransportSelects) {
-                    triggerPacketSending = true;
+                    register = true;
                     registerForTransportSelects();
                 }
             } else if (bucket == QueueBuckets.FORWARD || msg instanceof OSF2FSearchResp) {
                 if (logger.isLoggable(Level.FINEST)) {
                     logger.finest(getDescription() + "queueing forward: " + msg.getDescription());
                 }
-                forwardQueue.add(msg);
+                bucket = QueueBuckets.FORWARD;
+                forwardQueue.add(new QueuedMessage(msg));
                 forwardQueueBytes += getMessageLen(msg);
-                // forwardQueueTimes.put(msg.hashCode(),
-                // System.currentTimeMillis());
                 if (!registeredForForwardSelects) {
-                    triggerPacketSending = true;
+                    register = true;
                     registerForForwardSelects();
                 }
             } else if (msg instanceof OSF2FSearch) {
@@ -340,10 +468,11 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
                     }
                     drop.getSearchMessage().destroy();
                 }
+                bucket = QueueBuckets.CONTROL;
                 searchQueue.add(new QueuedSearch((OSF2FSearch) msg));
 
                 if (!registeredForSearchSelects) {
-                    triggerPacketSending = true;
+                    register = true;
                     registerForSearchSelects();
                 }
             } else {
@@ -354,9 +483,10 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
         }
 
         /*
-         * trigger packet sending outside the lock
+         * register and trigger packet sending outside the lock
          */
-        if (triggerPacketSending) {
+        if (register) {
+            queueManager.registerForSelects(this, bucket);
             queueManager.triggerPacketSending();
         }
     }
@@ -377,10 +507,15 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
 
     }
 
+    /*
+     * the registerForXSelects() methods only set the flag, callers must tell
+     * the queue manager with QueueManager.registerForSelects() once the queue
+     * lock is released
+     */
     private void registerForForwardSelects() {
         if (QueueManager.QUEUE_LOCK_DEBUG) {
             if (!lock.isHeldByCurrentThread()) {
-                Debug.out("not holding queue manager lock!!!");
+                Debug.out("not holding friend queue lock!!!");
             }
         }
         if (QueueManager.QUEUE_DEBUG_LOGGING) {
@@ -389,13 +524,12 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
             }
         }
         registeredForForwardSelects = true;
-        queueManager.registerForForwardSelects(FriendConnectionQueue.this);
     }
 
     private void registerForSearchSelects() {
         if (QueueManager.QUEUE_LOCK_DEBUG) {
             if (!lock.isHeldByCurrentThread()) {
-                Debug.out("not holding queue manager lock!!!");
+                Debug.out("not holding friend queue lock!!!");
             }
         }
         if (QueueManager.QUEUE_DEBUG_LOGGING) {
@@ -404,13 +538,12 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
             }
         }
         registeredForSearchSelects = true;
-        queueManager.registerForSearchSelects(FriendConnectionQueue.this);
     }
 
     private void registerForTransportSelects() {
         if (QueueManager.QUEUE_LOCK_DEBUG) {
             if (!lock.isHeldByCurrentThread()) {
-                Debug.out("not holding queue manager lock!!!");
+                Debug.out("not holding friend queue lock!!!");
             }
         }
         if (QueueManager.QUEUE_DEBUG_LOGGING) {
@@ -419,20 +552,19 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
             }
         }
         registeredForTransportSelects = true;
-        queueManager.registerForTransportSelects(FriendConnectionQueue.this);
     }
 
     /**
-     * this function should only be called from the queue manager, it will
-     * return true if more packets can be queued, false otherwise
+     * this function should only be called from sendQueuedPacket(), it returns
+     * the number of bytes sent
      */
-    boolean sendQueuedForwardPacket() {
+    private int sendQueuedForwardPacket() {
         registeredForForwardSelects = false;
-        boolean packetSent = false;
+        int packetSent = 0;
 
         if (QueueManager.QUEUE_LOCK_DEBUG) {
             if (!lock.isHeldByCurrentThread()) {
-                Debug.out("not holding queue manager lock!!!");
+                Debug.out("not holding friend queue lock!!!");
             }
         }
         boolean stayRegistered = false;
@@ -460,13 +592,15 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
                 logger.finest(getDescription() + "sending packet from forward queue, len="
                         + forwardQueue.size() + "(bytes=" + forwardQueueBytes + ")");
             }
-            OSF2FMessage forwardedMessage = forwardQueue.remove();
+            QueuedMessage queued = forwardQueue.remove();
+            OSF2FMessage forwardedMessage = queued.message;
 
             packetListenerNotify(forwardedMessage);
 
             nc.getOutgoingMessageQueue().addMessage(forwardedMessage, true);
-            packetSent = true;
+            lastPacketQueuedMs = queued.getQueuedMs();
             int numBytes = getMessageLen(forwardedMessage);
+            packetSent = numBytes;
             stats.protocolBytesSent(numBytes, nc.isLANLocal());
             forwardQueueBytes -= numBytes;
             if (forwardQueueBytes < 0) {
@@ -474,16 +608,6 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
                         + "accounting error: forwardQueueBytes < 0 in friend connection queue: "
                         + friend);
             }
-            /*
-             * hash collitions are rare, but they can happen....
-             */
-            // Long queuedTime =
-            // forwardQueueTimes.remove(forwardedMessage.hashCode());
-            // if (queuedTime != null) {
-            // forwardQueueMs = System.currentTimeMillis() - queuedTime;
-            // } else {
-            // forwardQueueMs = 0;
-            // }
             if (forwardQueue.peek() != null) {
                 stayRegistered = true;
             } else {
@@ -496,8 +620,8 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
          */
         if (stayRegistered) {
             /*
-             * register for more selects, but we don't need to trigger packet
-             * sending, the queue manager will just continue in the while loop
+             * stay registered, the queue manager checks the flag after the
+             * packet is sent and keeps us in the scheduler
              */
             registerForForwardSelects();
         }
@@ -522,18 +646,18 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
     }
 
     /**
-     * this function should only be called from the queue manager, it will
-     * return true if more packets are available, false otherwise
+     * this function should only be called from sendQueuedPacket(), it returns
+     * the number of bytes sent
      */
-    boolean sendQueuedSearchPacket() {
+    private int sendQueuedSearchPacket() {
         logger.finest(getDescription() + "sendQueuedSearchPacket()");
         registeredForSearchSelects = false;
         if (QueueManager.QUEUE_LOCK_DEBUG) {
             if (!lock.isHeldByCurrentThread()) {
-                Debug.out("not holding queue manager lock!!!");
+                Debug.out("not holding friend queue lock!!!");
             }
         }
-        boolean packetSent = false;
+        int packetSent = 0;
 
         boolean stayRegistered = false;
 
@@ -558,9 +682,11 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
             if (logger.isLoggable(Level.FINEST)) {
                 logger.finest(getDescription() + "sending packet from search queue");
             }
-            Message search = searchQueue.remove().getSearchMessage();
+            QueuedSearch queued = searchQueue.remove();
+            Message search = queued.getSearchMessage();
             nc.getOutgoingMessageQueue().addMessage(search, true);
-            packetSent = true;
+            lastPacketQueuedMs = System.currentTimeMillis() - queued.timeStamp;
+            packetSent = getMessageLen(search);
 
             if (searchQueue.peek() != null) {
                 stayRegistered = true;
@@ -571,8 +697,8 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
 
         if (stayRegistered) {
             /*
-             * register for more selects, but we don't need to trigger packet
-             * sending, the queue manager will just continue in the while loop
+             * stay registered, the queue manager checks the flag after the
+             * packet is sent and keeps us in the scheduler
              */
             registerForSearchSelects();
         }
@@ -585,17 +711,17 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
     }
 
     /**
-     * this function should only be called from the queue manager, it will
-     * return true if more packets are available, false otherwise
+     * this function should only be called from sendQueuedPacket(), it returns
+     * the number of bytes sent
      * 
-     * make sure to have the queue manager lock when calling this funtion
+     * make sure to have the friend queue lock when calling this funtion
      */
-    boolean sendQueuedTransportPacket() {
-        boolean packetSent = false;
+    private int sendQueuedTransportPacket() {
+        int packetSent = 0;
         registeredForTransportSelects = false;
         if (QueueManager.QUEUE_LOCK_DEBUG) {
             if (!lock.isHeldByCurrentThread()) {
-                Debug.out("not holding queue manager lock!!!");
+                Debug.out("not holding friend queue lock!!!");
             }
         }
         boolean stayRegistered = false;
@@ -611,13 +737,17 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
         }
         /*
          * second, we might have waiters ready to write. Let them fill up the
-         * queue
+         * queue, they are called back after the locks are released (waiters
+         * that find the queue full again just wait again)
          */
         else {
             int notified = 0;
-            while (transportWaiters.peek() != null && isReadyForTransportWrite(null)) {
-                transportWaiters.remove().readyForWrite();
-                notified++;
+            if (isReadyForTransportWrite(null)) {
+                WriteQueueWaiter waiter;
+                while ((waiter = transportWaiters.poll()) != null) {
+                    readyWaiters.add(waiter);
+                    notified++;
+                }
             }
             if (QueueManager.QUEUE_DEBUG_LOGGING && logger.isLoggable(Level.FINEST)) {
                 logger.finest(getDescription() + "notifying waiters, num=" + notified + " left="
@@ -634,10 +764,12 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
                 if (logger.isLoggable(Level.FINEST)) {
                     logger.finest(getDescription() + "sending packet from transport queue");
                 }
-                OSF2FMessage msg = transportQueue.remove();
+                QueuedMessage queued = transportQueue.remove();
+                OSF2FMessage msg = queued.message;
                 packetListenerNotify(msg);
                 nc.getOutgoingMessageQueue().addMessage(msg, true);
-                packetSent = true;
+                lastPacketQueuedMs = queued.getQueuedMs();
+                packetSent = getMessageLen(msg);
                 transportQueueBytes -= msg.getMessageSize();
             }
             if (QueueManager.QUEUE_DEBUG_LOGGING && logger.isLoggable(Level.FINEST)) {
@@ -653,8 +785,8 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
 
         if (stayRegistered) {
             /*
-             * register for more selects, but we don't need to trigger packet
-             * sending, the queue manager will just continue in the while loop
+             * stay registered, the queue manager checks the flag after the
+             * packet is sent and keeps us in the scheduler
              */
             registerForTransportSelects();
         }
@@ -690,7 +822,7 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
             return true;
         }
 
-        if (msg instanceof OSF2FHashSearch) {
+        if (msg instanceof OSF2FHashSearch || msg instanceof OSF2FHashSearchBatch) {
             return true;
         }
 
@@ -867,6 +999,7 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
          * when asked
          */
         private void packetSentCheckRegistrations() {
+            boolean transport = false, forward = false, search = false;
             lock.lock();
             try {
                 /*
@@ -875,22 +1008,34 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
                  */
                 if (transportQueue.peek() != null && !registeredForTransportSelects) {
                     registerForTransportSelects();
+                    transport = true;
                 }
                 /*
                  * same for forwards
                  */
                 if (forwardQueue.peek() != null && !registeredForForwardSelects) {
                     registerForForwardSelects();
+                    forward = true;
                 }
                 /*
                  * and for searches
                  */
                 if (searchQueue.peek() != null && !registeredForSearchSelects) {
                     registerForSearchSelects();
+                    search = true;
                 }
             } finally {
                 lock.unlock();
             }
+            if (transport) {
+                queueManager.registerForSelects(FriendConnectionQueue.this, QueueBuckets.TRANSPORT);
+            }
+            if (forward) {
+                queueManager.registerForSelects(FriendConnectionQueue.this, QueueBuckets.FORWARD);
+            }
+            if (search) {
+                queueManager.registerForSelects(FriendConnectionQueue.this, QueueBuckets.CONTROL);
+            }
         }
 
         private void perFriendQueueLog() {
@@ -937,6 +1082,20 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
 
     }
 
+    private static class QueuedMessage {
+        final OSF2FMessage message;
+        final long timeStamp;
+
+        QueuedMessage(OSF2FMessage message) {
+            this.message = message;
+            this.timeStamp = System.currentTimeMillis();
+        }
+
+        long getQueuedMs() {
+            return System.currentTimeMillis() - timeStamp;
+        }
+    }
+
     private static class QueuedSearch {
         final OSF2FSearch search;
         final long timeStamp;
@@ -961,14 +1120,14 @@ class FriendConnectionQueue implements Comparable<FriendConnectionQueue> {
     public void clearForwardChannel(int channelId) {
         if (QueueManager.QUEUE_LOCK_DEBUG) {
             if (lock.isHeldByCurrentThread()) {
-                Debug.out("holding queue manager lock!!!");
+                Debug.out("holding friend queue lock!!!");
             }
         }
         lock.lock();
         try {
             int count = 0;
-            for (Iterator<OSF2FMessage> iterator = forwardQueue.iterator(); iterator.hasNext();) {
-                OSF2FMessage osf2fMessage = iterator.next();
+            for (Iterator<QueuedMessage> iterator = forwardQueue.iterator(); iterator.hasNext();) {
+                OSF2FMessage osf2fMessage = iterator.next().message;
                 if (osf2fMessage instanceof OSF2FChannelMsg) {
                     OSF2FChannelMsg msg = (OSF2FChannelMsg) osf2fMessage;
                     if (msg.getChannelId() == channelId) {
@@ -46,6 +46,7 @@ import edu.washington.cs.oneswarm.f2f.chat.Chat;
 import edu.washington.cs.oneswarm.f2f.chat.ChatDAO;
 import edu.washington.cs.oneswarm.f2f.friends.FriendManager;
 import edu.washington.cs.oneswarm.f2f.messaging.OSF2FHashSearch;
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FHashSearchBatch;
 import edu.washington.cs.oneswarm.f2f.messaging.OSF2FHashSearchResp;
 import edu.washington.cs.oneswarm.f2f.messaging.OSF2FMessage;
 import edu.washington.cs.oneswarm.f2f.messaging.OSF2FMessageFactory;
@@ -644,6 +645,60 @@ public class OverlayManager {
         }
     }
 
+    /**
+     * Sends the searches in a batch. Each friend gets the searches that
+     * shouldForwardSearch allows, as one batch if the friend supports it and
+     * as separate hash searches if not. Like for single searches, searches
+     * that didn't go to anyone are sent again ignoring the randomness.
+     */
+    void sendHashSearchBatch(OSF2FHashSearchBatch batch, boolean skipQueue, boolean forceSend) {
+        long[] hashes = batch.getInfohashhashes();
+        List<OSF2FHashSearch> searches = batch.getSearches();
+        boolean[] sent = new boolean[hashes.length];
+        logger.finer("sending search batch of " + hashes.length + " to " + connections.size());
+        for (FriendConnection conn : connections.values()) {
+            int num = 0;
+            int[] toSend = new int[hashes.length];
+            for (int i = 0; i < hashes.length; i++) {
+                if (forceSend || shouldForwardSearch(hashes[i], conn)) {
+                    toSend[num++] = i;
+                    sent[i] = true;
+                    searchTimingsLogger.log(System.currentTimeMillis() + ", send_search, "
+                            + conn.getRemoteFriend().getNick() + ", "
+                            + searches.get(i).getSearchID() + ", " + hashes[i]);
+                }
+            }
+            if (num == 0) {
+                continue;
+            }
+            if (conn.hasHashSearchBatchSupport() && num > 1) {
+                long[] subset = new long[num];
+                for (int i = 0; i < num; i++) {
+                    subset[i] = hashes[toSend[i]];
+                }
+                conn.sendSearch(new OSF2FHashSearchBatch(batch.getVersion(), batch.getSearchID(),
+                        subset), skipQueue);
+            } else {
+                for (int i = 0; i < num; i++) {
+                    conn.sendSearch(searches.get(toSend[i]).clone(), skipQueue);
+                }
+            }
+        }
+        if (!forceSend) {
+            int unsent = 0;
+            long[] retry = new long[hashes.length];
+            for (int i = 0; i < hashes.length; i++) {
+                if (!sent[i]) {
+                    retry[unsent++] = hashes[i];
+                }
+            }
+            if (unsent > 0) {
+                sendHashSearchBatch(new OSF2FHashSearchBatch(batch.getVersion(),
+                        batch.getSearchID(), Arrays.copyOf(retry, unsent)), skipQueue, true);
+            }
+        }
+    }
+
     /**
      * to protect against colluding friends we are only forwarding searches with
      * 95% probability
@@ -780,6 +835,13 @@ public class OverlayManager {
                         + friendConnection.getRemoteFriend().getNick() + ", " + hs.getSearchID()
                         + ", " + hs.getInfohashhash() + ", "
                         + friendConnection.getRemoteIp().getHostAddress());
+            } else if (msg instanceof OSF2FHashSearchBatch) {
+                for (OSF2FHashSearch hs : ((OSF2FHashSearchBatch) msg).getSearches()) {
+                    searchTimingsLogger.log(System.currentTimeMillis() + ", search, "
+                            + friendConnection.getRemoteFriend().getNick() + ", "
+                            + hs.getSearchID() + ", " + hs.getInfohashhash() + ", "
+                            + friendConnection.getRemoteIp().getHostAddress());
+                }
             }
             searchManager.handleIncomingSearch(friendConnection, msg);
         }
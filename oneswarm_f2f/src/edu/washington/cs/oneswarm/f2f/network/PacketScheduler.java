@@ -0,0 +1,86 @@
+package edu.washington.cs.oneswarm.f2f.network;
+
+import edu.washington.cs.oneswarm.f2f.network.QueueManager.QueueBuckets;
+
+/**
+ * Decides which friend queue gets to hand its next packet to the network, and
+ * from which traffic class.
+ *
+ * All methods are called by the {@link QueueManager} while holding its
+ * scheduler lock, implementations don't need to do their own locking.
+ */
+interface PacketScheduler {
+
+    /**
+     * A friend connection queue as seen by the scheduler.
+     */
+    interface Source {
+        /**
+         * @return the number of bytes of the next packet queued in the given
+         *         class, or 0 if there is nothing queued (in which case the
+         *         source also considers itself unregistered for that class)
+         */
+        int getNextPacketBytes(QueueBuckets bucket);
+
+        /**
+         * @return false if the queue manager won't let this source send right
+         *         now, for example because it already has too much data in the
+         *         global queue
+         */
+        boolean canSend();
+
+        /**
+         * @return the relative share of this source compared to other sources
+         *         in the same class
+         */
+        double getSchedulingWeight();
+    }
+
+    public static class Selection {
+        final Source source;
+        final QueueBuckets bucket;
+
+        Selection(Source source, QueueBuckets bucket) {
+            this.source = source;
+            this.bucket = bucket;
+        }
+    }
+
+    /**
+     * The source has packets queued in the given class. Calling this for a
+     * source that is already active is a no-op.
+     */
+    void activate(Source source, QueueBuckets bucket);
+
+    /**
+     * Forget about the source in all classes.
+     */
+    void remove(Source source);
+
+    boolean isActive(Source source, QueueBuckets bucket);
+
+    int getActiveCount(QueueBuckets bucket);
+
+    /**
+     * @return the source and class that should send next, or null if no active
+     *         source can send right now
+     */
+    Selection next();
+
+    /**
+     * Report the outcome of the last selection.
+     *
+     * @param bytes
+     *            number of bytes handed to the network, 0 if nothing was sent
+     * @param stillActive
+     *            true if the source has more packets queued in this class
+     */
+    void sent(Selection selection, int bytes, boolean stillActive);
+
+    /**
+     * Set the relative share of a traffic class.
+     */
+    void setClassWeight(QueueBuckets bucket, int weight);
+
+    String getDescription();
+}
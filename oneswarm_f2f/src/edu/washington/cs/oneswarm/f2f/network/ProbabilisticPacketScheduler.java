@@ -0,0 +1,115 @@
+package edu.washington.cs.oneswarm.f2f.network;
+
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.Set;
+
+import edu.washington.cs.oneswarm.f2f.network.QueueManager.QueueBuckets;
+
+/**
+ * The original queue manager policy: for each packet pick a class at random
+ * (with probability proportional to the class weight) and send a packet from
+ * the friend queue at the head of that class, round robin within the class.
+ * If the head of the chosen class can't send the next class in the order
+ * TRANSPORT, FORWARD, CONTROL gets the packet instead.
+ */
+class ProbabilisticPacketScheduler implements PacketScheduler {
+
+    private static final QueueBuckets[] ORDER = { QueueBuckets.TRANSPORT, QueueBuckets.FORWARD,
+            QueueBuckets.CONTROL };
+
+    /**
+     * The friend queues of a class in round robin order, the set is for
+     * membership checks.
+     */
+    private static class ClassQueue {
+        final LinkedList<Source> queue = new LinkedList<Source>();
+        final Set<Source> members = new HashSet<Source>();
+    }
+
+    private final ClassQueue[] classes = new ClassQueue[QueueBuckets.values().length];
+
+    private final int[] weights = new int[QueueBuckets.values().length];
+
+    private final Random random = new Random();
+
+    ProbabilisticPacketScheduler() {
+        for (QueueBuckets b : QueueBuckets.values()) {
+            classes[b.ordinal()] = new ClassQueue();
+            weights[b.ordinal()] = 1;
+        }
+    }
+
+    public void activate(Source source, QueueBuckets bucket) {
+        ClassQueue c = classes[bucket.ordinal()];
+        if (c.members.add(source)) {
+            c.queue.offer(source);
+        }
+    }
+
+    public void remove(Source source) {
+        for (QueueBuckets b : QueueBuckets.values()) {
+            ClassQueue c = classes[b.ordinal()];
+            if (c.members.remove(source)) {
+                c.queue.remove(source);
+            }
+        }
+    }
+
+    public boolean isActive(Source source, QueueBuckets bucket) {
+        return classes[bucket.ordinal()].members.contains(source);
+    }
+
+    public int getActiveCount(QueueBuckets bucket) {
+        return classes[bucket.ordinal()].queue.size();
+    }
+
+    private boolean canSend(QueueBuckets bucket) {
+        Source head = classes[bucket.ordinal()].queue.peek();
+        return head != null && head.canSend();
+    }
+
+    public Selection next() {
+        if (!canSend(QueueBuckets.TRANSPORT) && !canSend(QueueBuckets.FORWARD)
+                && !canSend(QueueBuckets.CONTROL)) {
+            return null;
+        }
+        double totalWeight = 0;
+        for (QueueBuckets b : ORDER) {
+            totalWeight += weights[b.ordinal()];
+        }
+        while (true) {
+            double rand = random.nextDouble() * totalWeight;
+            double limit = 0;
+            for (QueueBuckets b : ORDER) {
+                limit += weights[b.ordinal()];
+                if (canSend(b) && rand < limit) {
+                    ClassQueue c = classes[b.ordinal()];
+                    Source source = c.queue.remove();
+                    c.members.remove(source);
+                    return new Selection(source, b);
+                }
+            }
+        }
+    }
+
+    public void sent(Selection selection, int bytes, boolean stillActive) {
+        if (stillActive) {
+            activate(selection.source, selection.bucket);
+        }
+    }
+
+    public void setClassWeight(QueueBuckets bucket, int weight) {
+        weights[bucket.ordinal()] = Math.max(1, weight);
+    }
+
+    public String getDescription() {
+        StringBuilder b = new StringBuilder("probabilistic:");
+        for (QueueBuckets bucket : ORDER) {
+            b.append(" " + bucket + "(w=" + weights[bucket.ordinal()] + " active="
+                    + classes[bucket.ordinal()].queue.size() + ")");
+        }
+        return b.toString();
+    }
+}
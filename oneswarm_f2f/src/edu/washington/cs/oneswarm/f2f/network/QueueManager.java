@@ -8,26 +8,33 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.gudy.azureus2.core3.config.COConfigurationManager;
+import org.gudy.azureus2.core3.config.ParameterListener;
+import org.gudy.azureus2.core3.util.Average;
 import org.gudy.azureus2.core3.util.Debug;
 
-import edu.washington.cs.oneswarm.f2f.BigFatLock;
 import edu.washington.cs.oneswarm.f2f.messaging.OSF2FMessage;
+import edu.washington.cs.oneswarm.f2f.metrics.Counter;
+import edu.washington.cs.oneswarm.f2f.metrics.Gauge;
+import edu.washington.cs.oneswarm.f2f.metrics.Histogram;
+import edu.washington.cs.oneswarm.f2f.metrics.MetricsRegistry;
 import edu.washington.cs.oneswarm.ui.gwt.BackendErrorLog;
 
 public class QueueManager {
 
     /*
-     * all calls that are modifying the queue should synchronize on this object
+     * all calls that use the scheduler should hold this lock. The friend
+     * connection queues have their own locks, which may be taken while
+     * holding this one but not the other way around
      */
-
-    private static BigFatLock lock = OverlayManager.lock;
+    private final ReentrantLock lock = new ReentrantLock();
     private static Logger logger = Logger.getLogger(QueueManager.class.getName());
 
     public static final int MAX_GLOBAL_QUEUE_LEN_MS = 200;
@@ -44,8 +51,6 @@ public class QueueManager {
 
     final static boolean QUEUE_LOCK_DEBUG = System.getProperty("oneswarm.queue.lock.debug") != null;
 
-    private final LinkedList<FriendConnectionQueue> forwards = new LinkedList<FriendConnectionQueue>();
-
     private int globalQueueLengthBytes = 0;
     private final SpeedManager globalSpeedManager;
     private long lastPacketSending = System.currentTimeMillis();
@@ -61,20 +66,15 @@ public class QueueManager {
     private final Map<FriendConnection, FriendConnectionQueue> queueManagers = Collections
             .synchronizedMap(new HashMap<FriendConnection, FriendConnectionQueue>());
 
-    private final LinkedList<FriendConnectionQueue> searches = new LinkedList<FriendConnectionQueue>();
-
     private int totalQueueDiffFixed = 0;
 
-    private final LinkedList<FriendConnectionQueue> transports = new LinkedList<FriendConnectionQueue>();
-
-    private final Random random = new Random();
-
-    private final static double PROB_SEARCH_TRAFFIC = 0.1;
-    private final static double PROB_FORWARD_TRAFFIC = 0.2;
+    /*
+     * f2f_queue_scheduler selects the policy: "drr" (default) or
+     * "probabilistic" for the old random class selection
+     */
+    private final PacketScheduler scheduler;
 
-    private final static double LIMIT_TRANSPORT_TRAFFIC = 1.0 - PROB_FORWARD_TRAFFIC
-            - PROB_SEARCH_TRAFFIC;
-    private final static double LIMIT_FORWARD_TRAFFIC = 1.0 - PROB_SEARCH_TRAFFIC;
+    private final ClassStats[] classStats = new ClassStats[QueueBuckets.values().length];
 
     /**
      * The maximum fraction of the global queue length
@@ -85,6 +85,30 @@ public class QueueManager {
     public QueueManager() {
         this.globalSpeedManager = new SpeedManager(this, true);
 
+        if ("probabilistic".equals(COConfigurationManager.getStringParameter(
+                "f2f_queue_scheduler", "drr"))) {
+            scheduler = new ProbabilisticPacketScheduler();
+        } else {
+            scheduler = new DeficitRoundRobinScheduler();
+        }
+        for (final QueueBuckets bucket : QueueBuckets.values()) {
+            classStats[bucket.ordinal()] = new ClassStats(bucket);
+            COConfigurationManager.addAndFireParameterListener(
+                    "f2f_queue_weight_" + bucket.name().toLowerCase(), new ParameterListener() {
+                        public void parameterChanged(String name) {
+                            int weight = COConfigurationManager.getIntParameter(name, 1);
+                            lock.lock();
+                            try {
+                                scheduler.setClassWeight(bucket, weight);
+                            } finally {
+                                lock.unlock();
+                            }
+                        }
+                    });
+        }
+        logger.info("queue scheduler: " + scheduler.getDescription());
+        registerMetrics();
+
         if (QUEUE_DEBUG_LOGGING) {
             logger.info("using queue.debug.logging");
         }
@@ -105,6 +129,40 @@ public class QueueManager {
         t.schedule(new QueueChecker(), 0, 60 * 1000);
     }
 
+    private void registerMetrics() {
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        metrics.register(new Gauge("f2f_queue_length_bytes",
+                "Bytes queued in all friend connection queues (approximate).") {
+            public double getValue() {
+                return globalQueueLengthBytes;
+            }
+        });
+        metrics.register(new Gauge("f2f_queue_can_queue",
+                "1 if the global queue accepts more packets, 0 if it is full.") {
+            public double getValue() {
+                return canQueuePacket() ? 1 : 0;
+            }
+        });
+        metrics.register(new Gauge("f2f_queue_friend_queues",
+                "Number of friend connections registered for queue handling.") {
+            public double getValue() {
+                return queueManagers.size();
+            }
+        });
+        metrics.register(new Gauge("f2f_queue_upload_speed_bytes",
+                "Current upload speed of the friend queues in bytes/s.") {
+            public double getValue() {
+                return globalSpeedManager.getCurrentUploadSpeed();
+            }
+        });
+        metrics.register(new Gauge("f2f_queue_drift_fixed_bytes",
+                "Total queue length accounting drift corrected by the queue checker.") {
+            public double getValue() {
+                return totalQueueDiffFixed;
+            }
+        });
+    }
+
     private boolean canQueuePacket() {
         if (globalQueueLengthBytes > MAX_GLOBAL_QUEUE_LEN_BYTES) {
             if (logger.isLoggable(Level.FINEST)) {
@@ -129,14 +187,14 @@ public class QueueManager {
     }
 
     void deregisterForQueueHandling(FriendConnection fc) {
-        FriendConnectionQueue queue;
-        lock.lock();
-        try {
-            queue = queueManagers.remove(fc);
-        } finally {
-            lock.unlock();
-        }
+        FriendConnectionQueue queue = queueManagers.remove(fc);
         if (queue != null) {
+            lock.lock();
+            try {
+                scheduler.remove(queue);
+            } finally {
+                lock.unlock();
+            }
             final List<OSF2FMessage> messagesStillInQueue = queue.close();
             for (OSF2FMessage message : messagesStillInQueue) {
                 globalQueueLengthBytes -= FriendConnectionQueue.getMessageLen(message);
@@ -154,8 +212,14 @@ public class QueueManager {
                 + " last_queued=" + (System.currentTimeMillis() - lastPacketSent) + " speed="
                 + globalSpeedManager.getCurrentUploadSpeed() + " total_drift="
                 + totalQueueDiffFixed + " last_min_drift=" + lastQueueDiff + " mem_freed="
-                + memFreed + "\nready to send: forwards=" + forwards.size() + " transports="
-                + transports.size() + " searches=" + searches.size());
+                + memFreed + "\nscheduler: " + getSchedulerDebug());
+        for (QueueBuckets bucket : QueueBuckets.values()) {
+            ClassStats c = classStats[bucket.ordinal()];
+            sb.append("\n" + bucket + ": packets=" + c.packets.get() + " bytes=" + c.bytes.get()
+                    + " rate="
+                    + getClassThroughput(bucket) + " B/s queue_latency="
+                    + getClassLatency(bucket) + " ms");
+        }
 
         // If we can't queue, include extra information which may be helpful
         // when debugging.
@@ -225,65 +289,29 @@ public class QueueManager {
 
     FriendConnectionQueue registerConnectionForQueueHandling(FriendConnection fc) {
         FriendConnectionQueue m = new FriendConnectionQueue(this, fc);
-        lock.lock();
-        try {
-            queueManagers.put(fc, m);
-        } finally {
-            lock.unlock();
-        }
+        queueManagers.put(fc, m);
         return m;
     }
 
-    void registerForForwardSelects(FriendConnectionQueue friendConnectionManager) {
-        if (logger.isLoggable(Level.FINEST)) {
-            logger.finest(friendConnectionManager + " registering for forward selects");
-        }
-        if (QUEUE_DEBUG_LOGGING) {
-            if (forwards.contains(friendConnectionManager)) {
-                Debug.out("tried to register forward, but forward is already there!!!!");
-            }
-        }
-        if (QueueManager.QUEUE_LOCK_DEBUG) {
-            if (!lock.isHeldByCurrentThread()) {
-                Debug.out("not holding queue manager lock!!!");
-            }
-        }
-        forwards.offer(friendConnectionManager);
-    }
-
-    void registerForSearchSelects(FriendConnectionQueue friendConnectionManager) {
-        if (logger.isLoggable(Level.FINEST)) {
-            logger.finest(friendConnectionManager + " registering for search selects");
-        }
-        if (QUEUE_DEBUG_LOGGING) {
-            if (searches.contains(friendConnectionManager)) {
-                Debug.out("tried to register for search selects, but already registered!!!!");
-            }
-        }
-        if (QueueManager.QUEUE_LOCK_DEBUG) {
-            if (!lock.isHeldByCurrentThread()) {
-                Debug.out("not holding queue manager lock!!!");
-            }
-        }
-        searches.offer(friendConnectionManager);
-    }
-
-    void registerForTransportSelects(FriendConnectionQueue friendConnectionManager) {
+    /**
+     * Called by a friend connection queue when it has traffic queued in the
+     * given class. Must be called without holding the friend queue lock.
+     */
+    void registerForSelects(FriendConnectionQueue friendConnectionManager, QueueBuckets bucket) {
         if (logger.isLoggable(Level.FINEST)) {
-            logger.finest(friendConnectionManager + " registering for transport selects");
+            logger.finest(friendConnectionManager + " registering for " + bucket + " selects");
         }
-        if (QUEUE_DEBUG_LOGGING) {
-            if (transports.contains(friendConnectionManager)) {
-                Debug.out("tried to register transport, but transport is already there!!!!");
-            }
-        }
-        if (QueueManager.QUEUE_LOCK_DEBUG) {
-            if (!lock.isHeldByCurrentThread()) {
-                Debug.out("not holding queue manager lock!!!");
+        lock.lock();
+        try {
+            if (QUEUE_DEBUG_LOGGING) {
+                if (scheduler.isActive(friendConnectionManager, bucket)) {
+                    Debug.out("tried to register for " + bucket + " selects, but already registered!!!!");
+                }
             }
+            scheduler.activate(friendConnectionManager, bucket);
+        } finally {
+            lock.unlock();
         }
-        transports.offer(friendConnectionManager);
-
     }
 
     /*
@@ -302,48 +330,26 @@ public class QueueManager {
         LinkedList<FriendConnectionQueue> toNotify = new LinkedList<FriendConnectionQueue>();
         lock.lock();
         try {
-            while (canQueuePacket()
-                    && (isFriendQueueAdmissible(transports.peek())
-                            || isFriendQueueAdmissible(forwards.peek()) || isFriendQueueAdmissible(searches
-                            .peek()))) {
-                double rand = random.nextDouble();
+            PacketScheduler.Selection selection;
+            while (canQueuePacket() && (selection = scheduler.next()) != null) {
                 lastPacketSending = System.currentTimeMillis();
                 logger.finest("packet sending triggered");
 
-                // ok, there is room to queue a packet
-                if (isFriendQueueAdmissible(transports.peek()) && rand < LIMIT_TRANSPORT_TRAFFIC) {
-                    // lets use round robin for now, remove the first and put it
-                    // last
-                    FriendConnectionQueue luckyFriendQueue = transports.remove();
-                    // tell it to send a packet
-                    boolean packetSent = luckyFriendQueue.sendQueuedTransportPacket();
-                    // if it has more, it will register itself for additional
-                    // selects
-                    if (packetSent) {
-                        packetsSent++;
-                        toNotify.add(luckyFriendQueue);
-                    }
-                } else if (isFriendQueueAdmissible(forwards.peek()) && rand < LIMIT_FORWARD_TRAFFIC) {
-                    FriendConnectionQueue luckyFriendQueue = forwards.remove();
-                    // tell it to send a packet
-                    boolean packetSent = luckyFriendQueue.sendQueuedForwardPacket();
-                    // if it has more, it will register itself for additional
-                    // selects
-                    if (packetSent) {
-                        packetsSent++;
-                        toNotify.add(luckyFriendQueue);
-                    }
-                } else if (isFriendQueueAdmissible(searches.peek())) {
-                    FriendConnectionQueue luckyFriendQueue = searches.remove();
-                    // tell it to send a packet
-                    boolean packetSent = luckyFriendQueue.sendQueuedSearchPacket();
-                    // if it has more, it will register itself for additional
-                    // selects
-                    if (packetSent) {
-                        packetsSent++;
-                        toNotify.add(luckyFriendQueue);
-                    }
+                FriendConnectionQueue luckyFriendQueue = (FriendConnectionQueue) selection.source;
+                // tell it to send a packet
+                int bytes = luckyFriendQueue.sendQueuedPacket(selection.bucket);
+                // if it has more it stays registered
+                scheduler.sent(selection, bytes,
+                        luckyFriendQueue.isRegisteredForSelects(selection.bucket));
+                if (bytes > 0 || luckyFriendQueue.hasReadyWaiters()) {
+                    toNotify.add(luckyFriendQueue);
                 }
+                if (bytes > 0) {
+                    packetsSent++;
+                    classStats[selection.bucket.ordinal()].packetSent(bytes,
+                            luckyFriendQueue.getLastPacketQueuedMs());
+                }
+
                 if (packetsSent > 0) {
                     lastPacketSent = System.currentTimeMillis();
                 }
@@ -375,7 +381,7 @@ public class QueueManager {
      */
     static boolean loggedOnce = false;
 
-    private boolean isFriendQueueAdmissible(FriendConnectionQueue friendQueue) {
+    boolean isFriendQueueAdmissible(FriendConnectionQueue friendQueue) {
         if (friendQueue == null) {
             return false;
         }
@@ -402,6 +408,76 @@ public class QueueManager {
         CONTROL, FORWARD, TRANSPORT;
     }
 
+    public String getSchedulerDebug() {
+        lock.lock();
+        try {
+            return scheduler.getDescription();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return bytes/s handed to the network from the given class
+     */
+    public long getClassThroughput(QueueBuckets bucket) {
+        return classStats[bucket.ordinal()].rate.getAverage();
+    }
+
+    /**
+     * @return the average time (ms) packets of the given class spent in the
+     *         friend queues before being handed to the network
+     */
+    public long getClassLatency(QueueBuckets bucket) {
+        ClassStats c = classStats[bucket.ordinal()];
+        double packetRate = c.packetRate.getDoubleAverage();
+        if (packetRate == 0) {
+            return 0;
+        }
+        return Math.round(c.latencySum.getDoubleAverage() / packetRate);
+    }
+
+    public long getClassPacketsSent(QueueBuckets bucket) {
+        return classStats[bucket.ordinal()].packets.get();
+    }
+
+    public long getClassBytesSent(QueueBuckets bucket) {
+        return classStats[bucket.ordinal()].bytes.get();
+    }
+
+    /*
+     * updated while holding the lock
+     */
+    private static class ClassStats {
+        private final Average rate = Average.getInstance(1000, 10);
+        // average latency over the last 10s is latencySum / packetRate
+        private final Average latencySum = Average.getInstance(1000, 10);
+        private final Average packetRate = Average.getInstance(1000, 10);
+        private final Counter packets;
+        private final Counter bytes;
+        private final Histogram latency;
+
+        ClassStats(QueueBuckets bucket) {
+            String c = bucket.name().toLowerCase();
+            MetricsRegistry metrics = MetricsRegistry.getInstance();
+            packets = metrics.counter("f2f_queue_packets_total",
+                    "Packets handed to the network, by traffic class.", "class", c);
+            bytes = metrics.counter("f2f_queue_bytes_total",
+                    "Bytes handed to the network, by traffic class.", "class", c);
+            latency = metrics.histogram("f2f_queue_latency_ms",
+                    "Time packets spent in the friend queues, by traffic class.", "class", c);
+        }
+
+        void packetSent(int bytes, long queuedMs) {
+            this.packets.inc();
+            this.bytes.add(bytes);
+            latency.record(queuedMs);
+            rate.addValue(bytes);
+            latencySum.addValue(queuedMs);
+            packetRate.addValue(1);
+        }
+    }
+
     /**
      * 
      * The per-friend connection queues are authoritative, and the global queue
@@ -429,6 +505,8 @@ public class QueueManager {
                     int totalQueueLen = 0;
                     for (FriendConnectionQueue q : queueManagers.values()) {
                         totalQueueLen += q.getTotalOutgoingQueueLengthBytes();
+                        // pick up changes to the per friend weights
+                        q.updateSchedulingWeight();
                     }
                     lastQueueDiff = globalQueueLengthBytes - totalQueueLen;
                     totalQueueDiffFixed += Math.abs(lastQueueDiff);
@@ -462,48 +540,16 @@ public class QueueManager {
                 if (System.currentTimeMillis() - lastPacketSent > 10 * 1000) {
                     lock.lock();
                     try {
-                        /*
-                         * transports
-                         */
-
-                        for (FriendConnectionQueue q : queueManagers.values()) {
-                            boolean reg = q.isRegisteredForForwardSelects();
-                            boolean contains = transports.contains(q);
-                            if (reg != contains) {
-                                Debug.out("transport registration inconsistency (fixed): reg="
-                                        + reg + " contains=" + contains);
-                                if (reg && !contains) {
-                                    transports.add(q);
-                                }
-                            }
-                        }
-                        /*
-                         * forwards
-                         */
-
-                        for (FriendConnectionQueue q : queueManagers.values()) {
-                            boolean reg = q.isRegisteredForForwardSelects();
-                            boolean contains = forwards.contains(q);
-                            if (reg != contains) {
-                                Debug.out("forward registration inconsistency (fixed): reg=" + reg
-                                        + " contains=" + contains);
-                                if (reg && !contains) {
-                                    forwards.add(q);
-                                }
-                            }
-                        }
-                        /*
-                         * searches
-                         */
-
                         for (FriendConnectionQueue q : queueManagers.values()) {
-                            boolean reg = q.isRegisteredForForwardSelects();
-                            boolean contains = searches.contains(q);
-                            if (reg != contains) {
-                                Debug.out("search registration inconsistency (fixed): reg=" + reg
-                                        + " contains=" + contains);
-                                if (reg && !contains) {
-                                    searches.add(q);
+                            for (QueueBuckets bucket : QueueBuckets.values()) {
+                                boolean reg = q.isRegisteredForSelects(bucket);
+                                boolean contains = scheduler.isActive(q, bucket);
+                                if (reg != contains) {
+                                    Debug.out(bucket + " registration inconsistency (fixed): reg="
+                                            + reg + " contains=" + contains);
+                                    if (reg && !contains) {
+                                        scheduler.activate(q, bucket);
+                                    }
                                 }
                             }
                         }
@@ -23,6 +23,10 @@ import java.util.zip.GZIPOutputStream;
 
 import org.gudy.azureus2.core3.util.SystemProperties;
 
+import edu.washington.cs.oneswarm.f2f.metrics.Counter;
+import edu.washington.cs.oneswarm.f2f.metrics.Gauge;
+import edu.washington.cs.oneswarm.f2f.metrics.MetricsRegistry;
+
 class RotatingLogger {
 
     private static Logger slogger = Logger.getLogger(RotatingLogger.class.getName());
@@ -30,6 +34,9 @@ class RotatingLogger {
 
     final String mLogName;
 
+    private final Counter linesWritten;
+    private final Counter rotations;
+
     public void log(String line) {
         if (slogger.isLoggable(Level.FINEST)) {
             queuedLines.add(line);
@@ -57,6 +64,7 @@ class RotatingLogger {
             logWriter = new BufferedWriter(new FileWriter(logFile, true));
             slogger.fine("rotating log, new file: " + logFile.getName());
         }
+        rotations.inc();
 
         /*
          * file rotated, lets gzip the old one
@@ -83,6 +91,17 @@ class RotatingLogger {
 
     public RotatingLogger(final String logname) {
         mLogName = logname;
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        linesWritten = metrics.counter("f2f_rotating_log_lines_total",
+                "Lines written to the log file, by log.", "log", logname);
+        rotations = metrics.counter("f2f_rotating_log_rotations_total",
+                "Log files started, by log.", "log", logname);
+        metrics.register(new Gauge("f2f_rotating_log_queued_lines",
+                "Lines waiting to be written, by log.", "log", logname) {
+            public double getValue() {
+                return queuedLines.size();
+            }
+        });
         Thread startLaterThread = new Thread(new Runnable() {
             public void run() {
                 try {
@@ -112,6 +131,7 @@ class RotatingLogger {
                                     if (line != null) {
                                         synchronized (RotatingLogger.this) {
                                             logWriter.append(line + "\n");
+                                            linesWritten.inc();
 
                                             if (lastFlush + 5000 < System.currentTimeMillis()) {
                                                 logWriter.flush();
@@ -0,0 +1,136 @@
+package edu.washington.cs.oneswarm.f2f.network;
+
+import edu.uw.cse.netlab.utils.BloomFilter;
+
+/**
+ * Bloom filter specialized for (searchId, valueId) pairs.
+ *
+ * Unlike {@link BloomFilter} this does not run a salted digest per hash
+ * function and does not allocate on insert/lookup. The pair is hashed once
+ * with a seeded 64 bit mixing function and the k probe positions are derived
+ * from the two 32 bit halves using double hashing (Kirsch-Mitzenmacher).
+ *
+ * Filters created with the same seed and size produce the same probe positions
+ * for a given pair, which allows {@link SearchManager.RotatingBloomFilter} to
+ * hash once and probe all of its buckets in a single pass.
+ *
+ * Not thread safe, callers must synchronize.
+ */
+public class SearchIdBloomFilter {
+
+    private final long[] bits;
+    private final int numBits;
+    private final int numHashes;
+    private final long seed;
+
+    private int objectsStored = 0;
+
+    public SearchIdBloomFilter(int numBits, int maxToStore, long seed) {
+        this.numBits = numBits;
+        this.bits = new long[(numBits + 63) >>> 6];
+        this.numHashes = computeHashes(numBits, maxToStore);
+        this.seed = seed;
+    }
+
+    public boolean contains(int searchId, int valueId) {
+        return containsHash(hash(seed, searchId, valueId));
+    }
+
+    /**
+     * Checks the filter using a hash previously computed with
+     * {@link #hash(long, int, int)} and this filter's seed.
+     */
+    boolean containsHash(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= numHashes; i++) {
+            if (!isSet(probe(h1, h2, i, numBits))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void insert(int searchId, int valueId) {
+        insertHash(hash(seed, searchId, valueId));
+    }
+
+    void insertHash(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        boolean alreadyThere = true;
+        for (int i = 1; i <= numHashes; i++) {
+            int bit = probe(h1, h2, i, numBits);
+            long mask = 1L << bit;
+            int word = bit >>> 6;
+            if ((bits[word] & mask) == 0) {
+                alreadyThere = false;
+                bits[word] |= mask;
+            }
+        }
+        if (!alreadyThere) {
+            objectsStored++;
+        }
+    }
+
+    boolean isSet(int bit) {
+        return (bits[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    public void clear() {
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = 0;
+        }
+        objectsStored = 0;
+    }
+
+    public int getUniqueObjectsStored() {
+        return objectsStored;
+    }
+
+    public double getPredictedFalsePositiveRate() {
+        return BloomFilter.getPredictedFalsePositiveRate(numBits, getUniqueObjectsStored());
+    }
+
+    public int getNumBits() {
+        return numBits;
+    }
+
+    public int getNumHashes() {
+        return numHashes;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Returns the i:th (1 based) probe position for the given hash halves.
+     */
+    static int probe(int h1, int h2, int i, int numBits) {
+        int combined = h1 + i * h2;
+        if (combined < 0) {
+            combined = ~combined;
+        }
+        return combined % numBits;
+    }
+
+    /**
+     * Seeded 64 bit hash of an int pair, the mixing steps are the murmur3
+     * finalizer.
+     */
+    static long hash(long seed, int searchId, int valueId) {
+        long h = (((long) searchId) << 32) | (valueId & 0xffffffffL);
+        h = (h ^ seed) * 0x9e3779b97f4a7c15L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    static int computeHashes(int numBits, int maxToStore) {
+        return (int) Math.ceil((Math.log(2) * ((double) numBits / (double) maxToStore)));
+    }
+}
@@ -2,7 +2,6 @@ package edu.washington.cs.oneswarm.f2f.network;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -36,7 +35,6 @@ import org.oneswarm.util.ReflectionUtils;
 
 import com.aelitis.azureus.core.impl.AzureusCoreImpl;
 
-import edu.uw.cse.netlab.utils.BloomFilter;
 import edu.washington.cs.oneswarm.f2f.BigFatLock;
 import edu.washington.cs.oneswarm.f2f.FileCollection;
 import edu.washington.cs.oneswarm.f2f.FileList;
@@ -48,6 +46,7 @@ import edu.washington.cs.oneswarm.f2f.TextSearchResult.TextSearchResponse;
 import edu.washington.cs.oneswarm.f2f.TextSearchResult.TextSearchResponseItem;
 import edu.washington.cs.oneswarm.f2f.messaging.OSF2FChannelReset;
 import edu.washington.cs.oneswarm.f2f.messaging.OSF2FHashSearch;
+import edu.washington.cs.oneswarm.f2f.messaging.OSF2FHashSearchBatch;
 import edu.washington.cs.oneswarm.f2f.messaging.OSF2FHashSearchResp;
 import edu.washington.cs.oneswarm.f2f.messaging.OSF2FMessage;
 import edu.washington.cs.oneswarm.f2f.messaging.OSF2FSearch;
@@ -55,6 +54,9 @@ import edu.washington.cs.oneswarm.f2f.messaging.OSF2FSearchCancel;
 import edu.washington.cs.oneswarm.f2f.messaging.OSF2FSearchResp;
 import edu.washington.cs.oneswarm.f2f.messaging.OSF2FTextSearch;
 import edu.washington.cs.oneswarm.f2f.messaging.OSF2FTextSearchResp;
+import edu.washington.cs.oneswarm.f2f.metrics.Counter;
+import edu.washington.cs.oneswarm.f2f.metrics.Gauge;
+import edu.washington.cs.oneswarm.f2f.metrics.MetricsRegistry;
 import edu.washington.cs.oneswarm.f2f.network.DelayedExecutorService.DelayedExecutionEntry;
 import edu.washington.cs.oneswarm.f2f.network.DelayedExecutorService.DelayedExecutor;
 import edu.washington.cs.oneswarm.f2f.network.FriendConnection.OverlayRegistrationError;
@@ -118,6 +120,14 @@ public class SearchManager {
     private int bloomSearchesBlockedPrev = 0;
     private int bloomSearchesSentCurr = 0;
     private int bloomSearchesSentPrev = 0;
+    // the curr/prev numbers above are reset when the filter rotates, these
+    // aren't
+    private final Counter bloomSearchesBlocked = MetricsRegistry.getInstance().counter(
+            "f2f_search_bloom_blocked_total",
+            "Searches not forwarded because they were in the recent search filter.");
+    private final Counter bloomSearchesSent = MetricsRegistry.getInstance().counter(
+            "f2f_search_bloom_sent_total",
+            "Searches that passed the recent search filter and were forwarded.");
 
     private final HashMap<Integer, Long> canceledSearches;
     private final DebugChannelSetupErrorStats debugChannelIdErrorSetupErrorStats = new DebugChannelSetupErrorStats();
@@ -170,7 +180,8 @@ public class SearchManager {
         this.delayedSearchQueue = new DelayedSearchQueue(mSearchDelay);
         COConfigurationManager.addAndFireParameterListeners(new String[] { "LAN Speed Enabled",
                 "Max Upload Speed KBs", "oneswarm.search.filter.keywords", "f2f_search_max_paths",
-                "f2f_search_forward_delay" }, new ParameterListener() {
+                "f2f_search_forward_delay", "f2f_search_bloom_single_pass" },
+                new ParameterListener() {
             @Override
             public void parameterChanged(String parameterName) {
                 includeLanUploads = !COConfigurationManager
@@ -194,6 +205,23 @@ public class SearchManager {
 
                 mSearchDelay = COConfigurationManager.getIntParameter("f2f_search_forward_delay");
                 delayedSearchQueue.setDelay(mSearchDelay);
+
+                recentSearches.setSinglePassLookup(COConfigurationManager
+                        .getBooleanParameter("f2f_search_bloom_single_pass"));
+            }
+        });
+
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        metrics.register(new Gauge("f2f_search_bloom_stored",
+                "Searches stored in the previous recent search filter.") {
+            public double getValue() {
+                return recentSearches.getPrevFilterNumElements();
+            }
+        });
+        metrics.register(new Gauge("f2f_search_bloom_false_positive_ratio",
+                "Estimated false positive rate of the previous recent search filter.") {
+            public double getValue() {
+                return recentSearches.getPrevFilterFalsePositiveEst();
             }
         });
     }
@@ -361,10 +389,12 @@ public class SearchManager {
             int valueID = search.getValueID();
             if (recentSearches.contains(searchID, valueID)) {
                 bloomSearchesBlockedCurr++;
+                bloomSearchesBlocked.inc();
                 logger.finest("not forwarding search, in recent filter. id: " + searchID);
                 return;
             }
             bloomSearchesSentCurr++;
+            bloomSearchesSent.inc();
             forwardedSearchNum++;
             if (logger.isLoggable(Level.FINEST)) {
                 logger.finest("forwarding search " + search.getDescription() + " id: " + searchID);
@@ -789,6 +819,10 @@ public class SearchManager {
     }
 
     public void handleIncomingSearch(FriendConnection source, OSF2FSearch msg) {
+        if (msg instanceof OSF2FHashSearchBatch) {
+            handleIncomingSearchBatch(source, (OSF2FHashSearchBatch) msg);
+            return;
+        }
         lock.lock();
         try {
             logger.finest("got search: " + msg.getDescription());
@@ -828,6 +862,36 @@ public class SearchManager {
 
     }
 
+    /**
+     * Handles each search in the batch like a separate hash search. Searches
+     * are forwarded one by one, the batch is only a way to send them.
+     */
+    private void handleIncomingSearchBatch(FriendConnection source, OSF2FHashSearchBatch msg) {
+        List<OSF2FHashSearch> searches = new ArrayList<OSF2FHashSearch>(msg.getNumSearches());
+        lock.lock();
+        try {
+            logger.finest("got search batch: " + msg.getDescription());
+            for (OSF2FHashSearch search : msg.getSearches()) {
+                if (search.getSearchID() == 0
+                        || forwardedSearches.containsKey(search.getSearchID())
+                        || sentSearches.containsKey(search.getSearchID())
+                        || delayedSearchQueue.isQueued(search)) {
+                    continue;
+                }
+                searches.add(search);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        boolean canForward = canForwardSearch();
+        for (OSF2FHashSearch search : searches) {
+            if (handleHashSearch(source, search) && canForward) {
+                delayedSearchQueue.add(source, search);
+            }
+        }
+    }
+
     public void handleIncomingSearchCancel(FriendConnection source, OSF2FSearchCancel msg) {
 
         boolean forward = false;
@@ -1136,6 +1200,53 @@ public class SearchManager {
         sendSearch(newSearchId, search, true, false);
     }
 
+    /**
+     * Searches for all the infohashes, sending them to friends in as few
+     * messages as possible.
+     */
+    public void sendHashSearches(List<byte[]> infoHashes) {
+        Set<Long> unique = new HashSet<Long>();
+        List<Long> hashes = new ArrayList<Long>(infoHashes.size());
+        for (byte[] infoHash : infoHashes) {
+            long metainfohashhash = filelistManager.getInfoHashhash(infoHash);
+            if (unique.add(metainfohashhash)) {
+                hashes.add(metainfohashhash);
+            }
+        }
+
+        for (int start = 0; start < hashes.size(); start += OSF2FHashSearchBatch.MAX_HASHES) {
+            int end = Math.min(hashes.size(), start + OSF2FHashSearchBatch.MAX_HASHES);
+            long[] batchHashes = new long[end - start];
+            for (int i = start; i < end; i++) {
+                batchHashes[i - start] = hashes.get(i);
+            }
+
+            OSF2FHashSearchBatch batch = null;
+            while (batch == null) {
+                // 0 is not a valid search id, pick one where none of the
+                // derived ids are 0
+                batch = new OSF2FHashSearchBatch(OSF2FMessage.CURRENT_VERSION, random.nextInt(),
+                        batchHashes);
+                for (OSF2FHashSearch search : batch.getSearches()) {
+                    if (search.getSearchID() == 0) {
+                        batch = null;
+                        break;
+                    }
+                }
+            }
+
+            lock.lock();
+            try {
+                for (OSF2FHashSearch search : batch.getSearches()) {
+                    sentSearches.put(search.getSearchID(), new SentSearch(search));
+                }
+            } finally {
+                lock.unlock();
+            }
+            overlayManager.sendHashSearchBatch(batch, true, false);
+        }
+    }
+
     public void sendServiceSearch(long searchKey, HashSearchListener listener) {
 
         int newSearchId = 0;
@@ -1590,76 +1701,113 @@ public class SearchManager {
         private static final int SIZE_IN_BITS = 10240 * 1024;
 
         private long currentFilterCreated;
-        private final LinkedList<BloomFilter> filters = new LinkedList<BloomFilter>();
+        /*
+         * newest filter first, all filters share the same seed so a lookup
+         * only has to hash the (searchId, value) pair once
+         */
+        private final SearchIdBloomFilter[] filters;
+        private int numFilters = 0;
         private final int maxBuckets;
         private final long maxFilterAge;
+        private final long seed = new Random().nextLong();
+
+        private volatile boolean singlePassLookup = true;
 
         public RotatingBloomFilter(long totalAge, int buckets) {
             this.maxBuckets = buckets;
             this.maxFilterAge = (totalAge / buckets) + 1;
+            this.filters = new SearchIdBloomFilter[buckets];
             rotate();
         }
 
         public boolean contains(int searchId, int searchValue) {
-            try {
-                byte[] bytes = bytesFromInts(searchId, searchValue);
-                for (BloomFilter f : filters) {
-                    if (f.test(bytes)) {
-                        return true;
-                    }
+            long hash = SearchIdBloomFilter.hash(seed, searchId, searchValue);
+            if (singlePassLookup) {
+                return containsSinglePass(hash);
+            }
+            for (int i = 0; i < numFilters; i++) {
+                if (filters[i].containsHash(hash)) {
+                    return true;
                 }
-            } catch (Exception e) {
-                Debug.out("Error when checking bloom filter, searchId=" + searchId + " value="
-                        + searchValue, e);
             }
             return false;
         }
 
+        /*
+         * Walk the probe sequence once and check every bucket at each probe
+         * position, keeping a bitmask of the buckets that still might contain
+         * the value.
+         */
+        private boolean containsSinglePass(long hash) {
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            int candidates = (1 << numFilters) - 1;
+            int numHashes = filters[0].getNumHashes();
+            for (int i = 1; i <= numHashes; i++) {
+                int bit = SearchIdBloomFilter.probe(h1, h2, i, SIZE_IN_BITS);
+                for (int j = 0; j < numFilters; j++) {
+                    if ((candidates & (1 << j)) != 0 && !filters[j].isSet(bit)) {
+                        candidates &= ~(1 << j);
+                    }
+                }
+                if (candidates == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
         public double getPrevFilterFalsePositiveEst() {
-            if (filters.size() > 1) {
-                return filters.get(1).getPredictedFalsePositiveRate();
+            if (numFilters > 1) {
+                return filters[1].getPredictedFalsePositiveRate();
             } else {
-                return filters.getFirst().getPredictedFalsePositiveRate();
+                return filters[0].getPredictedFalsePositiveRate();
             }
         }
 
         public int getPrevFilterNumElements() {
-            if (filters.size() > 1) {
-                return filters.get(1).getUniqueObjectsStored();
+            if (numFilters > 1) {
+                return filters[1].getUniqueObjectsStored();
             } else {
-                return filters.getFirst().getUniqueObjectsStored();
+                return filters[0].getUniqueObjectsStored();
             }
         }
 
         public void insert(int searchId, int searchValue) {
-            try {
-                byte[] bytes = bytesFromInts(searchId, searchValue);
-                filters.getFirst().insert(bytes);
-            } catch (Exception e) {
-                Debug.out("Error when inserting into bloom filter, searchId=" + searchId
-                        + " value=" + searchValue, e);
-            }
+            filters[0].insertHash(SearchIdBloomFilter.hash(seed, searchId, searchValue));
+        }
+
+        /**
+         * If set (the default), lookups check all buckets during a single walk
+         * of the probe sequence instead of testing the buckets one after
+         * another.
+         */
+        public void setSinglePassLookup(boolean singlePassLookup) {
+            this.singlePassLookup = singlePassLookup;
         }
 
-        private void rotate() {
+        void rotate() {
 
-            if (filters.size() > 0) {
-                BloomFilter prevFilter = filters.getFirst();
+            if (numFilters > 0) {
+                SearchIdBloomFilter prevFilter = filters[0];
                 String str = "Rotating bloom filter: objects="
                         + prevFilter.getUniqueObjectsStored() + " predicted false positive rate="
                         + (100 * prevFilter.getPredictedFalsePositiveRate() + "%");
                 logger.info(str);
             }
             currentFilterCreated = System.currentTimeMillis();
-            try {
-                filters.addFirst(new BloomFilter(SIZE_IN_BITS, OBJECTS_TO_STORE));
-            } catch (NoSuchAlgorithmException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            }
-            if (filters.size() > maxBuckets) {
-                filters.removeLast();
+
+            // reuse the oldest bucket instead of allocating a new one
+            SearchIdBloomFilter next;
+            if (numFilters == maxBuckets) {
+                next = filters[numFilters - 1];
+                next.clear();
+            } else {
+                next = new SearchIdBloomFilter(SIZE_IN_BITS, OBJECTS_TO_STORE, seed);
+                numFilters++;
             }
+            System.arraycopy(filters, 0, filters, 1, numFilters - 1);
+            filters[0] = next;
         }
 
         public boolean rotateIfNeeded() {
@@ -1671,21 +1819,6 @@ public class SearchManager {
             return false;
         }
 
-        private static byte[] bytesFromInts(int int1, int int2) {
-            byte[] bytes = new byte[8];
-
-            bytes[0] = (byte) (int1 >>> 24);
-            bytes[1] = (byte) (int1 >>> 16);
-            bytes[2] = (byte) (int1 >>> 8);
-            bytes[3] = (byte) int1;
-
-            bytes[4] = (byte) (int2 >>> 24);
-            bytes[5] = (byte) (int2 >>> 16);
-            bytes[6] = (byte) (int2 >>> 8);
-            bytes[7] = (byte) int2;
-            return bytes;
-        }
-
         public static void main(String[] args) {
             OSF2FMain.getSingelton();
             logger.setLevel(Level.FINE);
@@ -1693,13 +1826,13 @@ public class SearchManager {
 
             RotatingBloomFilter bf = new RotatingBloomFilter(60 * 1000, 4);
 
-            Set<String> inserts = new HashSet<String>();
+            Set<Long> inserts = new HashSet<Long>();
+            long start = System.currentTimeMillis();
             for (int j = 0; j < 8; j++) {
                 for (int i = 0; i < 20000; i++) {
                     int r1 = rand.nextInt();
                     int r2 = rand.nextInt();
-                    byte[] bytes = bytesFromInts(r1, r2);
-                    inserts.add(new String(Base64.encode(bytes)));
+                    inserts.add((((long) r1) << 32) | (r2 & 0xffffffffL));
                     bf.insert(r1, r2);
                     if (!bf.contains(r1, r2)) {
                         System.err.println("insert failes (does not contain it anymore)");
@@ -1712,18 +1845,17 @@ public class SearchManager {
             for (int i = 0; i < to_check; i++) {
                 int int1;
                 int int2;
-                byte[] bytes;
                 do {
                     int1 = rand.nextInt();
                     int2 = rand.nextInt();
-                    bytes = bytesFromInts(int1, int2);
-                } while (inserts.contains(new String(Base64.encode(bytes))) == true);
+                } while (inserts.contains((((long) int1) << 32) | (int2 & 0xffffffffL)) == true);
                 if (bf.contains(int1, int2) == true) {
                     fps++;
                 }
             }
 
-            System.out.println("false positive check, " + fps + "/" + to_check);
+            System.out.println("false positive check, " + fps + "/" + to_check + " took "
+                    + (System.currentTimeMillis() - start) + " ms");
 
             System.out.println("mem: "
                     + (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()));
@@ -1894,6 +2026,7 @@ public class SearchManager {
             int valueID = search.getValueID();
             if (recentSearches.contains(searchID, valueID)) {
                 bloomSearchesBlockedCurr++;
+                bloomSearchesBlocked.inc();
             }
         } finally {
             lock.unlock();
@@ -2,9 +2,8 @@ package edu.washington.cs.oneswarm.f2f.servicesharing;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.logging.Logger;
 
 import org.gudy.azureus2.core3.util.DirectByteBuffer;
@@ -12,97 +11,212 @@ import org.gudy.azureus2.core3.util.DirectByteBuffer;
 /**
  * Multiplexes a stream of data, and tracks what is in
  * transit across channels.
- * 
+ *
+ * Outstanding messages are kept in a sliding window indexed by sequence
+ * number, and each channel has a bitmap over the window slots of the
+ * messages in transit on it. Memory is bounded by the largest window seen
+ * (at most MAX_WINDOW messages), and acks are processed without allocating.
+ * Once MAX_WINDOW messages are outstanding no new sequence numbers are handed
+ * out until some of them are acked, see isFull().
+ *
  * @author willscott
- * 
+ *
  */
 public class MessageStreamMultiplexer {
     public final static Logger logger = Logger.getLogger(MessageStreamMultiplexer.class.getName());
-    private Integer next;
+
+    private static final int INITIAL_WINDOW = 64;
+    // No more than this many messages are outstanding at a time.
+    static final int MAX_WINDOW = 1 << 14;
+
     private final short flow;
-    private final HashMap<Integer, ServiceChannelEndpoint> channels;
 
-    private final HashMap<Integer, SequenceNumber> outstandingMessages;
-    private final HashMap<Integer, Set<SequenceNumber>> channelOutstanding;
+    // Sequence numbers [base, next) are tracked, the message with number n
+    // is in window[n & (window.length - 1)].
+    private int next;
+    private int base;
+    private SequenceNumber[] window;
+
+    // Registered channels, there are only a few so they are scanned.
+    private int channelCount;
+    private int[] channelIds;
+    private ServiceChannelEndpoint[] channelEndpoints;
+    private long[][] channelOutstanding;
+
     private final static byte ss = 44;
 
     public MessageStreamMultiplexer(short flow) {
-        this.channels = new HashMap<Integer, ServiceChannelEndpoint>();
-        this.outstandingMessages = new HashMap<Integer, SequenceNumber>();
-        this.channelOutstanding = new HashMap<Integer, Set<SequenceNumber>>();
         this.flow = flow;
-        next = 0;
+        this.next = 0;
+        this.base = 0;
+        this.window = new SequenceNumber[INITIAL_WINDOW];
+        this.channelCount = 0;
+        this.channelIds = new int[4];
+        this.channelEndpoints = new ServiceChannelEndpoint[4];
+        this.channelOutstanding = new long[4][];
     }
 
-    public void addChannel(ServiceChannelEndpoint s) {
-        this.channels.put(s.getChannelId(), s);
-        this.channelOutstanding.put(s.getChannelId(), new HashSet<SequenceNumber>());
+    public synchronized void addChannel(ServiceChannelEndpoint s) {
+        int index = indexOf(s.getChannelId());
+        if (index >= 0) {
+            channelEndpoints[index] = s;
+            return;
+        }
+        if (channelCount == channelIds.length) {
+            int size = channelIds.length * 2;
+            int[] ids = new int[size];
+            System.arraycopy(channelIds, 0, ids, 0, channelCount);
+            channelIds = ids;
+            ServiceChannelEndpoint[] endpoints = new ServiceChannelEndpoint[size];
+            System.arraycopy(channelEndpoints, 0, endpoints, 0, channelCount);
+            channelEndpoints = endpoints;
+            long[][] bitmaps = new long[size][];
+            System.arraycopy(channelOutstanding, 0, bitmaps, 0, channelCount);
+            channelOutstanding = bitmaps;
+        }
+        channelIds[channelCount] = s.getChannelId();
+        channelEndpoints[channelCount] = s;
+        channelOutstanding[channelCount] = new long[window.length >> 6];
+        channelCount++;
     }
 
     public int onAck(OSF2FServiceDataMsg message) {
         // Parse acknowledged messages
+        int acked = ack(message.getSequenceNumber());
         DirectByteBuffer payload = message.getPayload();
-        HashSet<SequenceNumber> numbers = new HashSet<SequenceNumber>();
-        ArrayList<Integer> retransmissions = new ArrayList<Integer>();
-        SequenceNumber s = outstandingMessages.get(message.getSequenceNumber());
-        if (s != null) {
-            numbers.add(s);
-        } else {
-            retransmissions.add(message.getSequenceNumber());
-        }
-        while (payload.remaining(ss) > 0) {
-            int num = payload.getInt(ss);
-            s = outstandingMessages.get(num);
-            if (s != null) {
-                numbers.add(s);
-            } else {
-                retransmissions.add(num);
+        if (payload != null) {
+            while (payload.remaining(ss) > 0) {
+                acked += ack(payload.getInt(ss));
             }
         }
+        return acked;
+    }
 
-        for (SequenceNumber seq : numbers) {
-            seq.ack();
-            for (Integer channelId : seq.getChannels()) {
-                ServiceChannelEndpoint sce = this.channels.get(channelId);
-                if (sce == null) {
-                    seq.removeChannel(channelId);
-                } else if (sce.forgetMessage(seq)) {
-                    Set<SequenceNumber> olist = channelOutstanding.get(channelId);
-                    if (olist != null) {
-                        olist.remove(seq);
-                    }
-                    seq.removeChannel(channelId);
-                }
-            }
-            if (seq.getChannels().size() == 0) {
-                outstandingMessages.remove(seq);
+    /**
+     * Marks a message as acked, stops tracking it and tells the channels it
+     * was sent on to forget it.
+     *
+     * @return 1 if the message was outstanding, 0 otherwise.
+     */
+    private int ack(int num) {
+        SequenceNumber seq;
+        synchronized (this) {
+            seq = get(num);
+            if (seq == null) {
+                logger.info("Non outstanding packet acked: " + num);
+                return 0;
             }
+            seq.ack();
+            release(num);
         }
-        for (Integer num : retransmissions) {
-            logger.info("Non outstanding packet acked: " + num);
+        // The endpoints take their own locks (and may call back into us when
+        // they give up on a channel), so they are told outside of ours.
+        for (int i = 0; i < seq.getChannelCount(); i++) {
+            ServiceChannelEndpoint sce = getEndpoint(seq.getChannel(i));
+            if (sce != null) {
+                sce.forgetMessage(seq);
+            }
         }
-        return numbers.size();
+        return 1;
     }
 
-    public SequenceNumber nextMsg() {
+    /**
+     * @return The number for the next message, or null if MAX_WINDOW messages
+     *         are outstanding. Dropping the oldest one instead would lose its
+     *         data, so the caller has to wait for acks or give up on the flow.
+     */
+    public synchronized SequenceNumber nextMsg() {
+        if (next - base == window.length) {
+            if (window.length == MAX_WINDOW) {
+                return null;
+            }
+            grow();
+        }
         int num = next++;
         SequenceNumber n = new SequenceNumber(num, flow);
-        outstandingMessages.put(num, n);
+        window[num & (window.length - 1)] = n;
         return n;
     }
 
-    public void sendMsg(SequenceNumber msg, ServiceChannelEndpoint channel) {
+    /**
+     * Stops tracking all outstanding messages and has the channels they were
+     * sent on drop them without retransmitting, for when the flow is reset.
+     *
+     * @return The number of messages dropped.
+     */
+    public int dropAll() {
+        List<SequenceNumber> dropped = new ArrayList<SequenceNumber>();
+        synchronized (this) {
+            for (int n = base; n != next; n++) {
+                SequenceNumber seq = window[n & (window.length - 1)];
+                if (seq != null) {
+                    dropped.add(seq);
+                    window[n & (window.length - 1)] = null;
+                }
+            }
+            base = next;
+            for (int i = 0; i < channelCount; i++) {
+                channelOutstanding[i] = new long[window.length >> 6];
+            }
+        }
+        for (SequenceNumber seq : dropped) {
+            for (int i = 0; i < seq.getChannelCount(); i++) {
+                ServiceChannelEndpoint sce = getEndpoint(seq.getChannel(i));
+                if (sce != null) {
+                    sce.dropMessage(seq);
+                }
+            }
+        }
+        return dropped.size();
+    }
+
+    /**
+     * @return Whether nextMsg() would fail because MAX_WINDOW messages are
+     *         outstanding.
+     */
+    public synchronized boolean isFull() {
+        return next - base == MAX_WINDOW;
+    }
+
+    public synchronized void sendMsg(SequenceNumber msg, ServiceChannelEndpoint channel) {
         int channelId = channel.getChannelId();
         msg.addChannel(channelId);
-        channelOutstanding.get(channelId).add(msg);
+        int index = indexOf(channelId);
+        if (index >= 0 && get(msg.getNum()) == msg) {
+            int slot = msg.getNum() & (window.length - 1);
+            channelOutstanding[index][slot >> 6] |= 1L << slot;
+        }
     }
 
-    public boolean hasOutstanding(ServiceChannelEndpoint channel) {
-        return channelOutstanding.containsKey(channel.getChannelId());
+    public synchronized boolean hasOutstanding(ServiceChannelEndpoint channel) {
+        int index = indexOf(channel.getChannelId());
+        if (index < 0) {
+            return false;
+        }
+        for (long word : channelOutstanding[index]) {
+            if (word != 0) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public Map<SequenceNumber, DirectByteBuffer> getOutstanding(final ServiceChannelEndpoint channel) {
-        Set<SequenceNumber> outstanding = channelOutstanding.get(channel.getChannelId());
+        List<SequenceNumber> outstanding = new ArrayList<SequenceNumber>();
+        synchronized (this) {
+            int index = indexOf(channel.getChannelId());
+            if (index >= 0) {
+                long[] bitmap = channelOutstanding[index];
+                for (int i = 0; i < bitmap.length; i++) {
+                    long word = bitmap[i];
+                    while (word != 0) {
+                        int slot = (i << 6) + Long.numberOfTrailingZeros(word);
+                        word &= word - 1;
+                        outstanding.add(window[slot]);
+                    }
+                }
+            }
+        }
         HashMap<SequenceNumber, DirectByteBuffer> mapping = new HashMap<SequenceNumber, DirectByteBuffer>();
         for (SequenceNumber s : outstanding) {
             DirectByteBuffer msg = channel.getMessage(s);
@@ -113,15 +227,101 @@ public class MessageStreamMultiplexer {
         return mapping;
     }
 
-    public void removeChannel(ServiceChannelEndpoint channel) {
+    public synchronized void removeChannel(ServiceChannelEndpoint channel) {
         int channelId = channel.getChannelId();
-        channels.remove(channelId);
-        Set<SequenceNumber> inFlight = channelOutstanding.get(channelId);
-        if (inFlight != null) {
-            for (SequenceNumber s : inFlight) {
-                s.removeChannel(channelId);
+        int index = indexOf(channelId);
+        if (index < 0) {
+            return;
+        }
+        long[] bitmap = channelOutstanding[index];
+        for (int i = 0; i < bitmap.length; i++) {
+            long word = bitmap[i];
+            while (word != 0) {
+                int slot = (i << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+                window[slot].removeChannel(channelId);
             }
-            channelOutstanding.remove(channelId);
         }
+        int last = --channelCount;
+        channelIds[index] = channelIds[last];
+        channelEndpoints[index] = channelEndpoints[last];
+        channelOutstanding[index] = channelOutstanding[last];
+        channelEndpoints[last] = null;
+        channelOutstanding[last] = null;
+    }
+
+    /**
+     * @return The number of messages currently tracked.
+     */
+    synchronized int getTrackedCount() {
+        int count = 0;
+        for (int n = base; n != next; n++) {
+            if (window[n & (window.length - 1)] != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private SequenceNumber get(int num) {
+        // Differences rather than comparisons so wrap around works.
+        if (num - base < 0 || num - next >= 0) {
+            return null;
+        }
+        SequenceNumber seq = window[num & (window.length - 1)];
+        if (seq == null || seq.getNum() != num) {
+            return null;
+        }
+        return seq;
+    }
+
+    private void release(int num) {
+        int slot = num & (window.length - 1);
+        window[slot] = null;
+        int word = slot >> 6;
+        long mask = ~(1L << slot);
+        for (int i = 0; i < channelCount; i++) {
+            channelOutstanding[i][word] &= mask;
+        }
+        while (base != next && window[base & (window.length - 1)] == null) {
+            base++;
+        }
+    }
+
+    private void grow() {
+        SequenceNumber[] grown = new SequenceNumber[window.length * 2];
+        for (int n = base; n != next; n++) {
+            grown[n & (grown.length - 1)] = window[n & (window.length - 1)];
+        }
+        long[][] bitmaps = new long[channelOutstanding.length][];
+        for (int i = 0; i < channelCount; i++) {
+            bitmaps[i] = new long[grown.length >> 6];
+            long[] old = channelOutstanding[i];
+            for (int j = 0; j < old.length; j++) {
+                long word = old[j];
+                while (word != 0) {
+                    int slot = (j << 6) + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                    int newSlot = window[slot].getNum() & (grown.length - 1);
+                    bitmaps[i][newSlot >> 6] |= 1L << newSlot;
+                }
+            }
+        }
+        window = grown;
+        channelOutstanding = bitmaps;
+    }
+
+    private int indexOf(int channelId) {
+        for (int i = 0; i < channelCount; i++) {
+            if (channelIds[i] == channelId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private synchronized ServiceChannelEndpoint getEndpoint(int channelId) {
+        int index = indexOf(channelId);
+        return index < 0 ? null : channelEndpoints[index];
     }
 }
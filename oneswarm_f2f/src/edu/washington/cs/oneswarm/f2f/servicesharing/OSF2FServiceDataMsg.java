@@ -1,5 +1,7 @@
 package edu.washington.cs.oneswarm.f2f.servicesharing;
 
+import java.nio.ByteBuffer;
+
 import org.gudy.azureus2.core3.util.DirectByteBuffer;
 import org.gudy.azureus2.core3.util.DirectByteBufferPool;
 
@@ -31,6 +33,8 @@ public class OSF2FServiceDataMsg extends OSF2FChannelDataMsg {
     private static final byte ss = 1;
     // with no options: 1 word channel, 3 word header.
     public static final int BASE_LENGTH = 16;
+    // offset of the window in the service header
+    private static final int WINDOW_OFFSET = 8;
 
     public OSF2FServiceDataMsg(byte _version, int channelID, int windowSize, int sequenceNumber, short subchannel,
             int[] options, DirectByteBuffer data) {
@@ -157,6 +161,25 @@ public class OSF2FServiceDataMsg extends OSF2FChannelDataMsg {
                 (byte) (control & 0x0f));
     }
 
+    /**
+     * Replaces the window of a service message that is still a plain channel
+     * message (see fromChannelMessage()) directly in its payload.
+     * 
+     * @return the window the message had
+     */
+    public static int exchangeWindow(OSF2FChannelDataMsg msg, int window) throws MessageException {
+        checkIfServiceMessage(msg);
+        DirectByteBuffer payload = msg.getPayload();
+        if (payload.remaining(SS_MSG) < BASE_LENGTH - OSF2FChannelDataMsg.CHANNEL_ID_LEN) {
+            throw new MessageException("Not a Service Message - short Service Header");
+        }
+        ByteBuffer buffer = payload.getBuffer(SS_MSG);
+        int at = buffer.position() + WINDOW_OFFSET;
+        int old = buffer.getInt(at);
+        buffer.putInt(at, window);
+        return old;
+    }
+
     private static void checkIfServiceMessage(OSF2FChannelDataMsg msg) throws MessageException {
         DirectByteBuffer payload = msg.getPayload();
         if (payload.remaining(SS_MSG) < 8) {
@@ -1,9 +1,5 @@
 package edu.washington.cs.oneswarm.f2f.servicesharing;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-
 /**
  * A sequence number for a service packet.
  * If Erasure coding is used, logic will be needed at this level to support
@@ -17,18 +13,27 @@ import java.util.List;
 class SequenceNumber {
     private final int number;
     private final short flow;
-    private final List<Integer> channels;
-    private boolean acked;
+    // Ids of the channels the message is in transit on, usually just one.
+    private int[] channels = new int[1];
+    private int channelCount = 0;
+    private volatile boolean acked;
 
     protected SequenceNumber(int n, short flow) {
         this.number = n;
         this.flow = flow;
-        this.channels = Collections.synchronizedList(new ArrayList<Integer>());
         this.acked = false;
     }
 
-    public void addChannel(int channelId) {
-        channels.add(new Integer(channelId));
+    public synchronized void addChannel(int channelId) {
+        if (hasChannel(channelId)) {
+            return;
+        }
+        if (channelCount == channels.length) {
+            int[] grown = new int[channels.length * 2];
+            System.arraycopy(channels, 0, grown, 0, channelCount);
+            channels = grown;
+        }
+        channels[channelCount++] = channelId;
     }
 
     public int getNum() {
@@ -43,12 +48,37 @@ class SequenceNumber {
         this.acked = true;
     }
 
-    public List<Integer> getChannels() {
-        return new ArrayList<Integer>(channels);
+    public synchronized boolean hasChannel(int channelId) {
+        for (int i = 0; i < channelCount; i++) {
+            if (channels[i] == channelId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized int getChannelCount() {
+        return channelCount;
+    }
+
+    /**
+     * @return The id of the index'th channel the message was sent on, or -1
+     *         if there are fewer channels.
+     */
+    public synchronized int getChannel(int index) {
+        if (index >= channelCount) {
+            return -1;
+        }
+        return channels[index];
     }
 
-    public void removeChannel(int channelId) {
-        this.channels.remove(new Integer(channelId));
+    public synchronized void removeChannel(int channelId) {
+        for (int i = 0; i < channelCount; i++) {
+            if (channels[i] == channelId) {
+                channels[i] = channels[--channelCount];
+                return;
+            }
+        }
     }
 
     public short getFlow() {
@@ -366,6 +366,20 @@ public class ServiceChannelEndpoint extends OverlayEndpoint {
         return true;
     }
 
+    /**
+     * Stops retransmitting a message that will never be acked, without
+     * treating it as delivered.
+     */
+    public void dropMessage(SequenceNumber num) {
+        synchronized (sentMessages) {
+            sentMessage msg = this.sentMessages.remove(num);
+            if (msg != null) {
+                msg.cancel();
+                this.outstandingBytes -= msg.length;
+            }
+        }
+    }
+
     @Override
     protected boolean isService() {
         return true;
@@ -231,8 +231,12 @@ public class ServiceConnection implements ServiceChannelEndpointDelegate {
         this.networkChannels.clear();
         if (openChannels.size() > 0 && !networkChannelEOF) {
             // Send RST Packet.
-            openChannels.get(0).writeMessage(mmt.nextMsg(), null,
-                    FEATURES.contains(ServiceFeatures.UDP));
+            SequenceNumber rst = mmt.nextMsg();
+            if (rst != null) {
+                openChannels.get(0).writeMessage(rst, null, FEATURES.contains(ServiceFeatures.UDP));
+            } else {
+                logger.warning("Not sending RST, too many unacknowledged messages.");
+            }
         }
         for (ServiceChannelEndpoint conn : channels) {
             conn.removeDelegate(this);
@@ -475,6 +479,10 @@ public class ServiceConnection implements ServiceChannelEndpointDelegate {
     }
 
     private int getAvailableBytes() {
+        // Stop reading from the service until the remote end catches up.
+        if (mmt.isFull()) {
+            return 0;
+        }
         ChannelBufferInfo b = new ChannelBufferInfo();
         getAvailableChannels(null, b);
         if (b.replication == 0) {
@@ -512,7 +520,7 @@ public class ServiceConnection implements ServiceChannelEndpointDelegate {
                 }
 
                 // Don't resend on an active channel.
-                if (msgId != null && msgId.getChannels().contains(new Integer(c.getChannelId()))) {
+                if (msgId != null && msgId.hasChannel(c.getChannelId())) {
                     continue;
                 }
 
@@ -550,7 +558,7 @@ public class ServiceConnection implements ServiceChannelEndpointDelegate {
                 float replicationFactor = (float) (b.capacity * 1.0 / b.potential);
                 int replicas = (int) (replicationFactor * channels.size());
                 if (msgId != null) {
-                    replicas -= msgId.getChannels().size();
+                    replicas -= msgId.getChannelCount();
                 }
                 if (replicas > channels.size()) {
                     replicas = channels.size();
@@ -595,6 +603,14 @@ public class ServiceConnection implements ServiceChannelEndpointDelegate {
 
         if (msgId == null) {
             msgId = mmt.nextMsg();
+            if (msgId == null) {
+                // Only happens if the service got ahead of the rate handler.
+                logger.warning("Resetting flow, dropping " + mmt.dropAll()
+                        + " unacknowledged messages.");
+                close("too many unacknowledged messages");
+                msg.returnToPool();
+                return false;
+            }
         }
         ArrayList<DirectByteBuffer> msgcpys = new ArrayList<DirectByteBuffer>();
         msgcpys.add(msg);
@@ -1,5 +1,8 @@
 package edu.washington.cs.oneswarm.f2f.servicesharing;
 
+import edu.washington.cs.oneswarm.f2f.metrics.Counter;
+import edu.washington.cs.oneswarm.f2f.metrics.MetricsRegistry;
+
 public class ServiceStatsManager {
     // Singleton.
     private static final ServiceStatsManager instance = new ServiceStatsManager();
@@ -9,9 +12,13 @@ public class ServiceStatsManager {
     }
     
     private long retransmits = 0;
+    // getRetransmits() resets the count above, this one keeps going
+    private final Counter retransmitsTotal = MetricsRegistry.getInstance().counter(
+            "service_retransmits_total", "Service channel messages retransmitted.");
 
     public synchronized void onRetransmit() {
         this.retransmits += 1;
+        retransmitsTotal.inc();
     }
     
     public synchronized long getRetransmits() {
@@ -1,9 +1,16 @@
 package edu.washington.cs.oneswarm.f2f.network;
 
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import junit.framework.TestCase;
+import edu.washington.cs.oneswarm.f2f.network.DelayedExecutorService.DelayedExecutionEntry;
 import edu.washington.cs.oneswarm.f2f.network.DelayedExecutorService.DelayedExecutor;
 
 public class DelayedExecutorServiceTest extends TestCase {
@@ -70,4 +77,55 @@ public class DelayedExecutorServiceTest extends TestCase {
         }
 
     }
+
+    public void testVariableDelayOrder() throws InterruptedException {
+        final int TOTAL_NUM = 1000;
+        final ConcurrentLinkedQueue<Long> executeAtOrder = new ConcurrentLinkedQueue<Long>();
+        // failures inside the tasks are swallowed by the executor
+        final AtomicReference<String> earlyExecution = new AtomicReference<String>();
+        final CountDownLatch done = new CountDownLatch(TOTAL_NUM);
+        final Random random = new Random(1);
+
+        DelayedExecutor variableDelayExecutor = DelayedExecutorService.getInstance()
+                .getVariableDelayExecutor();
+        for (int i = 0; i < TOTAL_NUM; i++) {
+            final long delay = 1 + random.nextInt(2000);
+            final long executeAt = System.currentTimeMillis() + delay;
+            TimerTask task = new TimerTask() {
+                @Override
+                public void run() {
+                    long now = System.currentTimeMillis();
+                    if (now < executeAt) {
+                        earlyExecution.compareAndSet(null, "ran at " + now + ", deadline "
+                                + executeAt);
+                    }
+                    executeAtOrder.add(executeAt);
+                    done.countDown();
+                }
+            };
+            /*
+             * queue(delay, task) reads the clock again, queue the deadline the
+             * task checks against
+             */
+            List<DelayedExecutionEntry> batch = new LinkedList<DelayedExecutionEntry>();
+            batch.add(new DelayedExecutionEntry(executeAt, 0, task));
+            variableDelayExecutor.queue(batch);
+        }
+
+        assertTrue("tasks didn't run", done.await(10, TimeUnit.SECONDS));
+        assertNull(earlyExecution.get());
+        assertEquals(TOTAL_NUM, executeAtOrder.size());
+        while (!variableDelayExecutor.isEmpty()) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, DelayedExecutorService.getInstance().getQueueDepth());
+
+        long prev = -1;
+        for (Long l : executeAtOrder) {
+            if (l < prev) {
+                fail("order error");
+            }
+            prev = l;
+        }
+    }
 }
@@ -11,6 +11,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
@@ -85,6 +86,7 @@ import com.aelitis.azureus.plugins.dht.DHTPluginOperationListener;
 import com.aelitis.azureus.plugins.dht.DHTPluginValue;
 import com.google.gwt.dev.util.Pair;
 import com.google.gwt.user.client.rpc.IncompatibleRemoteServiceException;
+import com.google.gwt.user.client.rpc.RpcTokenException;
 import com.google.gwt.user.client.rpc.SerializationException;
 import com.google.gwt.user.server.rpc.RPC;
 import com.google.gwt.user.server.rpc.RPCRequest;
@@ -176,94 +178,76 @@ public class OneSwarmUIServiceImpl extends RemoteServiceServlet implements OneSw
     private boolean firstRun = true;
     private boolean recentchanges = false;
 
-    private final boolean LOG_REQUEST_TIMES = false;
+    private final RpcStats rpcStats = new RpcStats();
 
-    static class RpcProfiling implements Comparable<RpcProfiling> {
-        long totalTime;
-        long totalCalls;
-        final String method;
-        LinkedList<Long> last1000calls = new LinkedList<Long>();
-        static final int HISTORY_LEN = 1000;
-
-        private RpcProfiling(String method) {
-            super();
-            this.method = method;
-        }
-
-        public double getAvgCallTime() {
-            return totalTime / (double) totalCalls;
-        }
-
-        public void addEntry(long callTime) {
-            totalCalls++;
-            totalTime += callTime;
-
-            last1000calls.addFirst(callTime);
-            if (last1000calls.size() > HISTORY_LEN) {
-                last1000calls.removeLast();
-            }
-        }
-
-        public long getMedianTime() {
-            if (last1000calls.size() < 1) {
-                return -1;
-            } else {
-                ArrayList<Long> toSort = new ArrayList<Long>(last1000calls);
-                Collections.sort(toSort);
-                return toSort.get(toSort.size() / 2);
-            }
-        }
-
-        @Override
-        public String toString() {
-            return method + " calls=" + totalCalls + " callTime=" + totalTime + " avg="
-                    + getAvgCallTime() + " median=" + getMedianTime();
-        }
-
-        @Override
-        public int compareTo(RpcProfiling o) {
-            if (o.totalTime < totalTime) {
-                return -1;
-            } else if (o.totalTime == totalTime) {
-                return 0;
-            } else {
-                return 1;
-            }
-        }
-    }
-
-    private final HashMap<String, RpcProfiling> rpcProfilingMap = new HashMap<String, RpcProfiling>();
-
-    private void updateProfileInfo(String method, long time) {
-        synchronized (rpcProfilingMap) {
-            RpcProfiling p = rpcProfilingMap.get(method);
-            if (p == null) {
-                p = new RpcProfiling(method);
-                rpcProfilingMap.put(method, p);
-            }
-            p.addEntry(time);
-        }
+    public RpcStats getRpcStats() {
+        return rpcStats;
     }
 
+    /**
+     * Same as the default implementation (of GWT 2.4), but times the service
+     * method and the (de)serialization separately for the rpc stats.
+     */
     @Override
     public String processCall(String payload) throws SerializationException {
-        if (!LOG_REQUEST_TIMES) {
-            return super.processCall(payload);
-        } else {
+        // First, check for possible XSRF situation
+        checkPermutationStrongName();
+
+        long startTime = System.nanoTime();
+        String methodName = "unknown";
+        long methodTime = 0;
+        boolean failed = false;
+        String response = null;
+        try {
+            RPCRequest rpcRequest = RPC.decodeRequest(payload, this.getClass(), this);
+            onAfterRequestDeserialized(rpcRequest);
+            Method method = rpcRequest.getMethod();
+            methodName = method.getName();
+
+            long methodStart = System.nanoTime();
+            Object result = null;
+            Throwable failure = null;
             try {
-                long startTime = System.currentTimeMillis();
-                RPCRequest rpcRequest = RPC.decodeRequest(payload, this.getClass(), this);
-                onAfterRequestDeserialized(rpcRequest);
-                Method method = rpcRequest.getMethod();
-                String response = RPC.invokeAndEncodeResponse(this, method,
-                        rpcRequest.getParameters(), rpcRequest.getSerializationPolicy());
-                updateProfileInfo(method.getName(), System.currentTimeMillis() - startTime);
-                return response;
-            } catch (IncompatibleRemoteServiceException ex) {
-                log("An IncompatibleRemoteServiceException was thrown while processing this call.",
-                        ex);
-                return RPC.encodeResponseForFailure(null, ex);
-            }
+                result = method.invoke(this, rpcRequest.getParameters());
+            } catch (IllegalAccessException e) {
+                SecurityException securityException = new SecurityException(
+                        "Blocked attempt to access inaccessible method " + method);
+                securityException.initCause(e);
+                throw securityException;
+            } catch (IllegalArgumentException e) {
+                SecurityException securityException = new SecurityException(
+                        "Blocked attempt to invoke method " + method);
+                securityException.initCause(e);
+                throw securityException;
+            } catch (InvocationTargetException e) {
+                failure = e.getCause();
+            }
+            methodTime = System.nanoTime() - methodStart;
+
+            if (failure == null) {
+                response = RPC.encodeResponseForSuccess(method, result,
+                        rpcRequest.getSerializationPolicy(), rpcRequest.getFlags());
+            } else {
+                failed = true;
+                response = RPC.encodeResponseForFailure(method, failure,
+                        rpcRequest.getSerializationPolicy(), rpcRequest.getFlags());
+            }
+            return response;
+        } catch (IncompatibleRemoteServiceException ex) {
+            log("An IncompatibleRemoteServiceException was thrown while processing this call.",
+                    ex);
+            failed = true;
+            response = RPC.encodeResponseForFailure(null, ex);
+            return response;
+        } catch (RpcTokenException ex) {
+            log("An RpcTokenException was thrown while processing this call.", ex);
+            failed = true;
+            response = RPC.encodeResponseForFailure(null, ex);
+            return response;
+        } finally {
+            long serializationTime = System.nanoTime() - startTime - methodTime;
+            rpcStats.record(methodName, methodTime, serializationTime, payload.length(),
+                    response == null ? 0 : response.length(), failed || response == null);
         }
     }
 
@@ -2262,10 +2246,7 @@ public class OneSwarmUIServiceImpl extends RemoteServiceServlet implements OneSw
             }
         }
 
-        long total_bytes = 0;
-        for (org.gudy.azureus2.core3.download.DownloadManager dm : filteredInfo.outSwarms) {
-            total_bytes += dm.getSize();
-        }
+        long total_bytes = filteredInfo.total_bytes;
 
         PagedTorrentInfo outInfo = new PagedTorrentInfo();
         outInfo.swarms = out.toArray(new TorrentInfo[0]);
@@ -3041,16 +3022,7 @@ public class OneSwarmUIServiceImpl extends RemoteServiceServlet implements OneSw
         } else if (which.equals("queue lengths")) {
             return coreInterface.getF2FInterface().getForwardQueueLengthDebug();
         } else if (which.equals("rpc profiling")) {
-            ArrayList<RpcProfiling> entries = new ArrayList<RpcProfiling>();
-            synchronized (rpcProfilingMap) {
-                entries.addAll(rpcProfilingMap.values());
-            }
-            Collections.sort(entries);
-            StringBuilder b = new StringBuilder();
-            for (RpcProfiling r : entries) {
-                b.append(r + "\n");
-            }
-            return b.toString();
+            return rpcStats.toString();
         } else if (which.equals("backendtask")) {
             final int taskID = BackendTaskManager.get().createTask("test",
                     new CancellationListener() {
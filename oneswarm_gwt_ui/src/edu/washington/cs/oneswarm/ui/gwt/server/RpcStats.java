@@ -0,0 +1,231 @@
+package edu.washington.cs.oneswarm.ui.gwt.server;
+
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.JSONException;
+import org.json.JSONWriter;
+
+/**
+ * Latency and payload size statistics for the UI service, per RPC method.
+ * Recording only increments atomic counters, so it is cheap enough to always
+ * be on.
+ */
+public class RpcStats {
+
+    /**
+     * Log-linear histogram of nanosecond values: 8 buckets per power of two,
+     * so percentiles are within 12.5% of the real value.
+     */
+    public static class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        static int getBucket(long value) {
+            if (value < SUB_COUNT) {
+                return (int) value;
+            }
+            int exp = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+            return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+        }
+
+        /**
+         * @return the smallest value that goes into the bucket.
+         */
+        static long getBucketStart(int bucket) {
+            if (bucket < SUB_COUNT) {
+                return bucket;
+            }
+            int exp = bucket / SUB_COUNT + SUB_BITS - 1;
+            long sub = bucket % SUB_COUNT;
+            return (SUB_COUNT + sub) << (exp - SUB_BITS);
+        }
+
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            counts.incrementAndGet(getBucket(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long m;
+            while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getSum() {
+            return sum.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * @return an upper bound of the value below which the fraction
+         *         <code>p</code> of the recorded values are, 0 if nothing
+         *         was recorded.
+         */
+        public long getPercentile(double p) {
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(p * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    if (i == BUCKETS - 1) {
+                        return getMax();
+                    }
+                    return Math.min(getBucketStart(i + 1) - 1, getMax());
+                }
+            }
+            return getMax();
+        }
+    }
+
+    public static class MethodStats {
+        private final String method;
+        /** time spent in the service method */
+        private final Histogram methodTime = new Histogram();
+        /** time spent decoding the request and encoding the response */
+        private final Histogram serializationTime = new Histogram();
+        private final Histogram requestSize = new Histogram();
+        private final Histogram responseSize = new Histogram();
+        private final AtomicLong failures = new AtomicLong();
+
+        MethodStats(String method) {
+            this.method = method;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public Histogram getMethodTime() {
+            return methodTime;
+        }
+
+        public Histogram getSerializationTime() {
+            return serializationTime;
+        }
+
+        public Histogram getRequestSize() {
+            return requestSize;
+        }
+
+        public Histogram getResponseSize() {
+            return responseSize;
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+    }
+
+    private final ConcurrentHashMap<String, MethodStats> methods = new ConcurrentHashMap<String, MethodStats>();
+
+    public void record(String method, long methodNanos, long serializationNanos,
+            int requestChars, int responseChars, boolean failed) {
+        MethodStats stats = methods.get(method);
+        if (stats == null) {
+            MethodStats neu = new MethodStats(method);
+            stats = methods.putIfAbsent(method, neu);
+            if (stats == null) {
+                stats = neu;
+            }
+        }
+        stats.methodTime.record(methodNanos);
+        stats.serializationTime.record(serializationNanos);
+        stats.requestSize.record(requestChars);
+        stats.responseSize.record(responseChars);
+        if (failed) {
+            stats.failures.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the stats of all methods called so far, the ones with the most
+     *         total time first.
+     */
+    public List<MethodStats> getMethodStats() {
+        List<MethodStats> out = new ArrayList<MethodStats>(methods.values());
+        Collections.sort(out, new Comparator<MethodStats>() {
+            public int compare(MethodStats o1, MethodStats o2) {
+                long t1 = o1.methodTime.getSum() + o1.serializationTime.getSum();
+                long t2 = o2.methodTime.getSum() + o2.serializationTime.getSum();
+                return t1 > t2 ? -1 : (t1 == t2 ? 0 : 1);
+            }
+        });
+        return out;
+    }
+
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        for (MethodStats m : getMethodStats()) {
+            Histogram t = m.methodTime;
+            Histogram s = m.serializationTime;
+            b.append(m.method + " calls=" + t.getCount() + " failures=" + m.getFailures()
+                    + " method_us(p50/p99/p999/max)=" + t.getPercentile(0.5) / 1000 + "/"
+                    + t.getPercentile(0.99) / 1000 + "/" + t.getPercentile(0.999) / 1000 + "/"
+                    + t.getMax() / 1000 + " serialization_us(p50/p99)=" + s.getPercentile(0.5)
+                    / 1000 + "/" + s.getPercentile(0.99) / 1000 + " request_chars(p50)="
+                    + m.requestSize.getPercentile(0.5) + " response_chars(p50/max)="
+                    + m.responseSize.getPercentile(0.5) + "/" + m.responseSize.getMax() + "\n");
+        }
+        return b.toString();
+    }
+
+    public void writeJson(Writer out) throws JSONException {
+        JSONWriter w = new JSONWriter(out);
+        w.object().key("methods").array();
+        for (MethodStats m : getMethodStats()) {
+            w.object();
+            w.key("method").value(m.method);
+            w.key("calls").value(m.methodTime.getCount());
+            w.key("failures").value(m.getFailures());
+            writeHistogram(w, "method_time_ns", m.methodTime);
+            writeHistogram(w, "serialization_time_ns", m.serializationTime);
+            writeHistogram(w, "request_chars", m.requestSize);
+            writeHistogram(w, "response_chars", m.responseSize);
+            w.endObject();
+        }
+        w.endArray().endObject();
+    }
+
+    private static void writeHistogram(JSONWriter w, String name, Histogram h)
+            throws JSONException {
+        w.key(name).object();
+        w.key("count").value(h.getCount());
+        w.key("sum").value(h.getSum());
+        w.key("p50").value(h.getPercentile(0.5));
+        w.key("p99").value(h.getPercentile(0.99));
+        w.key("p999").value(h.getPercentile(0.999));
+        w.key("max").value(h.getMax());
+        w.endObject();
+    }
+}
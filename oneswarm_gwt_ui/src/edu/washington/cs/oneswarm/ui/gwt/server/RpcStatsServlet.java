@@ -0,0 +1,41 @@
+package edu.washington.cs.oneswarm.ui.gwt.server;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.JSONException;
+
+/**
+ * Serves the UI service's RPC statistics as JSON. Mapped next to the RPC
+ * servlet, so it gets the same localhost/cookie checks in MultiHandler.
+ */
+public class RpcStatsServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+
+    public static final String PATH = "/oneswarmgwt/rpcstats";
+
+    private final RpcStats stats;
+
+    public RpcStatsServlet(RpcStats stats) {
+        this.stats = stats;
+    }
+
+    public void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        response.setStatus(HttpServletResponse.SC_OK);
+        Writer out = response.getWriter();
+        try {
+            stats.writeJson(out);
+        } catch (JSONException e) {
+            throw new IOException(e.toString());
+        }
+        out.flush();
+    }
+}
@@ -7,13 +7,17 @@ import java.util.Comparator;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 import org.bouncycastle.util.encoders.Base64;
 import org.gudy.azureus2.core3.config.COConfigurationManager;
 import org.gudy.azureus2.core3.download.DownloadManager;
 import org.gudy.azureus2.core3.download.DownloadManagerState;
+import org.gudy.azureus2.core3.download.DownloadManagerStateEvent;
+import org.gudy.azureus2.core3.download.DownloadManagerStateListener;
 import org.gudy.azureus2.core3.global.GlobalManagerListener;
 import org.gudy.azureus2.core3.torrent.TOTorrentException;
 import org.gudy.azureus2.core3.torrent.TOTorrentFile;
@@ -54,6 +58,31 @@ public class StatelessSwarmFilter {
     boolean shouldUpdateClient = false;
     CoreInterface mCore = null;
 
+    /**
+     * Swarms that are indexed for filtering and sorting, and the results of
+     * recent queries so paging through them doesn't filter again.
+     */
+    private final SwarmIndex mIndex = new SwarmIndex();
+    private final SwarmIndex.ResultCache<FilteredSwarmInfo> mResults = new SwarmIndex.ResultCache<FilteredSwarmInfo>();
+    private long mResultsVersion = -1;
+
+    /** our swarms that the single friend view set a friend added time on */
+    private final Set<DownloadManager> mFriendTimeSet = new HashSet<DownloadManager>();
+
+    /**
+     * Swarms added or changed since the last query, indexed when the next
+     * query comes in so the core's listener threads don't wait for the index.
+     */
+    private final Map<DownloadManager, Boolean> mDirty = new ConcurrentHashMap<DownloadManager, Boolean>();
+
+    private final DownloadManagerStateListener mStateListener = new DownloadManagerStateListener() {
+        public void stateChanged(DownloadManagerState state, DownloadManagerStateEvent event) {
+            if (event.getType() == DownloadManagerStateEvent.ET_ATTRIBUTE_WRITTEN) {
+                mDirty.put(state.getDownloadManager(), Boolean.TRUE);
+            }
+        }
+    };
+
     enum SortMetric {
         Name(new Comparator<DownloadManager>() {
             public int compare(DownloadManager lhs, DownloadManager rhs) {
@@ -114,16 +143,26 @@ public class StatelessSwarmFilter {
             public void downloadManagerAdded(DownloadManager dm) {
                 logger.finer("dl manager added forces client refresh: " + dm.getDisplayName());
                 shouldUpdateClient = true;
+                mDirty.put(dm, Boolean.TRUE);
+                dm.getDownloadState().addListener(mStateListener);
             }
 
             public void downloadManagerRemoved(DownloadManager dm) {
                 logger.finer("dl manager removed forces client refresh: " + dm.getDisplayName());
                 shouldUpdateClient = true;
+                dm.getDownloadState().removeListener(mStateListener);
+                synchronized (mIndex) {
+                    mDirty.remove(dm);
+                    mIndex.remove(dm);
+                    mFriendTimeSet.remove(dm);
+                }
 
                 String base64Hash = null;
                 try {
                     base64Hash = new String(Base64.encode(dm.getTorrent().getHash()));
-                    filteredUntilDeleteBase64.remove(base64Hash);
+                    synchronized (mIndex) {
+                        filteredUntilDeleteBase64.remove(base64Hash);
+                    }
                 } catch (TOTorrentException e) {
                     e.printStackTrace();
                 }
@@ -213,6 +252,7 @@ public class StatelessSwarmFilter {
                 } else {
                     out.add(ours);
                     ours.setData("friend-added-time", new Long(collection.getAddedTimeUTC()));
+                    mFriendTimeSet.add(ours);
                 }
             } else {
                 DownloadManagerAdapter adapter = new DownloadManagerAdapter(collection,
@@ -364,7 +404,10 @@ public class StatelessSwarmFilter {
 
     public void filterUntilDelete(byte[] inHash) {
         String toAdd = new String(Base64.encode(inHash));
-        filteredUntilDeleteBase64.add(toAdd);
+        synchronized (mIndex) {
+            filteredUntilDeleteBase64.add(toAdd);
+            mIndex.hide(toAdd);
+        }
         shouldUpdateClient = true;
         System.out.println("filterUntilDelete, trying force update " + toAdd);
     }
@@ -374,11 +417,115 @@ public class StatelessSwarmFilter {
         public int total_swarms_in_type = 0;
         public FileTree tags = null;
         public boolean truncated_tags = false;
+        public long total_bytes = 0;
     };
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Filters and sorts the swarms. Our own and friends' swarms are served
+     * from the index, the same query is only computed once until something
+     * changes. The returned list must not be modified.
+     */
     public FilteredSwarmInfo filterSwarms(String[] inKeywords, SortMetric inSortingMetric,
             FileTypeFilter inFileType, boolean includeF2F, int selectedFriendID, String inTagPath) {
+        if (selectedFriendID != Integer.MIN_VALUE) {
+            synchronized (mIndex) {
+                return filterSwarmsUnindexed(inKeywords, inSortingMetric, inFileType, includeF2F,
+                        selectedFriendID, inTagPath);
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        synchronized (mIndex) {
+            // the single friend view sorts by these, clear them for the main
+            // view
+            for (DownloadManager d : mFriendTimeSet) {
+                d.setData("friend-added-time", null);
+            }
+            mFriendTimeSet.clear();
+
+            for (DownloadManager d : mDirty.keySet()) {
+                mDirty.remove(d);
+                mIndex.update(d);
+            }
+            if (includeF2F) {
+                mIndex.syncFriends(mCore.getF2FInterface().getOnlineFileLists());
+            }
+            if (mResultsVersion != mIndex.getVersion()) {
+                mResults.clear();
+                mResultsVersion = mIndex.getVersion();
+            }
+
+            String[] keywords = inKeywords == null ? new String[0] : new String[inKeywords.length];
+            for (int i = 0; i < keywords.length; i++) {
+                keywords[i] = inKeywords[i].toLowerCase();
+            }
+            int maxTags = COConfigurationManager.getIntParameter("oneswarm.max.ui.tags");
+            boolean showTags = COConfigurationManager.getBooleanParameter("oneswarm.show.tags");
+            String key = inSortingMetric + "\n" + inFileType + "\n" + includeF2F + "\n"
+                    + inTagPath + "\n" + maxTags + "\n" + showTags + "\n"
+                    + Arrays.toString(keywords);
+            FilteredSwarmInfo cached = mResults.get(key);
+            if (cached != null) {
+                return cached;
+            }
+
+            List<SwarmIndex.IndexedSwarm> view = mIndex.getView(inSortingMetric, inFileType,
+                    includeF2F);
+            FilteredSwarmInfo outInfo = new FilteredSwarmInfo();
+            outInfo.outSwarms = new ArrayList<DownloadManager>();
+            outInfo.total_swarms_in_type = view.size();
+            List<DownloadManager> filteredExceptByTag = new ArrayList<DownloadManager>();
+            for (SwarmIndex.IndexedSwarm s : view) {
+                if (matchKeywords(s, keywords) == false) {
+                    continue;
+                }
+                filteredExceptByTag.add(s.dm);
+                if (matchTags(s.dm, inTagPath) == false) {
+                    continue;
+                }
+                outInfo.outSwarms.add(s.dm);
+                outInfo.total_bytes += s.dm.getSize();
+            }
+
+            outInfo.tags = getTagsFromSwarms(filteredExceptByTag);
+            if (maxTags != 0 && outInfo.tags != null) {
+                MutableInt count = new MutableInt();
+                count.v = 0;
+                outInfo.truncated_tags = pruneTagsBasedOnLimit(outInfo.tags, count, maxTags);
+            }
+            mResults.put(key, outInfo);
+
+            logger.fine("filtered " + view.size() + " swarms in "
+                    + (System.currentTimeMillis() - start) + " ms");
+            return outInfo;
+        }
+    }
+
+    private static boolean matchKeywords(SwarmIndex.IndexedSwarm s, String[] inKeywords) {
+        boolean matchedSpecial;
+        for (String keyword : inKeywords) {
+            matchedSpecial = false;
+
+            for (SpecialMatcher sm : SpecialMatcher.values()) {
+                if (keyword.startsWith(sm.mLabel)) {
+                    if (!s.text.contains(keyword.substring(sm.mLabel.length()))) {
+                        matchedSpecial = true;
+                        break;
+                    }
+                }
+            }
+
+            if (matchedSpecial == false && s.text.contains(keyword) == false) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private FilteredSwarmInfo filterSwarmsUnindexed(String[] inKeywords,
+            SortMetric inSortingMetric, FileTypeFilter inFileType, boolean includeF2F,
+            int selectedFriendID, String inTagPath) {
 
         keyword_time = 0;
         long start = System.currentTimeMillis();
@@ -542,6 +689,9 @@ public class StatelessSwarmFilter {
          * Finally, sort
          */
         Collections.sort(outInfo.outSwarms, inSortingMetric.mComp);
+        for (DownloadManager d : outInfo.outSwarms) {
+            outInfo.total_bytes += d.getSize();
+        }
 
         logger.fine("keyword time: " + keyword_time + " total: "
                 + (System.currentTimeMillis() - start));
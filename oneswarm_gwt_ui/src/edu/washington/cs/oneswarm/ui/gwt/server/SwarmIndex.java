@@ -0,0 +1,388 @@
+package edu.washington.cs.oneswarm.ui.gwt.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.bouncycastle.util.encoders.Base64;
+import org.gudy.azureus2.core3.download.DownloadManager;
+import org.gudy.azureus2.core3.download.DownloadManagerState;
+import org.gudy.azureus2.core3.torrent.TOTorrentFile;
+
+import edu.washington.cs.oneswarm.f2f.FileCollection;
+import edu.washington.cs.oneswarm.f2f.FileList;
+import edu.washington.cs.oneswarm.f2f.Friend;
+import edu.washington.cs.oneswarm.f2f.multisource.Sha1DownloadManager;
+import edu.washington.cs.oneswarm.ui.gwt.CoreTools;
+import edu.washington.cs.oneswarm.ui.gwt.client.newui.FileTypeFilter;
+import edu.washington.cs.oneswarm.ui.gwt.server.StatelessSwarmFilter.SortMetric;
+
+/**
+ * What the swarm browser needs to know about each swarm, computed once per
+ * swarm instead of on every page request: the file type, the sort keys and
+ * the lower case text that keywords are matched against.
+ *
+ * For every combination of sort order, file type and whether friends' files
+ * are included that has been asked for, a sorted view is kept. Our own swarms
+ * are inserted into and removed from the views as they change, a friend's
+ * file list changing drops the views that include friends' files.
+ *
+ * Not thread safe, StatelessSwarmFilter synchronizes on the index.
+ */
+class SwarmIndex {
+    private static Logger logger = Logger.getLogger(SwarmIndex.class.getName());
+
+    static class IndexedSwarm {
+        final DownloadManager dm;
+        final String base64Hash;
+        final FileTypeFilter type;
+        final boolean autoAdded;
+        /** display name, album, artist and file paths, one per line */
+        final String text;
+        final String sortName;
+        final long added;
+        final long size;
+        /** tag paths, one per line, the tag tree and tag filter use these */
+        final String tags;
+
+        IndexedSwarm(DownloadManager dm, String base64Hash) {
+            this.dm = dm;
+            this.base64Hash = base64Hash;
+
+            TOTorrentFile biggestFile = CoreTools.getBiggestFile(dm, false);
+            this.type = FileTypeFilter.match(biggestFile == null ? "" : biggestFile
+                    .getRelativePath());
+
+            DownloadManagerState state = dm.getDownloadState();
+            this.autoAdded = state.getBooleanAttribute(Sha1DownloadManager.ONESWARM_AUTO_ADDED);
+
+            StringBuilder b = new StringBuilder(dm.getDisplayName());
+            String album = state.getAttribute(FileCollection.ONESWARM_ALBUM_ATTRIBUTE);
+            if (album != null) {
+                b.append('\n').append(album);
+            }
+            String artist = state.getAttribute(FileCollection.ONESWARM_ARTIST_ATTRIBUTE);
+            if (artist != null) {
+                b.append('\n').append(artist);
+            }
+            for (TOTorrentFile f : dm.getTorrent().getFiles()) {
+                b.append('\n').append(f.getRelativePath());
+            }
+            this.text = b.toString().toLowerCase();
+
+            this.sortName = new String(dm.getTorrent().getName()).toLowerCase();
+            this.added = state.getLongParameter(DownloadManagerState.PARAM_DOWNLOAD_ADDED_TIME);
+            this.size = dm.getTorrent().getSize();
+
+            StringBuilder t = new StringBuilder();
+            String[] tagPaths = state.getListAttribute(FileCollection.ONESWARM_TAGS_ATTRIBUTE);
+            if (tagPaths != null) {
+                for (String tag : tagPaths) {
+                    t.append(tag).append('\n');
+                }
+            }
+            this.tags = t.toString();
+        }
+
+        boolean sameAs(IndexedSwarm o) {
+            return type == o.type && autoAdded == o.autoAdded && text.equals(o.text)
+                    && sortName.equals(o.sortName) && added == o.added && size == o.size
+                    && tags.equals(o.tags);
+        }
+
+        boolean matches(FileTypeFilter inType) {
+            return inType.equals(FileTypeFilter.All) || type.equals(inType);
+        }
+    }
+
+    private static class FriendSwarms {
+        final FileList fileList;
+        final int listId;
+        final List<IndexedSwarm> swarms;
+
+        FriendSwarms(FileList fileList, List<IndexedSwarm> swarms) {
+            this.fileList = fileList;
+            this.listId = fileList.getListId();
+            this.swarms = swarms;
+        }
+    }
+
+    private static class ViewKey {
+        final SortMetric metric;
+        final FileTypeFilter type;
+        final boolean includeF2F;
+
+        ViewKey(SortMetric metric, FileTypeFilter type, boolean includeF2F) {
+            this.metric = metric;
+            this.type = type;
+            this.includeF2F = includeF2F;
+        }
+
+        public int hashCode() {
+            return metric.hashCode() ^ type.hashCode() ^ (includeF2F ? 1 : 0);
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof ViewKey)) {
+                return false;
+            }
+            ViewKey k = (ViewKey) o;
+            return metric == k.metric && type == k.type && includeF2F == k.includeF2F;
+        }
+    }
+
+    // same orders as SortMetric, ties broken by hash so views can be
+    // searched
+    private static final Map<SortMetric, Comparator<IndexedSwarm>> comparators = new HashMap<SortMetric, Comparator<IndexedSwarm>>();
+    static {
+        comparators.put(SortMetric.Name, new Comparator<IndexedSwarm>() {
+            public int compare(IndexedSwarm lhs, IndexedSwarm rhs) {
+                int c = lhs.sortName.compareTo(rhs.sortName);
+                return c != 0 ? c : lhs.base64Hash.compareTo(rhs.base64Hash);
+            }
+        });
+        comparators.put(SortMetric.Date, new Comparator<IndexedSwarm>() {
+            public int compare(IndexedSwarm lhs, IndexedSwarm rhs) {
+                // newest first
+                if (lhs.added != rhs.added) {
+                    return lhs.added > rhs.added ? -1 : 1;
+                }
+                return lhs.base64Hash.compareTo(rhs.base64Hash);
+            }
+        });
+        comparators.put(SortMetric.Size, new Comparator<IndexedSwarm>() {
+            public int compare(IndexedSwarm lhs, IndexedSwarm rhs) {
+                // largest first
+                if (lhs.size != rhs.size) {
+                    return lhs.size > rhs.size ? -1 : 1;
+                }
+                return lhs.base64Hash.compareTo(rhs.base64Hash);
+            }
+        });
+    }
+
+    private final Map<String, IndexedSwarm> local = new HashMap<String, IndexedSwarm>();
+    private final Map<Friend, FriendSwarms> friends = new HashMap<Friend, FriendSwarms>();
+    private final Map<ViewKey, List<IndexedSwarm>> views = new HashMap<ViewKey, List<IndexedSwarm>>();
+    private final Set<String> hidden = new HashSet<String>();
+
+    /** bumped whenever what a query returns might have changed */
+    private long version = 0;
+
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * Adds or updates one of our swarms.
+     */
+    void update(DownloadManager dm) {
+        if (dm.getTorrent() == null) {
+            return;
+        }
+        String base64Hash;
+        IndexedSwarm neu;
+        try {
+            base64Hash = new String(Base64.encode(dm.getTorrent().getHash()));
+            neu = new IndexedSwarm(dm, base64Hash);
+        } catch (Exception e) {
+            logger.warning("not indexing " + dm.getDisplayName() + ": " + e.toString());
+            return;
+        }
+        IndexedSwarm old = local.get(base64Hash);
+        if (old != null && old.dm == dm && old.sameAs(neu)) {
+            return;
+        }
+        if (old != null) {
+            removeFromViews(old);
+        }
+        local.put(base64Hash, neu);
+        addToViews(neu);
+        version++;
+    }
+
+    void remove(DownloadManager dm) {
+        for (Iterator<IndexedSwarm> it = local.values().iterator(); it.hasNext();) {
+            IndexedSwarm s = it.next();
+            if (s.dm == dm) {
+                it.remove();
+                removeFromViews(s);
+                hidden.remove(s.base64Hash);
+                version++;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Hides one of our swarms until it is removed.
+     */
+    void hide(String base64Hash) {
+        IndexedSwarm s = local.get(base64Hash);
+        if (s != null && !hidden.contains(base64Hash)) {
+            removeFromViews(s);
+        }
+        hidden.add(base64Hash);
+        version++;
+    }
+
+    /**
+     * Updates the friends' swarms from the file lists of online friends.
+     * Only lists that changed since the last call are indexed again.
+     */
+    void syncFriends(Map<Friend, FileList> onlineFileLists) {
+        boolean changed = false;
+        for (Iterator<Friend> it = friends.keySet().iterator(); it.hasNext();) {
+            if (onlineFileLists.get(it.next()) == null) {
+                it.remove();
+                changed = true;
+            }
+        }
+        for (Map.Entry<Friend, FileList> e : onlineFileLists.entrySet()) {
+            FileList fileList = e.getValue();
+            if (fileList == null) {
+                continue;
+            }
+            FriendSwarms existing = friends.get(e.getKey());
+            if (existing != null && existing.fileList == fileList
+                    && existing.listId == fileList.getListId()) {
+                continue;
+            }
+            Friend friend = e.getKey();
+            List<IndexedSwarm> swarms = new ArrayList<IndexedSwarm>();
+            for (FileCollection collection : fileList.getElements()) {
+                try {
+                    swarms.add(new IndexedSwarm(new DownloadManagerAdapter(collection, friend
+                            .getConnectionId(), friend.getNick()), collection.getUniqueID()));
+                } catch (Exception ex) {
+                    logger.warning("not indexing " + collection.getName() + ": " + ex.toString());
+                }
+            }
+            friends.put(friend, new FriendSwarms(fileList, swarms));
+            changed = true;
+        }
+        if (changed) {
+            for (Iterator<ViewKey> it = views.keySet().iterator(); it.hasNext();) {
+                if (it.next().includeF2F) {
+                    it.remove();
+                }
+            }
+            version++;
+        }
+    }
+
+    /**
+     * @return the swarms of the type in the order of the metric. Not a copy,
+     *         don't modify.
+     */
+    List<IndexedSwarm> getView(SortMetric metric, FileTypeFilter type, boolean includeF2F) {
+        ViewKey key = new ViewKey(metric, type, includeF2F);
+        List<IndexedSwarm> view = views.get(key);
+        if (view != null) {
+            return view;
+        }
+
+        view = new ArrayList<IndexedSwarm>();
+        Set<String> seen = new HashSet<String>();
+        for (IndexedSwarm s : local.values()) {
+            if (visible(s)) {
+                // our copies are preferred over friends'
+                seen.add(s.base64Hash);
+                if (s.matches(type)) {
+                    view.add(s);
+                }
+            }
+        }
+        if (includeF2F) {
+            for (FriendSwarms f : friends.values()) {
+                for (IndexedSwarm s : f.swarms) {
+                    // files that multiple friends have are only shown once
+                    if (seen.add(s.base64Hash) && s.matches(type)) {
+                        view.add(s);
+                    }
+                }
+            }
+        }
+        Collections.sort(view, comparators.get(metric));
+        views.put(key, view);
+        logger.finer("built view " + metric + "/" + type + "/" + includeF2F + ": "
+                + view.size());
+        return view;
+    }
+
+    private boolean visible(IndexedSwarm s) {
+        return !s.autoAdded && !hidden.contains(s.base64Hash);
+    }
+
+    private void addToViews(IndexedSwarm s) {
+        if (!visible(s)) {
+            return;
+        }
+        for (Map.Entry<ViewKey, List<IndexedSwarm>> e : views.entrySet()) {
+            List<IndexedSwarm> view = e.getValue();
+            if (e.getKey().includeF2F) {
+                // a friend's copy of this swarm might be in the view
+                removeHash(view, s.base64Hash);
+            }
+            if (s.matches(e.getKey().type)) {
+                int pos = Collections.binarySearch(view, s, comparators.get(e.getKey().metric));
+                if (pos < 0) {
+                    view.add(-pos - 1, s);
+                }
+            }
+        }
+    }
+
+    private void removeFromViews(IndexedSwarm s) {
+        if (!visible(s)) {
+            return;
+        }
+        for (Iterator<Map.Entry<ViewKey, List<IndexedSwarm>>> it = views.entrySet().iterator(); it
+                .hasNext();) {
+            Map.Entry<ViewKey, List<IndexedSwarm>> e = it.next();
+            if (e.getKey().includeF2F) {
+                // a friend's copy of this swarm might have to show up again
+                it.remove();
+                continue;
+            }
+            int pos = Collections.binarySearch(e.getValue(), s, comparators.get(e.getKey().metric));
+            if (pos >= 0) {
+                e.getValue().remove(pos);
+            }
+        }
+    }
+
+    private static void removeHash(List<IndexedSwarm> view, String base64Hash) {
+        for (Iterator<IndexedSwarm> it = view.iterator(); it.hasNext();) {
+            if (it.next().base64Hash.equals(base64Hash)) {
+                it.remove();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Small LRU of query results, only valid for the version they were
+     * computed at.
+     */
+    static class ResultCache<V> extends LinkedHashMap<String, V> {
+        private static final long serialVersionUID = 1L;
+        private static final int MAX_SIZE = 16;
+
+        ResultCache() {
+            super(MAX_SIZE, 0.75f, true);
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+            return size() > MAX_SIZE;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package edu.washington.cs.oneswarm.ui.gwt.server.community;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The last friend list a community server sent us. Refreshes send its
+ * validators so that the server can answer 304 if the list didn't change, and
+ * only entries that weren't in it are fed to the CommunityServerManager.
+ */
+final class CommunityFeedState {
+
+    private String etag;
+    private String lastModified;
+    private String refreshInterval;
+
+    private List<String[]> entries = null;
+    private Set<String> keys = Collections.emptySet();
+
+    /**
+     * @return If-None-Match/If-Modified-Since headers for the next refresh,
+     *         empty if we don't have the list the server would be comparing
+     *         against
+     */
+    synchronized Map<String, String> getConditionalHeaders() {
+        Map<String, String> headers = new HashMap<String, String>();
+        if (etag != null) {
+            headers.put("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            headers.put("If-Modified-Since", lastModified);
+        }
+        return headers;
+    }
+
+    synchronized String getRefreshInterval() {
+        return refreshInterval;
+    }
+
+    /**
+     * @return the {key, nick} pairs of the last list that was fed, null if
+     *         none was
+     */
+    synchronized List<String[]> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return the entries of <code>parsed</code> that were not in the last
+     *         list
+     */
+    synchronized List<String[]> getNewEntries(List<String[]> parsed) {
+        List<String[]> out = new ArrayList<String[]>();
+        for (String[] pair : parsed) {
+            if (keys.contains(pair[0]) == false) {
+                out.add(pair);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Replaces the last list once <code>parsed</code> has been fed, together
+     * with the validators of the response it came in.
+     *
+     * @param conn the response <code>parsed</code> came in, null if it is the
+     *            last list again and the validators stay the same
+     */
+    synchronized void setEntries(List<String[]> parsed, HttpURLConnection conn,
+            String refreshInterval) {
+        Set<String> neu = new HashSet<String>();
+        for (String[] pair : parsed) {
+            neu.add(pair[0]);
+        }
+        entries = parsed;
+        keys = neu;
+        if (conn != null) {
+            this.etag = conn.getHeaderField("ETag");
+            this.lastModified = conn.getHeaderField("Last-Modified");
+            this.refreshInterval = refreshInterval;
+        }
+    }
+
+    /**
+     * Forgets the last list, so the next refresh transfers and feeds
+     * everything.
+     */
+    synchronized void clear() {
+        etag = null;
+        lastModified = null;
+        refreshInterval = null;
+        entries = null;
+        keys = Collections.emptySet();
+    }
+}
@@ -5,6 +5,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.net.HttpURLConnection;
 import java.security.InvalidKeyException;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -18,7 +19,12 @@ import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import org.gudy.azureus2.core3.config.COConfigurationManager;
@@ -52,12 +58,19 @@ public final class CommunityServerManager extends Thread {
 
     private static Logger logger = Logger.getLogger(CommunityServerManager.class.getName());
 
+    /**
+     * Servers are refreshed in parallel so that a slow one doesn't hold up
+     * the others, but not too many at once.
+     */
+    private static final int MAX_CONCURRENT_REFRESHES = 4;
+
     private volatile static CommunityServerManager inst = null;
 
     Set<String> filtered = new HashSet<String>();
     Set<FriendInfoLite> unmunched = new HashSet<FriendInfoLite>();
     ConcurrentMap<String, CommunityRecord> activeServers = new ConcurrentHashMap<String, CommunityRecord>();
     ConcurrentMap<CommunityRecord, CHTClientHTTP> addressResolvers = new ConcurrentHashMap<CommunityRecord, CHTClientHTTP>();
+    ConcurrentMap<String, CommunityFeedState> feedStates = new ConcurrentHashMap<String, CommunityFeedState>();
 
     LinkedList<CommunityServerBlocker> blockers = new LinkedList<CommunityServerManager.CommunityServerBlocker>();
 
@@ -73,7 +86,7 @@ public final class CommunityServerManager extends Thread {
                 public int compare(RefreshCommunityServerTask o1, RefreshCommunityServerTask o2) {
                     if (o1.getExecutionTime() > o2.getExecutionTime()) {
                         return 1;
-                    } else if (o1.getExecutionTime() > o2.getExecutionTime()) {
+                    } else if (o1.getExecutionTime() < o2.getExecutionTime()) {
                         return -1;
                     } else {
                         return 0;
@@ -81,6 +94,16 @@ public final class CommunityServerManager extends Thread {
                 }
             });
 
+    private final ExecutorService refreshPool = new ThreadPoolExecutor(
+            MAX_CONCURRENT_REFRESHES, MAX_CONCURRENT_REFRESHES, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "CommunityServer refresh");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
     private File mCommunityServerHashesFile;
 
     public static CommunityServerManager get() {
@@ -115,6 +138,14 @@ public final class CommunityServerManager extends Thread {
                         }
                         addressResolvers = new ConcurrentHashMap<CommunityRecord, CHTClientHTTP>();
 
+                        /*
+                         * the settings of a server decide what is done with
+                         * its friend list, so feed everything again
+                         */
+                        for (CommunityFeedState state : feedStates.values()) {
+                            state.clear();
+                        }
+
                         StringList servers = COConfigurationManager
                                 .getStringListParameter("oneswarm.community.servers");
                         List<String> converted = new ArrayList<String>();
@@ -265,8 +296,32 @@ public final class CommunityServerManager extends Thread {
 
             if (activeServers.containsKey(server.getUrl()) == false) {
                 logger.fine("Skipping check of removed community server: " + server.getUrl());
+                feedStates.remove(server.getUrl());
                 return;
             }
+            long start = System.currentTimeMillis();
+            long delay = DEFAULT_DELAY_MS;
+            try {
+                delay = refresh();
+            } catch (Exception e) {
+                e.printStackTrace();
+                logger.warning("Error refreshing community server " + server.getUrl() + ": "
+                        + e.toString());
+            }
+            logger.finest("Community processing of " + server.getUrl() + " took: "
+                    + (System.currentTimeMillis() - start));
+
+            logger.fine("Next refresh " + server.getUrl() + " in " + delay + " ("
+                    + (new java.util.Date(System.currentTimeMillis() + delay)).toString() + ")");
+
+            tasks.add(new RefreshCommunityServerTask(server, System.currentTimeMillis() + delay));
+            logger.finer("After insert, tasks has: " + tasks.size());
+        }
+
+        /**
+         * @return the delay until the next refresh
+         */
+        private long refresh() {
             long delay = DEFAULT_DELAY_MS;
 
             boolean blocked = false;
@@ -308,30 +363,25 @@ public final class CommunityServerManager extends Thread {
 
                 delay = Math.max(delay, server.getMinimum_refresh_interval() * 60 * 1000);
             }
-
-            logger.fine("Next refresh " + server.getUrl() + " in " + delay + " ("
-                    + (new java.util.Date(System.currentTimeMillis() + delay)).toString() + ")");
-
-            tasks.add(new RefreshCommunityServerTask(server, System.currentTimeMillis() + delay));
-            logger.finer("After insert, tasks has: " + tasks.size());
+            return delay;
         }
     }
 
     @Override
     public void run() {
-        // Forever obtain polling tasks, execute them, and repeat.
+        /*
+         * Forever hand due polling tasks to the refresh pool. Each task queues
+         * the next refresh of its server when it's done, so a server is never
+         * refreshed twice at the same time.
+         */
         while (true) {
             try {
-                RefreshCommunityServerTask t = tasks.peek();
-                if (t != null) {
-                    if (t.getExecutionTime() < System.currentTimeMillis()) {
-                        tasks.poll();
-                        long start = System.currentTimeMillis();
-                        t.run();
-                        logger.finest("Community processing took: "
-                                + (System.currentTimeMillis() - start) + " tasks queue: "
-                                + tasks.size());
-                    }
+                RefreshCommunityServerTask t;
+                while ((t = tasks.peek()) != null
+                        && t.getExecutionTime() < System.currentTimeMillis()) {
+                    refreshPool.execute(tasks.poll());
+                    logger.finest("Dispatched refresh of " + t.server.getUrl()
+                            + ", tasks queue: " + tasks.size());
                 }
 
                 Thread.sleep(5000);
@@ -364,6 +414,19 @@ public final class CommunityServerManager extends Thread {
      *            have before removing the oldest ones?
      */
     public synchronized void feed(List<String[]> parsed, CommunityRecord fromServer) {
+        feed(parsed, fromServer, null, null);
+    }
+
+    /**
+     * Feeds a complete friend list from <code>fromServer</code>. The
+     * validators of <code>conn</code> are only kept if the list is, so a later
+     * 304 always refers to a list that was fed.
+     *
+     * @param conn the response the list came in, null to keep the validators
+     *            we have
+     */
+    synchronized void feed(List<String[]> parsed, CommunityRecord fromServer,
+            HttpURLConnection conn, String refreshInterval) {
 
         final String group = fromServer.getGroup();
         final boolean manual_confirmation = fromServer.isConfirm_updates();
@@ -371,14 +434,28 @@ public final class CommunityServerManager extends Thread {
         final String from_url = fromServer.getUrl();
         final int pruning_threshold = fromServer.getPruning_threshold();
 
+        /*
+         * Entries that were in the last list from this server have been dealt
+         * with already, only the new ones need to be considered for adding.
+         */
+        CommunityFeedState state = getFeedState(from_url);
+        List<String[]> fresh = state.getNewEntries(parsed);
+        logger.finer(fresh.size() + " of " + parsed.size() + " entries from " + from_url
+                + " are new");
+        boolean changed = false;
+
         FriendInfoLite[] existing = f2f.getFriends(true, true);
 
         Set<String> uncovered_existing_keys = new HashSet<String>();
         List<FriendInfoLite> existing_from_this_server = new ArrayList<FriendInfoLite>();
+        Set<String> existing_keys = new HashSet<String>();
+        Set<String> existing_nicks = new HashSet<String>();
 
         // make sure filtered always has the latest set of local public keys
         for (FriendInfoLite f : existing) {
             filtered.add(f.getPublicKey());
+            existing_keys.add(f.getPublicKey());
+            existing_nicks.add(f.getName());
         }
 
         if (sync_server_deletes) {
@@ -401,14 +478,16 @@ public final class CommunityServerManager extends Thread {
             }
         }
 
-        for (String[] pair : parsed) {
+        if (sync_server_deletes) {
+            for (String[] pair : parsed) {
+                uncovered_existing_keys.remove(pair[0]);
+            }
+        }
+
+        for (String[] pair : fresh) {
             String key = pair[0];
             String nick = pair[1];
 
-            if (sync_server_deletes) {
-                uncovered_existing_keys.remove(key);
-            }
-
             if (filtered.contains(key)) {
                 logger.finer("skipping duplicate fed friend: " + nick + " / " + key);
                 continue;
@@ -422,26 +501,20 @@ public final class CommunityServerManager extends Thread {
                 converted.setDateAdded(new Date());
                 converted.setGroup(group);
                 unmunched.add(converted);
+                changed = true;
                 logger.finer("fed: " + key + " / " + nick);
             } else {
                 logger.finest("Auto-add consideration of " + key + " / " + nick);
-                // FriendInfoLite [] existing = f2f.getFriends(true, true);
-                boolean duplicateNickname = false;
+                if (existing_keys.contains(key)) {
+                    logger.warning("bailing out early due to duplicate key that SHOULD HAVE been eliminated: "
+                            + nick + " / " + key);
+                    filteredSizeValid = false;
+                    return;
+                }
                 String deDupedNick = nick;
-                do {
-                    duplicateNickname = false;
-                    for (FriendInfoLite e : existing) {
-                        if (e.getPublicKey().equals(key)) {
-                            logger.warning("bailing out early due to duplicate key that SHOULD HAVE been eliminated: "
-                                    + nick + " / " + key);
-                            return;
-                        }
-                        if (e.getName().equals(deDupedNick)) {
-                            duplicateNickname = true;
-                            deDupedNick += ".";
-                        }
-                    }
-                } while (duplicateNickname);
+                while (existing_nicks.contains(deDupedNick)) {
+                    deDupedNick += ".";
+                }
                 if (key.equals(f2f.getMyPublicKey())) {
                     logger.warning("Skipping adding own key to friend list");
                     continue;
@@ -462,6 +535,9 @@ public final class CommunityServerManager extends Thread {
                     f.setRequestFileList(false);
                     f2f.addFriend(f);
                     filtered.add(key);
+                    existing_keys.add(key);
+                    existing_nicks.add(deDupedNick);
+                    changed = true;
                     logger.finer("auto added: " + deDupedNick);
                 } catch (InvalidKeyException e) {
                     e.printStackTrace();
@@ -472,6 +548,9 @@ public final class CommunityServerManager extends Thread {
 
         if (sync_server_deletes) {
             logger.finer(uncovered_existing_keys.size() + " remain in uncovered_existing_keys");
+            if (uncovered_existing_keys.size() > 0) {
+                changed = true;
+            }
             for (String s : uncovered_existing_keys) {
                 if (manual_confirmation) {
                     FriendInfoLite converted = FriendInfoLiteFactory.createFromKeyAndNick(s, "",
@@ -493,6 +572,7 @@ public final class CommunityServerManager extends Thread {
              * this server by the time of our most recent connection and then
              * snip the most distant.
              */
+            changed = true;
             final long now = System.currentTimeMillis();
             Collections.sort(existing_from_this_server, new Comparator<FriendInfoLite>() {
                 @Override
@@ -576,7 +656,39 @@ public final class CommunityServerManager extends Thread {
             }
         }
 
-        filteredSizeValid = false;
+        /*
+         * the filtered count of unmunched only changes if something was
+         * added, removed or queued for confirmation
+         */
+        if (changed) {
+            filteredSizeValid = false;
+        }
+        state.setEntries(parsed, conn, refreshInterval);
+    }
+
+    /**
+     * Feeds the last list from <code>fromServer</code> again, for refreshes
+     * where the server told us it didn't change. Only server deletes and
+     * pruning have anything to do then.
+     *
+     * @return the refresh interval the server sent with that list
+     */
+    String feedNotModified(CommunityRecord fromServer) {
+        CommunityFeedState state = getFeedState(fromServer.getUrl());
+        List<String[]> entries = state.getEntries();
+        if (entries != null) {
+            feed(entries, fromServer);
+        }
+        return state.getRefreshInterval();
+    }
+
+    CommunityFeedState getFeedState(String url) {
+        CommunityFeedState state = feedStates.get(url);
+        if (state == null) {
+            feedStates.putIfAbsent(url, new CommunityFeedState());
+            state = feedStates.get(url);
+        }
+        return state;
     }
 
     public synchronized FriendInfoLite[] filter(FriendInfoLite[] inList) {
@@ -661,10 +773,16 @@ public final class CommunityServerManager extends Thread {
 
     public void refreshAll() {
         synchronized (tasks) {
-            for (RefreshCommunityServerTask t : tasks) {
+            /*
+             * take them out and put them back so the queue is reordered
+             */
+            List<RefreshCommunityServerTask> all = new ArrayList<RefreshCommunityServerTask>();
+            tasks.drainTo(all);
+            for (RefreshCommunityServerTask t : all) {
                 t.executionTime = 0;
             }
-            logger.info("Refreshing " + tasks.size());
+            tasks.addAll(all);
+            logger.info("Refreshing " + all.size());
         }
     }
 
@@ -424,6 +424,11 @@ public abstract class CommunityServerOperation extends Thread implements Cancell
         return getConnection(url, "GET");
     }
 
+    public HttpURLConnection getConnection(URL url, Map<String, String> headers)
+            throws IOException {
+        return getConnection(url, "GET", mRecord.isAuth_required(), mRecord, headers);
+    }
+
     public HttpURLConnection getConnection(URL url, String method) throws IOException {
         return getConnection(url, method, mRecord.isAuth_required());
     }
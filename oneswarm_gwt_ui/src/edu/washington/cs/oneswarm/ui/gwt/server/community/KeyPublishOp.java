@@ -93,7 +93,7 @@ public class KeyPublishOp extends CommunityServerOperation {
             logger.info("Requesting community friend update: " + theURLString);
 
             URL url = new URL(theURLString);
-            HttpURLConnection conn = getConnection(url);
+            HttpURLConnection conn = getConnection(url, getConditionalHeaders());
 
             if (cancelled) {
                 return;
@@ -110,7 +110,7 @@ public class KeyPublishOp extends CommunityServerOperation {
                     throw new IOException("Unauthorized request denied (registration failed)");
                 } else {
                     logger.fine("Registration request appeared to succeed, continuing...");
-                    conn = getConnection(url);
+                    conn = getConnection(url, getConditionalHeaders());
                 }
             }
 
@@ -127,6 +127,11 @@ public class KeyPublishOp extends CommunityServerOperation {
                 mTask.setSummary("Connected.");
             }
 
+            if (conn.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                processNotModified();
+                return;
+            }
+
             BufferedReader in = new BufferedReader(new InputStreamReader(
                     getConnectionInputStream(conn)));
             String l = in.readLine();
@@ -148,10 +153,12 @@ public class KeyPublishOp extends CommunityServerOperation {
                 ByteArrayOutputStream read = new ByteArrayOutputStream();
                 read.write(l.getBytes());
 
-                mTask.setSummary("Reading response...");
+                if (mTask != null) {
+                    mTask.setSummary("Reading response...");
+                }
 
                 readLimitedInto(conn, MAX_READ_BYTES, read);
-                processAsXML(read);
+                processAsXML(read, conn);
             }
 
             if (mTask != null) {
@@ -242,7 +249,32 @@ public class KeyPublishOp extends CommunityServerOperation {
         return false;
     }
 
-    private void processAsXML(ByteArrayOutputStream read) {
+    /**
+     * Automatic refreshes ask for the friend list conditionally, polling
+     * refreshes (from the import wizard) always need the whole list.
+     */
+    private Map<String, String> getConditionalHeaders() {
+        if (polling_refresh) {
+            return null;
+        }
+        return CommunityServerManager.get().getFeedState(mRecord.getUrl())
+                .getConditionalHeaders();
+    }
+
+    private void processNotModified() {
+        logger.fine("[" + mRecord.getUrl() + "] friend list not modified");
+        refreshInterval = CommunityServerManager.get().feedNotModified(mRecord);
+        if (mTask != null) {
+            mTask.setSummary("Not modified.");
+        }
+    }
+
+    /**
+     * Automatic refreshes feed the friend list together with the validators
+     * of <code>conn</code>, so the next refresh is only conditional on a list
+     * that was actually fed.
+     */
+    private void processAsXML(ByteArrayOutputStream read, HttpURLConnection conn) {
 
         ByteArrayInputStream input = new ByteArrayInputStream(read.toByteArray());
 
@@ -262,6 +294,7 @@ public class KeyPublishOp extends CommunityServerOperation {
             NodeList root = doc.getElementsByTagName(CommunityConstants.RESPONSE_ROOT);
             Node response = root.item(0);
             NodeList firstLevel = response.getChildNodes();
+            List<String[]> autoFeed = null;
             for (int i = 0; i < firstLevel.getLength(); i++) {
                 Node kid = firstLevel.item(i);
                 if (kid.getLocalName().equals(CommunityConstants.REFRESH_INTERVAL)) {
@@ -271,10 +304,9 @@ public class KeyPublishOp extends CommunityServerOperation {
                     // these will appear as friend notifications
                     List<String[]> parsed = parseFriendList(kid);
                     if (polling_refresh == false) {
-                        logger.finer("automatic refresh, adding to community manager");
-                        // for( String [] entry : parsed ) {
-                        CommunityServerManager.get().feed(parsed, mRecord);
-                        // }
+                        // fed below, the refresh interval might come after
+                        // the list
+                        autoFeed = parsed;
                     } else { // these will be requested explicitly by the client
                              // in the backend task
                         logger.finer("polling refresh, adding to backend task");
@@ -302,6 +334,10 @@ public class KeyPublishOp extends CommunityServerOperation {
                 }
             }
 
+            if (autoFeed != null) {
+                logger.finer("automatic refresh, adding to community manager");
+                CommunityServerManager.get().feed(autoFeed, mRecord, conn, refreshInterval);
+            }
         } catch (ParserConfigurationException e) {
             // couldn't even create an empty doc
             logger.warning("Exception during XML processing: " + e.toString());
@@ -312,7 +348,6 @@ public class KeyPublishOp extends CommunityServerOperation {
             e.printStackTrace();
             logger.warning("Null pointer exception while processing community server response");
         }
-
     }
 
     private void reissueWithResponse(long challenge) {
@@ -343,18 +378,25 @@ public class KeyPublishOp extends CommunityServerOperation {
                     + URLEncoder.encode(Base64.encode(encrypted_response), "UTF-8");
             // System.out.println("url str: " + urlStr);
             URL url = new URL(urlStr);
-            HttpURLConnection conn = getConnection(url);
+            HttpURLConnection conn = getConnection(url, getConditionalHeaders());
 
             if (cancelled) {
                 return;
             }
 
+            if (conn.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                processNotModified();
+                return;
+            }
+
             ByteArrayOutputStream bytes = new ByteArrayOutputStream();
 
-            mTask.setSummary("Reading response...");
+            if (mTask != null) {
+                mTask.setSummary("Reading response...");
+            }
 
             readLimitedInto(conn, MAX_READ_BYTES, bytes);
-            processAsXML(bytes);
+            processAsXML(bytes, conn);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -8,6 +8,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.Semaphore;
@@ -119,6 +120,9 @@ public class FFMpegWrapper implements RequiresShutdown {
     private final int videorate;
     private final double startAtSecond;
 
+    /** null if the output shouldn't be cached */
+    private final String cacheKey;
+
     public FFMpegWrapper(CoreInterface coreInterface, DiskManagerFileInfo sourceFile,
             Download download, boolean remote, double startAtByte) throws TorrentException {
         this.remoteAccess = remote;
@@ -131,6 +135,8 @@ public class FFMpegWrapper implements RequiresShutdown {
         this.videorate = getVideoBitRate(audiorate);
         this.streamByteRate = (videorate + audiorate) / 8;
         this.startAtSecond = startAtByte / streamByteRate;
+        this.cacheKey = FlvSegmentCache.getKey(torrent.getHash(), sourceFile.getIndex(),
+                audiorate, videorate);
 
         coreInterface.addShutdownObject(this);
     }
@@ -152,11 +158,19 @@ public class FFMpegWrapper implements RequiresShutdown {
         this.videorate = getVideoBitRate(audiorate);
         this.streamByteRate = (videorate + audiorate) / 8;
         this.startAtSecond = 0;
+        this.cacheKey = null;
 
     }
 
+    /**
+     * @param cached the part of the stream the transcode cache has, ffmpeg
+     *            starts where it ends. null to transcode from
+     *            <code>startAtSecond</code>.
+     */
     private void createNewFileConverter(File sourceFile, OutputStream destinationStream,
-            MovieStreamInfo movieInfo) throws FFMpegException, InterruptedException {
+            MovieStreamInfo movieInfo, FlvSegmentCache.SegmentReader cached)
+            throws FFMpegException, InterruptedException {
+        double seekSecond = cached == null ? startAtSecond : cached.getEndSecond();
 
         if (!sourceFile.exists()) {
             throw new FFMpegException(FFMpegException.ErrorType.FILE_NOT_FOUND,
@@ -172,7 +186,7 @@ public class FFMpegWrapper implements RequiresShutdown {
         }
         logger.fine("using file: '" + sourceFileName + "'");
 
-        String[] mpegExecArray = getFFMpegExecArray(sourceFileName, movieInfo);
+        String[] mpegExecArray = getFFMpegExecArray(sourceFileName, movieInfo, seekSecond);
         try {
             converter = new ProcessBuilder(mpegExecArray).start();
         } catch (IOException e) {
@@ -191,9 +205,28 @@ public class FFMpegWrapper implements RequiresShutdown {
 
         InputStream ffmpegOutput = converter.getInputStream();
 
+        FlvSegmentCache.SegmentWriter cacheWriter = null;
+        if (cacheKey != null) {
+            try {
+                cacheWriter = FlvSegmentCache.get().startSegment(cacheKey, seekSecond);
+                ffmpegOutput = cacheWriter.record(ffmpegOutput);
+            } catch (IOException e) {
+                logger.warning("unable to cache transcoded output: " + e.getMessage());
+            }
+        }
+
+        double streamStartSecond = startAtSecond;
+        if (cached != null) {
+            // ffmpeg's tags follow the cached ones
+            int offsetMillis = (int) Math.round((seekSecond - cached.getStartSecond()) * 1000);
+            ffmpegOutput = new SequenceInputStream(cached, new FlvSegmentCache.ShiftedStream(
+                    ffmpegOutput, offsetMillis));
+            streamStartSecond = cached.getStartSecond();
+        }
+
         FlvOutputBufferManager flvTool2ToWebBufferHandler = new FlvOutputBufferManager(
                 ffmpegOutput, destinationStream, audiorate, videorate, false, movieInfo,
-                startAtSecond);
+                streamStartSecond);
 
         Thread t = new Thread(flvTool2ToWebBufferHandler);
         t.setName("BufferHandler");
@@ -208,8 +241,27 @@ public class FFMpegWrapper implements RequiresShutdown {
         logger.fine("ffmpeg to web handler finished");
 
         if (converter != null) {
-            converter.destroy();
-            int converterExitVal = converter.waitFor();
+            boolean reachedEnd = flvTool2ToWebBufferHandler.reachedEnd();
+            if (!reachedEnd) {
+                converter.destroy();
+            }
+            // else ffmpeg closed its output and is exiting, let it so that we
+            // know whether it finished successfully
+            int converterExitVal = -1;
+            try {
+                converterExitVal = converter.waitFor();
+            } finally {
+                if (cacheWriter != null) {
+                    if (!reachedEnd) {
+                        // keep what was transcoded up to the seek
+                        cacheWriter.commit(false);
+                    } else if (converterExitVal == 0) {
+                        cacheWriter.commit(true);
+                    } else {
+                        cacheWriter.abort();
+                    }
+                }
+            }
             if (converterExitVal == 255) {
                 logger.fine("ffmpeg got killed (exit 255)");
             } else if (converterExitVal != 0) {
@@ -227,7 +279,7 @@ public class FFMpegWrapper implements RequiresShutdown {
     private void createNewStreamConverter(InputStream sourceStream,
             ServletOutputStream destinationStream, MovieStreamInfo movieInfo)
             throws FFMpegException, InterruptedException {
-        String[] mpegExecArray = getFFMpegExecArray("-", movieInfo);
+        String[] mpegExecArray = getFFMpegExecArray("-", movieInfo, startAtSecond);
         try {
             converter = new ProcessBuilder(mpegExecArray).start();
         } catch (IOException e) {
@@ -334,8 +386,8 @@ public class FFMpegWrapper implements RequiresShutdown {
         return audioRate;
     }
 
-    private String[] getFFMpegExecArray(String sourceFile, MovieStreamInfo movieInfo)
-            throws FFMpegException {
+    private String[] getFFMpegExecArray(String sourceFile, MovieStreamInfo movieInfo,
+            double seekSecond) throws FFMpegException {
         // set the maximum rate allowed
         int videoRate = (int) (videorate / FFMPEG_UNITS);
         int audioRate = (int) (audiorate / FFMPEG_UNITS);
@@ -353,10 +405,10 @@ public class FFMpegWrapper implements RequiresShutdown {
         // parameters.add("-threads");
         // parameters.add("" + Runtime.getRuntime().availableProcessors());
 
-        if (startAtSecond > 0) {
+        if (seekSecond > 0) {
             parameters.add("-ss");
-            parameters.add("" + startAtSecond);
-            logger.fine("seeking to " + startAtSecond + " s");
+            parameters.add("" + seekSecond);
+            logger.fine("seeking to " + seekSecond + " s");
         }
 
         parameters.add("-i");
@@ -495,11 +547,64 @@ public class FFMpegWrapper implements RequiresShutdown {
 
         ServletOutputStream responseStream = response.getOutputStream();
 
+        if (playFromCache(responseStream, movieStreamInfo)) {
+            return;
+        }
         logger.fine("file download is complete, just passing path to FFMpeg");
-        createNewFileConverter(fileInfo.getFile(), responseStream, movieStreamInfo);
+        createNewFileConverter(fileInfo.getFile(), responseStream, movieStreamInfo, null);
 
     }
 
+    /**
+     * Plays the file from the transcode cache if an earlier ffmpeg run covers
+     * the requested start. If that run was stopped early, ffmpeg continues
+     * from where it stopped once the cached part has been sent.
+     * 
+     * @return false if there is nothing in the cache
+     */
+    private boolean playFromCache(OutputStream destinationStream, MovieStreamInfo movieInfo)
+            throws FFMpegException, InterruptedException {
+        if (cacheKey == null) {
+            return false;
+        }
+        FlvSegmentCache cache = FlvSegmentCache.get();
+        FlvSegmentCache.Segment segment = cache.find(cacheKey, startAtSecond);
+        if (segment == null) {
+            return false;
+        }
+        try {
+            FlvSegmentCache.SegmentReader in;
+            try {
+                in = segment.open(startAtSecond);
+            } catch (IOException e) {
+                logger.warning("dropping unreadable transcode cache segment " + segment + ": "
+                        + e.getMessage());
+                cache.remove(segment);
+                return false;
+            }
+            logger.fine("playing from transcode cache: " + segment + " starting at "
+                    + in.getStartSecond() + "s");
+            try {
+                if (segment.isComplete()) {
+                    FlvOutputBufferManager cacheToWebBufferHandler = new FlvOutputBufferManager(
+                            in, destinationStream, audiorate, videorate, false, movieInfo,
+                            in.getStartSecond(), false);
+                    cacheToWebBufferHandler.run();
+                } else {
+                    createNewFileConverter(fileInfo.getFile(), destinationStream, movieInfo, in);
+                }
+            } finally {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+            return true;
+        } finally {
+            cache.release(segment);
+        }
+    }
+
     private void handleFFMpegStream(InOrderType type, HttpServletResponse response,
             HttpServletRequest request, MovieStreamInfo movieStreamInfo, InputStream sourceStream)
             throws IOException, FFMpegException, InterruptedException {
@@ -33,9 +33,13 @@ class FlvOutputBufferManager implements Runnable {
 
     private volatile boolean quit = false;
 
+    private volatile boolean reachedEnd = false;
+
     // private final int bufferSize = 1024 * 64;
 
-    private final int bufferSize = 5487;
+    private final int bufferSize;
+
+    private final boolean throttle;
 
     private long total = 0;
 
@@ -52,8 +56,21 @@ class FlvOutputBufferManager implements Runnable {
 
     public FlvOutputBufferManager(InputStream source, OutputStream dest, double audiorate,
             double videorate, boolean start, MovieStreamInfo movieInfo, double startAtSecond) {
+        this(source, dest, audiorate, videorate, start, movieInfo, startAtSecond, true);
+    }
+
+    /**
+     * @param throttle
+     *            false if the source isn't ffmpeg (the transcode cache), then
+     *            there is no cpu to save and we copy as fast as we can
+     */
+    public FlvOutputBufferManager(InputStream source, OutputStream dest, double audiorate,
+            double videorate, boolean start, MovieStreamInfo movieInfo, double startAtSecond,
+            boolean throttle) {
         this.source = new BufferedInputStream(source);
         this.dest = dest;
+        this.throttle = throttle;
+        this.bufferSize = throttle ? 5487 : 64 * 1024;
         this.dataRate = Math.max((videorate + audiorate) / 8, MIN_STREAM_RATE);
         this.videorate = videorate;
         this.audiorate = audiorate;
@@ -76,6 +93,13 @@ class FlvOutputBufferManager implements Runnable {
         this.quit = true;
     }
 
+    /**
+     * @return true if everything in the source was copied
+     */
+    public boolean reachedEnd() {
+        return reachedEnd;
+    }
+
     private void handleMetaInfo() throws IOException {
         logger.fine("injecting metainfo");
         byte[] header = new byte[100 * 1000];
@@ -208,6 +232,9 @@ class FlvOutputBufferManager implements Runnable {
                 dest.write(buffer, 0, len);
                 dest.flush();
                 logger.finest("wrote " + len + " bytes (" + total + " total)");
+                if (!throttle) {
+                    continue;
+                }
                 double converted = total / dataRate;
                 long timeUsed = System.currentTimeMillis() - startTime;
 
@@ -219,6 +246,9 @@ class FlvOutputBufferManager implements Runnable {
                     Thread.sleep(sleepTime);
                 }
             }
+            if (!quit) {
+                reachedEnd = true;
+            }
         } catch (org.mortbay.jetty.EofException e) {
             logger.fine("connection closed");
         } catch (IOException e) {
@@ -0,0 +1,805 @@
+package edu.washington.cs.oneswarm.ui.gwt.server.ffmpeg;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.gudy.azureus2.core3.config.COConfigurationManager;
+import org.gudy.azureus2.core3.util.ByteFormatter;
+import org.gudy.azureus2.core3.util.SystemProperties;
+
+/**
+ * On-disk cache of the FLV that ffmpeg produces for the flash player, so that
+ * playing a file again, or seeking into a part of it that was transcoded
+ * before, doesn't need ffmpeg.
+ *
+ * A segment is the raw output of one ffmpeg run, from the second it was
+ * started at to the end of the file or, if the run was stopped early (the
+ * player seeked or went away), to the last complete tag it wrote. While a
+ * segment is written we record where its keyframes are; a request for a later
+ * second that the segment covers is served from the last keyframe before it,
+ * with the tag timestamps moved so that the stream starts at 0 like ffmpeg's
+ * would. Past the end of a partial segment ffmpeg takes over, see
+ * {@link ShiftedStream}.
+ *
+ * Segments are evicted least recently used first once the cache is larger
+ * than the "oneswarm.transcode.cache.mb" setting.
+ */
+class FlvSegmentCache {
+    private static Logger logger = Logger.getLogger(FlvSegmentCache.class.getName());
+
+    public static final String CACHE_SIZE_PARAM = "oneswarm.transcode.cache.mb";
+    private static final int CACHE_SIZE_DEFAULT_MB = 2048;
+
+    private static final String SEGMENT_SUFFIX = ".flv";
+    private static final String INDEX_SUFFIX = ".kf";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int INDEX_VERSION = 2;
+
+    /**
+     * partial segments shorter than this aren't kept, and aren't used for
+     * requests closer than this to their end
+     */
+    static final long MIN_PARTIAL_MILLIS = 5000;
+
+    private static final int TAG_AUDIO = 8;
+    private static final int TAG_VIDEO = 9;
+    private static final int TAG_SCRIPT = 18;
+    private static final int TAG_HEADER_SIZE = 11;
+
+    private static FlvSegmentCache instance;
+
+    static synchronized FlvSegmentCache get() {
+        if (instance == null) {
+            instance = new FlvSegmentCache(new File(SystemProperties.getUserPath(),
+                    "transcode_cache"));
+        }
+        return instance;
+    }
+
+    /**
+     * @return the part of the cache key that identifies what is transcoded
+     *         and how.
+     */
+    static String getKey(byte[] infohash, int fileIndex, int audiorate, int videorate) {
+        return ByteFormatter.encodeString(infohash) + "_" + fileIndex + "_" + audiorate + "_"
+                + videorate;
+    }
+
+    private final File dir;
+
+    // access ordered, the least recently used segment first
+    private final LinkedHashMap<String, Segment> segments = new LinkedHashMap<String, Segment>(
+            16, 0.75f, true);
+
+    private long totalSize = 0;
+
+    FlvSegmentCache(File dir) {
+        this.dir = dir;
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File o1, File o2) {
+                long m1 = o1.lastModified();
+                long m2 = o2.lastModified();
+                return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+            }
+        });
+        for (File f : files) {
+            String name = f.getName();
+            if (name.endsWith(SEGMENT_SUFFIX)) {
+                String base = name.substring(0, name.length() - SEGMENT_SUFFIX.length());
+                int split = base.lastIndexOf('_');
+                File index = new File(dir, base + INDEX_SUFFIX);
+                try {
+                    if (split < 0 || !index.exists()) {
+                        throw new NumberFormatException("no index");
+                    }
+                    Segment s = new Segment(base.substring(0, split), Long.parseLong(base
+                            .substring(split + 1)), readEndMillis(index), f, index);
+                    segments.put(base, s);
+                    totalSize += s.size;
+                } catch (IOException e) {
+                    logger.fine("removing unreadable file from transcode cache: " + f);
+                    f.delete();
+                    index.delete();
+                } catch (NumberFormatException e) {
+                    logger.fine("removing unknown file from transcode cache: " + f);
+                    f.delete();
+                    index.delete();
+                }
+            } else if (name.endsWith(TEMP_SUFFIX)) {
+                f.delete();
+            } else if (name.endsWith(INDEX_SUFFIX)) {
+                String base = name.substring(0, name.length() - INDEX_SUFFIX.length());
+                if (!new File(dir, base + SEGMENT_SUFFIX).exists()) {
+                    f.delete();
+                }
+            }
+        }
+        logger.fine("transcode cache: " + segments.size() + " segments, " + totalSize
+                + " bytes");
+        evict();
+    }
+
+    /**
+     * @return the end of the segment from its index, -1 if it is complete
+     */
+    private static long readEndMillis(File index) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(index));
+        try {
+            int version = in.readInt();
+            if (version == 1) {
+                // only complete runs were kept
+                return -1;
+            } else if (version != INDEX_VERSION) {
+                throw new IOException("unknown index version");
+            }
+            in.readLong();
+            return in.readLong();
+        } finally {
+            in.close();
+        }
+    }
+
+    private long getMaxSize() {
+        return COConfigurationManager.getIntParameter(CACHE_SIZE_PARAM, CACHE_SIZE_DEFAULT_MB)
+                * 1024L * 1024L;
+    }
+
+    /**
+     * @return the segment for <code>key</code> covering
+     *         <code>startAtSecond</code> that starts closest before it, or
+     *         null if there is none. The segment has to be released when done.
+     */
+    synchronized Segment find(String key, double startAtSecond) {
+        long startMillis = Math.round(startAtSecond * 1000);
+        Segment best = null;
+        for (Segment s : segments.values()) {
+            if (s.key.equals(key) && s.covers(startMillis)
+                    && (best == null || s.startMillis > best.startMillis)) {
+                best = s;
+            }
+        }
+        if (best != null) {
+            // moves it to the end of the lru order
+            segments.get(best.name);
+            best.readers++;
+            best.file.setLastModified(System.currentTimeMillis());
+        }
+        return best;
+    }
+
+    synchronized void release(Segment segment) {
+        segment.readers--;
+        evict();
+    }
+
+    /**
+     * Drops a segment that turned out to be unusable.
+     */
+    synchronized void remove(Segment segment) {
+        if (segments.remove(segment.name) != null) {
+            totalSize -= segment.size;
+        }
+        segment.file.delete();
+        segment.index.delete();
+    }
+
+    /**
+     * @return a writer for the output of an ffmpeg run started at
+     *         <code>startAtSecond</code>.
+     */
+    SegmentWriter startSegment(String key, double startAtSecond) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("unable to create " + dir);
+        }
+        return new SegmentWriter(key, Math.round(startAtSecond * 1000));
+    }
+
+    private synchronized void add(Segment segment) {
+        Segment old = segments.put(segment.name, segment);
+        if (old != null) {
+            totalSize -= old.size;
+        }
+        totalSize += segment.size;
+        logger.fine("added to transcode cache: " + segment + ", total " + totalSize + " bytes");
+        evict();
+    }
+
+    private synchronized void evict() {
+        long maxSize = getMaxSize();
+        for (Iterator<Segment> it = segments.values().iterator(); totalSize > maxSize
+                && it.hasNext();) {
+            Segment s = it.next();
+            // still being played, removing it would fail on windows
+            if (s.readers > 0) {
+                continue;
+            }
+            logger.fine("evicting from transcode cache: " + s);
+            it.remove();
+            totalSize -= s.size;
+            s.file.delete();
+            s.index.delete();
+        }
+    }
+
+    class Segment {
+        final String key;
+        final long startMillis;
+        /** where the run was stopped, -1 if it finished */
+        final long endMillis;
+        final String name;
+        final File file;
+        final File index;
+        final long size;
+        int readers = 0;
+
+        // read when first needed
+        private long preambleEnd = -1;
+        private int[] keyframeTimes;
+        private long[] keyframeOffsets;
+
+        Segment(String key, long startMillis, long endMillis, File file, File index) {
+            this.key = key;
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+            this.name = key + "_" + startMillis;
+            this.file = file;
+            this.index = index;
+            this.size = file.length() + index.length();
+        }
+
+        private synchronized void readIndex() throws IOException {
+            if (keyframeTimes != null) {
+                return;
+            }
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(index)));
+            try {
+                int version = in.readInt();
+                if (version != 1 && version != INDEX_VERSION) {
+                    throw new IOException("unknown index version");
+                }
+                long preambleEnd = in.readLong();
+                if (version == INDEX_VERSION) {
+                    in.readLong();
+                }
+                int count = in.readInt();
+                int[] times = new int[count];
+                long[] offsets = new long[count];
+                for (int i = 0; i < count; i++) {
+                    times[i] = in.readInt();
+                    offsets[i] = in.readLong();
+                }
+                this.preambleEnd = preambleEnd;
+                this.keyframeOffsets = offsets;
+                this.keyframeTimes = times;
+            } finally {
+                in.close();
+            }
+        }
+
+        boolean isComplete() {
+            return endMillis < 0;
+        }
+
+        boolean covers(long millis) {
+            return startMillis <= millis
+                    && (isComplete() || millis + MIN_PARTIAL_MILLIS <= endMillis);
+        }
+
+        /**
+         * @return the segment as ffmpeg would have produced it if started at
+         *         the last keyframe before <code>startAtSecond</code>.
+         */
+        SegmentReader open(double startAtSecond) throws IOException {
+            readIndex();
+            int target = (int) Math.round(startAtSecond * 1000 - startMillis);
+            int keyframe = -1;
+            for (int i = 0; i < keyframeTimes.length && keyframeTimes[i] <= target; i++) {
+                keyframe = i;
+            }
+            double endSecond = isComplete() ? -1 : endMillis / 1000.0;
+            if (preambleEnd < 0 || keyframe < 0) {
+                return new SegmentReader(file, -1, -1, 0, startMillis / 1000.0, endSecond);
+            }
+            return new SegmentReader(file, preambleEnd, keyframeOffsets[keyframe],
+                    keyframeTimes[keyframe], (startMillis + keyframeTimes[keyframe]) / 1000.0,
+                    endSecond);
+        }
+
+        public String toString() {
+            return name + (isComplete() ? "" : " (partial to " + endMillis + ")") + " ("
+                    + size + " bytes)";
+        }
+    }
+
+    /**
+     * Reads a segment: the FLV header and metadata tags, then the tags from
+     * a keyframe on with their timestamps moved back to start at 0.
+     */
+    static class SegmentReader extends InputStream {
+        private final InputStream in;
+        private final int baseMillis;
+        private final double startSecond;
+        private final double endSecond;
+        private long preambleLeft;
+        private long skip;
+
+        private byte[] tag = new byte[64 * 1024];
+        private int tagPos = 0;
+        private int tagLen = 0;
+        private boolean raw;
+
+        SegmentReader(File file, long preambleEnd, long offset, int baseMillis,
+                double startSecond, double endSecond) throws IOException {
+            this.in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+            this.baseMillis = baseMillis;
+            this.startSecond = startSecond;
+            this.endSecond = endSecond;
+            this.raw = preambleEnd < 0;
+            this.preambleLeft = preambleEnd;
+            this.skip = offset - preambleEnd;
+        }
+
+        /**
+         * @return the second of the file this stream starts at.
+         */
+        double getStartSecond() {
+            return startSecond;
+        }
+
+        /**
+         * @return the second of the file this stream ends at, -1 if it goes
+         *         to the end of the file.
+         */
+        double getEndSecond() {
+            return endSecond;
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int len = read(b, 0, 1);
+            return len == -1 ? -1 : b[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (raw) {
+                return in.read(b, off, len);
+            }
+            if (preambleLeft > 0) {
+                int read = in.read(b, off, (int) Math.min(len, preambleLeft));
+                if (read > 0) {
+                    preambleLeft -= read;
+                }
+                return read;
+            }
+            if (skip > 0) {
+                while (skip > 0) {
+                    long skipped = in.skip(skip);
+                    if (skipped <= 0) {
+                        return -1;
+                    }
+                    skip -= skipped;
+                }
+            }
+            if (tagPos == tagLen && !nextTag()) {
+                return -1;
+            }
+            int copy = Math.min(len, tagLen - tagPos);
+            System.arraycopy(tag, tagPos, b, off, copy);
+            tagPos += copy;
+            return copy;
+        }
+
+        private boolean nextTag() throws IOException {
+            DataInputStream data = new DataInputStream(in);
+            try {
+                data.readFully(tag, 0, TAG_HEADER_SIZE);
+                int size = readInt24(tag, 1);
+                // the body and the size of the tag that follows it
+                int len = TAG_HEADER_SIZE + size + 4;
+                if (tag.length < len) {
+                    byte[] bigger = new byte[len];
+                    System.arraycopy(tag, 0, bigger, 0, TAG_HEADER_SIZE);
+                    tag = bigger;
+                }
+                data.readFully(tag, TAG_HEADER_SIZE, size + 4);
+                tagPos = 0;
+                tagLen = len;
+            } catch (EOFException e) {
+                return false;
+            }
+            setTimestamp(tag, Math.max(0, getTimestamp(tag, 0) - baseMillis));
+            return true;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * The tags of an FLV stream without its file header and the script tags
+     * before the first audio or video tag, with the timestamps moved forward
+     * by <code>offsetMillis</code>. Used to continue a partial segment with
+     * the output of an ffmpeg run started where the segment ends.
+     */
+    static class ShiftedStream extends InputStream {
+        private final DataInputStream in;
+        private final int offsetMillis;
+        private boolean started = false;
+        private boolean media = false;
+
+        private byte[] tag = new byte[64 * 1024];
+        private int tagPos = 0;
+        private int tagLen = 0;
+
+        ShiftedStream(InputStream in, int offsetMillis) {
+            this.in = new DataInputStream(in);
+            this.offsetMillis = offsetMillis;
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int len = read(b, 0, 1);
+            return len == -1 ? -1 : b[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (tagPos == tagLen && !nextTag()) {
+                return -1;
+            }
+            int copy = Math.min(len, tagLen - tagPos);
+            System.arraycopy(tag, tagPos, b, off, copy);
+            tagPos += copy;
+            return copy;
+        }
+
+        private boolean nextTag() throws IOException {
+            try {
+                if (!started) {
+                    in.readFully(tag, 0, 9);
+                    if (tag[0] != 'F' || tag[1] != 'L' || tag[2] != 'V') {
+                        throw new IOException("not an flv stream");
+                    }
+                    long dataOffset = ((tag[5] & 0xffL) << 24) | readInt24(tag, 6);
+                    // up to the first tag, past the first PreviousTagSize
+                    in.readFully(new byte[(int) (dataOffset - 9 + 4)]);
+                    started = true;
+                }
+                while (true) {
+                    in.readFully(tag, 0, TAG_HEADER_SIZE);
+                    int type = tag[0] & 0x1f;
+                    int size = readInt24(tag, 1);
+                    int len = TAG_HEADER_SIZE + size + 4;
+                    if (tag.length < len) {
+                        byte[] bigger = new byte[len];
+                        System.arraycopy(tag, 0, bigger, 0, TAG_HEADER_SIZE);
+                        tag = bigger;
+                    }
+                    in.readFully(tag, TAG_HEADER_SIZE, size + 4);
+                    if (!media && type == TAG_SCRIPT) {
+                        // the metadata of the new run, the stream we follow
+                        // has its own
+                        continue;
+                    }
+                    media = true;
+                    setTimestamp(tag, getTimestamp(tag, 0) + offsetMillis);
+                    tagPos = 0;
+                    tagLen = len;
+                    return true;
+                }
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static int readInt24(byte[] b, int off) {
+        return ((b[off] & 0xff) << 16) | ((b[off + 1] & 0xff) << 8) | (b[off + 2] & 0xff);
+    }
+
+    private static int getTimestamp(byte[] tagHeader, int off) {
+        return readInt24(tagHeader, off + 4) | ((tagHeader[off + 7] & 0xff) << 24);
+    }
+
+    private static void setTimestamp(byte[] tagHeader, int time) {
+        tagHeader[4] = (byte) (time >> 16);
+        tagHeader[5] = (byte) (time >> 8);
+        tagHeader[6] = (byte) time;
+        tagHeader[7] = (byte) (time >> 24);
+    }
+
+    /**
+     * Writes ffmpeg's output to a temporary file while noting where the
+     * keyframes are and where the last complete tag ends. The segment only
+     * becomes part of the cache on {@link #commit(boolean)}.
+     */
+    class SegmentWriter {
+        private final String key;
+        private final long startMillis;
+        private final File temp;
+        private final long maxSize;
+        private OutputStream out;
+        private boolean failed = false;
+
+        // parser state
+        private static final int FILE_HEADER = 0;
+        private static final int SKIP = 1;
+        private static final int TAG_HEADER = 2;
+        private static final int VIDEO_FRAME_TYPE = 3;
+
+        private int state = FILE_HEADER;
+        private final byte[] header = new byte[TAG_HEADER_SIZE];
+        private int headerFill = 0;
+        private long skip = 0;
+        private long pos = 0;
+        private long tagStart;
+        private int tagTime;
+        private int tagType;
+        private long preambleEnd = -1;
+        // end and time of the last audio or video tag that was written
+        // entirely
+        private long mediaEnd = -1;
+        private int mediaTime = -1;
+
+        private final List<Integer> videoTimes = new ArrayList<Integer>();
+        private final List<Long> videoOffsets = new ArrayList<Long>();
+        // used if there is no video, audio tags about a second apart
+        private final List<Integer> audioTimes = new ArrayList<Integer>();
+        private final List<Long> audioOffsets = new ArrayList<Long>();
+
+        SegmentWriter(String key, long startMillis) throws IOException {
+            this.key = key;
+            this.startMillis = startMillis;
+            this.temp = File.createTempFile("segment", TEMP_SUFFIX, dir);
+            this.maxSize = getMaxSize();
+            this.out = new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024);
+        }
+
+        /**
+         * @return a stream that writes everything read from
+         *         <code>source</code> to this segment.
+         */
+        InputStream record(InputStream source) {
+            return new FilterInputStream(source) {
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) {
+                        write(new byte[] { (byte) b }, 0, 1);
+                    }
+                    return b;
+                }
+
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int read = super.read(b, off, len);
+                    if (read > 0) {
+                        write(b, off, read);
+                    }
+                    return read;
+                }
+            };
+        }
+
+        void write(byte[] b, int off, int len) {
+            if (failed) {
+                return;
+            }
+            try {
+                if (pos + len > maxSize) {
+                    throw new IOException("segment larger than the cache");
+                }
+                out.write(b, off, len);
+                parse(b, off, len);
+            } catch (IOException e) {
+                logger.fine("not caching transcoded segment: " + e.getMessage());
+                abort();
+            }
+        }
+
+        private void parse(byte[] b, int off, int len) throws IOException {
+            int end = off + len;
+            while (off < end) {
+                switch (state) {
+                case SKIP: {
+                    int n = (int) Math.min(skip, end - off);
+                    skip -= n;
+                    off += n;
+                    pos += n;
+                    if (skip == 0) {
+                        state = TAG_HEADER;
+                        if (preambleEnd >= 0 && (tagType == TAG_AUDIO || tagType == TAG_VIDEO)) {
+                            mediaEnd = pos;
+                            mediaTime = Math.max(mediaTime, tagTime);
+                        }
+                    }
+                    break;
+                }
+                case FILE_HEADER:
+                case TAG_HEADER: {
+                    int need = (state == FILE_HEADER ? 9 : TAG_HEADER_SIZE) - headerFill;
+                    int n = Math.min(need, end - off);
+                    System.arraycopy(b, off, header, headerFill, n);
+                    headerFill += n;
+                    off += n;
+                    pos += n;
+                    if (n < need) {
+                        break;
+                    }
+                    headerFill = 0;
+                    if (state == FILE_HEADER) {
+                        if (header[0] != 'F' || header[1] != 'L' || header[2] != 'V') {
+                            throw new IOException("not an flv stream");
+                        }
+                        long dataOffset = ((header[5] & 0xffL) << 24) | readInt24(header, 6);
+                        // up to the first tag, past the first PreviousTagSize
+                        skip = dataOffset - 9 + 4;
+                        state = skip > 0 ? SKIP : TAG_HEADER;
+                    } else {
+                        tagStart = pos - TAG_HEADER_SIZE;
+                        tagTime = getTimestamp(header, 0);
+                        int type = header[0] & 0x1f;
+                        int size = readInt24(header, 1);
+                        tagType = type;
+                        if ((type == TAG_AUDIO || type == TAG_VIDEO) && preambleEnd < 0) {
+                            preambleEnd = tagStart;
+                        }
+                        if (type == TAG_AUDIO) {
+                            int last = audioTimes.size() == 0 ? -1000 : audioTimes.get(audioTimes
+                                    .size() - 1);
+                            if (tagTime - last >= 1000) {
+                                audioTimes.add(tagTime);
+                                audioOffsets.add(tagStart);
+                            }
+                        }
+                        skip = size + 4;
+                        if (type == TAG_VIDEO && size > 0) {
+                            state = VIDEO_FRAME_TYPE;
+                        } else {
+                            state = SKIP;
+                        }
+                    }
+                    break;
+                }
+                case VIDEO_FRAME_TYPE: {
+                    if ((b[off] & 0xf0) == 0x10) {
+                        videoTimes.add(tagTime);
+                        videoOffsets.add(tagStart);
+                    }
+                    off++;
+                    pos++;
+                    skip--;
+                    state = SKIP;
+                    break;
+                }
+                }
+            }
+        }
+
+        /**
+         * Adds the segment to the cache.
+         *
+         * @param complete true if ffmpeg finished successfully, false if it
+         *            was stopped and only the complete tags written so far
+         *            are kept
+         */
+        void commit(boolean complete) {
+            if (failed) {
+                return;
+            }
+            try {
+                out.close();
+                out = null;
+                List<Integer> times = videoTimes.size() > 0 ? videoTimes : audioTimes;
+                List<Long> offsets = videoTimes.size() > 0 ? videoOffsets : audioOffsets;
+
+                long endMillis = -1;
+                if (!complete) {
+                    if (mediaTime < MIN_PARTIAL_MILLIS) {
+                        logger.fine("not caching short partial segment: " + mediaTime + " ms");
+                        abort();
+                        return;
+                    }
+                    endMillis = startMillis + mediaTime;
+                    // the tag ffmpeg was writing when it was stopped
+                    RandomAccessFile truncate = new RandomAccessFile(temp, "rw");
+                    try {
+                        truncate.setLength(mediaEnd);
+                    } finally {
+                        truncate.close();
+                    }
+                    int keep = 0;
+                    while (keep < offsets.size() && offsets.get(keep) < mediaEnd) {
+                        keep++;
+                    }
+                    times = times.subList(0, keep);
+                    offsets = offsets.subList(0, keep);
+                }
+
+                String name = key + "_" + startMillis;
+                File file = new File(dir, name + SEGMENT_SUFFIX);
+                File index = new File(dir, name + INDEX_SUFFIX);
+                File indexTemp = new File(dir, name + INDEX_SUFFIX + TEMP_SUFFIX);
+                DataOutputStream indexOut = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(indexTemp)));
+                try {
+                    indexOut.writeInt(INDEX_VERSION);
+                    indexOut.writeLong(preambleEnd);
+                    indexOut.writeLong(endMillis);
+                    indexOut.writeInt(times.size());
+                    for (int i = 0; i < times.size(); i++) {
+                        indexOut.writeInt(times.get(i));
+                        indexOut.writeLong(offsets.get(i));
+                    }
+                } finally {
+                    indexOut.close();
+                }
+                synchronized (FlvSegmentCache.this) {
+                    Segment old = segments.get(name);
+                    if (old != null) {
+                        if (old.isComplete() || (!complete && old.endMillis >= endMillis)) {
+                            // the one we have covers at least as much
+                            indexTemp.delete();
+                            abort();
+                            return;
+                        }
+                        if (old.readers > 0) {
+                            // someone is playing the one we have, keep it
+                            throw new IOException("segment in use");
+                        }
+                        remove(old);
+                    }
+                    if (!temp.renameTo(file) || !indexTemp.renameTo(index)) {
+                        file.delete();
+                        indexTemp.delete();
+                        throw new IOException("unable to rename " + temp);
+                    }
+                    add(new Segment(key, startMillis, endMillis, file, index));
+                }
+            } catch (IOException e) {
+                logger.warning("unable to add transcoded segment to cache: " + e.getMessage());
+                abort();
+            }
+        }
+
+        /**
+         * Throws away what was written, the segment is unusable.
+         */
+        void abort() {
+            failed = true;
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+                out = null;
+            }
+            temp.delete();
+        }
+    }
+}
@@ -3,6 +3,7 @@ package edu.washington.cs.oneswarm.ui.gwt.server.handlers;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -161,6 +162,7 @@ public class FileHandler extends AbstractHandler {
         }
 
         boolean useCache = true;
+        long lastModified = 0;
         /*
          * don't use cache for the index file, it is small and we need to modify
          * it when the language changes
@@ -183,6 +185,7 @@ public class FileHandler extends AbstractHandler {
                 }
                 last_modified = modifiedTimes.get(filename);
             }
+            lastModified = last_modified;
 
             if (last_modified > 0) {
                 long if_modified = request.getDateHeader(HttpHeaders.IF_MODIFIED_SINCE);
@@ -244,44 +247,80 @@ public class FileHandler extends AbstractHandler {
              * calc the content length
              */
             contentLength = 0;
-            while (inputstream.read() != -1) {
-                contentLength++;
+            byte[] buffer = new byte[8192];
+            int len;
+            while ((len = inputstream.read(buffer)) != -1) {
+                contentLength += len;
             }
+            inputstream.close();
             fileSizes.put(filename, contentLength);
             inputstream = classLoader.getResourceAsStream(fullPath);
             logger.finest("Calculated: File: " + filename + " content length: " + contentLength);
 
         }
 
-        ServletOutputStream outputstream = response.getOutputStream();
         String contentType = getContentType(filename);
-        response.setContentType(contentType);
-        response.setStatus(HttpServletResponse.SC_OK);
 
         /*
          * inject the language
          */
         if (INDEX_FILE_NAME.equals(filename)) {
+            ServletOutputStream outputstream = response.getOutputStream();
+            response.setContentType(contentType);
+            response.setStatus(HttpServletResponse.SC_OK);
             injectLocaleMetaTag(request, inputstream, outputstream);
+            outputstream.close();
         } else {
-            response.setContentLength(contentLength);
-            copyStream(inputstream, outputstream);
+            String etag = null;
+            if (lastModified > 0) {
+                etag = "\"" + Long.toHexString(lastModified) + "-"
+                        + Integer.toHexString(contentLength) + "\"";
+            }
+            HttpRanges.send(request, response, contentType, contentLength, etag, lastModified,
+                    new ResourceContent(fullPath, inputstream));
         }
 
-        outputstream.close();
         // response.getWriter().println("<h1>Hello</h1>");
         ((Request) request).setHandled(true);
         logger.finest("served: " + contentType + " " + filename);
         return true;
     }
 
-    private void copyStream(InputStream inputstream, OutputStream outputstream) throws IOException {
-        byte[] buffer = new byte[1024];
-        int len;
-        while ((len = inputstream.read(buffer)) > 0) {
-            outputstream.write(buffer, 0, len);
+    /**
+     * A resource from the class loader, opened again if the ranges requested
+     * go backwards.
+     */
+    private class ResourceContent extends HttpRanges.StreamContent {
+        private final String path;
+        private InputStream opened;
+
+        ResourceContent(String path, InputStream opened) {
+            this.path = path;
+            this.opened = opened;
+        }
+
+        protected InputStream open() throws IOException {
+            InputStream in = opened;
+            opened = null;
+            if (in == null) {
+                in = classLoader.getResourceAsStream(path);
+            }
+            if (in == null) {
+                throw new FileNotFoundException(path);
+            }
+            return in;
+        }
+
+        public void close() {
+            super.close();
+            if (opened != null) {
+                try {
+                    opened.close();
+                } catch (IOException e) {
+                }
+                opened = null;
+            }
         }
-        outputstream.flush();
     }
 
     private void injectLocaleMetaTag(HttpServletRequest request, InputStream in, OutputStream out)
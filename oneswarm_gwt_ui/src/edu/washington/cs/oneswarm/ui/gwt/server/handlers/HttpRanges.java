@@ -0,0 +1,402 @@
+package edu.washington.cs.oneswarm.ui.gwt.server.handlers;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.mortbay.jetty.HttpHeaders;
+
+/**
+ * Byte range requests (RFC 7233) for the handlers that serve file content.
+ * Handles single ranges, multipart/byteranges responses and If-Range
+ * validation; the content itself is provided by a {@link Content}.
+ */
+public class HttpRanges {
+    private static Logger logger = Logger.getLogger(HttpRanges.class.getName());
+
+    /**
+     * requests for more ranges than this (after merging overlapping ones) get
+     * the whole entity instead
+     */
+    private static final int MAX_RANGES = 16;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Random random = new Random();
+
+    public static class Range {
+        final long first;
+        final long last;
+
+        Range(long first, long last) {
+            this.first = first;
+            this.last = last;
+        }
+
+        long length() {
+            return last - first + 1;
+        }
+
+        String toContentRange(long entityLength) {
+            return "bytes " + first + "-" + last + "/" + entityLength;
+        }
+
+        public String toString() {
+            return first + "-" + last;
+        }
+    }
+
+    /**
+     * The body of a response. write() is called once per range, in the order
+     * the ranges are sent.
+     */
+    public interface Content {
+        void write(ServletOutputStream out, long offset, long length) throws IOException;
+
+        void close();
+    }
+
+    /**
+     * Parses a Range header value.
+     *
+     * @return the satisfiable ranges, an empty list if none of them is
+     *         satisfiable, or null if the header should be ignored (missing,
+     *         not in bytes, malformed or too many ranges)
+     */
+    static List<Range> parse(String header, long entityLength) {
+        if (header == null) {
+            return null;
+        }
+        header = header.trim();
+        if (header.regionMatches(true, 0, "bytes=", 0, 6) == false) {
+            return null;
+        }
+
+        List<Range> ranges = new ArrayList<Range>();
+        for (String spec : header.substring(6).split(",")) {
+            spec = spec.trim();
+            if (spec.length() == 0) {
+                continue;
+            }
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            try {
+                String firstPos = spec.substring(0, dash).trim();
+                String lastPos = spec.substring(dash + 1).trim();
+                if (firstPos.length() == 0) {
+                    // suffix range, the last n bytes
+                    long suffix = parsePos(lastPos);
+                    if (suffix > 0 && entityLength > 0) {
+                        ranges.add(new Range(Math.max(0, entityLength - suffix),
+                                entityLength - 1));
+                    }
+                } else {
+                    long first = parsePos(firstPos);
+                    long last = lastPos.length() == 0 ? Long.MAX_VALUE : parsePos(lastPos);
+                    if (last < first) {
+                        return null;
+                    }
+                    if (first < entityLength) {
+                        ranges.add(new Range(first, Math.min(last, entityLength - 1)));
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        ranges = coalesce(ranges);
+        if (ranges.size() > MAX_RANGES) {
+            logger.fine("too many ranges requested, sending everything: " + header);
+            return null;
+        }
+        return ranges;
+    }
+
+    private static long parsePos(String pos) {
+        for (int i = 0; i < pos.length(); i++) {
+            if (Character.isDigit(pos.charAt(i)) == false) {
+                throw new NumberFormatException(pos);
+            }
+        }
+        return Long.parseLong(pos);
+    }
+
+    /**
+     * Merges overlapping and adjacent ranges. Ranges that don't overlap are
+     * left in the order the client asked for them.
+     */
+    private static List<Range> coalesce(List<Range> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        List<Range> sorted = new ArrayList<Range>(ranges);
+        Collections.sort(sorted, new Comparator<Range>() {
+            public int compare(Range o1, Range o2) {
+                return o1.first < o2.first ? -1 : (o1.first == o2.first ? 0 : 1);
+            }
+        });
+        List<Range> merged = new ArrayList<Range>();
+        Range curr = sorted.get(0);
+        for (int i = 1; i < sorted.size(); i++) {
+            Range next = sorted.get(i);
+            if (next.first <= curr.last + 1) {
+                curr = new Range(curr.first, Math.max(curr.last, next.last));
+            } else {
+                merged.add(curr);
+                curr = next;
+            }
+        }
+        merged.add(curr);
+        return merged.size() == ranges.size() ? ranges : merged;
+    }
+
+    /**
+     * @return true if the request has no If-Range header or its validator
+     *         matches, i.e. the Range header should be honored. Only strong
+     *         entity tags match.
+     */
+    static boolean isIfRangeSatisfied(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("W/")) {
+            // weak validators can't vouch for byte ranges
+            return false;
+        }
+        if (ifRange.startsWith("\"")) {
+            return etag != null && etag.startsWith("W/") == false && ifRange.equals(etag);
+        }
+        if (lastModified <= 0) {
+            return false;
+        }
+        try {
+            long date = request.getDateHeader(HttpHeaders.IF_RANGE);
+            return date > 0 && date / 1000 == lastModified / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Sends <code>content</code> as the response to <code>request</code>:
+     * the whole entity, the requested ranges, or a 416 if none of them can
+     * be satisfied. The caller sets any other headers (Last-Modified, cache
+     * control...) first. Closes the content.
+     *
+     * @param etag a strong entity tag for the content, or null
+     * @param lastModified the modification time sent with the content, or 0
+     */
+    public static void send(HttpServletRequest request, HttpServletResponse response,
+            String contentType, long entityLength, String etag, long lastModified,
+            Content content) throws IOException {
+        try {
+            response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+            if (etag != null) {
+                response.setHeader(HttpHeaders.ETAG, etag);
+            }
+
+            List<Range> ranges = null;
+            if (isIfRangeSatisfied(request, etag, lastModified)) {
+                ranges = parse(request.getHeader(HttpHeaders.RANGE), entityLength);
+            }
+            boolean head = "HEAD".equals(request.getMethod());
+
+            if (ranges == null) {
+                response.setContentType(contentType);
+                response.setStatus(HttpServletResponse.SC_OK);
+                SharedFileHandler.setContentLength(response, entityLength);
+                if (!head) {
+                    ServletOutputStream out = response.getOutputStream();
+                    content.write(out, 0, entityLength);
+                    out.close();
+                }
+            } else if (ranges.size() == 0) {
+                logger.fine("unsatisfiable range: " + request.getHeader(HttpHeaders.RANGE));
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + entityLength);
+                response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            } else if (ranges.size() == 1) {
+                Range range = ranges.get(0);
+                logger.finer("sending range " + range + " of " + entityLength);
+                response.setContentType(contentType);
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader(HttpHeaders.CONTENT_RANGE, range.toContentRange(entityLength));
+                SharedFileHandler.setContentLength(response, range.length());
+                if (!head) {
+                    ServletOutputStream out = response.getOutputStream();
+                    content.write(out, range.first, range.length());
+                    out.close();
+                }
+            } else {
+                logger.finer("sending ranges " + ranges + " of " + entityLength);
+                sendMultipart(response, contentType, entityLength, ranges, content, head);
+            }
+        } finally {
+            content.close();
+        }
+    }
+
+    private static void sendMultipart(HttpServletResponse response, String contentType,
+            long entityLength, List<Range> ranges, Content content, boolean head)
+            throws IOException {
+        String boundary = Long.toHexString(random.nextLong() & Long.MAX_VALUE)
+                + Long.toHexString(System.currentTimeMillis());
+
+        byte[][] partHeaders = new byte[ranges.size()][];
+        byte[] end = ascii("\r\n--" + boundary + "--\r\n");
+        long length = end.length;
+        for (int i = 0; i < ranges.size(); i++) {
+            Range range = ranges.get(i);
+            partHeaders[i] = ascii("\r\n--" + boundary + "\r\n" + HttpHeaders.CONTENT_TYPE + ": "
+                    + contentType + "\r\n" + HttpHeaders.CONTENT_RANGE + ": "
+                    + range.toContentRange(entityLength) + "\r\n\r\n");
+            length += partHeaders[i].length + range.length();
+        }
+
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        SharedFileHandler.setContentLength(response, length);
+        if (head) {
+            return;
+        }
+        ServletOutputStream out = response.getOutputStream();
+        for (int i = 0; i < ranges.size(); i++) {
+            Range range = ranges.get(i);
+            out.write(partHeaders[i]);
+            content.write(out, range.first, range.length());
+        }
+        out.write(end);
+        out.close();
+    }
+
+    private static byte[] ascii(String s) {
+        try {
+            return s.getBytes("ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            return s.getBytes();
+        }
+    }
+
+    /**
+     * Content read from an input stream. Ranges later in the stream are
+     * reached by skipping, earlier ones by opening the stream again.
+     * <code>position</code> is the offset of the next byte the stream returns.
+     */
+    public static abstract class StreamContent implements Content {
+        private InputStream in;
+        protected long position;
+
+        protected abstract InputStream open() throws IOException;
+
+        public void write(ServletOutputStream out, long offset, long length) throws IOException {
+            seek(offset);
+            byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(length, 1))];
+            long end = offset + length;
+            while (position < end) {
+                int len = in.read(buffer, 0, (int) Math.min(buffer.length, end - position));
+                if (len == -1) {
+                    throw new EOFException("stream ended at " + position + ", expected " + end);
+                }
+                out.write(buffer, 0, len);
+                position += len;
+            }
+        }
+
+        protected void seek(long offset) throws IOException {
+            if (in == null || offset < position) {
+                close();
+                in = open();
+                position = 0;
+            }
+            while (position < offset) {
+                long skipped = in.skip(offset - position);
+                if (skipped <= 0) {
+                    // not every stream can skip, read through instead
+                    if (in.read() == -1) {
+                        throw new EOFException("seek past end of stream: " + offset);
+                    }
+                    skipped = 1;
+                }
+                position += skipped;
+            }
+        }
+
+        public void close() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+                in = null;
+            }
+        }
+    }
+
+    /**
+     * Content of a complete file on disk, read with positional reads so
+     * ranges can be sent in any order without reopening the file.
+     *
+     * The file isn't memory mapped: jetty keeps a buffer handed to it until
+     * the response completes, after this returns, so a mapping could neither
+     * be released here nor safely left to the garbage collector.
+     */
+    public static class FileContent implements Content {
+        private final File file;
+        private FileChannel channel;
+        private ByteBuffer buffer;
+
+        public FileContent(File file) {
+            this.file = file;
+        }
+
+        public void write(ServletOutputStream out, long offset, long length) throws IOException {
+            if (channel == null) {
+                channel = new FileInputStream(file).getChannel();
+            }
+            if (buffer == null) {
+                buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(length, 1)));
+            }
+            long pos = offset;
+            long end = offset + length;
+            while (pos < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - pos));
+                int len = channel.read(buffer, pos);
+                if (len == -1) {
+                    throw new EOFException(file + " ended at " + pos + ", expected " + end);
+                }
+                out.write(buffer.array(), 0, len);
+                pos += len;
+            }
+        }
+
+        public void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                }
+                channel = null;
+            }
+        }
+    }
+}
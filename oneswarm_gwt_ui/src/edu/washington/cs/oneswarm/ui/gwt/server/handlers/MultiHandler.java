@@ -22,6 +22,7 @@ import edu.washington.cs.oneswarm.ui.gwt.rpc.OneSwarmConstants;
 import edu.washington.cs.oneswarm.ui.gwt.server.FlashVideoConverterPlayer;
 import edu.washington.cs.oneswarm.ui.gwt.server.OneSwarmUIServiceImpl;
 import edu.washington.cs.oneswarm.ui.gwt.server.PreviewImageGenerator;
+import edu.washington.cs.oneswarm.ui.gwt.server.RpcStatsServlet;
 
 public class MultiHandler extends ServletHandler {
 
@@ -120,7 +121,8 @@ public class MultiHandler extends ServletHandler {
         // TODO we should change the /image to something more random...
         if ((target.startsWith(OneSwarmConstants.servletPath) && hasCookie)
                 || (target.startsWith("/oneswarmgwt/image") && hasCookie && !target
-                        .startsWith("/oneswarmgwt/images/"))) {
+                        .startsWith("/oneswarmgwt/images/"))
+                || (target.startsWith(RpcStatsServlet.PATH) && hasCookie)) {
             logger.finer("using servlet handler: " + target);
             super.handle(target, request, response, dispatch);
         } else if ((target.startsWith("/oneswarmgwt/flv_movie") && hasCookie)) {
@@ -144,8 +146,10 @@ public class MultiHandler extends ServletHandler {
 
     private void initializeServletHandler() {
         logger.info("initializing UI service impl...");
-        super.addServletWithMapping(new ServletHolder(new OneSwarmUIServiceImpl(coreInterface,
-                remote)), OneSwarmConstants.servletPath);
+        OneSwarmUIServiceImpl uiService = new OneSwarmUIServiceImpl(coreInterface, remote);
+        super.addServletWithMapping(new ServletHolder(uiService), OneSwarmConstants.servletPath);
+        super.addServletWithMapping(new ServletHolder(new RpcStatsServlet(uiService
+                .getRpcStats())), RpcStatsServlet.PATH);
         super.addServletWithMapping(new ServletHolder((new PreviewImageGenerator())),
                 "/oneswarmgwt/image");
         // super.addServletWithMapping(new ServletHolder(
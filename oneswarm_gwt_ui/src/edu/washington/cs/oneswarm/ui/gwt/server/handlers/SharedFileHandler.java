@@ -1,7 +1,5 @@
 package edu.washington.cs.oneswarm.ui.gwt.server.handlers;
 
-import java.io.BufferedInputStream;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Enumeration;
@@ -11,8 +9,10 @@ import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.gudy.azureus2.core3.util.ByteFormatter;
 import org.gudy.azureus2.plugins.disk.DiskManagerFileInfo;
 import org.gudy.azureus2.plugins.download.Download;
+import org.gudy.azureus2.plugins.torrent.Torrent;
 import org.mortbay.io.Buffer;
 import org.mortbay.jetty.HttpHeaders;
 import org.mortbay.jetty.MimeTypes;
@@ -46,13 +46,31 @@ public class SharedFileHandler {
             mime = new String(mimebuffer.asArray());
         }
 
+        response.setHeader("Content-Disposition", "filename=\"" + fileInfo.getFile().getName()
+                + "\"");
+        HttpRanges.Content content;
         if (downloadCompleted) {
-            createNewFileSender(response, mime, 0);
+            logger.fine("sending completed file");
+            content = new HttpRanges.FileContent(fileInfo.getFile());
         } else {
-            InputStream sourceStream = download.getStats().getFileStream(fileInfo,
-                    getBitRate(request));
-            createNewStreamSender(response, sourceStream, mime);
+            logger.fine("sending running download");
+            content = new DownloadContent(getBitRate(request));
+        }
+        HttpRanges.send(request, response, mime, fileInfo.getLength(), getETag(), 0, content);
+    }
+
+    /**
+     * The bytes of a file in a torrent never change, so the info hash and
+     * file index make a strong entity tag that stays valid when the download
+     * completes.
+     */
+    private String getETag() {
+        Torrent torrent = download.getTorrent();
+        if (torrent == null) {
+            return null;
         }
+        return "\"" + ByteFormatter.encodeString(torrent.getHash()) + "-" + fileInfo.getIndex()
+                + "\"";
     }
 
     private int getBitRate(HttpServletRequest request) {
@@ -73,73 +91,51 @@ public class SharedFileHandler {
         return request.getUserPrincipal() == null;
     }
 
-    private void createNewFileSender(HttpServletResponse response, String mime, long startAtPos)
-            throws IOException {
-        logger.fine("sending completed file");
-        BufferedInputStream in = new BufferedInputStream(new FileInputStream(fileInfo.getFile()));
-        long skipped = 0;
-        if (startAtPos > fileInfo.getLength()) {
-            throw new IOException("seek attempted to pos>file size");
+    /**
+     * Reads a running download through the disk manager, waiting for pieces
+     * that are not there yet. If the download completes (and stops reading
+     * through the disk manager) while we are sending, continues from the
+     * file on disk.
+     */
+    private class DownloadContent extends HttpRanges.StreamContent {
+        private final int bitRate;
+        private HttpRanges.FileContent completed;
+
+        DownloadContent(int bitRate) {
+            this.bitRate = bitRate;
         }
-        while (skipped < startAtPos) {
-            skipped += in.skip(startAtPos);
-            logger.finer("seeking in completed file, pos= " + skipped + " target=" + startAtPos);
-        }
-        if (startAtPos == 0) {
-            response.setContentType(mime);
-            response.setStatus(HttpServletResponse.SC_OK);
-            response.setHeader("Content-Disposition", "filename=\"" + fileInfo.getFile().getName()
-                    + "\"");
-            setContentLength(response, fileInfo.getLength());
-        }
-        ServletOutputStream responseStream = response.getOutputStream();
 
-        int len = 0;
-        while ((len = in.read(buffer)) != -1 && !quit) {
-            responseStream.write(buffer, 0, len);
+        protected InputStream open() throws IOException {
+            return download.getStats().getFileStream(fileInfo, bitRate);
         }
-        responseStream.close();
-        in.close();
-    }
-
-    private boolean quit = false;
-
-    private void createNewStreamSender(HttpServletResponse response, InputStream sourceStream,
-            String mime) throws IOException {
 
-        logger.fine("sending running running download");
-        response.setContentType(mime);
-        response.setStatus(HttpServletResponse.SC_OK);
-        response.setHeader("Content-Disposition", "filename=\"" + fileInfo.getFile().getName()
-                + "\"");
-        setContentLength(response, fileInfo.getLength());
-
-        ServletOutputStream responseStream = response.getOutputStream();
-        int len = 0;
-        long pos = 0;
-        try {
-            while ((len = sourceStream.read(buffer)) != -1 && !quit) {
-                responseStream.write(buffer, 0, len);
-                pos += len;
-            }
-        } catch (IOException e) {
-            /*
-             * the file might have completed, the exception was thrown because
-             * the download stopped in that case, read the real file instead of
-             * trying to read it through the disk manager
-             */
-            if (fileInfo.getDownloaded() == fileInfo.getLength()) {
-                createNewFileSender(response, mime, pos);
+        public void write(ServletOutputStream out, long offset, long length) throws IOException {
+            if (completed != null) {
+                completed.write(out, offset, length);
                 return;
-            } else {
-                throw e;
+            }
+            try {
+                super.write(out, offset, length);
+            } catch (IOException e) {
+                if (fileInfo.getDownloaded() != fileInfo.getLength()) {
+                    throw e;
+                }
+                long done = Math.max(0, position - offset);
+                logger.fine("download completed while streaming, switching to file at "
+                        + (offset + done));
+                super.close();
+                completed = new HttpRanges.FileContent(fileInfo.getFile());
+                completed.write(out, offset + done, length - done);
             }
         }
-        responseStream.close();
-        sourceStream.close();
-    }
 
-    private byte[] buffer = new byte[1024];
+        public void close() {
+            super.close();
+            if (completed != null) {
+                completed.close();
+            }
+        }
+    }
 
     public static void setContentLength(HttpServletResponse response, final double length) {
         if (length < Integer.MAX_VALUE) {
@@ -0,0 +1,161 @@
+package edu.washington.cs.oneswarm.watchdir;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.gudy.azureus2.core3.util.ByteFormatter;
+import org.gudy.azureus2.core3.util.SHA1Simple;
+import org.gudy.azureus2.core3.util.SystemProperties;
+
+/**
+ * Saves and loads an {@link UpdatingFileTree} so that a watch directory can
+ * be brought up to date at startup (and on every sync) by checking directory
+ * modification times instead of listing everything again.
+ */
+final class DirectorySnapshot {
+    private static Logger logger = Logger.getLogger(DirectorySnapshot.class.getName());
+
+    private static final int MAGIC = 0x4f534453;
+    private static final int VERSION = 1;
+
+    private static final byte FLAG_DIRECTORY = 1;
+    private static final byte FLAG_FRESH_CHILDREN = 2;
+
+    private DirectorySnapshot() {
+    }
+
+    /**
+     * @return the file the snapshot of the watch directory <code>path</code>
+     *         is kept in.
+     */
+    static File getIndexFile(String path) {
+        String name;
+        try {
+            name = ByteFormatter.encodeString(new SHA1Simple().calculateHash(path
+                    .getBytes("UTF-8")));
+        } catch (UnsupportedEncodingException e) {
+            name = Integer.toHexString(path.hashCode());
+        }
+        return new File(SystemProperties.getUserPath() + File.separator + "watchdir"
+                + File.separator + name + ".idx");
+    }
+
+    /**
+     * @return the tree saved in <code>index</code> for <code>root</code>,
+     *         null if there is none or it can't be read.
+     */
+    static UpdatingFileTree load(File index, File root, UpdatingFileTreeListener spawn) {
+        if (index.exists() == false) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                logger.warning("unknown watch directory snapshot format: " + index);
+                return null;
+            }
+            if (in.readUTF().equals(root.getPath()) == false) {
+                logger.warning("watch directory snapshot " + index + " is not for " + root);
+                return null;
+            }
+            return read(in, root, spawn);
+        } catch (IOException e) {
+            logger.warning("couldn't read watch directory snapshot " + index + ": " + e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private static UpdatingFileTree read(DataInputStream in, File file,
+            UpdatingFileTreeListener spawn) throws IOException {
+        byte flags = in.readByte();
+        long lastModified = in.readLong();
+        UpdatingFileTree node = new UpdatingFileTree(file, spawn, (flags & FLAG_DIRECTORY) != 0,
+                lastModified);
+        if (node.mIsDirectory) {
+            node.mHasFreshChildren = (flags & FLAG_FRESH_CHILDREN) != 0;
+            int count = in.readInt();
+            if (count < 0) {
+                throw new IOException("bad child count: " + count);
+            }
+            List<UpdatingFileTree> children = new ArrayList<UpdatingFileTree>(count);
+            for (int i = 0; i < count; i++) {
+                UpdatingFileTree c = read(in, new File(file, in.readUTF()), spawn);
+                children.add(c);
+                if (c.mIsDirectory) {
+                    node.mHasDirectoryChildren = true;
+                }
+            }
+            node.children = Collections.synchronizedList(children);
+        }
+        return node;
+    }
+
+    static void save(File index, UpdatingFileTree tree) throws IOException {
+        File dir = index.getParentFile();
+        if (dir.isDirectory() == false && dir.mkdirs() == false) {
+            throw new IOException("couldn't create " + dir);
+        }
+        File tmp = new File(index.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(tree.thisFile.getPath());
+            write(out, tree);
+        } finally {
+            out.close();
+        }
+        // renameTo doesn't replace existing files on windows
+        if (tmp.renameTo(index) == false
+                && (index.delete() == false || tmp.renameTo(index) == false)) {
+            throw new IOException("couldn't replace " + index);
+        }
+    }
+
+    private static void write(DataOutputStream out, UpdatingFileTree node) throws IOException {
+        byte flags = 0;
+        if (node.mIsDirectory) {
+            flags |= FLAG_DIRECTORY;
+        }
+        if (node.mHasFreshChildren) {
+            flags |= FLAG_FRESH_CHILDREN;
+        }
+        out.writeByte(flags);
+        out.writeLong(node.lastRefreshed);
+        if (node.mIsDirectory) {
+            List<UpdatingFileTree> children = new ArrayList<UpdatingFileTree>();
+            synchronized (node.children) {
+                for (UpdatingFileTree c : node.children) {
+                    if (!c.gone) {
+                        children.add(c);
+                    }
+                }
+            }
+            out.writeInt(children.size());
+            for (UpdatingFileTree c : children) {
+                out.writeUTF(c.thisFile.getName());
+                write(out, c);
+            }
+        }
+    }
+}
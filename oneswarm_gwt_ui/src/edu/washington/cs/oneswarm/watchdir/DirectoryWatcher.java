@@ -3,10 +3,10 @@ package edu.washington.cs.oneswarm.watchdir;
 import java.io.File;
 import java.io.IOException;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.logging.Logger;
@@ -36,6 +36,22 @@ public class DirectoryWatcher extends Thread implements UpdatingFileTreeListener
 
     private File watchFile;
 
+    /** where the tree is saved between scans (and restarts) */
+    private final File mIndexFile;
+
+    /** null if we're polling */
+    private NativeDirectoryEvents mEvents;
+    private boolean mEventsChecked = false;
+
+    /**
+     * Directories registered for events after they were listed. Something
+     * might have changed in between, so they are checked on the next scan.
+     */
+    private final Set<File> mUnverified = new HashSet<File>();
+
+    private boolean mScanned = false;
+    private long mSavedChecksum = 0;
+
     public DirectoryWatcher(MagicPath inMagicPath, int inPollWaitSecs) throws IOException {
         watchFile = new File(inMagicPath.getPath());
         if (watchFile.exists() == false) {
@@ -50,11 +66,7 @@ public class DirectoryWatcher extends Thread implements UpdatingFileTreeListener
 
         mPath = inMagicPath.getPath();
         mPollWaitSecs = inPollWaitSecs;
-
-        long start = System.currentTimeMillis();
-        logger.fine("initial scan of: " + mPath);
-        mTree = new UpdatingFileTree(watchFile, this, mMagicPath.getMaxDepth());
-        logger.fine("initial creation took: " + (System.currentTimeMillis() - start) + " ms");
+        mIndexFile = DirectorySnapshot.getIndexFile(mPath);
 
         setDaemon(true);
         setName("DirectoryWatcher: " + inMagicPath);
@@ -70,6 +82,148 @@ public class DirectoryWatcher extends Thread implements UpdatingFileTreeListener
 
     public void setDone() {
         mDone = true;
+        synchronized (this) {
+            if (mEvents != null) {
+                mEvents.close();
+                mEvents = null;
+            }
+        }
+    }
+
+    /**
+     * Polls for changes even if the runtime has change notifications.
+     */
+    synchronized void disableNativeEvents() {
+        mEventsChecked = true;
+        if (mEvents != null) {
+            mEvents.close();
+            mEvents = null;
+        }
+        mUnverified.clear();
+    }
+
+    synchronized boolean hasNativeEvents() {
+        return mEvents != null;
+    }
+
+    /**
+     * Removes the saved snapshot of the directory, for when it is no longer
+     * watched.
+     */
+    public void deleteIndex() {
+        mIndexFile.delete();
+    }
+
+    /**
+     * Brings the tree of the watch directory up to date. The tree is loaded
+     * from the last scan's snapshot and only the parts that changed since are
+     * listed again: with change notifications from the OS that is just the
+     * directories we got events for, otherwise every directory is checked for
+     * a new modification time.
+     */
+    public synchronized UpdatingFileTree scan() {
+        long start = System.currentTimeMillis();
+        if (mEventsChecked == false) {
+            mEventsChecked = true;
+            mEvents = NativeDirectoryEvents.create();
+        }
+
+        String how;
+        UpdatingFileTree tree = DirectorySnapshot.load(mIndexFile, watchFile, this);
+        if (tree == null) {
+            how = "full scan";
+            tree = new UpdatingFileTree(watchFile, this, mMagicPath.getMaxDepth());
+            registerAll(tree);
+        } else if (mEvents == null) {
+            how = "polling";
+            tree.update();
+        } else if (mScanned == false) {
+            how = "validating snapshot";
+            // register first, so that whatever changes after we checked a
+            // directory shows up as an event
+            registerAll(tree);
+            mUnverified.clear();
+            tree.update();
+            registerAll(tree);
+        } else {
+            how = "events";
+            try {
+                for (File dir : mEvents.drain()) {
+                    UpdatingFileTree node = tree.find(dir);
+                    /*
+                     * a deleted directory is reported by its parent, like
+                     * when polling, not once for every directory inside it
+                     */
+                    if (node != null && node.isDirectory() && dir.exists()) {
+                        node.rescan();
+                    }
+                }
+                for (File dir : mUnverified) {
+                    UpdatingFileTree node = tree.find(dir);
+                    if (node != null && node.isDirectory() && !node.gone) {
+                        node.check();
+                    }
+                }
+                mUnverified.clear();
+                checkFresh(tree);
+                registerAll(tree);
+            } catch (IOException e) {
+                fallBackToPolling(e);
+                tree.update();
+            }
+        }
+        mScanned = true;
+
+        long checksum = tree.modifiedChecksum();
+        if (checksum != mSavedChecksum) {
+            try {
+                DirectorySnapshot.save(mIndexFile, tree);
+                mSavedChecksum = checksum;
+            } catch (IOException e) {
+                logger.warning("couldn't save snapshot of " + mPath + ": " + e);
+            }
+        }
+        logger.fine(how + " of " + mPath + " took: " + (System.currentTimeMillis() - start)
+                + " ms" + (mEvents != null ? " (" + mEvents.size() + " watched)" : ""));
+        return tree;
+    }
+
+    private void checkFresh(UpdatingFileTree dir) {
+        if (dir.mHasFreshChildren) {
+            dir.check();
+        }
+        for (UpdatingFileTree c : dir.getDirectoryChildren()) {
+            checkFresh(c);
+        }
+    }
+
+    /**
+     * Registers all directories of the tree that aren't registered yet.
+     */
+    private void registerAll(UpdatingFileTree dir) {
+        if (mEvents == null || dir.gone) {
+            return;
+        }
+        if (mEvents.isRegistered(dir.getThisFile()) == false) {
+            try {
+                mEvents.register(dir.getThisFile());
+                mUnverified.add(dir.getThisFile());
+            } catch (IOException e) {
+                fallBackToPolling(e);
+                return;
+            }
+        }
+        for (UpdatingFileTree c : dir.getDirectoryChildren()) {
+            registerAll(c);
+        }
+    }
+
+    private void fallBackToPolling(IOException e) {
+        logger.warning("directory change notifications failed for " + mPath
+                + ", polling instead: " + e.getMessage());
+        mEvents.close();
+        mEvents = null;
+        mUnverified.clear();
     }
 
     public void addListener(DirectoryWatcherListener inListener) {
@@ -81,6 +235,9 @@ public class DirectoryWatcher extends Thread implements UpdatingFileTreeListener
     }
 
     public void broadcastChange(UpdatingFileTree path, boolean isDelete) {
+        if (isDelete && mEvents != null && path.isDirectory()) {
+            mEvents.unregister(path.getThisFile());
+        }
         synchronized (mListeners) {
             for (DirectoryWatcherListener listener : mListeners) {
                 if (isDelete) {
@@ -92,10 +249,6 @@ public class DirectoryWatcher extends Thread implements UpdatingFileTreeListener
         }
     }
 
-    /**
-     * TODO: would be nice to use filesystem notifications here. should be
-     * around in java7 (when will this reach macs? 2020?)
-     */
     public void run() {
         long start = System.currentTimeMillis();
 
@@ -110,10 +263,9 @@ public class DirectoryWatcher extends Thread implements UpdatingFileTreeListener
                 }
 
                 start = System.currentTimeMillis();
-                mTree.update();
+                mTree = scan();
                 long refreshTime = (System.currentTimeMillis() - start);
-                logger.fine("refresh took: " + refreshTime + " ("
-                        + mTree.thisFile.getAbsolutePath() + ")");
+                logger.fine("refresh took: " + refreshTime + " (" + mPath + ")");
 
                 // no less than 10 seconds but not more than 5 minutes
                 long waitTime = Math.min(Math.max(10 * 1000, 60 * refreshTime), 300 * 1000);
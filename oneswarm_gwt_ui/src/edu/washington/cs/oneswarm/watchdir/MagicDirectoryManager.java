@@ -108,6 +108,12 @@ public final class MagicDirectoryManager extends Thread implements ParameterList
 
     Map<String, DirectoryWatcher> watchers = new HashMap<String, DirectoryWatcher>();
 
+    /**
+     * The watch directories scanned by sync(), by config string. Kept between
+     * syncs so each can pick up where its last scan left off.
+     */
+    Map<String, DirectoryWatcher> scanners = new HashMap<String, DirectoryWatcher>();
+
     /**
      * Used to avoid the CPU overhead of deciding torrents for unchanged
      * directory trees.
@@ -251,7 +257,9 @@ public final class MagicDirectoryManager extends Thread implements ParameterList
     /**
      * We used to be much more proactive here -- maintaining file tree info and
      * periodically refreshing it. This used a lot of memory for large directory
-     * trees, so now we simply refresh all watch directories periodically.
+     * trees, so now we simply refresh all watch directories periodically. The
+     * trees are kept on disk between refreshes (see DirectoryWatcher.scan()),
+     * so a refresh only lists what changed.
      */
     private void sync() {
         logger.fine("sync()");
@@ -274,6 +282,9 @@ public final class MagicDirectoryManager extends Thread implements ParameterList
              */
             additionsToProcess.clear();
 
+            Map<String, DirectoryWatcher> oldScanners = scanners;
+            scanners = new HashMap<String, DirectoryWatcher>();
+
             /**
              * first pass: anything to add
              */
@@ -299,11 +310,20 @@ public final class MagicDirectoryManager extends Thread implements ParameterList
                 String path = magic.getPath();
                 if (watchers.containsKey(path) == false && !alreadyWatched(path)) {
                     try {
-                        logger.fine("new directoryWatcher: " + path);
-                        DirectoryWatcher dw = new DirectoryWatcher(magic, 60);
+                        DirectoryWatcher dw = oldScanners.remove(magic.toString());
+                        if (dw == null) {
+                            logger.fine("new directoryWatcher: " + path);
+                            dw = new DirectoryWatcher(magic, 60);
+                        }
+                        scanners.put(magic.toString(), dw);
+                        if (new File(path).isDirectory() == false) {
+                            // unmounted? keep its snapshot for when it's back
+                            logger.fine("watch directory missing: " + path);
+                            continue;
+                        }
                         // dw.start();
-                        additionsToProcess.put(new FileChange(dw.mTree, magic.getType(), new File(
-                                magic.getPath())));
+                        additionsToProcess.put(new FileChange(dw.scan(), magic.getType(),
+                                new File(magic.getPath())));
                         // dw.addListener(this);
                         // watchers.put(path, dw);
 
@@ -313,6 +333,12 @@ public final class MagicDirectoryManager extends Thread implements ParameterList
                 }
             }
 
+            // no longer watched
+            for (DirectoryWatcher dw : oldScanners.values()) {
+                dw.setDone();
+                dw.deleteIndex();
+            }
+
             int preferredIntervalMinutes = 0;
             try {
                 preferredIntervalMinutes = COConfigurationManager
@@ -0,0 +1,195 @@
+package edu.washington.cs.oneswarm.watchdir;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.gudy.azureus2.core3.util.Constants;
+
+/**
+ * Directory change notifications from the OS, through the java.nio.file
+ * WatchService of Java 7 and later runtimes. We still build for older
+ * runtimes, so everything goes through reflection; {@link #create()} returns
+ * null if the runtime doesn't have it.
+ *
+ * Notifications are not recursive, every directory is registered on its own.
+ * We only need to know which directories changed, the events themselves are
+ * thrown away.
+ */
+final class NativeDirectoryEvents {
+    private static Logger logger = Logger.getLogger(NativeDirectoryEvents.class.getName());
+
+    private static Method toPath;
+    private static Method register;
+    private static Method poll;
+    private static Method pollEvents;
+    private static Method reset;
+    private static Method cancel;
+    private static Method close;
+    private static Method newWatchService;
+    private static Object fileSystem;
+    private static Object kinds;
+
+    private static boolean available;
+
+    static {
+        try {
+            Class<?> watchService = Class.forName("java.nio.file.WatchService");
+            Class<?> watchKey = Class.forName("java.nio.file.WatchKey");
+            Class<?> path = Class.forName("java.nio.file.Path");
+            Class<?> kind = Class.forName("java.nio.file.WatchEvent$Kind");
+            Class<?> standardKinds = Class.forName("java.nio.file.StandardWatchEventKinds");
+
+            fileSystem = Class.forName("java.nio.file.FileSystems").getMethod("getDefault")
+                    .invoke(null);
+            newWatchService = Class.forName("java.nio.file.FileSystem").getMethod(
+                    "newWatchService");
+            toPath = File.class.getMethod("toPath");
+            kinds = Array.newInstance(kind, 3);
+            Array.set(kinds, 0, standardKinds.getField("ENTRY_CREATE").get(null));
+            Array.set(kinds, 1, standardKinds.getField("ENTRY_DELETE").get(null));
+            Array.set(kinds, 2, standardKinds.getField("ENTRY_MODIFY").get(null));
+            register = path.getMethod("register", watchService, kinds.getClass());
+            poll = watchService.getMethod("poll");
+            close = watchService.getMethod("close");
+            pollEvents = watchKey.getMethod("pollEvents");
+            reset = watchKey.getMethod("reset");
+            cancel = watchKey.getMethod("cancel");
+            available = true;
+        } catch (ClassNotFoundException e) {
+            logger.fine("no java.nio.file, directory watching will poll");
+        } catch (Exception e) {
+            logger.warning("couldn't set up directory change notifications: " + e);
+        }
+    }
+
+    private final Object watchService;
+    private final Map<Object, File> keyToDir = new HashMap<Object, File>();
+    private final Map<String, Object> dirToKey = new HashMap<String, Object>();
+
+    private NativeDirectoryEvents(Object watchService) {
+        this.watchService = watchService;
+    }
+
+    /**
+     * @return a new instance, or null if the runtime has no native change
+     *         notifications. The JDK falls back to statting every entry of
+     *         every registered directory every few seconds where it has none
+     *         (OS X), which is worse than our own polling. On windows every
+     *         registered directory is kept open, which stops users from
+     *         renaming the directories above it, so we poll there too.
+     */
+    static NativeDirectoryEvents create() {
+        if (!available || Constants.isWindows) {
+            return null;
+        }
+        try {
+            Object service = newWatchService.invoke(fileSystem);
+            if (service.getClass().getName().endsWith("PollingWatchService")) {
+                close.invoke(service);
+                return null;
+            }
+            return new NativeDirectoryEvents(service);
+        } catch (Exception e) {
+            logger.warning("couldn't create watch service: " + e);
+            return null;
+        }
+    }
+
+    boolean isRegistered(File dir) {
+        return dirToKey.containsKey(dir.getPath());
+    }
+
+    /**
+     * Starts watching <code>dir</code>.
+     *
+     * @throws IOException if the directory exists but can't be watched,
+     *             usually because we ran into the OS's limit.
+     */
+    void register(File dir) throws IOException {
+        if (isRegistered(dir)) {
+            return;
+        }
+        try {
+            Object key = register.invoke(toPath.invoke(dir), watchService, kinds);
+            keyToDir.put(key, dir);
+            dirToKey.put(dir.getPath(), key);
+        } catch (InvocationTargetException e) {
+            if (dir.isDirectory()) {
+                throw new IOException("couldn't watch " + dir + ": " + e.getCause());
+            }
+            // gone already, the parent's events will tell us
+        } catch (IllegalAccessException e) {
+            throw new IOException(e.toString());
+        }
+    }
+
+    /**
+     * @return the directories whose entries changed since the last call.
+     *         Directories that were deleted are no longer watched.
+     */
+    Set<File> drain() throws IOException {
+        Set<File> changed = new HashSet<File>();
+        try {
+            Object key;
+            while ((key = poll.invoke(watchService)) != null) {
+                List<?> events = (List<?>) pollEvents.invoke(key);
+                File dir = keyToDir.get(key);
+                if (dir == null) {
+                    continue;
+                }
+                if (events.size() > 0) {
+                    changed.add(dir);
+                }
+                if ((Boolean) reset.invoke(key) == false) {
+                    keyToDir.remove(key);
+                    dirToKey.remove(dir.getPath());
+                    changed.add(dir);
+                }
+            }
+        } catch (Exception e) {
+            throw new IOException("couldn't read directory change events: " + e);
+        }
+        return changed;
+    }
+
+    /**
+     * Stops watching <code>dir</code> and everything below it.
+     */
+    void unregister(File dir) {
+        String prefix = dir.getPath().endsWith(File.separator) ? dir.getPath() : dir.getPath()
+                + File.separator;
+        for (String path : dirToKey.keySet().toArray(new String[0])) {
+            if (path.equals(dir.getPath()) || path.startsWith(prefix)) {
+                Object key = dirToKey.remove(path);
+                keyToDir.remove(key);
+                try {
+                    cancel.invoke(key);
+                } catch (Exception e) {
+                }
+            }
+        }
+    }
+
+    int size() {
+        return dirToKey.size();
+    }
+
+    void close() {
+        keyToDir.clear();
+        dirToKey.clear();
+        try {
+            close.invoke(watchService);
+        } catch (Exception e) {
+            logger.fine("couldn't close watch service: " + e);
+        }
+    }
+}
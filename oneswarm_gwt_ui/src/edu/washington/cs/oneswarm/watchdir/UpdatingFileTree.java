@@ -4,13 +4,14 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 import org.gudy.azureus2.core3.util.Constants;
 
-import edu.uw.cse.netlab.reputation.GloballyAwareOneHopUnchoker;
-
 public class UpdatingFileTree {
 
     public static final long IDLE_THRESHOLD = 60 * 1000; // 1 minute without
@@ -18,14 +19,36 @@ public class UpdatingFileTree {
 
     private static Logger logger = Logger.getLogger(UpdatingFileTree.class.getName());
 
+    private static final FilenameFilter FILTER = new FilenameFilter() {
+        public boolean accept(File dir, String name) {
+            /**
+             * We don't want to hash trash on windows
+             */
+            if (name.toLowerCase().equals("recycler") && Constants.isWindows)
+                return false;
+
+            return name.startsWith(".") == false; // skip hidden files
+        }
+    };
+
     List<UpdatingFileTree> children = Collections
             .synchronizedList(new ArrayList<UpdatingFileTree>());
     File thisFile = null;
+    /**
+     * for directories: the modification time when the children were last
+     * listed
+     */
     long lastRefreshed = 0;
     boolean gone = false;
     private UpdatingFileTreeListener mSpawn;
     boolean mHasDirectoryChildren = false;
     String mRelativePath = null;
+    boolean mIsDirectory = false;
+    /**
+     * some entries were skipped as too fresh, so the directory needs to be
+     * listed again even if nothing else changes
+     */
+    boolean mHasFreshChildren = false;
 
     public UpdatingFileTree(File root) {
         this(root, new UpdatingFileTreeListener() {
@@ -44,44 +67,45 @@ public class UpdatingFileTree {
         mSpawn = spawn;
 
         lastRefreshed = thisFile.lastModified();
+        mIsDirectory = thisFile.isDirectory();
 
-        if (thisFile.isDirectory()) {
-            File[] files = thisFile.listFiles(new FilenameFilter() {
-                public boolean accept(File dir, String name) {
-                    /**
-                     * We don't want to hash trash on windows
-                     */
-                    if (name.toLowerCase().equals("recycler") && Constants.isWindows)
-                        return false;
-
-                    return name.startsWith(".") == false; // skip hidden files
-                }
-            });
+        if (mIsDirectory) {
+            File[] files = thisFile.listFiles(FILTER);
             if (files != null && maxDepth > 0) {
                 List<UpdatingFileTree> children = new ArrayList<UpdatingFileTree>(files.length);
                 for (int i = 0; i < files.length; i++) {
 
                     UpdatingFileTree c = new UpdatingFileTree(files[i], mSpawn);
-                    if (c != null) // we might not have perms everywhere...
-                    {
-                        if (c.thisFile.lastModified() + IDLE_THRESHOLD < System.currentTimeMillis()) {
-                            children.add(c);
-                            if (c.isDirectory()) {
-                                mHasDirectoryChildren = true;
-                            }
-                        } else {
-                            logger.fine("skipping fresh child: " + c.thisFile.getAbsolutePath());
+                    if (c.lastRefreshed + IDLE_THRESHOLD < System.currentTimeMillis()) {
+                        children.add(c);
+                        if (c.isDirectory()) {
+                            mHasDirectoryChildren = true;
                         }
+                    } else {
+                        logger.fine("skipping fresh child: " + c.thisFile.getAbsolutePath());
+                        mHasFreshChildren = true;
                     }
                 }
 
-                this.children = children;
+                this.children = Collections.synchronizedList(children);
             } else {
                 gone = true;
             }
         }
     }
 
+    /**
+     * Creates a node as it was recorded in a {@link DirectorySnapshot},
+     * without touching the disk.
+     */
+    UpdatingFileTree(File file, UpdatingFileTreeListener spawn, boolean isDirectory,
+            long lastModified) {
+        thisFile = file;
+        mSpawn = spawn;
+        mIsDirectory = isDirectory;
+        lastRefreshed = lastModified;
+    }
+
     public long getLastModified() {
         return lastRefreshed;
     }
@@ -96,77 +120,164 @@ public class UpdatingFileTree {
     }
 
     public boolean isDirectory() {
-        return thisFile.isDirectory();
+        return mIsDirectory;
     }
 
+    /**
+     * Brings the tree up to date with the disk. Each directory costs one
+     * stat, and only directories that changed since they were last listed
+     * are listed again. Like before, files modified in place are not
+     * reported.
+     */
     public void update() {
         logger.finest("update of: " + this.getThisFile().getAbsolutePath());
-        if (thisFile.lastModified() != lastRefreshed || mHasDirectoryChildren) {
+        if (mIsDirectory == false) {
             if (thisFile.exists() == false) {
-                this.gone = true;
+                markGone();
             }
+            return;
+        }
 
-            /**
-             * 1. check if children still there
-             */
-            mHasDirectoryChildren = false;
-            if (children != null) {
-                for (UpdatingFileTree c : children.toArray(new UpdatingFileTree[0])) {
-                    if (c.gone) {
-                        children.remove(c);
-                        logger.finest("child gone this pass: " + c.getThisFile().getAbsolutePath());
-                    } else {
-                        c.update();
-                        if (c.isDirectory()) {
-                            mHasDirectoryChildren = true;
-                        }
-                    }
+        check();
+        if (gone) {
+            return;
+        }
+        for (UpdatingFileTree c : getDirectoryChildren()) {
+            c.update();
+        }
+    }
+
+    /**
+     * Lists this directory again if it changed since it was last listed.
+     * Does not descend into subdirectories.
+     */
+    void check() {
+        long modified = thisFile.lastModified();
+        if (modified == 0 && thisFile.exists() == false) {
+            markGone();
+            return;
+        }
+        /*
+         * directory times can be as coarse as 2 seconds, so a directory that
+         * changed recently might change again without its time changing
+         */
+        if (modified != lastRefreshed || mHasFreshChildren
+                || modified + IDLE_THRESHOLD > System.currentTimeMillis()) {
+            rescan(modified);
+        }
+    }
+
+    /**
+     * Lists this directory again: children that are gone are removed and
+     * broadcast as deleted, new children are added and broadcast once they
+     * have been idle for IDLE_THRESHOLD. Subdirectories that are already in
+     * the tree are not descended into.
+     */
+    void rescan() {
+        long modified = thisFile.lastModified();
+        if (modified == 0 && thisFile.exists() == false) {
+            markGone();
+            return;
+        }
+        rescan(modified);
+    }
+
+    private void rescan(long modified) {
+        File[] files = thisFile.listFiles(FILTER);
+        if (files == null) {
+            if (thisFile.exists() == false) {
+                markGone();
+            }
+            return;
+        }
+
+        Map<String, UpdatingFileTree> existing = new HashMap<String, UpdatingFileTree>();
+        synchronized (children) {
+            for (UpdatingFileTree c : children) {
+                if (!c.gone) {
+                    existing.put(c.thisFile.getName(), c);
                 }
             }
+        }
 
-            /**
-             * 2. Check if there are new children
-             */
-            File[] files = thisFile.listFiles(new FilenameFilter() {
-                public boolean accept(File dir, String name) {
-                    return name.startsWith(".") == false; // skip hidden files
+        List<UpdatingFileTree> updated = new ArrayList<UpdatingFileTree>(files.length);
+        List<UpdatingFileTree> added = new ArrayList<UpdatingFileTree>();
+        boolean hasDirectoryChildren = false;
+        boolean hasFreshChildren = false;
+        for (int i = 0; i < files.length; i++) {
+            UpdatingFileTree c = existing.remove(files[i].getName());
+            if (c == null) {
+                c = new UpdatingFileTree(files[i], mSpawn);
+                long thresh = c.lastRefreshed + IDLE_THRESHOLD;
+                if (thresh >= System.currentTimeMillis()) {
+                    logger.fine("skipping too-fresh file: " + c.thisFile.getAbsolutePath() + " "
+                            + (thresh - System.currentTimeMillis()) + "ms left");
+                    hasFreshChildren = true;
+                    continue;
                 }
-            });
-            if (files != null) {
-                for (int i = 0; i < files.length; i++) {
-                    boolean newFile = true;
-                    for (UpdatingFileTree c : children) {
-                        if (c.thisFile.equals(files[i]) == true) {
-                            newFile = false;
-                            break;
-                        }
-                    }
-                    if (newFile) {
-                        UpdatingFileTree neu = new UpdatingFileTree(files[i], mSpawn);
-                        long thresh = neu.thisFile.lastModified() + IDLE_THRESHOLD;
-                        if (thresh < System.currentTimeMillis()) {
-                            children.add(neu);
-                            if (neu.isDirectory()) {
-                                mHasDirectoryChildren = true;
-                            }
-                            neu.broadcast();
-                        } else {
-                            logger.fine("skipping too-fresh file: "
-                                    + neu.thisFile.getAbsolutePath() + " "
-                                    + (thresh - System.currentTimeMillis()) + "s left");
-                        }
+                added.add(c);
+            } else if (c.mIsDirectory == false) {
+                c.lastRefreshed = files[i].lastModified();
+            }
+            updated.add(c);
+            if (c.isDirectory()) {
+                hasDirectoryChildren = true;
+            }
+        }
+
+        children = Collections.synchronizedList(updated);
+        mHasDirectoryChildren = hasDirectoryChildren;
+        mHasFreshChildren = hasFreshChildren;
+        lastRefreshed = modified;
+
+        for (UpdatingFileTree c : existing.values()) {
+            c.markGone();
+        }
+        for (UpdatingFileTree c : added) {
+            c.broadcast();
+        }
+    }
+
+    private void markGone() {
+        logger.finest(getThisFile().getAbsolutePath() + " is gone");
+        gone = true;
+        mSpawn.broadcastChange(this, true);
+    }
+
+    /**
+     * @return the node for <code>file</code> in this tree, null if there is
+     *         none.
+     */
+    UpdatingFileTree find(File file) {
+        String root = thisFile.getPath();
+        String path = file.getPath();
+        if (path.equals(root)) {
+            return this;
+        }
+        if (root.endsWith(File.separator) == false) {
+            root += File.separator;
+        }
+        if (path.startsWith(root) == false) {
+            return null;
+        }
+
+        UpdatingFileTree curr = this;
+        for (String name : path.substring(root.length()).split(Pattern.quote(File.separator))) {
+            UpdatingFileTree next = null;
+            synchronized (curr.children) {
+                for (UpdatingFileTree c : curr.children) {
+                    if (!c.gone && c.thisFile.getName().equals(name)) {
+                        next = c;
+                        break;
                     }
                 }
-            } else if (thisFile.exists() == false) {
-                logger.finest(getThisFile().getAbsolutePath() + " will be gone next pass");
-                gone = true; // will get removed during the next pass
-                mSpawn.broadcastChange(this, true);
             }
-        } else if (thisFile.exists() == false) {
-            logger.finest(getThisFile().getAbsolutePath() + " will be gone next pass");
-            gone = true; // will get removed during the next pass
-            mSpawn.broadcastChange(this, true);
+            if (next == null) {
+                return null;
+            }
+            curr = next;
         }
+        return curr;
     }
 
     public List<UpdatingFileTree> getDirectoryChildren() {
@@ -174,9 +285,11 @@ public class UpdatingFileTree {
             return new ArrayList<UpdatingFileTree>(0);
         } else {
             List<UpdatingFileTree> out = new ArrayList<UpdatingFileTree>();
-            for (UpdatingFileTree u : children) {
-                if (u.isDirectory() && !u.gone)
-                    out.add(u);
+            synchronized (children) {
+                for (UpdatingFileTree u : children) {
+                    if (u.isDirectory() && !u.gone)
+                        out.add(u);
+                }
             }
             return out;
         }
@@ -184,9 +297,11 @@ public class UpdatingFileTree {
 
     public List<UpdatingFileTree> getFileChildren() {
         List<UpdatingFileTree> out = new ArrayList<UpdatingFileTree>();
-        for (UpdatingFileTree u : children) {
-            if (u.isDirectory() == false && !u.gone)
-                out.add(u);
+        synchronized (children) {
+            for (UpdatingFileTree u : children) {
+                if (u.isDirectory() == false && !u.gone)
+                    out.add(u);
+            }
         }
         return out;
     }
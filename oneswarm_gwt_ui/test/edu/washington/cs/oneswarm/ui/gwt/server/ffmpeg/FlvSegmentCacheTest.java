@@ -0,0 +1,336 @@
+package edu.washington.cs.oneswarm.ui.gwt.server.ffmpeg;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.gudy.azureus2.core3.config.COConfigurationManager;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.washington.cs.oneswarm.test.util.OneSwarmTestBase;
+import edu.washington.cs.oneswarm.ui.gwt.server.ffmpeg.FlvSegmentCache.Segment;
+import edu.washington.cs.oneswarm.ui.gwt.server.ffmpeg.FlvSegmentCache.SegmentReader;
+import edu.washington.cs.oneswarm.ui.gwt.server.ffmpeg.FlvSegmentCache.SegmentWriter;
+import edu.washington.cs.oneswarm.ui.gwt.server.ffmpeg.FlvSegmentCache.ShiftedStream;
+
+/**
+ * Writes synthetic FLV streams through {@link SegmentWriter} into a cache in
+ * a temp directory and reads them back: keyframe seeks, the cut-off of
+ * partial runs, {@link ShiftedStream} and size eviction.
+ */
+public class FlvSegmentCacheTest extends OneSwarmTestBase {
+
+    private static final int AUDIO = 8;
+    private static final int VIDEO = 9;
+    private static final int SCRIPT = 18;
+
+    private static final String KEY = "key";
+
+    private File dir;
+    private int oldCacheSize;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("flvcache", "");
+        dir.delete();
+        dir.mkdirs();
+        oldCacheSize = COConfigurationManager.getIntParameter(FlvSegmentCache.CACHE_SIZE_PARAM,
+                2048);
+    }
+
+    @After
+    public void tearDown() {
+        COConfigurationManager.setParameter(FlvSegmentCache.CACHE_SIZE_PARAM, oldCacheSize);
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testOpenAtKeyframes() throws IOException {
+        FlvSegmentCache cache = new FlvSegmentCache(dir);
+        // 10 s of video from second 10, a frame every 100 ms, keyframes every 2 s
+        Flv flv = new Flv().script(0);
+        for (int t = 0; t < 10000; t += 100) {
+            flv.video(t, t % 2000 == 0, 50);
+        }
+        write(cache, 10.0, flv.toByteArray(), true);
+
+        Segment s = cache.find(KEY, 13.5);
+        Assert.assertNotNull(s);
+        Assert.assertTrue(s.isComplete());
+
+        // between keyframes: from the keyframe at 12 s, rebased to 0
+        SegmentReader r = s.open(13.5);
+        Assert.assertEquals(12.0, r.getStartSecond(), 0);
+        Assert.assertEquals(-1, r.getEndSecond(), 0);
+        List<int[]> tags = readFlv(r);
+        Assert.assertEquals(SCRIPT, tags.get(0)[0]);
+        Assert.assertEquals(80, tags.size() - 1);
+        for (int i = 1; i < tags.size(); i++) {
+            Assert.assertEquals(VIDEO, tags.get(i)[0]);
+            Assert.assertEquals((i - 1) * 100, tags.get(i)[1]);
+        }
+        Assert.assertEquals(1, tags.get(1)[2]);
+
+        // on a keyframe
+        r = s.open(14.0);
+        Assert.assertEquals(14.0, r.getStartSecond(), 0);
+        tags = readFlv(r);
+        Assert.assertEquals(60, tags.size() - 1);
+        Assert.assertEquals(0, tags.get(1)[1]);
+        Assert.assertEquals(1, tags.get(1)[2]);
+
+        // at the start, the stream as ffmpeg wrote it
+        r = s.open(10.0);
+        Assert.assertEquals(10.0, r.getStartSecond(), 0);
+        Assert.assertEquals(100, readFlv(r).size() - 1);
+        cache.release(s);
+
+        // the index is read back by a new cache
+        cache = new FlvSegmentCache(dir);
+        s = cache.find(KEY, 19.9);
+        Assert.assertNotNull(s);
+        Assert.assertEquals(18.0, s.open(19.9).getStartSecond(), 0);
+        cache.release(s);
+        Assert.assertNull(cache.find(KEY, 9.9));
+        Assert.assertNull(cache.find("other", 10.0));
+    }
+
+    @Test
+    public void testShiftedStream() throws IOException {
+        Flv flv = new Flv().script(0);
+        flv.video(0, true, 10);
+        flv.audio(20, 10);
+        flv.script(40);
+        flv.video(100, false, 10);
+
+        ShiftedStream shifted = new ShiftedStream(new ByteArrayInputStream(flv.toByteArray()),
+                7000);
+        DataInputStream in = new DataInputStream(shifted);
+        // no file header and no metadata of the new run, media tags first
+        List<int[]> tags = new ArrayList<int[]>();
+        int[] tag;
+        while ((tag = readTag(in)) != null) {
+            tags.add(tag);
+        }
+        Assert.assertEquals(4, tags.size());
+        Assert.assertEquals(VIDEO, tags.get(0)[0]);
+        Assert.assertEquals(7000, tags.get(0)[1]);
+        Assert.assertEquals(AUDIO, tags.get(1)[0]);
+        Assert.assertEquals(7020, tags.get(1)[1]);
+        // script tags between media tags are passed on
+        Assert.assertEquals(SCRIPT, tags.get(2)[0]);
+        Assert.assertEquals(7040, tags.get(2)[1]);
+        Assert.assertEquals(7100, tags.get(3)[1]);
+    }
+
+    @Test
+    public void testPartialCommit() throws IOException {
+        FlvSegmentCache cache = new FlvSegmentCache(dir);
+
+        // stopped before MIN_PARTIAL_MILLIS of media, not kept
+        Flv flv = new Flv().script(0);
+        for (int t = 0; t < FlvSegmentCache.MIN_PARTIAL_MILLIS; t += 100) {
+            flv.video(t, t % 1000 == 0, 50);
+        }
+        write(cache, 0, flv.toByteArray(), false);
+        Assert.assertNull(cache.find(KEY, 0));
+        Assert.assertEquals(0, dir.listFiles().length);
+
+        // stopped at 8 s in the middle of a tag
+        flv = new Flv().script(0);
+        for (int t = 0; t <= 8000; t += 100) {
+            flv.video(t, t % 1000 == 0, 50);
+        }
+        int complete = flv.size();
+        flv.video(8100, false, 50);
+        byte[] stopped = new byte[complete + 20];
+        System.arraycopy(flv.toByteArray(), 0, stopped, 0, stopped.length);
+        write(cache, 20.0, stopped, false);
+
+        Segment s = cache.find(KEY, 20.0);
+        Assert.assertNotNull(s);
+        Assert.assertFalse(s.isComplete());
+        Assert.assertEquals(28000, s.endMillis);
+        Assert.assertEquals(complete, s.file.length());
+        // not used closer than MIN_PARTIAL_MILLIS to its end
+        Segment last = cache.find(KEY, 28.0 - FlvSegmentCache.MIN_PARTIAL_MILLIS / 1000.0);
+        Assert.assertNotNull(last);
+        cache.release(last);
+        Assert.assertNull(cache.find(KEY, 23.1));
+
+        SegmentReader r = s.open(22.5);
+        Assert.assertEquals(22.0, r.getStartSecond(), 0);
+        Assert.assertEquals(28.0, r.getEndSecond(), 0);
+        List<int[]> tags = readFlv(r);
+        Assert.assertEquals(61, tags.size() - 1);
+        Assert.assertEquals(6000, tags.get(tags.size() - 1)[1]);
+        cache.release(s);
+
+        // a shorter partial run doesn't replace it
+        flv = new Flv().script(0);
+        for (int t = 0; t <= 6000; t += 100) {
+            flv.video(t, t % 1000 == 0, 50);
+        }
+        write(cache, 20.0, flv.toByteArray(), false);
+        s = cache.find(KEY, 20.0);
+        Assert.assertEquals(28000, s.endMillis);
+        cache.release(s);
+    }
+
+    @Test
+    public void testEvictionSkipsOpenSegments() throws IOException {
+        COConfigurationManager.setParameter(FlvSegmentCache.CACHE_SIZE_PARAM, 1);
+        FlvSegmentCache cache = new FlvSegmentCache(dir);
+        // about 400 KB each, two fit into the cache
+        byte[] data = new Flv().script(0).video(0, true, 200 * 1024).video(1000, false,
+                200 * 1024).toByteArray();
+        write(cache, 0, data, true);
+        write(cache, 100, data, true);
+
+        // the first one is least recently used but still being played
+        Segment playing = cache.find(KEY, 50);
+        Segment played = cache.find(KEY, 150);
+        cache.release(played);
+        Assert.assertTrue(playing.file.exists());
+
+        write(cache, 200, data, true);
+        Assert.assertTrue(playing.file.exists());
+        Assert.assertFalse(played.file.exists());
+        Assert.assertFalse(played.index.exists());
+        Assert.assertNotNull(cache.find(KEY, 250));
+
+        // once released it is evicted like the others
+        cache.release(playing);
+        write(cache, 300, data, true);
+        Assert.assertFalse(playing.file.exists());
+    }
+
+    private static void write(FlvSegmentCache cache, double startAtSecond, byte[] flv,
+            boolean complete) throws IOException {
+        SegmentWriter w = cache.startSegment(KEY, startAtSecond);
+        // in odd sized pieces, the writer parses across reads
+        InputStream in = w.record(new ByteArrayInputStream(flv));
+        byte[] buf = new byte[777];
+        while (in.read(buf) != -1) {
+        }
+        w.commit(complete);
+    }
+
+    /**
+     * @return type, timestamp and video frame type (1 for keyframes) of the
+     *         tags of an FLV stream
+     */
+    private static List<int[]> readFlv(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        byte[] header = new byte[9];
+        in.readFully(header);
+        Assert.assertEquals("FLV", new String(header, 0, 3, "ISO-8859-1"));
+        in.readInt();
+        List<int[]> tags = new ArrayList<int[]>();
+        int[] tag;
+        while ((tag = readTag(in)) != null) {
+            tags.add(tag);
+        }
+        in.close();
+        return tags;
+    }
+
+    private static int[] readTag(DataInputStream in) throws IOException {
+        byte[] header = new byte[11];
+        try {
+            in.readFully(header);
+        } catch (EOFException e) {
+            return null;
+        }
+        int type = header[0] & 0x1f;
+        int size = int24(header, 1);
+        int time = int24(header, 4) | ((header[7] & 0xff) << 24);
+        byte[] body = new byte[size];
+        in.readFully(body);
+        Assert.assertEquals(11 + size, in.readInt());
+        int frameType = type == VIDEO && size > 0 ? (body[0] & 0xf0) >> 4 : 0;
+        return new int[] { type, time, frameType };
+    }
+
+    private static int int24(byte[] b, int off) {
+        return ((b[off] & 0xff) << 16) | ((b[off + 1] & 0xff) << 8) | (b[off + 2] & 0xff);
+    }
+
+    /**
+     * Builds an FLV stream, tag bodies are filler.
+     */
+    private static class Flv {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Flv() {
+            out.write('F');
+            out.write('L');
+            out.write('V');
+            out.write(1);
+            out.write(5);
+            writeInt(9);
+            writeInt(0);
+        }
+
+        Flv script(int time) {
+            return tag(SCRIPT, time, new byte[30]);
+        }
+
+        Flv audio(int time, int size) {
+            byte[] body = new byte[size];
+            body[0] = (byte) 0x2f;
+            return tag(AUDIO, time, body);
+        }
+
+        Flv video(int time, boolean keyframe, int size) {
+            byte[] body = new byte[size];
+            body[0] = (byte) (keyframe ? 0x12 : 0x22);
+            return tag(VIDEO, time, body);
+        }
+
+        int size() {
+            return out.size();
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+
+        private Flv tag(int type, int time, byte[] body) {
+            out.write(type);
+            writeInt24(body.length);
+            writeInt24(time);
+            out.write(time >> 24);
+            writeInt24(0);
+            out.write(body, 0, body.length);
+            writeInt(11 + body.length);
+            return this;
+        }
+
+        private void writeInt24(int v) {
+            out.write(v >> 16);
+            out.write(v >> 8);
+            out.write(v);
+        }
+
+        private void writeInt(int v) {
+            out.write(v >> 24);
+            writeInt24(v);
+        }
+    }
+}